@@ -0,0 +1,589 @@
+package com.mdaley.jocl;
+
+import static org.jocl.CL.*;
+
+import java.util.*;
+
+import org.jocl.*;
+
+/**
+ * A pool of memory objects that are recycled instead of being created and
+ * released for every operation. <br />
+ * <br />
+ * Buffers are handed out by context, memory flags and size class. The
+ * size classes are the powers of two up to 4 KB, and above that, four
+ * classes between two consecutive powers of two, so that at most 25% of
+ * a buffer are unused. A buffer that is acquired may therefore be larger
+ * than requested, but callers must only rely on the requested size. <br />
+ * <br />
+ * Released buffers are kept idle in the pool until they are acquired again.
+ * When the idle memory exceeds the limit, which is 256 MB by default and
+ * may be changed with the system property
+ * <code>jocl.bufferPool.maxIdleBytes</code>, the buffers that have been
+ * idle for the longest time are released. The pool counts the
+ * acquisitions that could be served from idle buffers (hits) and those
+ * that required a new buffer (misses). <br />
+ * <br />
+ * The pool is owned by the {@link ClRuntime}, which releases all buffers
+ * when it is shut down. All methods of this class are thread-safe.
+ */
+public final class BufferPool
+{
+    /**
+     * The smallest size class, in bytes
+     */
+    private static final long MIN_SIZE_CLASS = 4096;
+
+    /**
+     * Creates and releases the memory objects of a pool
+     */
+    interface Allocator
+    {
+        /**
+         * Create a memory object
+         *
+         * @param context The context
+         * @param flags The memory flags
+         * @param size The size, in bytes
+         * @return The memory object
+         * @throws CLException If the memory object can not be created
+         */
+        cl_mem create(cl_context context, long flags, long size);
+
+        /**
+         * Release the given memory object
+         *
+         * @param mem The memory object
+         */
+        void release(cl_mem mem);
+    }
+
+    /**
+     * The allocator that creates the memory objects with clCreateBuffer
+     */
+    private static final Allocator CL_ALLOCATOR = new Allocator()
+    {
+        @Override
+        public cl_mem create(cl_context context, long flags, long size)
+        {
+            return clCreateBuffer(context, flags, size, null, null);
+        }
+
+        @Override
+        public void release(cl_mem mem)
+        {
+            clReleaseMemObject(mem);
+        }
+    };
+
+    /**
+     * The key for a size class of buffers: The context, memory flags
+     * and size class
+     */
+    private static final class PoolKey
+    {
+        /**
+         * The context
+         */
+        private final cl_context context;
+
+        /**
+         * The memory flags
+         */
+        private final long flags;
+
+        /**
+         * The size class, which is the actual size of the buffers
+         */
+        private final long size;
+
+        /**
+         * Creates a new key
+         *
+         * @param context The context
+         * @param flags The memory flags
+         * @param size The size class
+         */
+        PoolKey(cl_context context, long flags, long size)
+        {
+            this.context = context;
+            this.flags = flags;
+            this.size = size;
+        }
+
+        @Override
+        public int hashCode()
+        {
+            int result = context.hashCode();
+            result = result * 31 + (int)(flags ^ (flags >>> 32));
+            result = result * 31 + (int)(size ^ (size >>> 32));
+            return result;
+        }
+
+        @Override
+        public boolean equals(Object object)
+        {
+            if (!(object instanceof PoolKey))
+            {
+                return false;
+            }
+            PoolKey other = (PoolKey)object;
+            return context.equals(other.context) &&
+                    flags == other.flags && size == other.size;
+        }
+    }
+
+    /**
+     * The idle buffers, by size class
+     */
+    private final Map<PoolKey, Deque<cl_mem>> idleBuffers =
+            new HashMap<PoolKey, Deque<cl_mem>>();
+
+    /**
+     * All idle buffers, in the order in which they have been released
+     */
+    private final Map<cl_mem, PoolKey> idleOrder =
+            new LinkedHashMap<cl_mem, PoolKey>();
+
+    /**
+     * The buffers that have been acquired and not yet been released
+     */
+    private final Map<cl_mem, PoolKey> usedBuffers =
+            new HashMap<cl_mem, PoolKey>();
+
+    /**
+     * The allocator for the memory objects
+     */
+    private final Allocator allocator;
+
+    /**
+     * The maximum number of bytes that are kept in idle buffers
+     */
+    private long maxIdleBytes;
+
+    /**
+     * The number of bytes in idle buffers
+     */
+    private long idleBytes;
+
+    /**
+     * The number of bytes in buffers that are currently used
+     */
+    private long usedBytes;
+
+    /**
+     * The number of acquisitions that have been served from idle buffers
+     */
+    private long hits;
+
+    /**
+     * The number of acquisitions that required a new buffer
+     */
+    private long misses;
+
+    /**
+     * The number of idle buffers that have been released because the
+     * idle limit was reached
+     */
+    private long evictions;
+
+    /**
+     * Creates a new buffer pool
+     */
+    BufferPool()
+    {
+        this(CL_ALLOCATOR, Long.getLong(
+                "jocl.bufferPool.maxIdleBytes", 256L << 20));
+    }
+
+    /**
+     * Creates a new buffer pool that uses the given allocator
+     *
+     * @param allocator The allocator
+     * @param maxIdleBytes The maximum number of idle bytes
+     */
+    BufferPool(Allocator allocator, long maxIdleBytes)
+    {
+        this.allocator = allocator;
+        this.maxIdleBytes = maxIdleBytes;
+    }
+
+    /**
+     * Returns the size class for the given size
+     *
+     * @param size The size, in bytes
+     * @return The size class, in bytes
+     */
+    static long sizeClass(long size)
+    {
+        if (size <= MIN_SIZE_CLASS)
+        {
+            return nextPowerOfTwo(size);
+        }
+        long step = Long.highestOneBit(size - 1) >> 2;
+        return (size + step - 1) / step * step;
+    }
+
+    /**
+     * Returns the smallest power of two that is not smaller than the
+     * given value
+     *
+     * @param value The value
+     * @return The power of two
+     */
+    private static long nextPowerOfTwo(long value)
+    {
+        if (value <= 1)
+        {
+            return 1;
+        }
+        return Long.highestOneBit(value - 1) << 1;
+    }
+
+    /**
+     * Acquire a buffer with the given memory flags that has at least the
+     * given size. If there is an idle buffer of the same size class, it
+     * is returned. Otherwise, a new buffer is created. <br />
+     * <br />
+     * The contents of the buffer are undefined. The buffer must be
+     * returned with {@link #releaseBuffer(cl_mem)}, and must not be
+     * released with <code>clReleaseMemObject</code>.
+     *
+     * @param context The context
+     * @param flags The memory flags, e.g. CL_MEM_READ_ONLY
+     * @param size The minimum size, in bytes
+     * @return The buffer
+     * @throws IllegalArgumentException If the flags contain
+     * CL_MEM_USE_HOST_PTR or CL_MEM_COPY_HOST_PTR, which can not be
+     * used for pooled buffers, or the size is not positive
+     * @throws CLException If the buffer can not be created
+     */
+    public cl_mem acquireBuffer(cl_context context, long flags, long size)
+    {
+        if ((flags & (CL_MEM_USE_HOST_PTR | CL_MEM_COPY_HOST_PTR)) != 0)
+        {
+            throw new IllegalArgumentException(
+                    "Pooled buffers may not use or copy a host pointer");
+        }
+        if (size <= 0)
+        {
+            throw new IllegalArgumentException(
+                    "The size must be positive, but is " + size);
+        }
+        PoolKey key = new PoolKey(context, flags, sizeClass(size));
+        synchronized (this)
+        {
+            Deque<cl_mem> idle = idleBuffers.get(key);
+            if (idle != null && !idle.isEmpty())
+            {
+                cl_mem mem = idle.pollLast();
+                idleOrder.remove(mem);
+                idleBytes -= key.size;
+                usedBuffers.put(mem, key);
+                usedBytes += key.size;
+                hits++;
+                return mem;
+            }
+            misses++;
+        }
+        cl_mem mem = createBuffer(key);
+        synchronized (this)
+        {
+            usedBuffers.put(mem, key);
+            usedBytes += key.size;
+        }
+        return mem;
+    }
+
+    /**
+     * Create a new buffer for the given size class. If the allocation
+     * fails because the device is out of memory, the idle buffers of
+     * the context are released, and the allocation is attempted again.
+     *
+     * @param key The size class
+     * @return The buffer
+     * @throws CLException If the buffer can not be created
+     */
+    private cl_mem createBuffer(PoolKey key)
+    {
+        try
+        {
+            return allocator.create(key.context, key.flags, key.size);
+        }
+        catch (CLException e)
+        {
+            if (e.getStatus() != CL_MEM_OBJECT_ALLOCATION_FAILURE &&
+                    e.getStatus() != CL_OUT_OF_RESOURCES &&
+                    e.getStatus() != CL_OUT_OF_HOST_MEMORY)
+            {
+                throw e;
+            }
+            if (trim(key.context) == 0)
+            {
+                throw e;
+            }
+            return allocator.create(key.context, key.flags, key.size);
+        }
+    }
+
+    /**
+     * Return the given buffer to the pool. The caller must make sure
+     * that all commands that use the buffer have been enqueued: The
+     * buffer may be handed out again immediately, and commands that
+     * are enqueued later will be executed after the pending ones when
+     * the same in-order command queue is used. When the idle limit is
+     * exceeded, the buffers that have been idle for the longest time
+     * are released.
+     *
+     * @param mem The buffer
+     * @throws IllegalArgumentException If the buffer was not acquired
+     * from this pool
+     */
+    public void releaseBuffer(cl_mem mem)
+    {
+        List<cl_mem> evicted = new ArrayList<cl_mem>();
+        synchronized (this)
+        {
+            PoolKey key = usedBuffers.remove(mem);
+            if (key == null)
+            {
+                throw new IllegalArgumentException(
+                        "Buffer was not acquired from this pool: " + mem);
+            }
+            usedBytes -= key.size;
+            Deque<cl_mem> idle = idleBuffers.get(key);
+            if (idle == null)
+            {
+                idle = new ArrayDeque<cl_mem>();
+                idleBuffers.put(key, idle);
+            }
+            idle.addLast(mem);
+            idleOrder.put(mem, key);
+            idleBytes += key.size;
+            evictIdle(maxIdleBytes, evicted);
+            evictions += evicted.size();
+        }
+        for (cl_mem e : evicted)
+        {
+            allocator.release(e);
+        }
+    }
+
+    /**
+     * Returns the actual size of the given buffer, which may be larger
+     * than the size that was requested
+     *
+     * @param mem The buffer
+     * @return The size, in bytes
+     * @throws IllegalArgumentException If the buffer was not acquired
+     * from this pool
+     */
+    public synchronized long getSize(cl_mem mem)
+    {
+        PoolKey key = usedBuffers.get(mem);
+        if (key == null)
+        {
+            throw new IllegalArgumentException(
+                    "Buffer was not acquired from this pool: " + mem);
+        }
+        return key.size;
+    }
+
+    /**
+     * Set the maximum number of bytes that are kept in idle buffers,
+     * releasing idle buffers if necessary
+     *
+     * @param maxIdleBytes The maximum number of idle bytes
+     */
+    public void setMaxIdleBytes(long maxIdleBytes)
+    {
+        List<cl_mem> evicted = new ArrayList<cl_mem>();
+        synchronized (this)
+        {
+            this.maxIdleBytes = maxIdleBytes;
+            evictIdle(maxIdleBytes, evicted);
+            evictions += evicted.size();
+        }
+        for (cl_mem mem : evicted)
+        {
+            allocator.release(mem);
+        }
+    }
+
+    /**
+     * Returns the maximum number of bytes that are kept in idle buffers
+     *
+     * @return The maximum number of idle bytes
+     */
+    public synchronized long getMaxIdleBytes()
+    {
+        return maxIdleBytes;
+    }
+
+    /**
+     * Release all idle buffers
+     */
+    public void trim()
+    {
+        List<cl_mem> evicted = new ArrayList<cl_mem>();
+        synchronized (this)
+        {
+            evictIdle(0, evicted);
+        }
+        for (cl_mem mem : evicted)
+        {
+            allocator.release(mem);
+        }
+    }
+
+    /**
+     * Returns the number of acquisitions that have been served from
+     * idle buffers
+     *
+     * @return The number of hits
+     */
+    public synchronized long getHits()
+    {
+        return hits;
+    }
+
+    /**
+     * Returns the number of acquisitions that required a new buffer
+     *
+     * @return The number of misses
+     */
+    public synchronized long getMisses()
+    {
+        return misses;
+    }
+
+    /**
+     * Returns the number of idle buffers that have been released
+     * because the idle limit was exceeded
+     *
+     * @return The number of evictions
+     */
+    public synchronized long getEvictions()
+    {
+        return evictions;
+    }
+
+    /**
+     * Returns the number of bytes in idle buffers
+     *
+     * @return The number of idle bytes
+     */
+    public synchronized long getIdleBytes()
+    {
+        return idleBytes;
+    }
+
+    /**
+     * Returns the number of bytes in buffers that are currently used
+     *
+     * @return The number of used bytes
+     */
+    public synchronized long getUsedBytes()
+    {
+        return usedBytes;
+    }
+
+    @Override
+    public synchronized String toString()
+    {
+        return "BufferPool[hits=" + hits + ", misses=" + misses +
+                ", evictions=" + evictions + ", usedBytes=" + usedBytes +
+                ", idleBytes=" + idleBytes + "]";
+    }
+
+    /**
+     * Release all idle buffers of the given context, for example
+     * because the device ran out of memory
+     *
+     * @param context The context
+     * @return The number of bytes that have been released
+     */
+    private long trim(cl_context context)
+    {
+        List<cl_mem> evicted = new ArrayList<cl_mem>();
+        long released = 0;
+        synchronized (this)
+        {
+            Iterator<Map.Entry<cl_mem, PoolKey>> iterator =
+                    idleOrder.entrySet().iterator();
+            while (iterator.hasNext())
+            {
+                Map.Entry<cl_mem, PoolKey> entry = iterator.next();
+                PoolKey key = entry.getValue();
+                if (key.context.equals(context))
+                {
+                    iterator.remove();
+                    idleBuffers.get(key).remove(entry.getKey());
+                    idleBytes -= key.size;
+                    released += key.size;
+                    evicted.add(entry.getKey());
+                }
+            }
+        }
+        for (cl_mem mem : evicted)
+        {
+            allocator.release(mem);
+        }
+        return released;
+    }
+
+    /**
+     * Remove the buffers that have been idle for the longest time, until
+     * at most the given number of bytes are idle. The removed buffers are
+     * added to the given list, and have to be released by the caller,
+     * outside of the lock. Must be called while holding the lock.
+     *
+     * @param limit The maximum number of idle bytes
+     * @param evicted The list that receives the removed buffers
+     */
+    private void evictIdle(long limit, List<cl_mem> evicted)
+    {
+        Iterator<Map.Entry<cl_mem, PoolKey>> iterator =
+                idleOrder.entrySet().iterator();
+        while (idleBytes > limit && iterator.hasNext())
+        {
+            Map.Entry<cl_mem, PoolKey> entry = iterator.next();
+            PoolKey key = entry.getValue();
+            iterator.remove();
+            idleBuffers.get(key).remove(entry.getKey());
+            idleBytes -= key.size;
+            evicted.add(entry.getKey());
+        }
+    }
+
+    /**
+     * Release all buffers of the given context, regardless of whether
+     * they are still used. This is called when the runtime is shut down.
+     *
+     * @param context The context
+     */
+    void release(cl_context context)
+    {
+        trim(context);
+        List<cl_mem> used = new ArrayList<cl_mem>();
+        synchronized (this)
+        {
+            Iterator<Map.Entry<cl_mem, PoolKey>> iterator =
+                    usedBuffers.entrySet().iterator();
+            while (iterator.hasNext())
+            {
+                Map.Entry<cl_mem, PoolKey> entry = iterator.next();
+                if (entry.getValue().context.equals(context))
+                {
+                    iterator.remove();
+                    usedBytes -= entry.getValue().size;
+                    used.add(entry.getKey());
+                }
+            }
+        }
+        for (cl_mem mem : used)
+        {
+            allocator.release(mem);
+        }
+    }
+}
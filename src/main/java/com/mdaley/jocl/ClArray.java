@@ -0,0 +1,338 @@
+package com.mdaley.jocl;
+
+import static org.jocl.CL.*;
+
+import java.nio.*;
+
+import org.jocl.*;
+
+/**
+ * Base class for arrays of primitive values that are stored in direct
+ * (off-heap) memory, and may be passed to OpenCL without pinning or
+ * copying Java arrays. <br />
+ * <br />
+ * The arrays are indexed with <code>long</code> values, so that they are
+ * not limited to 2^31 elements. Since a single direct buffer can not be
+ * larger than 2 GB, the memory is divided into chunks of at most 1 GB.
+ * Transfers between an array and a memory object are enqueued as one
+ * read or write per chunk, each of them directly from the off-heap
+ * memory. <br />
+ * <br />
+ * The memory is allocated when the array is created, initialized with
+ * zeros, and freed when the array is garbage collected. Instances are
+ * not thread-safe.
+ */
+public abstract class ClArray
+{
+    /**
+     * The maximum size of a chunk, in bytes
+     */
+    static final long MAX_CHUNK_BYTES = 1L << 30;
+
+    /**
+     * The number of elements
+     */
+    private final long length;
+
+    /**
+     * The size of one element, in bytes
+     */
+    private final int elementSize;
+
+    /**
+     * The number of elements per chunk
+     */
+    private final long chunkLength;
+
+    /**
+     * The chunks, in native byte order
+     */
+    private final ByteBuffer chunks[];
+
+    /**
+     * The pointers to the chunks
+     */
+    private final Pointer chunkPointers[];
+
+    /**
+     * Creates a new array with the given length
+     *
+     * @param length The number of elements
+     * @param elementSize The size of one element, in bytes
+     * @throws IllegalArgumentException If the length is negative
+     */
+    protected ClArray(long length, int elementSize)
+    {
+        if (length < 0)
+        {
+            throw new IllegalArgumentException(
+                    "The length may not be negative, but is " + length);
+        }
+        this.length = length;
+        this.elementSize = elementSize;
+        this.chunkLength = MAX_CHUNK_BYTES / elementSize;
+        int numChunks = (int) Math.max(1, (length + chunkLength - 1) / chunkLength);
+        this.chunks = new ByteBuffer[numChunks];
+        this.chunkPointers = new Pointer[numChunks];
+        for (int i = 0; i < numChunks; i++)
+        {
+            long elements = Math.min(chunkLength, length - i * chunkLength);
+            chunks[i] = ByteBuffer.allocateDirect((int) (elements * elementSize))
+                    .order(ByteOrder.nativeOrder());
+            chunkPointers[i] = Pointer.to(chunks[i]);
+        }
+    }
+
+    /**
+     * Returns the number of elements
+     *
+     * @return The length
+     */
+    public final long length()
+    {
+        return length;
+    }
+
+    /**
+     * Returns the size of one element, in bytes
+     *
+     * @return The element size
+     */
+    public final int getElementSize()
+    {
+        return elementSize;
+    }
+
+    /**
+     * Returns the size of the whole array, in bytes
+     *
+     * @return The size
+     */
+    public final long getByteSize()
+    {
+        return length * elementSize;
+    }
+
+    /**
+     * Returns the number of chunks
+     *
+     * @return The number of chunks
+     */
+    public final int getNumChunks()
+    {
+        return chunks.length;
+    }
+
+    /**
+     * Returns the chunk with the given index
+     *
+     * @param chunk The chunk index
+     * @return The chunk
+     */
+    protected final ByteBuffer getChunk(int chunk)
+    {
+        return chunks[chunk];
+    }
+
+    /**
+     * Returns the index of the chunk that contains the element with
+     * the given index
+     *
+     * @param index The element index
+     * @return The chunk index
+     */
+    protected final int chunkIndex(long index)
+    {
+        return (int) (index / chunkLength);
+    }
+
+    /**
+     * Returns the index of the element with the given index inside
+     * of its chunk
+     *
+     * @param index The element index
+     * @return The index inside of the chunk
+     */
+    protected final int chunkOffset(long index)
+    {
+        return (int) (index % chunkLength);
+    }
+
+    /**
+     * Returns the number of elements that may be accessed in the chunk
+     * of the given element, starting at this element, limited to the
+     * given number of elements
+     *
+     * @param index The element index
+     * @param count The maximum number of elements
+     * @return The number of elements
+     */
+    protected final int chunkRemaining(long index, long count)
+    {
+        return (int) Math.min(count, chunkLength - chunkOffset(index));
+    }
+
+    /**
+     * Make sure that the given range is valid for this array
+     *
+     * @param index The start index
+     * @param count The number of elements
+     * @throws IndexOutOfBoundsException If the range is not valid
+     */
+    protected final void checkRange(long index, long count)
+    {
+        if (index < 0 || count < 0 || index + count > length)
+        {
+            throw new IndexOutOfBoundsException("Range [" + index + ", " +
+                    (index + count) + ") is not in [0, " + length + ")");
+        }
+    }
+
+    /**
+     * Returns a pointer to the off-heap memory of this array, which may
+     * be passed directly to OpenCL functions. This is only possible for
+     * arrays that consist of a single chunk, i.e. arrays that are smaller
+     * than 1 GB. Larger arrays have to be transferred with
+     * {@link #write} and {@link #read}.
+     *
+     * @return The pointer
+     * @throws IllegalStateException If the array has more than one chunk
+     */
+    public final Pointer getPointer()
+    {
+        if (chunks.length != 1)
+        {
+            throw new IllegalStateException("The array consists of " +
+                    chunks.length + " chunks, and can not be accessed " +
+                    "with a single pointer");
+        }
+        return chunkPointers[0];
+    }
+
+    /**
+     * Create a memory object in the given context that
+     * contains the contents of this array. If the array consists of a
+     * single chunk, the contents are copied from the off-heap memory by
+     * the driver when the memory object is created. Otherwise, they are
+     * written chunk by chunk, using the given command queue. For an
+     * empty array, a memory object of one element is created, because
+     * OpenCL does not allow empty memory objects, and nothing is copied.
+     *
+     * @param context The context
+     * @param flags The memory flags, e.g. CL_MEM_READ_ONLY. These must
+     * not contain CL_MEM_USE_HOST_PTR or CL_MEM_COPY_HOST_PTR.
+     * @param commandQueue The command queue for writing the contents
+     * @return The memory object
+     */
+    public final cl_mem createBuffer(cl_context context, long flags,
+            cl_command_queue commandQueue)
+    {
+        long size = Math.max(elementSize, getByteSize());
+        if (getByteSize() == 0)
+        {
+            return clCreateBuffer(context, flags, size, null, null);
+        }
+        if (chunks.length == 1)
+        {
+            return clCreateBuffer(context, flags | CL_MEM_COPY_HOST_PTR,
+                    size, chunkPointers[0], null);
+        }
+        cl_mem mem = clCreateBuffer(context, flags, size, null, null);
+        write(commandQueue, mem, true);
+        return mem;
+    }
+
+    /**
+     * Enqueue writes of the whole array into the given memory object
+     *
+     * @param commandQueue The command queue
+     * @param dst The memory object
+     * @param blocking Whether the writes are blocking
+     */
+    public final void write(cl_command_queue commandQueue, cl_mem dst,
+            boolean blocking)
+    {
+        write(commandQueue, dst, 0, length, 0, blocking);
+    }
+
+    /**
+     * Enqueue writes of the given range of this array into the given
+     * memory object. For non-blocking writes, the range must not be
+     * modified until the writes have finished.
+     *
+     * @param commandQueue The command queue
+     * @param dst The memory object
+     * @param index The index of the first element to write
+     * @param count The number of elements to write
+     * @param dstOffset The offset in the memory object, in bytes
+     * @param blocking Whether the writes are blocking
+     * @throws IndexOutOfBoundsException If the range is not valid
+     */
+    public final void write(cl_command_queue commandQueue, cl_mem dst,
+            long index, long count, long dstOffset, boolean blocking)
+    {
+        checkRange(index, count);
+        while (count > 0)
+        {
+            int n = chunkRemaining(index, count);
+            long bytes = (long) n * elementSize;
+            Pointer pointer = chunkPointers[chunkIndex(index)]
+                    .withByteOffset((long) chunkOffset(index) * elementSize);
+            clEnqueueWriteBuffer(commandQueue, dst, blocking, dstOffset,
+                    bytes, pointer, 0, null, null);
+            index += n;
+            count -= n;
+            dstOffset += bytes;
+        }
+    }
+
+    /**
+     * Enqueue reads of the whole array from the given memory object
+     *
+     * @param commandQueue The command queue
+     * @param src The memory object
+     * @param blocking Whether the reads are blocking
+     */
+    public final void read(cl_command_queue commandQueue, cl_mem src,
+            boolean blocking)
+    {
+        read(commandQueue, src, 0, length, 0, blocking);
+    }
+
+    /**
+     * Enqueue reads from the given memory object into the given range
+     * of this array. For non-blocking reads, the contents of the range
+     * are only valid after the reads have finished.
+     *
+     * @param commandQueue The command queue
+     * @param src The memory object
+     * @param index The index of the first element to read
+     * @param count The number of elements to read
+     * @param srcOffset The offset in the memory object, in bytes
+     * @param blocking Whether the reads are blocking
+     * @throws IndexOutOfBoundsException If the range is not valid
+     */
+    public final void read(cl_command_queue commandQueue, cl_mem src,
+            long index, long count, long srcOffset, boolean blocking)
+    {
+        checkRange(index, count);
+        while (count > 0)
+        {
+            int n = chunkRemaining(index, count);
+            long bytes = (long) n * elementSize;
+            Pointer pointer = chunkPointers[chunkIndex(index)]
+                    .withByteOffset((long) chunkOffset(index) * elementSize);
+            clEnqueueReadBuffer(commandQueue, src, blocking, srcOffset,
+                    bytes, pointer, 0, null, null);
+            index += n;
+            count -= n;
+            srcOffset += bytes;
+        }
+    }
+
+    @Override
+    public String toString()
+    {
+        return getClass().getSimpleName() + "[length=" + length + "]";
+    }
+}
@@ -0,0 +1,157 @@
+package com.mdaley.jocl;
+
+import java.nio.*;
+
+import org.jocl.*;
+
+/**
+ * An array of <code>float</code> values in direct (off-heap) memory,
+ * with <code>long</code> indices. See {@link ClArray} for details.
+ */
+public final class ClFloatArray extends ClArray
+{
+    /**
+     * The float views on the chunks
+     */
+    private final FloatBuffer views[];
+
+    /**
+     * Creates a new array with the given length, filled with zeros
+     *
+     * @param length The number of elements
+     * @throws IllegalArgumentException If the length is negative
+     */
+    public ClFloatArray(long length)
+    {
+        super(length, Sizeof.cl_float);
+        views = new FloatBuffer[getNumChunks()];
+        for (int i = 0; i < views.length; i++)
+        {
+            views[i] = getChunk(i).asFloatBuffer();
+        }
+    }
+
+    /**
+     * Creates a new array that contains the given values
+     *
+     * @param values The values
+     * @return The array
+     */
+    public static ClFloatArray of(float ... values)
+    {
+        ClFloatArray array = new ClFloatArray(values.length);
+        array.set(0, values, 0, values.length);
+        return array;
+    }
+
+    /**
+     * Returns the element with the given index
+     *
+     * @param index The index
+     * @return The element
+     * @throws IndexOutOfBoundsException If the index is not valid
+     */
+    public float get(long index)
+    {
+        checkRange(index, 1);
+        return views[chunkIndex(index)].get(chunkOffset(index));
+    }
+
+    /**
+     * Set the element with the given index
+     *
+     * @param index The index
+     * @param value The value
+     * @throws IndexOutOfBoundsException If the index is not valid
+     */
+    public void set(long index, float value)
+    {
+        checkRange(index, 1);
+        views[chunkIndex(index)].put(chunkOffset(index), value);
+    }
+
+    /**
+     * Copy the given number of elements, starting at the given index,
+     * into the given Java array
+     *
+     * @param index The index of the first element
+     * @param dst The destination array
+     * @param offset The offset in the destination array
+     * @param count The number of elements
+     * @throws IndexOutOfBoundsException If the ranges are not valid
+     */
+    public void get(long index, float dst[], int offset, int count)
+    {
+        checkRange(index, count);
+        while (count > 0)
+        {
+            int n = chunkRemaining(index, count);
+            FloatBuffer view = views[chunkIndex(index)].duplicate();
+            view.position(chunkOffset(index));
+            view.get(dst, offset, n);
+            index += n;
+            offset += n;
+            count -= n;
+        }
+    }
+
+    /**
+     * Copy the given number of elements from the given Java array into
+     * this array, starting at the given index
+     *
+     * @param index The index of the first element
+     * @param src The source array
+     * @param offset The offset in the source array
+     * @param count The number of elements
+     * @throws IndexOutOfBoundsException If the ranges are not valid
+     */
+    public void set(long index, float src[], int offset, int count)
+    {
+        checkRange(index, count);
+        while (count > 0)
+        {
+            int n = chunkRemaining(index, count);
+            FloatBuffer view = views[chunkIndex(index)].duplicate();
+            view.position(chunkOffset(index));
+            view.put(src, offset, n);
+            index += n;
+            offset += n;
+            count -= n;
+        }
+    }
+
+    /**
+     * Set all elements to the given value
+     *
+     * @param value The value
+     */
+    public void fill(float value)
+    {
+        for (FloatBuffer view : views)
+        {
+            for (int i = 0; i < view.capacity(); i++)
+            {
+                view.put(i, value);
+            }
+        }
+    }
+
+    /**
+     * Returns a new Java array with the contents of this array
+     *
+     * @return The Java array
+     * @throws IllegalStateException If this array is too large for
+     * a Java array
+     */
+    public float[] toArray()
+    {
+        if (length() > Integer.MAX_VALUE - 8)
+        {
+            throw new IllegalStateException(
+                    "Array is too large: " + length() + " elements");
+        }
+        float result[] = new float[(int) length()];
+        get(0, result, 0, result.length);
+        return result;
+    }
+}
@@ -0,0 +1,355 @@
+package com.mdaley.jocl;
+
+import static org.jocl.CL.*;
+
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+import java.util.function.*;
+
+import org.jocl.*;
+
+/**
+ * Asynchronous variants of the enqueue functions, which return
+ * <code>CompletableFuture</code>s instead of blocking the calling
+ * thread. <br />
+ * <br />
+ * Each command is enqueued with an event, and a CL_COMPLETE callback is
+ * registered for this event with clSetEventCallback. The future is
+ * completed when the callback is invoked: Normally if the command has
+ * completed, or exceptionally with a <code>CLException</code> that
+ * contains the (negative) execution status if the command failed. Errors
+ * that are reported by the enqueue function itself are also propagated
+ * through the returned future. The commands are flushed when they are
+ * enqueued, so that they are submitted to the device without a blocking
+ * call. <br />
+ * <br />
+ * The futures are completed on a pool of daemon threads, and not on the
+ * thread of the OpenCL implementation that invokes the callback, because
+ * the dependent stages that are attached to a future may call blocking
+ * OpenCL functions, which is not allowed in a callback. The events are
+ * released by this class after the future has been completed. <br />
+ * <br />
+ * Non-blocking transfers may only use pointers to direct buffers, e.g.
+ * the memory of a {@link ClArray} or a {@link StagingBuffer}, which must
+ * not be accessed until the returned future has completed.
+ */
+public final class ClFutures
+{
+    /**
+     * The executor that completes the futures
+     */
+    private static final ExecutorService COMPLETION_EXECUTOR =
+            Executors.newCachedThreadPool(
+                    createThreadFactory("jocl-completion"));
+
+    /**
+     * The executor that completes futures when a timeout elapsed
+     */
+    private static final ScheduledExecutorService TIMEOUT_EXECUTOR =
+            Executors.newSingleThreadScheduledExecutor(
+                    createThreadFactory("jocl-timeout"));
+
+    /**
+     * Private constructor to prevent instantiation
+     */
+    private ClFutures()
+    {
+        // Private constructor to prevent instantiation
+    }
+
+    /**
+     * Returns a future that is completed with the given value when the
+     * command that is associated with the given event has completed.
+     * The event is released when the future has been completed.
+     *
+     * @param <T> The type of the value
+     * @param event The event
+     * @param value The value for the future
+     * @return The future
+     */
+    public static <T> CompletableFuture<T> whenComplete(
+            final cl_event event, final T value)
+    {
+        final CompletableFuture<T> future = new CompletableFuture<T>();
+        try
+        {
+            clSetEventCallback(event, CL_COMPLETE, new EventCallbackFunction()
+            {
+                @Override
+                public void function(
+                        cl_event callbackEvent, final int status, Object userData)
+                {
+                    COMPLETION_EXECUTOR.execute(new Runnable()
+                    {
+                        @Override
+                        public void run()
+                        {
+                            if (status < 0)
+                            {
+                                future.completeExceptionally(new CLException(
+                                        "Command failed: " +
+                                        stringFor_errorCode(status), status));
+                            }
+                            else
+                            {
+                                future.complete(value);
+                            }
+                            clReleaseEvent(event);
+                        }
+                    });
+                }
+            }, null);
+        }
+        catch (CLException e)
+        {
+            clReleaseEvent(event);
+            future.completeExceptionally(e);
+        }
+        return future;
+    }
+
+    /**
+     * Enqueue the given kernel, and return a future that is completed
+     * when the kernel has been executed
+     *
+     * @param commandQueue The command queue
+     * @param kernel The kernel, whose arguments have been set
+     * @param globalWorkOffset The global work offset, may be null
+     * @param globalWorkSize The global work size
+     * @param localWorkSize The local work size, may be null
+     * @param waitList The events to wait for, may be null
+     * @return The future
+     */
+    public static CompletableFuture<Void> enqueueNDRangeKernel(
+            cl_command_queue commandQueue, cl_kernel kernel,
+            long globalWorkOffset[], long globalWorkSize[],
+            long localWorkSize[], cl_event waitList[])
+    {
+        cl_event event = new cl_event();
+        try
+        {
+            clEnqueueNDRangeKernel(commandQueue, kernel,
+                    globalWorkSize.length, globalWorkOffset, globalWorkSize,
+                    localWorkSize, length(waitList), waitList, event);
+            clFlush(commandQueue);
+        }
+        catch (CLException e)
+        {
+            return failed(e);
+        }
+        return whenComplete(event, null);
+    }
+
+    /**
+     * Enqueue a non-blocking write of the given host memory into the
+     * given memory object, and return a future that is completed when
+     * the write has finished
+     *
+     * @param commandQueue The command queue
+     * @param dst The memory object
+     * @param dstOffset The offset in the memory object, in bytes
+     * @param size The number of bytes
+     * @param src The pointer to the host memory, which must be
+     * a direct buffer
+     * @param waitList The events to wait for, may be null
+     * @return The future
+     */
+    public static CompletableFuture<Void> enqueueWriteBuffer(
+            cl_command_queue commandQueue, cl_mem dst, long dstOffset,
+            long size, Pointer src, cl_event waitList[])
+    {
+        cl_event event = new cl_event();
+        try
+        {
+            clEnqueueWriteBuffer(commandQueue, dst, CL_FALSE, dstOffset,
+                    size, src, length(waitList), waitList, event);
+            clFlush(commandQueue);
+        }
+        catch (CLException e)
+        {
+            return failed(e);
+        }
+        return whenComplete(event, null);
+    }
+
+    /**
+     * Enqueue a non-blocking read from the given memory object into the
+     * given host memory, and return a future that is completed when the
+     * read has finished
+     *
+     * @param commandQueue The command queue
+     * @param src The memory object
+     * @param srcOffset The offset in the memory object, in bytes
+     * @param size The number of bytes
+     * @param dst The pointer to the host memory, which must be
+     * a direct buffer
+     * @param waitList The events to wait for, may be null
+     * @return The future
+     */
+    public static CompletableFuture<Void> enqueueReadBuffer(
+            cl_command_queue commandQueue, cl_mem src, long srcOffset,
+            long size, Pointer dst, cl_event waitList[])
+    {
+        cl_event event = new cl_event();
+        try
+        {
+            clEnqueueReadBuffer(commandQueue, src, CL_FALSE, srcOffset,
+                    size, dst, length(waitList), waitList, event);
+            clFlush(commandQueue);
+        }
+        catch (CLException e)
+        {
+            return failed(e);
+        }
+        return whenComplete(event, null);
+    }
+
+    /**
+     * Enqueue non-blocking reads of the whole given array from the given
+     * memory object, and return a future that is completed with the array
+     * when the reads have finished. This requires OpenCL 1.2.
+     *
+     * @param <T> The type of the array
+     * @param commandQueue The command queue
+     * @param src The memory object
+     * @param array The array
+     * @return The future
+     */
+    public static <T extends ClArray> CompletableFuture<T> read(
+            cl_command_queue commandQueue, cl_mem src, final T array)
+    {
+        try
+        {
+            array.read(commandQueue, src, false);
+        }
+        catch (CLException e)
+        {
+            return failed(e);
+        }
+        return enqueueMarker(commandQueue).thenApply(
+                new Function<Void, T>()
+        {
+            @Override
+            public T apply(Void v)
+            {
+                return array;
+            }
+        });
+    }
+
+    /**
+     * Enqueue a marker, and return a future that is completed when all
+     * commands that have previously been enqueued on the given command
+     * queue have completed. This requires OpenCL 1.2.
+     *
+     * @param commandQueue The command queue
+     * @return The future
+     */
+    public static CompletableFuture<Void> enqueueMarker(
+            cl_command_queue commandQueue)
+    {
+        cl_event event = new cl_event();
+        try
+        {
+            clEnqueueMarkerWithWaitList(commandQueue, 0, null, event);
+            clFlush(commandQueue);
+        }
+        catch (CLException e)
+        {
+            return failed(e);
+        }
+        return whenComplete(event, null);
+    }
+
+    /**
+     * Returns a future that is completed like the given future, or
+     * exceptionally with a <code>TimeoutException</code> if the given
+     * future is not completed within the given time. Note that the
+     * commands that the future refers to are not cancelled.
+     *
+     * @param <T> The type of the value
+     * @param future The future
+     * @param timeout The timeout
+     * @param unit The unit of the timeout
+     * @return The future with the timeout
+     */
+    public static <T> CompletableFuture<T> withTimeout(
+            CompletableFuture<T> future, final long timeout, final TimeUnit unit)
+    {
+        final CompletableFuture<T> result = new CompletableFuture<T>();
+        final ScheduledFuture<?> timer = TIMEOUT_EXECUTOR.schedule(
+                new Runnable()
+        {
+            @Override
+            public void run()
+            {
+                result.completeExceptionally(new TimeoutException(
+                        "Not completed after " + timeout + " " + unit));
+            }
+        }, timeout, unit);
+        future.whenComplete(new BiConsumer<T, Throwable>()
+        {
+            @Override
+            public void accept(T value, Throwable failure)
+            {
+                timer.cancel(false);
+                if (failure != null)
+                {
+                    result.completeExceptionally(failure);
+                }
+                else
+                {
+                    result.complete(value);
+                }
+            }
+        });
+        return result;
+    }
+
+    /**
+     * Returns a future that has been completed exceptionally
+     *
+     * @param <T> The type of the value
+     * @param failure The failure
+     * @return The future
+     */
+    private static <T> CompletableFuture<T> failed(Throwable failure)
+    {
+        CompletableFuture<T> future = new CompletableFuture<T>();
+        future.completeExceptionally(failure);
+        return future;
+    }
+
+    /**
+     * Returns the length of the given event wait list
+     *
+     * @param waitList The wait list, may be null
+     * @return The length
+     */
+    private static int length(cl_event waitList[])
+    {
+        return waitList == null ? 0 : waitList.length;
+    }
+
+    /**
+     * Creates a thread factory for daemon threads with the given name
+     *
+     * @param name The name prefix of the threads
+     * @return The thread factory
+     */
+    private static ThreadFactory createThreadFactory(final String name)
+    {
+        final AtomicInteger counter = new AtomicInteger();
+        return new ThreadFactory()
+        {
+            @Override
+            public Thread newThread(Runnable runnable)
+            {
+                Thread thread = new Thread(runnable,
+                        name + "-" + counter.incrementAndGet());
+                thread.setDaemon(true);
+                return thread;
+            }
+        };
+    }
+}
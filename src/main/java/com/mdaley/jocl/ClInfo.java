@@ -0,0 +1,161 @@
+package com.mdaley.jocl;
+
+import static org.jocl.CL.*;
+
+import java.nio.*;
+
+import org.jocl.*;
+
+/**
+ * Utility methods for querying information about platforms, devices
+ * and kernels
+ */
+public final class ClInfo
+{
+    /**
+     * Returns the value of the device info parameter with the given name
+     *
+     * @param device The device
+     * @param paramName The parameter name
+     * @return The value
+     */
+    public static int getInt(cl_device_id device, int paramName)
+    {
+        int values[] = new int[1];
+        clGetDeviceInfo(device, paramName, Sizeof.cl_int, Pointer.to(values), null);
+        return values[0];
+    }
+
+    /**
+     * Returns the value of the kernel info parameter with the given name
+     *
+     * @param kernel The kernel
+     * @param paramName The parameter name
+     * @return The value
+     */
+    public static int getInt(cl_kernel kernel, int paramName)
+    {
+        int values[] = new int[1];
+        clGetKernelInfo(kernel, paramName, Sizeof.cl_int, Pointer.to(values), null);
+        return values[0];
+    }
+
+    /**
+     * Returns the value of the device info parameter with the given name
+     *
+     * @param device The device
+     * @param paramName The parameter name
+     * @return The value
+     */
+    public static long getLong(cl_device_id device, int paramName)
+    {
+        long values[] = new long[1];
+        clGetDeviceInfo(device, paramName, Sizeof.cl_long, Pointer.to(values), null);
+        return values[0];
+    }
+
+    /**
+     * Returns the value of the device info parameter with the given name
+     *
+     * @param device The device
+     * @param paramName The parameter name
+     * @return The value
+     */
+    public static long getSize(cl_device_id device, int paramName)
+    {
+        return getSizes(device, paramName, 1)[0];
+    }
+
+    /**
+     * Returns the values of the device info parameter with the given name
+     *
+     * @param device The device
+     * @param paramName The parameter name
+     * @param numValues The number of values
+     * @return The value
+     */
+    public static long[] getSizes(cl_device_id device, int paramName, int numValues)
+    {
+        // The size of the returned data has to depend on
+        // the size of a size_t, which is handled here
+        ByteBuffer buffer = ByteBuffer.allocate(
+                numValues * Sizeof.size_t).order(ByteOrder.nativeOrder());
+        clGetDeviceInfo(device, paramName, Sizeof.size_t * numValues,
+                Pointer.to(buffer), null);
+        return toSizes(buffer, numValues);
+    }
+
+    /**
+     * Returns the value of the device info parameter with the given name
+     *
+     * @param device The device
+     * @param paramName The parameter name
+     * @return The value
+     */
+    public static String getString(cl_device_id device, int paramName)
+    {
+        // Obtain the length of the string that will be queried
+        long size[] = new long[1];
+        clGetDeviceInfo(device, paramName, 0, null, size);
+
+        // Create a buffer of the appropriate size and fill it with the info
+        byte buffer[] = new byte[(int)size[0]];
+        clGetDeviceInfo(device, paramName, buffer.length, Pointer.to(buffer), null);
+
+        // Create a string from the buffer (excluding the trailing \0 byte)
+        return new String(buffer, 0, buffer.length-1);
+    }
+
+    /**
+     * Returns the value of the platform info parameter with the given name
+     *
+     * @param platform The platform
+     * @param paramName The parameter name
+     * @return The value
+     */
+    public static String getString(cl_platform_id platform, int paramName)
+    {
+        // Obtain the length of the string that will be queried
+        long size[] = new long[1];
+        clGetPlatformInfo(platform, paramName, 0, null, size);
+
+        // Create a buffer of the appropriate size and fill it with the info
+        byte buffer[] = new byte[(int)size[0]];
+        clGetPlatformInfo(platform, paramName, buffer.length, Pointer.to(buffer), null);
+
+        // Create a string from the buffer (excluding the trailing \0 byte)
+        return new String(buffer, 0, buffer.length-1);
+    }
+
+    /**
+     * Read the given number of size_t values from the given buffer
+     *
+     * @param buffer The buffer, in native byte order
+     * @param numValues The number of values
+     * @return The values
+     */
+    static long[] toSizes(ByteBuffer buffer, int numValues)
+    {
+        long values[] = new long[numValues];
+        for (int i=0; i<numValues; i++)
+        {
+            if (Sizeof.size_t == 4)
+            {
+                values[i] = buffer.getInt(i * Sizeof.size_t);
+            }
+            else
+            {
+                values[i] = buffer.getLong(i * Sizeof.size_t);
+            }
+        }
+        return values;
+    }
+
+    /**
+     * Private constructor to prevent instantiation
+     */
+    private ClInfo()
+    {
+        // Private constructor to prevent instantiation
+    }
+}
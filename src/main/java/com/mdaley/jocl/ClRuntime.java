@@ -0,0 +1,667 @@
+package com.mdaley.jocl;
+
+import static org.jocl.CL.*;
+
+import java.util.*;
+
+import org.jocl.*;
+
+/**
+ * A shared OpenCL runtime for all samples. The platforms and devices are
+ * obtained once, and the contexts and command queues are created lazily,
+ * the first time that they are requested. They are then handed out to
+ * all callers, and are only released when the runtime is shut down. <br />
+ * <br />
+ * There is one context per platform, containing all devices of this
+ * platform, and one command queue per device and set of command queue
+ * properties. Callers must not release the contexts or command queues
+ * that they obtained from this runtime. <br />
+ * <br />
+ * If a {@link DevicePartitioning} is given with the system property
+ * <code>jocl.partition</code>, then each CPU device that can be
+ * partitioned in this way is replaced by its sub-devices: They are
+ * returned instead of the CPU device by all methods of this runtime, and
+ * each of them has its own command queues. <br />
+ * <br />
+ * All methods of this class are thread-safe.
+ */
+public final class ClRuntime
+{
+    /**
+     * The shared instance
+     */
+    private static ClRuntime instance;
+
+    /**
+     * Returns the shared runtime instance, creating it if necessary.
+     * The first call enables the CL exceptions and obtains the platforms
+     * and devices. The runtime will be shut down automatically when the
+     * JVM exits.
+     *
+     * @return The runtime
+     * @throws IllegalArgumentException If the system property
+     * <code>jocl.partition</code> is not valid
+     */
+    public static synchronized ClRuntime getInstance()
+    {
+        if (instance == null)
+        {
+            instance = new ClRuntime();
+            final ClRuntime runtime = instance;
+            Runtime.getRuntime().addShutdownHook(new Thread(new Runnable()
+            {
+                @Override
+                public void run()
+                {
+                    runtime.shutdown();
+                }
+            }, "ClRuntimeShutdown"));
+        }
+        return instance;
+    }
+
+    /**
+     * The key for a command queue: The device and the queue properties
+     */
+    private static final class QueueKey
+    {
+        /**
+         * The device
+         */
+        private final cl_device_id device;
+
+        /**
+         * The command queue properties
+         */
+        private final long properties;
+
+        /**
+         * Creates a new key
+         *
+         * @param device The device
+         * @param properties The command queue properties
+         */
+        QueueKey(cl_device_id device, long properties)
+        {
+            this.device = device;
+            this.properties = properties;
+        }
+
+        @Override
+        public int hashCode()
+        {
+            return device.hashCode() * 31 + (int)(properties ^ (properties >>> 32));
+        }
+
+        @Override
+        public boolean equals(Object object)
+        {
+            if (!(object instanceof QueueKey))
+            {
+                return false;
+            }
+            QueueKey other = (QueueKey)object;
+            return device.equals(other.device) && properties == other.properties;
+        }
+    }
+
+    /**
+     * The available platforms
+     */
+    private final List<cl_platform_id> platforms;
+
+    /**
+     * All devices of each platform
+     */
+    private final Map<cl_platform_id, List<cl_device_id>> platformDevices;
+
+    /**
+     * The parent device of each sub-device that was created by the
+     * partitioning
+     */
+    private final Map<cl_device_id, cl_device_id> parentDevices;
+
+    /**
+     * The partitioning of the CPU devices
+     */
+    private final DevicePartitioning partitioning;
+
+    /**
+     * The platform of each device
+     */
+    private final Map<cl_device_id, cl_platform_id> devicePlatforms;
+
+    /**
+     * The contexts that have been created, one for each platform
+     */
+    private final Map<cl_platform_id, cl_context> contexts;
+
+    /**
+     * The command queues that have been created
+     */
+    private final Map<QueueKey, cl_command_queue> commandQueues;
+
+    /**
+     * The queue groups that have been created
+     */
+    private final Map<QueueKey, QueueGroup> queueGroups;
+
+    /**
+     * The upload and download queues of the queue groups
+     */
+    private final List<cl_command_queue> copyQueues;
+
+    /**
+     * The cache for the programs and kernels of the contexts
+     */
+    private final ProgramCache programCache;
+
+    /**
+     * The pool for the buffers of the contexts
+     */
+    private final BufferPool bufferPool;
+
+    /**
+     * The pool for the pinned staging buffers of the contexts
+     */
+    private final StagingBufferPool stagingBufferPool;
+
+    /**
+     * Whether this runtime has already been shut down
+     */
+    private boolean shutdown;
+
+    /**
+     * Creates a new runtime, obtaining all platforms and devices. If no
+     * platform is installed, the runtime has no platforms.
+     */
+    private ClRuntime()
+    {
+        // Enable exceptions and subsequently omit error checks
+        CL.setExceptionsEnabled(true);
+
+        platforms = new ArrayList<cl_platform_id>();
+        platformDevices = new LinkedHashMap<cl_platform_id, List<cl_device_id>>();
+        devicePlatforms = new HashMap<cl_device_id, cl_platform_id>();
+        parentDevices = new LinkedHashMap<cl_device_id, cl_device_id>();
+        partitioning = DevicePartitioning.fromSystemProperty();
+        contexts = new HashMap<cl_platform_id, cl_context>();
+        commandQueues = new LinkedHashMap<QueueKey, cl_command_queue>();
+        queueGroups = new HashMap<QueueKey, QueueGroup>();
+        copyQueues = new ArrayList<cl_command_queue>();
+        programCache = new ProgramCache();
+        bufferPool = new BufferPool();
+        stagingBufferPool = new StagingBufferPool();
+
+        // Obtain the platform IDs. The ICD loader reports that no
+        // platform was found as an error, which means that there are
+        // no platforms here
+        int numPlatformsArray[] = new int[1];
+        try
+        {
+            clGetPlatformIDs(0, null, numPlatformsArray);
+        }
+        catch (CLException e)
+        {
+            if (e.getStatus() != CL_PLATFORM_NOT_FOUND_KHR)
+            {
+                throw e;
+            }
+            numPlatformsArray[0] = 0;
+        }
+        int numPlatforms = numPlatformsArray[0];
+        cl_platform_id platformsArray[] = new cl_platform_id[numPlatforms];
+        if (numPlatforms > 0)
+        {
+            clGetPlatformIDs(numPlatforms, platformsArray, null);
+        }
+
+        // Obtain the device IDs of each platform
+        for (cl_platform_id platform : platformsArray)
+        {
+            int numDevicesArray[] = new int[1];
+            clGetDeviceIDs(platform, CL_DEVICE_TYPE_ALL, 0, null, numDevicesArray);
+            int numDevices = numDevicesArray[0];
+            cl_device_id devicesArray[] = new cl_device_id[numDevices];
+            clGetDeviceIDs(platform, CL_DEVICE_TYPE_ALL, numDevices, devicesArray, null);
+
+            // Replace the CPU devices by their sub-devices, if they
+            // can be partitioned
+            List<cl_device_id> devices = new ArrayList<cl_device_id>();
+            for (cl_device_id device : devicesArray)
+            {
+                List<cl_device_id> subDevices = Collections.emptyList();
+                if ((getDeviceType(device) & CL_DEVICE_TYPE_CPU) != 0)
+                {
+                    subDevices = partitioning.partition(device);
+                }
+                if (subDevices.isEmpty())
+                {
+                    devices.add(device);
+                    continue;
+                }
+                for (cl_device_id subDevice : subDevices)
+                {
+                    devices.add(subDevice);
+                    parentDevices.put(subDevice, device);
+                }
+            }
+
+            platforms.add(platform);
+            platformDevices.put(platform, Collections.unmodifiableList(devices));
+            for (cl_device_id device : devices)
+            {
+                devicePlatforms.put(device, platform);
+            }
+        }
+    }
+
+    /**
+     * Returns an unmodifiable list of all available platforms
+     *
+     * @return The platforms
+     */
+    public List<cl_platform_id> getPlatforms()
+    {
+        return Collections.unmodifiableList(platforms);
+    }
+
+    /**
+     * Returns the platform with the given index
+     *
+     * @param platformIndex The platform index
+     * @return The platform
+     * @throws CLException If there is no such platform
+     */
+    public cl_platform_id getPlatform(int platformIndex)
+    {
+        if (platformIndex < 0 || platformIndex >= platforms.size())
+        {
+            throw new CLException("No OpenCL platform with index " +
+                    platformIndex + ", found " + platforms.size() + " platforms",
+                    CL_INVALID_PLATFORM);
+        }
+        return platforms.get(platformIndex);
+    }
+
+    /**
+     * Returns the platform of the given device
+     *
+     * @param device The device
+     * @return The platform
+     * @throws CLException If the device is not known to this runtime
+     */
+    public cl_platform_id getPlatform(cl_device_id device)
+    {
+        cl_platform_id platform = devicePlatforms.get(device);
+        if (platform == null)
+        {
+            throw new CLException("Unknown device " + device, CL_INVALID_DEVICE);
+        }
+        return platform;
+    }
+
+    /**
+     * Returns the partitioning of the CPU devices of this runtime
+     *
+     * @return The partitioning
+     */
+    public DevicePartitioning getPartitioning()
+    {
+        return partitioning;
+    }
+
+    /**
+     * Returns the device that the given sub-device was partitioned from
+     *
+     * @param device The device
+     * @return The parent device, or null if the given device is not a
+     * sub-device that was created by this runtime
+     */
+    public cl_device_id getParentDevice(cl_device_id device)
+    {
+        return parentDevices.get(device);
+    }
+
+    /**
+     * Returns a list of all devices of the given platform that have
+     * the given type
+     *
+     * @param platform The platform
+     * @param deviceType The device type, e.g. CL_DEVICE_TYPE_ALL
+     * @return The devices
+     */
+    public List<cl_device_id> getDevices(cl_platform_id platform, long deviceType)
+    {
+        List<cl_device_id> devices = platformDevices.get(platform);
+        if (devices == null)
+        {
+            throw new CLException("Unknown platform " + platform, CL_INVALID_PLATFORM);
+        }
+        List<cl_device_id> result = new ArrayList<cl_device_id>();
+        for (cl_device_id device : devices)
+        {
+            if (deviceType == CL_DEVICE_TYPE_ALL ||
+                    (getDeviceType(device) & deviceType) != 0)
+            {
+                result.add(device);
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Returns a list of the devices of all platforms that have the
+     * given type
+     *
+     * @param deviceType The device type, e.g. CL_DEVICE_TYPE_ALL
+     * @return The devices
+     */
+    public List<cl_device_id> getDevices(long deviceType)
+    {
+        List<cl_device_id> result = new ArrayList<cl_device_id>();
+        for (cl_platform_id platform : platforms)
+        {
+            result.addAll(getDevices(platform, deviceType));
+        }
+        return result;
+    }
+
+    /**
+     * Returns the device with the given index among the devices of the
+     * given type on the platform with the given index.
+     *
+     * @param platformIndex The platform index
+     * @param deviceType The device type
+     * @param deviceIndex The device index
+     * @return The device
+     * @throws CLException If there is no such device
+     */
+    public cl_device_id getDevice(
+            int platformIndex, long deviceType, int deviceIndex)
+    {
+        List<cl_device_id> devices =
+                getDevices(getPlatform(platformIndex), deviceType);
+        if (deviceIndex < 0 || deviceIndex >= devices.size())
+        {
+            throw new CLException("No OpenCL device with index " +
+                    deviceIndex + " and type " + deviceType +
+                    " on platform " + platformIndex, CL_DEVICE_NOT_FOUND);
+        }
+        return devices.get(deviceIndex);
+    }
+
+    /**
+     * Returns the context for the given platform, creating it if
+     * necessary. The context contains all devices of the platform.
+     *
+     * @param platform The platform
+     * @return The context
+     */
+    public synchronized cl_context getContext(cl_platform_id platform)
+    {
+        checkShutdown();
+        cl_context context = contexts.get(platform);
+        if (context == null)
+        {
+            List<cl_device_id> devices = getDevices(platform, CL_DEVICE_TYPE_ALL);
+            cl_context_properties contextProperties = new cl_context_properties();
+            contextProperties.addProperty(CL_CONTEXT_PLATFORM, platform);
+            context = clCreateContext(
+                    contextProperties, devices.size(),
+                    devices.toArray(new cl_device_id[devices.size()]),
+                    null, null, null);
+            contexts.put(platform, context);
+        }
+        return context;
+    }
+
+    /**
+     * Returns the context that contains the given device, creating it
+     * if necessary.
+     *
+     * @param device The device
+     * @return The context
+     */
+    public cl_context getContext(cl_device_id device)
+    {
+        return getContext(getPlatform(device));
+    }
+
+    /**
+     * Returns the default command queue for the given device, creating
+     * it if necessary. This is an in-order command queue without
+     * profiling.
+     *
+     * @param device The device
+     * @return The command queue
+     */
+    public cl_command_queue getCommandQueue(cl_device_id device)
+    {
+        return getCommandQueue(device, 0);
+    }
+
+    /**
+     * Returns the command queue for the given device that has the given
+     * properties, creating it if necessary.
+     *
+     * @param device The device
+     * @param properties The command queue properties, e.g.
+     * CL_QUEUE_PROFILING_ENABLE
+     * @return The command queue
+     */
+    public synchronized cl_command_queue getCommandQueue(
+            cl_device_id device, long properties)
+    {
+        checkShutdown();
+        QueueKey key = new QueueKey(device, properties);
+        cl_command_queue commandQueue = commandQueues.get(key);
+        if (commandQueue == null)
+        {
+            commandQueue = createCommandQueue(
+                    getContext(device), device, properties);
+            commandQueues.put(key, commandQueue);
+        }
+        return commandQueue;
+    }
+
+    /**
+     * Returns the queue group for the given device whose queues have the
+     * given properties, creating it if necessary. The compute queue of
+     * the group is the command queue that is returned by
+     * {@link #getCommandQueue(cl_device_id, long)}, and the upload and
+     * download queues are created for the group.
+     *
+     * @param device The device
+     * @param properties The command queue properties, e.g.
+     * CL_QUEUE_PROFILING_ENABLE
+     * @return The queue group
+     */
+    public synchronized QueueGroup getQueueGroup(
+            cl_device_id device, long properties)
+    {
+        checkShutdown();
+        QueueKey key = new QueueKey(device, properties);
+        QueueGroup queueGroup = queueGroups.get(key);
+        if (queueGroup == null)
+        {
+            cl_context context = getContext(device);
+            cl_command_queue computeQueue = getCommandQueue(device, properties);
+            cl_command_queue uploadQueue =
+                    createCommandQueue(context, device, properties);
+            copyQueues.add(uploadQueue);
+            cl_command_queue downloadQueue =
+                    createCommandQueue(context, device, properties);
+            copyQueues.add(downloadQueue);
+            queueGroup = new QueueGroup(uploadQueue, computeQueue, downloadQueue);
+            queueGroups.put(key, queueGroup);
+        }
+        return queueGroup;
+    }
+
+    /**
+     * Returns the cache for the programs and kernels that are created
+     * for the contexts of this runtime. The cached programs and kernels
+     * are released when the runtime is shut down.
+     *
+     * @return The program cache
+     */
+    public ProgramCache getProgramCache()
+    {
+        return programCache;
+    }
+
+    /**
+     * Returns the pool for the buffers that are created for the contexts
+     * of this runtime. The pooled buffers are released when the runtime
+     * is shut down.
+     *
+     * @return The buffer pool
+     */
+    public BufferPool getBufferPool()
+    {
+        return bufferPool;
+    }
+
+    /**
+     * Returns the pool for the pinned staging buffers that are used for
+     * transferring data between the host and the devices. The staging
+     * buffers are released when the runtime is shut down.
+     *
+     * @return The staging buffer pool
+     */
+    public StagingBufferPool getStagingBufferPool()
+    {
+        return stagingBufferPool;
+    }
+
+    /**
+     * Finish all command queues and release all cached programs and
+     * kernels, all pooled buffers, and all command queues, contexts and
+     * sub-devices that have been created by this runtime. Subsequent calls to
+     * {@link #getInstance()} will create a new runtime.
+     */
+    public void shutdown()
+    {
+        synchronized (ClRuntime.class)
+        {
+            if (instance == this)
+            {
+                instance = null;
+            }
+        }
+        synchronized (this)
+        {
+            if (shutdown)
+            {
+                return;
+            }
+            shutdown = true;
+            for (cl_command_queue commandQueue : commandQueues.values())
+            {
+                clFinish(commandQueue);
+            }
+            for (cl_command_queue commandQueue : copyQueues)
+            {
+                clFinish(commandQueue);
+            }
+            for (cl_context context : contexts.values())
+            {
+                programCache.release(context);
+                bufferPool.release(context);
+                stagingBufferPool.release(context);
+            }
+            for (cl_command_queue commandQueue : commandQueues.values())
+            {
+                clReleaseCommandQueue(commandQueue);
+            }
+            commandQueues.clear();
+            for (cl_command_queue commandQueue : copyQueues)
+            {
+                clReleaseCommandQueue(commandQueue);
+            }
+            copyQueues.clear();
+            queueGroups.clear();
+            for (cl_context context : contexts.values())
+            {
+                clReleaseContext(context);
+            }
+            contexts.clear();
+            DevicePartitioning.release(
+                    new ArrayList<cl_device_id>(parentDevices.keySet()));
+        }
+    }
+
+    /**
+     * Make sure that this runtime has not been shut down yet
+     *
+     * @throws IllegalStateException If the runtime was shut down
+     */
+    private void checkShutdown()
+    {
+        if (shutdown)
+        {
+            throw new IllegalStateException("The runtime has been shut down");
+        }
+    }
+
+    /**
+     * Creates a new command queue with the given properties. For devices
+     * that support OpenCL 2.0, the queue is created with
+     * <code>clCreateCommandQueueWithProperties</code>, and otherwise with
+     * the <code>clCreateCommandQueue</code> function of OpenCL 1.x, which
+     * is deprecated since OpenCL 2.0. The caller is responsible for
+     * releasing the queue.
+     *
+     * @param context The context
+     * @param device The device
+     * @param properties The command queue properties, e.g.
+     * CL_QUEUE_PROFILING_ENABLE
+     * @return The command queue
+     */
+    @SuppressWarnings("deprecation")
+    public static cl_command_queue createCommandQueue(
+            cl_context context, cl_device_id device, long properties)
+    {
+        if (DeviceCapabilities.of(device).supportsVersion(2, 0))
+        {
+            cl_queue_properties queueProperties = new cl_queue_properties();
+            if (properties != 0)
+            {
+                queueProperties.addProperty(CL_QUEUE_PROPERTIES, properties);
+            }
+            return clCreateCommandQueueWithProperties(
+                    context, device, queueProperties, null);
+        }
+        return clCreateCommandQueue(context, device, properties, null);
+    }
+
+    /**
+     * Returns the device that the given command queue was created for
+     *
+     * @param commandQueue The command queue
+     * @return The device
+     */
+    public static cl_device_id getDevice(cl_command_queue commandQueue)
+    {
+        cl_device_id device = new cl_device_id();
+        clGetCommandQueueInfo(commandQueue, CL_QUEUE_DEVICE,
+                Sizeof.cl_device_id, Pointer.to(device), null);
+        return device;
+    }
+
+    /**
+     * Returns the CL_DEVICE_TYPE of the given device
+     *
+     * @param device The device
+     * @return The device type
+     */
+    private static long getDeviceType(cl_device_id device)
+    {
+        long deviceType[] = new long[1];
+        clGetDeviceInfo(device, CL_DEVICE_TYPE,
+                Sizeof.cl_long, Pointer.to(deviceType), null);
+        return deviceType[0];
+    }
+
+}
@@ -0,0 +1,532 @@
+package com.mdaley.jocl;
+
+import static org.jocl.CL.*;
+
+import java.util.*;
+
+import org.jocl.*;
+
+/**
+ * A sequence of kernel launches and transfers that is recorded once and
+ * then replayed, e.g. once per frame of an interactive sample. <br />
+ * <br />
+ * This follows the model of the cl_khr_command_buffer extension: The
+ * commands are recorded together with all their parameters, the recording
+ * is finalized with {@link #finalizeRecording()}, and {@link #replay()}
+ * enqueues the whole sequence. Since JOCL offers no bindings for the
+ * extension, it is emulated: The parameters of each command are copied
+ * into arrays and pointers when it is recorded, so that a replay only
+ * consists of one enqueue call per command, without creating any objects
+ * or validating any parameters on the Java side. <br />
+ * <br />
+ * The kernels are recorded together with their {@link KernelArgs}. The
+ * arguments that are bound when the recording is replayed are used for
+ * the launch, so the values that change between replays are patched by
+ * setting them on the <code>KernelArgs</code> before calling
+ * {@link #replay()}. Since the binder skips the values that did not change,
+ * only the changed scalars cause calls to clSetKernelArg. <br />
+ * <br />
+ * A blocking read may only be recorded as the last command. Reads into
+ * Java arrays have to be blocking. This class is not thread-safe.
+ */
+public final class CommandRecording
+{
+    /**
+     * A recorded command
+     */
+    private static abstract class Command
+    {
+        /**
+         * Enqueue this command on the given command queue
+         *
+         * @param commandQueue The command queue
+         */
+        abstract void enqueue(cl_command_queue commandQueue);
+    }
+
+    /**
+     * A recorded kernel launch
+     */
+    private static final class KernelCommand extends Command
+    {
+        /**
+         * The argument binder of the kernel
+         */
+        private final KernelArgs args;
+
+        /**
+         * The global work offset, may be null
+         */
+        private final long globalWorkOffset[];
+
+        /**
+         * The global work size
+         */
+        private final long globalWorkSize[];
+
+        /**
+         * The local work size, may be null
+         */
+        private final long localWorkSize[];
+
+        /**
+         * Creates a new kernel command
+         *
+         * @param args The argument binder of the kernel
+         * @param globalWorkOffset The global work offset
+         * @param globalWorkSize The global work size
+         * @param localWorkSize The local work size
+         */
+        KernelCommand(KernelArgs args, long globalWorkOffset[],
+                long globalWorkSize[], long localWorkSize[])
+        {
+            this.args = args;
+            this.globalWorkOffset = copy(globalWorkOffset);
+            this.globalWorkSize = copy(globalWorkSize);
+            this.localWorkSize = copy(localWorkSize);
+        }
+
+        @Override
+        void enqueue(cl_command_queue commandQueue)
+        {
+            clEnqueueNDRangeKernel(commandQueue, args.getKernel(),
+                    globalWorkSize.length, globalWorkOffset, globalWorkSize,
+                    localWorkSize, 0, null, null);
+        }
+    }
+
+    /**
+     * A recorded buffer read or write
+     */
+    private static final class BufferCommand extends Command
+    {
+        /**
+         * Whether this is a write into the buffer
+         */
+        private final boolean write;
+
+        /**
+         * The buffer
+         */
+        private final cl_mem buffer;
+
+        /**
+         * Whether the transfer is blocking
+         */
+        private final boolean blocking;
+
+        /**
+         * The offset in the buffer, in bytes
+         */
+        private final long offset;
+
+        /**
+         * The number of bytes
+         */
+        private final long size;
+
+        /**
+         * The host memory
+         */
+        private final Pointer hostPointer;
+
+        /**
+         * Creates a new buffer command
+         *
+         * @param write Whether this is a write into the buffer
+         * @param buffer The buffer
+         * @param blocking Whether the transfer is blocking
+         * @param offset The offset in the buffer
+         * @param size The number of bytes
+         * @param hostPointer The host memory
+         */
+        BufferCommand(boolean write, cl_mem buffer, boolean blocking,
+                long offset, long size, Pointer hostPointer)
+        {
+            this.write = write;
+            this.buffer = buffer;
+            this.blocking = blocking;
+            this.offset = offset;
+            this.size = size;
+            this.hostPointer = hostPointer;
+        }
+
+        @Override
+        void enqueue(cl_command_queue commandQueue)
+        {
+            if (write)
+            {
+                clEnqueueWriteBuffer(commandQueue, buffer, blocking,
+                        offset, size, hostPointer, 0, null, null);
+            }
+            else
+            {
+                clEnqueueReadBuffer(commandQueue, buffer, blocking,
+                        offset, size, hostPointer, 0, null, null);
+            }
+        }
+    }
+
+    /**
+     * A recorded image read
+     */
+    private static final class ReadImageCommand extends Command
+    {
+        /**
+         * The image
+         */
+        private final cl_mem image;
+
+        /**
+         * Whether the read is blocking
+         */
+        private final boolean blocking;
+
+        /**
+         * The origin of the region in the image
+         */
+        private final long origin[];
+
+        /**
+         * The size of the region
+         */
+        private final long region[];
+
+        /**
+         * The row pitch of the host memory
+         */
+        private final long rowPitch;
+
+        /**
+         * The slice pitch of the host memory
+         */
+        private final long slicePitch;
+
+        /**
+         * The host memory
+         */
+        private final Pointer hostPointer;
+
+        /**
+         * Creates a new image read command
+         *
+         * @param image The image
+         * @param blocking Whether the read is blocking
+         * @param origin The origin of the region
+         * @param region The size of the region
+         * @param rowPitch The row pitch
+         * @param slicePitch The slice pitch
+         * @param hostPointer The host memory
+         */
+        ReadImageCommand(cl_mem image, boolean blocking, long origin[],
+                long region[], long rowPitch, long slicePitch,
+                Pointer hostPointer)
+        {
+            this.image = image;
+            this.blocking = blocking;
+            this.origin = copy(origin);
+            this.region = copy(region);
+            this.rowPitch = rowPitch;
+            this.slicePitch = slicePitch;
+            this.hostPointer = hostPointer;
+        }
+
+        @Override
+        void enqueue(cl_command_queue commandQueue)
+        {
+            clEnqueueReadImage(commandQueue, image, blocking, origin, region,
+                    rowPitch, slicePitch, hostPointer, 0, null, null);
+        }
+    }
+
+    /**
+     * A recorded acquisition or release of OpenGL objects
+     */
+    private static final class GLObjectsCommand extends Command
+    {
+        /**
+         * Whether the objects are acquired
+         */
+        private final boolean acquire;
+
+        /**
+         * The memory objects that have been created from OpenGL objects
+         */
+        private final cl_mem mems[];
+
+        /**
+         * Creates a new GL objects command
+         *
+         * @param acquire Whether the objects are acquired
+         * @param mems The memory objects
+         */
+        GLObjectsCommand(boolean acquire, cl_mem mems[])
+        {
+            this.acquire = acquire;
+            this.mems = mems.clone();
+        }
+
+        @Override
+        void enqueue(cl_command_queue commandQueue)
+        {
+            if (acquire)
+            {
+                clEnqueueAcquireGLObjects(commandQueue, mems.length, mems,
+                        0, null, null);
+            }
+            else
+            {
+                clEnqueueReleaseGLObjects(commandQueue, mems.length, mems,
+                        0, null, null);
+            }
+        }
+    }
+
+    /**
+     * The command queue that the commands are enqueued on
+     */
+    private final cl_command_queue commandQueue;
+
+    /**
+     * The commands that have been recorded
+     */
+    private final List<Command> commandList = new ArrayList<Command>();
+
+    /**
+     * The recorded commands, after the recording has been finalized
+     */
+    private Command commands[];
+
+    /**
+     * Whether a blocking command has been recorded
+     */
+    private boolean blockingRecorded;
+
+    /**
+     * The number of replays
+     */
+    private long replays;
+
+    /**
+     * Creates a new, empty recording for the given command queue
+     *
+     * @param commandQueue The command queue
+     */
+    public CommandRecording(cl_command_queue commandQueue)
+    {
+        this.commandQueue = commandQueue;
+    }
+
+    /**
+     * Record a launch of the kernel of the given argument binder
+     *
+     * @param args The argument binder of the kernel
+     * @param globalWorkOffset The global work offset, may be null
+     * @param globalWorkSize The global work size
+     * @param localWorkSize The local work size, may be null
+     * @return This instance
+     * @throws IllegalStateException If the recording has been finalized,
+     * or a blocking command has been recorded
+     */
+    public CommandRecording kernel(KernelArgs args, long globalWorkOffset[],
+            long globalWorkSize[], long localWorkSize[])
+    {
+        return record(new KernelCommand(args, globalWorkOffset,
+                globalWorkSize, localWorkSize), false);
+    }
+
+    /**
+     * Record a write of the given host memory into the given buffer. The
+     * host memory is read again in each replay.
+     *
+     * @param buffer The buffer
+     * @param blocking Whether the write is blocking
+     * @param offset The offset in the buffer, in bytes
+     * @param size The number of bytes
+     * @param hostPointer The host memory
+     * @return This instance
+     * @throws IllegalStateException If the recording has been finalized,
+     * or a blocking command has been recorded
+     */
+    public CommandRecording writeBuffer(cl_mem buffer, boolean blocking,
+            long offset, long size, Pointer hostPointer)
+    {
+        return record(new BufferCommand(true, buffer, blocking,
+                offset, size, hostPointer), blocking);
+    }
+
+    /**
+     * Record a read of the given buffer into the given host memory
+     *
+     * @param buffer The buffer
+     * @param blocking Whether the read is blocking
+     * @param offset The offset in the buffer, in bytes
+     * @param size The number of bytes
+     * @param hostPointer The host memory
+     * @return This instance
+     * @throws IllegalStateException If the recording has been finalized,
+     * or a blocking command has been recorded
+     */
+    public CommandRecording readBuffer(cl_mem buffer, boolean blocking,
+            long offset, long size, Pointer hostPointer)
+    {
+        return record(new BufferCommand(false, buffer, blocking,
+                offset, size, hostPointer), blocking);
+    }
+
+    /**
+     * Record a read of the given region of the given image into the
+     * given host memory
+     *
+     * @param image The image
+     * @param blocking Whether the read is blocking
+     * @param origin The origin of the region
+     * @param region The size of the region
+     * @param rowPitch The row pitch of the host memory
+     * @param slicePitch The slice pitch of the host memory
+     * @param hostPointer The host memory
+     * @return This instance
+     * @throws IllegalStateException If the recording has been finalized,
+     * or a blocking command has been recorded
+     */
+    public CommandRecording readImage(cl_mem image, boolean blocking,
+            long origin[], long region[], long rowPitch, long slicePitch,
+            Pointer hostPointer)
+    {
+        return record(new ReadImageCommand(image, blocking, origin, region,
+                rowPitch, slicePitch, hostPointer), blocking);
+    }
+
+    /**
+     * Record the acquisition of the given memory objects that have
+     * been created from OpenGL objects
+     *
+     * @param mems The memory objects
+     * @return This instance
+     * @throws IllegalStateException If the recording has been finalized,
+     * or a blocking command has been recorded
+     */
+    public CommandRecording acquireGLObjects(cl_mem ... mems)
+    {
+        return record(new GLObjectsCommand(true, mems), false);
+    }
+
+    /**
+     * Record the release of the given memory objects that have
+     * been created from OpenGL objects
+     *
+     * @param mems The memory objects
+     * @return This instance
+     * @throws IllegalStateException If the recording has been finalized,
+     * or a blocking command has been recorded
+     */
+    public CommandRecording releaseGLObjects(cl_mem ... mems)
+    {
+        return record(new GLObjectsCommand(false, mems), false);
+    }
+
+    /**
+     * Finalize this recording. Afterwards, no more commands may be
+     * recorded, and the recording may be replayed.
+     *
+     * @return This instance
+     */
+    public CommandRecording finalizeRecording()
+    {
+        if (commands == null)
+        {
+            commands = commandList.toArray(new Command[commandList.size()]);
+        }
+        return this;
+    }
+
+    /**
+     * Enqueue all recorded commands, using the kernel arguments that are
+     * currently bound, and flush the command queue. If the last command
+     * is blocking, then this method returns when it has completed.
+     *
+     * @throws IllegalStateException If the recording was not finalized
+     */
+    public void replay()
+    {
+        if (commands == null)
+        {
+            throw new IllegalStateException(
+                    "The recording has not been finalized");
+        }
+        for (Command command : commands)
+        {
+            command.enqueue(commandQueue);
+        }
+        if (!blockingRecorded)
+        {
+            clFlush(commandQueue);
+        }
+        replays++;
+    }
+
+    /**
+     * Returns the number of recorded commands
+     *
+     * @return The number of commands
+     */
+    public int getNumCommands()
+    {
+        return commandList.size();
+    }
+
+    /**
+     * Returns the number of times that this recording has been replayed
+     *
+     * @return The number of replays
+     */
+    public long getReplays()
+    {
+        return replays;
+    }
+
+    @Override
+    public String toString()
+    {
+        return "CommandRecording[commands=" + commandList.size() +
+                ", replays=" + replays +
+                (commands == null ? ", recording]" : "]");
+    }
+
+    /**
+     * Add the given command to this recording
+     *
+     * @param command The command
+     * @param blocking Whether the command is blocking
+     * @return This instance
+     * @throws IllegalStateException If the recording has been finalized,
+     * or a blocking command has been recorded
+     */
+    private CommandRecording record(Command command, boolean blocking)
+    {
+        if (commands != null)
+        {
+            throw new IllegalStateException(
+                    "The recording has already been finalized");
+        }
+        if (blockingRecorded)
+        {
+            throw new IllegalStateException(
+                    "A blocking command must be the last command");
+        }
+        commandList.add(command);
+        blockingRecorded = blocking;
+        return this;
+    }
+
+    /**
+     * Returns a copy of the given array
+     *
+     * @param array The array, may be null
+     * @return The copy, or null
+     */
+    private static long[] copy(long array[])
+    {
+        return array == null ? null : array.clone();
+    }
+}
@@ -0,0 +1,158 @@
+package com.mdaley.jocl;
+
+/**
+ * The computations of the OpenCL kernels of the samples, on host arrays.
+ * <br />
+ * <br />
+ * The {@link OpenClBackend} executes the kernels on an OpenCL device, and
+ * the {@link JavaBackend} executes equivalent Java code in parallel with a
+ * <code>ForkJoinPool</code>, so that the samples may also run on machines
+ * without an OpenCL platform, and the throughput of a device may be
+ * compared to that of the host. The results of both backends are equal,
+ * except for the rounding of floating point operations. <br />
+ * <br />
+ * Instances are obtained with {@link ComputeBackends#get()}. All methods
+ * block until the result has been written into the given arrays.
+ */
+public interface ComputeBackend
+{
+    /**
+     * Returns the name of this backend, including the device that it uses
+     *
+     * @return The name
+     */
+    String getName();
+
+    /**
+     * Multiply the given vectors element-wise, like the
+     * <code>sampleKernel</code> of the <code>Sample</code>
+     *
+     * @param a The first input
+     * @param b The second input
+     * @param c The output
+     * @param n The number of elements
+     */
+    void multiply(float a[], float b[], float c[], int n);
+
+    /**
+     * Add the given vectors element-wise, like the
+     * <code>sampleKernel</code> of the <code>Sample_1_1</code>
+     *
+     * @param a The first input
+     * @param b The second input
+     * @param c The output
+     * @param n The number of elements
+     */
+    void add(float a[], float b[], float c[], int n);
+
+    /**
+     * Compute the sum of the given values, like the <code>reduce</code>
+     * kernel of <code>reduction.cl</code>
+     *
+     * @param input The input
+     * @param n The number of elements
+     * @return The sum
+     */
+    float reduce(float input[], int n);
+
+    /**
+     * Compute the histogram of the given bytes, like the
+     * <code>histogram256</code> kernel of <code>Histogram256.cl</code>
+     *
+     * @param data The data
+     * @param byteCount The number of bytes
+     * @param histogram The histogram, with 256 elements
+     */
+    void histogram256(byte data[], int byteCount, int histogram[]);
+
+    /**
+     * Convolve the given image with the given mask, like the
+     * <code>convolution</code> kernel of <code>SimpleConvolution.cl</code>.
+     * Each channel of the pixels is convolved separately, and the pixels
+     * where the mask does not fit into the image are set to 0.
+     *
+     * @param input The input pixels, with 8 bits per channel
+     * @param output The output pixels
+     * @param sizeX The width of the image
+     * @param sizeY The height of the image
+     * @param mask The mask, row by row
+     * @param maskSizeX The width of the mask
+     * @param maskSizeY The height of the mask
+     * @param maskOriginX The x-coordinate of the origin of the mask
+     * @param maskOriginY The y-coordinate of the origin of the mask
+     */
+    void convolve(int input[], int output[], int sizeX, int sizeY,
+            float mask[], int maskSizeX, int maskSizeY,
+            int maskOriginX, int maskOriginY);
+
+    /**
+     * Rotate the given image by the given angle around its center, like
+     * the <code>rotateImage</code> kernel of the <code>SimpleImage</code>
+     * sample. Pixels that are rotated in from outside of the image are 0.
+     *
+     * @param input The input pixels
+     * @param output The output pixels
+     * @param sizeX The width of the image
+     * @param sizeY The height of the image
+     * @param angle The angle, in radians
+     */
+    void rotate(int input[], int output[], int sizeX, int sizeY, float angle);
+
+    /**
+     * Compute the vertex positions of a sine wave mesh, like the
+     * <code>sine_wave</code> kernel of <code>SimpleGL.cl</code>
+     *
+     * @param positions The positions, with 4 elements per vertex
+     * @param sizeX The number of vertices in x-direction
+     * @param sizeY The number of vertices in y-direction
+     * @param time The animation time
+     */
+    void sineWave(float positions[], int sizeX, int sizeY, float time);
+
+    /**
+     * Compute the colors of the mandelbrot set in the given rectangle, like
+     * the <code>computeMandelbrot</code> kernel of
+     * <code>SimpleMandelbrot.cl</code>
+     *
+     * @param output The output colors
+     * @param sizeX The width of the output
+     * @param sizeY The height of the output
+     * @param x0 The minimum x-coordinate
+     * @param y0 The minimum y-coordinate
+     * @param x1 The maximum x-coordinate
+     * @param y1 The maximum y-coordinate
+     * @param maxIterations The maximum number of iterations
+     * @param colorMap The color map
+     */
+    void mandelbrot(int output[], int sizeX, int sizeY,
+            float x0, float y0, float x1, float y1,
+            int maxIterations, int colorMap[]);
+
+    /**
+     * Compute the iteration counts of the mandelbrot set for one tile of
+     * an image with extended precision, like the
+     * <code>computeMandelbrot</code> kernel of
+     * <code>QuadFloatMandelbrot.cl</code>
+     *
+     * @param iterations The iteration counts of the tile
+     * @param sizeX The width of the image
+     * @param sizeY The height of the image
+     * @param tileX The x-index of the tile
+     * @param tileY The y-index of the tile
+     * @param tileSizeX The width of the tile
+     * @param tileSizeY The height of the tile
+     * @param x0 The minimum x-coordinate of the image
+     * @param y0 The minimum y-coordinate of the image
+     * @param dx The width of the image in the complex plane
+     * @param dy The height of the image in the complex plane
+     * @param maxIterations The maximum number of iterations
+     */
+    void mandelbrotQuadFloat(int iterations[], int sizeX, int sizeY,
+            int tileX, int tileY, int tileSizeX, int tileSizeY,
+            double x0, double y0, double dx, double dy, int maxIterations);
+
+    /**
+     * Release all resources of this backend
+     */
+    void release();
+}
@@ -0,0 +1,168 @@
+package com.mdaley.jocl;
+
+import java.util.*;
+
+import org.jocl.*;
+
+/**
+ * Provides the shared {@link ComputeBackend}. <br />
+ * <br />
+ * By default, this is an {@link OpenClBackend} for the device that is
+ * selected by the {@link DeviceSelector}, or a {@link JavaBackend} if no
+ * OpenCL platform is available: When the OpenCL library or the ICD loader
+ * is missing, or when the loader does not find any platform. The backend
+ * may be chosen explicitly with the system property
+ * <code>jocl.backend</code>, with the value <code>opencl</code> or
+ * <code>java</code>.
+ */
+public final class ComputeBackends
+{
+    /**
+     * The name of the system property for choosing the backend
+     */
+    public static final String BACKEND_PROPERTY = "jocl.backend";
+
+    /**
+     * The shared backend
+     */
+    private static ComputeBackend instance;
+
+    /**
+     * Whether an OpenCL platform is available, or null if this has not
+     * been checked yet
+     */
+    private static Boolean openClAvailable;
+
+    /**
+     * The error that caused OpenCL to be unavailable, or null
+     */
+    private static Throwable openClError;
+
+    /**
+     * Private constructor to prevent instantiation
+     */
+    private ComputeBackends()
+    {
+        // Private constructor to prevent instantiation
+    }
+
+    /**
+     * Returns the shared backend, creating it if necessary
+     *
+     * @return The backend
+     * @throws IllegalArgumentException If the backend that is given with
+     * the system property is not valid
+     * @throws CLException If the OpenCL backend was requested, but there
+     * is no OpenCL device
+     */
+    public static synchronized ComputeBackend get()
+    {
+        if (instance == null)
+        {
+            String value = System.getProperty(BACKEND_PROPERTY);
+            if (value == null)
+            {
+                instance = isOpenClAvailable() ?
+                        createOpenClBackend() : new JavaBackend();
+            }
+            else if (value.equalsIgnoreCase("opencl"))
+            {
+                instance = createOpenClBackend();
+            }
+            else if (value.equalsIgnoreCase("java"))
+            {
+                instance = new JavaBackend();
+            }
+            else
+            {
+                throw new IllegalArgumentException("Invalid value for " +
+                        BACKEND_PROPERTY + ": " + value +
+                        ", expected opencl or java");
+            }
+        }
+        return instance;
+    }
+
+    /**
+     * Creates a new {@link OpenClBackend} for the device that is selected
+     * for the workload <code>ComputeBackend</code>
+     *
+     * @return The backend
+     * @throws CLException If there is no OpenCL device
+     */
+    public static ComputeBackend createOpenClBackend()
+    {
+        return new OpenClBackend(DeviceSelector.select(
+                new DeviceSelector.Workload("ComputeBackend")));
+    }
+
+    /**
+     * Returns whether an OpenCL platform with at least one device is
+     * available. This is not the case when the OpenCL library or the ICD
+     * loader can not be loaded, or when no platform is installed. The
+     * error in the first case is available from {@link #getOpenClError()}.
+     *
+     * @return Whether OpenCL is available
+     */
+    public static synchronized boolean isOpenClAvailable()
+    {
+        if (openClAvailable == null)
+        {
+            try
+            {
+                ClRuntime runtime = ClRuntime.getInstance();
+                openClAvailable = !runtime.getDevices(
+                        CL.CL_DEVICE_TYPE_ALL).isEmpty();
+            }
+            catch (CLException | LinkageError e)
+            {
+                openClError = e;
+                openClAvailable = false;
+            }
+        }
+        return openClAvailable;
+    }
+
+    /**
+     * Returns the error that occurred when checking whether OpenCL is
+     * available, e.g. because the OpenCL library could not be loaded
+     *
+     * @return The error, or null if OpenCL is available, if it was not
+     * checked yet, or if there simply is no platform
+     */
+    public static synchronized Throwable getOpenClError()
+    {
+        return openClError;
+    }
+
+    /**
+     * Release the shared backend, if it was created. A subsequent call to
+     * {@link #get()} creates a new backend.
+     */
+    public static synchronized void release()
+    {
+        if (instance != null)
+        {
+            instance.release();
+            instance = null;
+        }
+    }
+
+    /**
+     * Returns a list of all backends that are available: The
+     * {@link JavaBackend}, and an {@link OpenClBackend} if OpenCL is
+     * available. The caller is responsible for releasing them.
+     *
+     * @return The backends
+     */
+    public static List<ComputeBackend> createAll()
+    {
+        List<ComputeBackend> backends = new ArrayList<ComputeBackend>();
+        if (isOpenClAvailable())
+        {
+            backends.add(createOpenClBackend());
+        }
+        backends.add(new JavaBackend());
+        return backends;
+    }
+}
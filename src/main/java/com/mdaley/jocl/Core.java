@@ -1,6 +1,7 @@
 package com.mdaley.jocl;
 
 import com.mdaley.jocl.samples.*;
+import org.jocl.CLException;
 import sun.java2d.pipe.SpanShapeRenderer;
 
 public class Core {
@@ -11,6 +12,18 @@ public class Core {
         if (args != null && args.length > 0 && args[0] != null && args[0].length() > 0) {
             int id = Integer.parseInt(args[0]);
 
+            // Without an OpenCL platform, only the compute backend sample
+            // can run, on its Java backend
+            if (id >= 1 && id <= 17 && !ComputeBackends.isOpenClAvailable()) {
+                System.out.println("No OpenCL platform is available, " +
+                        "running the compute backend sample instead");
+                id = 18;
+            }
+
+            if (id != 18 && !"false".equalsIgnoreCase(System.getProperty("jocl.warmup"))) {
+                warmUp(id);
+            }
+
             switch(id) {
                 case 1:
                     Sample.run();
@@ -60,9 +73,46 @@ public class Core {
                 case 16:
                     SimpleImage.run();
                     break;
+                case 17:
+                    DeviceBenchmark.run();
+                    break;
+                case 18:
+                    BackendSample.run();
+                    break;
                 default:
                     System.out.println("Nothing to run!");
             }
         }
     }
+
+    /**
+     * Start building the programs of the given sample in the background, if it
+     * uses the program cache, so that the sample only waits for the build when
+     * it first launches a kernel. May be disabled with -Djocl.warmup=false.
+     *
+     * @param id The id of the sample
+     */
+    private static void warmUp(int id) {
+        if (id != 8 && id != 14 && id != 15) {
+            return;
+        }
+        ProgramWarmup warmup;
+        try {
+            warmup = new ProgramWarmup(ClRuntime.getInstance());
+            switch (id) {
+                case 8:
+                    HistogramNVIDIA.registerPrograms(warmup);
+                    break;
+                case 14:
+                    Mandelbrot.registerPrograms(warmup);
+                    break;
+                default:
+                    SimpleConvolution.registerPrograms(warmup);
+            }
+        } catch (CLException e) {
+            System.out.println("Skipping warm-up: " + e.getMessage());
+            return;
+        }
+        warmup.start();
+    }
 }
@@ -0,0 +1,451 @@
+package com.mdaley.jocl;
+
+import static org.jocl.CL.*;
+
+import java.util.*;
+import java.util.concurrent.*;
+
+import org.jocl.*;
+
+/**
+ * The static capabilities of a device, as reported by clGetDeviceInfo.
+ * These are the properties that are printed by the DeviceQuery sample,
+ * and that are used by the {@link DeviceSelector} to score devices. <br />
+ * <br />
+ * Instances are obtained with {@link #of(cl_device_id)}, which queries
+ * the properties of each device only once.
+ */
+public final class DeviceCapabilities
+{
+    /**
+     * The capabilities that have already been queried, by device
+     */
+    private static final ConcurrentMap<cl_device_id, DeviceCapabilities>
+        capabilities = new ConcurrentHashMap<cl_device_id, DeviceCapabilities>();
+
+    /**
+     * Returns the capabilities of the given device
+     *
+     * @param device The device
+     * @return The capabilities
+     */
+    public static DeviceCapabilities of(cl_device_id device)
+    {
+        DeviceCapabilities result = capabilities.get(device);
+        if (result == null)
+        {
+            result = new DeviceCapabilities(device);
+            DeviceCapabilities previous = capabilities.putIfAbsent(device, result);
+            if (previous != null)
+            {
+                result = previous;
+            }
+        }
+        return result;
+    }
+
+    /**
+     * The device
+     */
+    private final cl_device_id device;
+
+    /**
+     * The CL_DEVICE_NAME
+     */
+    private final String name;
+
+    /**
+     * The CL_DEVICE_VENDOR
+     */
+    private final String vendor;
+
+    /**
+     * The CL_DEVICE_TYPE
+     */
+    private final long type;
+
+    /**
+     * The major and minor OpenCL version from CL_DEVICE_VERSION
+     */
+    private final int versionMajor, versionMinor;
+
+    /**
+     * The CL_DEVICE_MAX_COMPUTE_UNITS
+     */
+    private final int computeUnits;
+
+    /**
+     * The CL_DEVICE_MAX_CLOCK_FREQUENCY, in MHz
+     */
+    private final int clockFrequency;
+
+    /**
+     * The CL_DEVICE_NATIVE_VECTOR_WIDTH_FLOAT
+     */
+    private final int nativeVectorWidthFloat;
+
+    /**
+     * The CL_DEVICE_GLOBAL_MEM_SIZE
+     */
+    private final long globalMemSize;
+
+    /**
+     * The CL_DEVICE_LOCAL_MEM_SIZE
+     */
+    private final long localMemSize;
+
+    /**
+     * Whether CL_DEVICE_LOCAL_MEM_TYPE is CL_LOCAL
+     */
+    private final boolean dedicatedLocalMem;
+
+    /**
+     * The CL_DEVICE_MAX_MEM_ALLOC_SIZE
+     */
+    private final long maxMemAllocSize;
+
+    /**
+     * The CL_DEVICE_MAX_WORK_GROUP_SIZE
+     */
+    private final long maxWorkGroupSize;
+
+    /**
+     * Whether CL_DEVICE_IMAGE_SUPPORT is true
+     */
+    private final boolean imageSupport;
+
+    /**
+     * Whether the device supports double precision
+     */
+    private final boolean doublePrecision;
+
+    /**
+     * Whether CL_DEVICE_HOST_UNIFIED_MEMORY is true
+     */
+    private final boolean hostUnifiedMemory;
+
+    /**
+     * The CL_DEVICE_EXTENSIONS
+     */
+    private final Set<String> extensions;
+
+    /**
+     * Query the capabilities of the given device
+     *
+     * @param device The device
+     */
+    private DeviceCapabilities(cl_device_id device)
+    {
+        this.device = device;
+        this.name = ClInfo.getString(device, CL_DEVICE_NAME).trim();
+        this.vendor = ClInfo.getString(device, CL_DEVICE_VENDOR).trim();
+        this.type = ClInfo.getLong(device, CL_DEVICE_TYPE);
+
+        // The version string has the form "OpenCL <major>.<minor> <info>"
+        String version = ClInfo.getString(device, CL_DEVICE_VERSION);
+        int major = 1;
+        int minor = 0;
+        String tokens[] = version.split(" ");
+        if (tokens.length > 1)
+        {
+            String numbers[] = tokens[1].split("\\.");
+            try
+            {
+                major = Integer.parseInt(numbers[0]);
+                minor = numbers.length > 1 ? Integer.parseInt(numbers[1]) : 0;
+            }
+            catch (NumberFormatException e)
+            {
+                System.err.println("Invalid device version: " + version);
+            }
+        }
+        this.versionMajor = major;
+        this.versionMinor = minor;
+
+        this.computeUnits = ClInfo.getInt(device, CL_DEVICE_MAX_COMPUTE_UNITS);
+        this.clockFrequency = ClInfo.getInt(device, CL_DEVICE_MAX_CLOCK_FREQUENCY);
+        this.nativeVectorWidthFloat = Math.max(1,
+                ClInfo.getInt(device, CL_DEVICE_NATIVE_VECTOR_WIDTH_FLOAT));
+        this.globalMemSize = ClInfo.getLong(device, CL_DEVICE_GLOBAL_MEM_SIZE);
+        this.localMemSize = ClInfo.getLong(device, CL_DEVICE_LOCAL_MEM_SIZE);
+        this.dedicatedLocalMem =
+                ClInfo.getInt(device, CL_DEVICE_LOCAL_MEM_TYPE) == CL_LOCAL;
+        this.maxMemAllocSize = ClInfo.getLong(device, CL_DEVICE_MAX_MEM_ALLOC_SIZE);
+        this.maxWorkGroupSize = ClInfo.getSize(device, CL_DEVICE_MAX_WORK_GROUP_SIZE);
+        this.imageSupport = ClInfo.getInt(device, CL_DEVICE_IMAGE_SUPPORT) != 0;
+        this.hostUnifiedMemory = queryHostUnifiedMemory(device);
+
+        Set<String> extensionSet = new TreeSet<String>();
+        for (String extension :
+            ClInfo.getString(device, CL_DEVICE_EXTENSIONS).split(" "))
+        {
+            if (!extension.isEmpty())
+            {
+                extensionSet.add(extension);
+            }
+        }
+        this.extensions = Collections.unmodifiableSet(extensionSet);
+        this.doublePrecision = extensions.contains("cl_khr_fp64") ||
+                ClInfo.getLong(device, CL_DEVICE_DOUBLE_FP_CONFIG) != 0;
+    }
+
+    /**
+     * Returns whether CL_DEVICE_HOST_UNIFIED_MEMORY is true for the given
+     * device. This query is deprecated since OpenCL 2.0, and may not be
+     * supported by newer drivers, in which case CPU devices are assumed
+     * to share the memory with the host.
+     *
+     * @param device The device
+     * @return Whether the device shares its memory with the host
+     */
+    @SuppressWarnings("deprecation")
+    private static boolean queryHostUnifiedMemory(cl_device_id device)
+    {
+        try
+        {
+            return ClInfo.getInt(device, CL_DEVICE_HOST_UNIFIED_MEMORY) != 0;
+        }
+        catch (CLException e)
+        {
+            return (ClInfo.getLong(device, CL_DEVICE_TYPE) & CL_DEVICE_TYPE_CPU) != 0;
+        }
+    }
+
+    /**
+     * Returns the device
+     *
+     * @return The device
+     */
+    public cl_device_id getDevice()
+    {
+        return device;
+    }
+
+    /**
+     * Returns the CL_DEVICE_NAME
+     *
+     * @return The name
+     */
+    public String getName()
+    {
+        return name;
+    }
+
+    /**
+     * Returns the CL_DEVICE_VENDOR
+     *
+     * @return The vendor
+     */
+    public String getVendor()
+    {
+        return vendor;
+    }
+
+    /**
+     * Returns the CL_DEVICE_TYPE
+     *
+     * @return The device type
+     */
+    public long getType()
+    {
+        return type;
+    }
+
+    /**
+     * Returns whether the device has the given type
+     *
+     * @param deviceType The device type, e.g. CL_DEVICE_TYPE_GPU
+     * @return Whether the device has the given type
+     */
+    public boolean isType(long deviceType)
+    {
+        return deviceType == CL_DEVICE_TYPE_ALL || (type & deviceType) != 0;
+    }
+
+    /**
+     * Returns whether the device supports at least the given OpenCL version
+     *
+     * @param major The major version
+     * @param minor The minor version
+     * @return Whether the version is supported
+     */
+    public boolean supportsVersion(int major, int minor)
+    {
+        return versionMajor > major ||
+                (versionMajor == major && versionMinor >= minor);
+    }
+
+    /**
+     * Returns the major OpenCL version of the device
+     *
+     * @return The major version
+     */
+    public int getVersionMajor()
+    {
+        return versionMajor;
+    }
+
+    /**
+     * Returns the minor OpenCL version of the device
+     *
+     * @return The minor version
+     */
+    public int getVersionMinor()
+    {
+        return versionMinor;
+    }
+
+    /**
+     * Returns the CL_DEVICE_MAX_COMPUTE_UNITS
+     *
+     * @return The number of compute units
+     */
+    public int getComputeUnits()
+    {
+        return computeUnits;
+    }
+
+    /**
+     * Returns the CL_DEVICE_MAX_CLOCK_FREQUENCY, in MHz
+     *
+     * @return The clock frequency
+     */
+    public int getClockFrequency()
+    {
+        return clockFrequency;
+    }
+
+    /**
+     * Returns the CL_DEVICE_NATIVE_VECTOR_WIDTH_FLOAT
+     *
+     * @return The native vector width for floats
+     */
+    public int getNativeVectorWidthFloat()
+    {
+        return nativeVectorWidthFloat;
+    }
+
+    /**
+     * Returns a rough estimate of the peak number of float operations
+     * per second, in GFLOPS, derived from the static properties of the
+     * device: The number of compute units, the clock frequency, and an
+     * assumed number of float lanes per compute unit, which is the
+     * native vector width for CPUs, 32 for GPUs and 16 for accelerators.
+     * A multiply-add is counted as two operations.
+     *
+     * @return The estimated peak GFLOPS
+     */
+    public double getEstimatedGflops()
+    {
+        int lanes = nativeVectorWidthFloat;
+        if (isType(CL_DEVICE_TYPE_GPU))
+        {
+            lanes = 32;
+        }
+        else if (isType(CL_DEVICE_TYPE_ACCELERATOR))
+        {
+            lanes = 16;
+        }
+        return 2.0 * computeUnits * lanes * clockFrequency / 1000.0;
+    }
+
+    /**
+     * Returns the CL_DEVICE_GLOBAL_MEM_SIZE
+     *
+     * @return The global memory size, in bytes
+     */
+    public long getGlobalMemSize()
+    {
+        return globalMemSize;
+    }
+
+    /**
+     * Returns the CL_DEVICE_LOCAL_MEM_SIZE
+     *
+     * @return The local memory size, in bytes
+     */
+    public long getLocalMemSize()
+    {
+        return localMemSize;
+    }
+
+    /**
+     * Returns whether the CL_DEVICE_LOCAL_MEM_TYPE is CL_LOCAL, meaning
+     * that the local memory is dedicated memory and not emulated with
+     * global memory
+     *
+     * @return Whether the device has dedicated local memory
+     */
+    public boolean hasDedicatedLocalMem()
+    {
+        return dedicatedLocalMem;
+    }
+
+    /**
+     * Returns the CL_DEVICE_MAX_MEM_ALLOC_SIZE
+     *
+     * @return The maximum allocation size, in bytes
+     */
+    public long getMaxMemAllocSize()
+    {
+        return maxMemAllocSize;
+    }
+
+    /**
+     * Returns the CL_DEVICE_MAX_WORK_GROUP_SIZE
+     *
+     * @return The maximum work group size
+     */
+    public long getMaxWorkGroupSize()
+    {
+        return maxWorkGroupSize;
+    }
+
+    /**
+     * Returns whether the device supports images
+     *
+     * @return Whether images are supported
+     */
+    public boolean hasImageSupport()
+    {
+        return imageSupport;
+    }
+
+    /**
+     * Returns whether the device supports double precision
+     *
+     * @return Whether double precision is supported
+     */
+    public boolean hasDoublePrecision()
+    {
+        return doublePrecision;
+    }
+
+    /**
+     * Returns whether the device shares its memory with the host
+     *
+     * @return Whether CL_DEVICE_HOST_UNIFIED_MEMORY is true
+     */
+    public boolean hasHostUnifiedMemory()
+    {
+        return hostUnifiedMemory;
+    }
+
+    /**
+     * Returns the unmodifiable set of CL_DEVICE_EXTENSIONS
+     *
+     * @return The extensions
+     */
+    public Set<String> getExtensions()
+    {
+        return extensions;
+    }
+
+    @Override
+    public String toString()
+    {
+        return name + " (" + vendor + ", OpenCL " + versionMajor + "." +
+                versionMinor + ", " + computeUnits + " CUs @ " +
+                clockFrequency + " MHz)";
+    }
+}
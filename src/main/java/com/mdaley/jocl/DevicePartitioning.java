@@ -0,0 +1,303 @@
+package com.mdaley.jocl;
+
+import static org.jocl.CL.*;
+
+import java.util.*;
+
+import org.jocl.*;
+
+/**
+ * A strategy for partitioning a device into sub-devices with
+ * <code>clCreateSubDevices</code>. <br />
+ * <br />
+ * Partitioning a multi-socket CPU device by its NUMA nodes or by the
+ * compute units that share an L3 cache keeps the work items of one
+ * sub-device, and the memory that they touch, on one socket or cache
+ * domain, avoiding the cross-socket traffic of a single device that spans
+ * all sockets. Each sub-device is then used like a separate device, with
+ * its own command queues. <br />
+ * <br />
+ * A partitioning is described by a string, which may be given with the
+ * system property <code>jocl.partition</code>:
+ * <ul>
+ *   <li><code>none</code>: Do not partition the device</li>
+ *   <li><code>numa</code>, <code>l4</code>, <code>l3</code>,
+ *   <code>l2</code>, <code>l1</code>: Partition the device by this
+ *   affinity domain</li>
+ *   <li><code>auto</code>: Partition the device by its NUMA nodes, or by
+ *   its L3 caches if this yields more sub-devices</li>
+ *   <li><code>equally:n</code>: Partition the device into as many
+ *   sub-devices with <code>n</code> compute units as possible</li>
+ * </ul>
+ */
+public final class DevicePartitioning
+{
+    /**
+     * The name of the system property for the partitioning of the CPU
+     * devices of the {@link ClRuntime}
+     */
+    public static final String PARTITION_PROPERTY = "jocl.partition";
+
+    /**
+     * The partitioning that does not partition the devices
+     */
+    public static final DevicePartitioning NONE =
+            new DevicePartitioning("none", new long[0], 0);
+
+    /**
+     * The affinity domains of the partitioning, in the order in which they
+     * are tried, or an empty array for an equal partitioning
+     */
+    private final long affinityDomains[];
+
+    /**
+     * The number of compute units of each sub-device, for an equal
+     * partitioning
+     */
+    private final int computeUnits;
+
+    /**
+     * The string that describes this partitioning
+     */
+    private final String description;
+
+    /**
+     * Creates a new partitioning
+     *
+     * @param description The string that describes this partitioning
+     * @param affinityDomains The affinity domains
+     * @param computeUnits The number of compute units for an equal
+     * partitioning
+     */
+    private DevicePartitioning(
+            String description, long affinityDomains[], int computeUnits)
+    {
+        this.description = description;
+        this.affinityDomains = affinityDomains;
+        this.computeUnits = computeUnits;
+    }
+
+    /**
+     * Returns the partitioning that is described by the given string
+     *
+     * @param s The string, as described in the class documentation
+     * @return The partitioning
+     * @throws IllegalArgumentException If the string is not valid
+     */
+    public static DevicePartitioning parse(String s)
+    {
+        String value = s.trim().toLowerCase(Locale.ENGLISH);
+        switch (value)
+        {
+            case "none":
+                return NONE;
+            case "numa":
+                return byAffinityDomain(value, CL_DEVICE_AFFINITY_DOMAIN_NUMA);
+            case "l4":
+                return byAffinityDomain(value, CL_DEVICE_AFFINITY_DOMAIN_L4_CACHE);
+            case "l3":
+                return byAffinityDomain(value, CL_DEVICE_AFFINITY_DOMAIN_L3_CACHE);
+            case "l2":
+                return byAffinityDomain(value, CL_DEVICE_AFFINITY_DOMAIN_L2_CACHE);
+            case "l1":
+                return byAffinityDomain(value, CL_DEVICE_AFFINITY_DOMAIN_L1_CACHE);
+            case "auto":
+                return byAffinityDomain(value,
+                        CL_DEVICE_AFFINITY_DOMAIN_NUMA,
+                        CL_DEVICE_AFFINITY_DOMAIN_L3_CACHE);
+            default:
+                break;
+        }
+        if (value.startsWith("equally:"))
+        {
+            try
+            {
+                return equally(Integer.parseInt(
+                        value.substring("equally:".length())));
+            }
+            catch (NumberFormatException e)
+            {
+                throw new IllegalArgumentException(
+                        "Invalid partitioning: " + s, e);
+            }
+        }
+        throw new IllegalArgumentException("Invalid partitioning: " + s);
+    }
+
+    /**
+     * Returns the partitioning that is given with the system property
+     * <code>jocl.partition</code>, or {@link #NONE} if the property is
+     * not set
+     *
+     * @return The partitioning
+     * @throws IllegalArgumentException If the property is not valid
+     */
+    public static DevicePartitioning fromSystemProperty()
+    {
+        String value = System.getProperty(PARTITION_PROPERTY);
+        if (value == null)
+        {
+            return NONE;
+        }
+        try
+        {
+            return parse(value);
+        }
+        catch (IllegalArgumentException e)
+        {
+            throw new IllegalArgumentException("Invalid value for " +
+                    PARTITION_PROPERTY + ": " + value, e);
+        }
+    }
+
+    /**
+     * Returns a partitioning by the given affinity domains. The domain
+     * that yields the most sub-devices is used.
+     *
+     * @param description The string that describes the partitioning
+     * @param affinityDomains The affinity domains, e.g.
+     * CL_DEVICE_AFFINITY_DOMAIN_NUMA
+     * @return The partitioning
+     */
+    private static DevicePartitioning byAffinityDomain(
+            String description, long ... affinityDomains)
+    {
+        return new DevicePartitioning(description, affinityDomains, 0);
+    }
+
+    /**
+     * Returns a partitioning into sub-devices with the given number of
+     * compute units each
+     *
+     * @param computeUnits The number of compute units of each sub-device
+     * @return The partitioning
+     * @throws IllegalArgumentException If the number of compute units is
+     * not positive
+     */
+    public static DevicePartitioning equally(int computeUnits)
+    {
+        if (computeUnits <= 0)
+        {
+            throw new IllegalArgumentException(
+                    "The number of compute units must be positive, but is " +
+                    computeUnits);
+        }
+        return new DevicePartitioning(
+                "equally:" + computeUnits, new long[0], computeUnits);
+    }
+
+    /**
+     * Returns whether this partitioning does not partition the devices
+     *
+     * @return Whether this is {@link #NONE}
+     */
+    public boolean isNone()
+    {
+        return this == NONE;
+    }
+
+    /**
+     * Partition the given device. If the device can not be partitioned
+     * in this way, because it does not support OpenCL 1.2 or this would
+     * only yield a single sub-device, then an empty list is returned.
+     * The caller is responsible for releasing the sub-devices with
+     * <code>clReleaseDevice</code>, and must create a context that
+     * contains them in order to use them.
+     *
+     * @param device The device
+     * @return The sub-devices
+     */
+    public List<cl_device_id> partition(cl_device_id device)
+    {
+        if (isNone() || !DeviceCapabilities.of(device).supportsVersion(1, 2))
+        {
+            return Collections.emptyList();
+        }
+        int maxSubDevices =
+                ClInfo.getInt(device, CL_DEVICE_PARTITION_MAX_SUB_DEVICES);
+        if (maxSubDevices < 2)
+        {
+            return Collections.emptyList();
+        }
+        if (affinityDomains.length == 0)
+        {
+            cl_device_partition_property properties =
+                    new cl_device_partition_property();
+            properties.addProperty(CL_DEVICE_PARTITION_EQUALLY, computeUnits);
+            return createSubDevices(device, properties, maxSubDevices);
+        }
+        List<cl_device_id> best = Collections.emptyList();
+        for (long affinityDomain : affinityDomains)
+        {
+            cl_device_partition_property properties =
+                    new cl_device_partition_property();
+            properties.addProperty(
+                    CL_DEVICE_PARTITION_BY_AFFINITY_DOMAIN, affinityDomain);
+            List<cl_device_id> subDevices =
+                    createSubDevices(device, properties, maxSubDevices);
+            if (subDevices.size() > best.size())
+            {
+                release(best);
+                best = subDevices;
+            }
+            else
+            {
+                release(subDevices);
+            }
+        }
+        return best;
+    }
+
+    /**
+     * Create the sub-devices of the given device with the given properties
+     *
+     * @param device The device
+     * @param properties The partition properties
+     * @param maxSubDevices The CL_DEVICE_PARTITION_MAX_SUB_DEVICES
+     * @return The sub-devices, or an empty list if the device can not be
+     * partitioned with the given properties, or only into one sub-device
+     */
+    private static List<cl_device_id> createSubDevices(cl_device_id device,
+            cl_device_partition_property properties, int maxSubDevices)
+    {
+        cl_device_id subDevices[] = new cl_device_id[maxSubDevices];
+        int numSubDevices[] = new int[1];
+        try
+        {
+            clCreateSubDevices(device, properties,
+                    maxSubDevices, subDevices, numSubDevices);
+        }
+        catch (CLException e)
+        {
+            // The device does not support this partitioning
+            return Collections.emptyList();
+        }
+        List<cl_device_id> result = new ArrayList<cl_device_id>(
+                Arrays.asList(subDevices).subList(0, numSubDevices[0]));
+        if (result.size() < 2)
+        {
+            release(result);
+            return Collections.emptyList();
+        }
+        return result;
+    }
+
+    /**
+     * Release the given sub-devices
+     *
+     * @param subDevices The sub-devices
+     */
+    static void release(List<cl_device_id> subDevices)
+    {
+        for (cl_device_id subDevice : subDevices)
+        {
+            clReleaseDevice(subDevice);
+        }
+    }
+
+    @Override
+    public String toString()
+    {
+        return description;
+    }
+}
@@ -0,0 +1,852 @@
+package com.mdaley.jocl;
+
+import static org.jocl.CL.*;
+
+import java.io.*;
+import java.util.*;
+
+import org.jocl.*;
+
+/**
+ * The measured capabilities of a device, as determined by the
+ * {@link RooflineBenchmark}. In contrast to the static
+ * {@link DeviceCapabilities}, these are actual numbers that may be used
+ * for sizing work and for deciding whether it is worthwhile to offload
+ * work to a device. <br />
+ * <br />
+ * Profiles are stored as JSON files in the directory
+ * <code>~/.jocl-samples/profiles</code>, which may be changed with the
+ * system property <code>jocl.profile.dir</code>. The file name is derived
+ * from the device name and the driver version, so that a driver update
+ * requires the benchmark to be run again.
+ */
+public final class DeviceProfile
+{
+    /**
+     * The name of the transfer strategy that reads from or writes to
+     * a Java array
+     */
+    public static final String TRANSFER_HEAP_ARRAY = "heapArray";
+
+    /**
+     * The name of the transfer strategy that reads from or writes to
+     * a direct byte buffer
+     */
+    public static final String TRANSFER_DIRECT_BUFFER = "directBuffer";
+
+    /**
+     * The name of the transfer strategy that reads from or writes to
+     * a mapped, CL_MEM_ALLOC_HOST_PTR (pinned) staging buffer
+     */
+    public static final String TRANSFER_PINNED_STAGING = "pinnedStaging";
+
+    /**
+     * The name of the transfer strategy that maps a CL_MEM_ALLOC_HOST_PTR
+     * buffer and copies the data into or out of the mapped memory, without
+     * an explicit transfer (zero-copy on devices with unified memory)
+     */
+    public static final String TRANSFER_MAPPED = "mapped";
+
+    /**
+     * The device name
+     */
+    private String deviceName;
+
+    /**
+     * The driver version
+     */
+    private String driverVersion;
+
+    /**
+     * The device type, "CPU", "GPU", "ACCELERATOR" or "OTHER"
+     */
+    private String deviceType;
+
+    /**
+     * The number of compute units
+     */
+    private int computeUnits;
+
+    /**
+     * The estimated peak GFLOPS from the static device properties
+     */
+    private double estimatedGflops;
+
+    /**
+     * The host-to-device bandwidth in GB/s, by transfer strategy
+     */
+    private final Map<String, Double> hostToDevice =
+            new LinkedHashMap<String, Double>();
+
+    /**
+     * The device-to-host bandwidth in GB/s, by transfer strategy
+     */
+    private final Map<String, Double> deviceToHost =
+            new LinkedHashMap<String, Double>();
+
+    /**
+     * The global memory bandwidth in GB/s
+     */
+    private double globalMemoryBandwidth;
+
+    /**
+     * The local memory bandwidth in GB/s
+     */
+    private double localMemoryBandwidth;
+
+    /**
+     * The kernel launch latency in microseconds
+     */
+    private double launchLatency;
+
+    /**
+     * The measured float GFLOPS
+     */
+    private double floatGflops;
+
+    /**
+     * The measured float4 GFLOPS
+     */
+    private double float4Gflops;
+
+    /**
+     * The time when the profile was measured, in milliseconds since
+     * the epoch
+     */
+    private long timestamp;
+
+    /**
+     * Creates an empty profile for the given device
+     *
+     * @param device The device
+     */
+    DeviceProfile(cl_device_id device)
+    {
+        DeviceCapabilities c = DeviceCapabilities.of(device);
+        this.deviceName = c.getName();
+        this.driverVersion = ClInfo.getString(device, CL_DRIVER_VERSION).trim();
+        this.deviceType = typeName(c);
+        this.computeUnits = c.getComputeUnits();
+        this.estimatedGflops = c.getEstimatedGflops();
+        this.timestamp = System.currentTimeMillis();
+    }
+
+    /**
+     * Private constructor for profiles that are read from JSON
+     */
+    private DeviceProfile()
+    {
+        // Private constructor for profiles that are read from JSON
+    }
+
+    /**
+     * Returns the directory where the profiles are stored
+     *
+     * @return The directory
+     */
+    public static File getDirectory()
+    {
+        return new File(System.getProperty("jocl.profile.dir",
+                System.getProperty("user.home") + File.separator +
+                ".jocl-samples" + File.separator + "profiles"));
+    }
+
+    /**
+     * Load the stored profile for the given device
+     *
+     * @param device The device
+     * @return The profile, or <code>null</code> if there is no (readable)
+     * profile for the device and its current driver version
+     */
+    public static DeviceProfile load(cl_device_id device)
+    {
+        String name = DeviceCapabilities.of(device).getName();
+        String driverVersion = ClInfo.getString(device, CL_DRIVER_VERSION).trim();
+        File file = new File(getDirectory(), fileNameFor(name, driverVersion));
+        if (!file.exists())
+        {
+            return null;
+        }
+        try
+        {
+            return fromJson(readFile(file));
+        }
+        catch (IOException | IllegalArgumentException e)
+        {
+            System.err.println("Could not read device profile " + file +
+                    ": " + e.getMessage());
+            return null;
+        }
+    }
+
+    /**
+     * Store this profile in the profile directory, replacing any
+     * previous profile of the same device and driver version
+     *
+     * @return The file that the profile was written to
+     * @throws IOException If the file can not be written
+     */
+    public File save() throws IOException
+    {
+        File directory = getDirectory();
+        if (!directory.isDirectory() && !directory.mkdirs())
+        {
+            throw new IOException("Could not create " + directory);
+        }
+        File file = new File(directory, fileNameFor(deviceName, driverVersion));
+        File tempFile = new File(directory, file.getName() + ".tmp");
+        try (Writer writer = new OutputStreamWriter(
+                new FileOutputStream(tempFile), "UTF-8"))
+        {
+            writer.write(toJson());
+            writer.write("\n");
+        }
+        if (file.exists() && !file.delete() || !tempFile.renameTo(file))
+        {
+            throw new IOException("Could not write " + file);
+        }
+        return file;
+    }
+
+    /**
+     * Returns the device name
+     *
+     * @return The device name
+     */
+    public String getDeviceName()
+    {
+        return deviceName;
+    }
+
+    /**
+     * Returns the driver version
+     *
+     * @return The driver version
+     */
+    public String getDriverVersion()
+    {
+        return driverVersion;
+    }
+
+    /**
+     * Returns the device type, "CPU", "GPU", "ACCELERATOR" or "OTHER"
+     *
+     * @return The device type
+     */
+    public String getDeviceType()
+    {
+        return deviceType;
+    }
+
+    /**
+     * Returns the number of compute units
+     *
+     * @return The number of compute units
+     */
+    public int getComputeUnits()
+    {
+        return computeUnits;
+    }
+
+    /**
+     * Returns the estimated peak GFLOPS from the static device properties
+     *
+     * @return The estimated GFLOPS
+     */
+    public double getEstimatedGflops()
+    {
+        return estimatedGflops;
+    }
+
+    /**
+     * Returns the host-to-device bandwidth for the given transfer
+     * strategy, in GB/s
+     *
+     * @param strategy The strategy, e.g. {@link #TRANSFER_DIRECT_BUFFER}
+     * @return The bandwidth, or 0.0 if it was not measured
+     */
+    public double getHostToDeviceBandwidth(String strategy)
+    {
+        Double value = hostToDevice.get(strategy);
+        return value == null ? 0.0 : value;
+    }
+
+    /**
+     * Returns the device-to-host bandwidth for the given transfer
+     * strategy, in GB/s
+     *
+     * @param strategy The strategy, e.g. {@link #TRANSFER_DIRECT_BUFFER}
+     * @return The bandwidth, or 0.0 if it was not measured
+     */
+    public double getDeviceToHostBandwidth(String strategy)
+    {
+        Double value = deviceToHost.get(strategy);
+        return value == null ? 0.0 : value;
+    }
+
+    /**
+     * Returns the highest host-to-device bandwidth of all strategies
+     *
+     * @return The bandwidth, in GB/s
+     */
+    public double getBestHostToDeviceBandwidth()
+    {
+        return max(hostToDevice.values());
+    }
+
+    /**
+     * Returns the highest device-to-host bandwidth of all strategies
+     *
+     * @return The bandwidth, in GB/s
+     */
+    public double getBestDeviceToHostBandwidth()
+    {
+        return max(deviceToHost.values());
+    }
+
+    /**
+     * Returns the global memory bandwidth
+     *
+     * @return The bandwidth, in GB/s
+     */
+    public double getGlobalMemoryBandwidth()
+    {
+        return globalMemoryBandwidth;
+    }
+
+    /**
+     * Returns the local memory bandwidth
+     *
+     * @return The bandwidth, in GB/s
+     */
+    public double getLocalMemoryBandwidth()
+    {
+        return localMemoryBandwidth;
+    }
+
+    /**
+     * Returns the kernel launch latency, measured as the time for
+     * enqueueing an empty kernel and waiting for its completion
+     *
+     * @return The latency, in microseconds
+     */
+    public double getLaunchLatency()
+    {
+        return launchLatency;
+    }
+
+    /**
+     * Returns the measured float GFLOPS
+     *
+     * @return The GFLOPS
+     */
+    public double getFloatGflops()
+    {
+        return floatGflops;
+    }
+
+    /**
+     * Returns the measured float4 GFLOPS
+     *
+     * @return The GFLOPS
+     */
+    public double getFloat4Gflops()
+    {
+        return float4Gflops;
+    }
+
+    /**
+     * Returns the time when this profile was measured
+     *
+     * @return The time, in milliseconds since the epoch
+     */
+    public long getTimestamp()
+    {
+        return timestamp;
+    }
+
+    /**
+     * Returns the ridge point of the roofline, i.e. the arithmetic
+     * intensity (in FLOP per byte of global memory traffic) above which
+     * a kernel is compute bound on this device
+     *
+     * @return The ridge point, or 0.0 if the bandwidth is unknown
+     */
+    public double getRidgePoint()
+    {
+        double peak = Math.max(floatGflops, float4Gflops);
+        if (globalMemoryBandwidth <= 0)
+        {
+            return 0.0;
+        }
+        return peak / globalMemoryBandwidth;
+    }
+
+    /**
+     * Set the host-to-device bandwidth for the given strategy, in GB/s
+     */
+    void setHostToDeviceBandwidth(String strategy, double bandwidth)
+    {
+        hostToDevice.put(strategy, bandwidth);
+    }
+
+    /**
+     * Set the device-to-host bandwidth for the given strategy, in GB/s
+     */
+    void setDeviceToHostBandwidth(String strategy, double bandwidth)
+    {
+        deviceToHost.put(strategy, bandwidth);
+    }
+
+    /**
+     * Set the global memory bandwidth, in GB/s
+     */
+    void setGlobalMemoryBandwidth(double globalMemoryBandwidth)
+    {
+        this.globalMemoryBandwidth = globalMemoryBandwidth;
+    }
+
+    /**
+     * Set the local memory bandwidth, in GB/s
+     */
+    void setLocalMemoryBandwidth(double localMemoryBandwidth)
+    {
+        this.localMemoryBandwidth = localMemoryBandwidth;
+    }
+
+    /**
+     * Set the launch latency, in microseconds
+     */
+    void setLaunchLatency(double launchLatency)
+    {
+        this.launchLatency = launchLatency;
+    }
+
+    /**
+     * Set the measured float GFLOPS
+     */
+    void setFloatGflops(double floatGflops)
+    {
+        this.floatGflops = floatGflops;
+    }
+
+    /**
+     * Set the measured float4 GFLOPS
+     */
+    void setFloat4Gflops(double float4Gflops)
+    {
+        this.float4Gflops = float4Gflops;
+    }
+
+    /**
+     * Returns a JSON representation of this profile
+     *
+     * @return The JSON string
+     */
+    public String toJson()
+    {
+        StringBuilder sb = new StringBuilder();
+        sb.append("{\n");
+        appendField(sb, "deviceName", quote(deviceName));
+        appendField(sb, "driverVersion", quote(driverVersion));
+        appendField(sb, "deviceType", quote(deviceType));
+        appendField(sb, "computeUnits", String.valueOf(computeUnits));
+        appendField(sb, "estimatedGflops", format(estimatedGflops));
+        appendField(sb, "hostToDeviceGBs", toJson(hostToDevice));
+        appendField(sb, "deviceToHostGBs", toJson(deviceToHost));
+        appendField(sb, "globalMemoryGBs", format(globalMemoryBandwidth));
+        appendField(sb, "localMemoryGBs", format(localMemoryBandwidth));
+        appendField(sb, "launchLatencyUs", format(launchLatency));
+        appendField(sb, "floatGflops", format(floatGflops));
+        appendField(sb, "float4Gflops", format(float4Gflops));
+        sb.append("  \"timestamp\": ").append(timestamp).append("\n");
+        sb.append("}");
+        return sb.toString();
+    }
+
+    /**
+     * Parse a profile from the given JSON string, as it was created
+     * with {@link #toJson()}
+     *
+     * @param json The JSON string
+     * @return The profile
+     * @throws IllegalArgumentException If the string can not be parsed
+     */
+    public static DeviceProfile fromJson(String json)
+    {
+        Map<String, Object> map = new JsonReader(json).readObject();
+        DeviceProfile profile = new DeviceProfile();
+        profile.deviceName = (String) map.get("deviceName");
+        profile.driverVersion = (String) map.get("driverVersion");
+        profile.deviceType = (String) map.get("deviceType");
+        profile.computeUnits = (int) number(map, "computeUnits");
+        profile.estimatedGflops = number(map, "estimatedGflops");
+        putNumbers(map, "hostToDeviceGBs", profile.hostToDevice);
+        putNumbers(map, "deviceToHostGBs", profile.deviceToHost);
+        profile.globalMemoryBandwidth = number(map, "globalMemoryGBs");
+        profile.localMemoryBandwidth = number(map, "localMemoryGBs");
+        profile.launchLatency = number(map, "launchLatencyUs");
+        profile.floatGflops = number(map, "floatGflops");
+        profile.float4Gflops = number(map, "float4Gflops");
+        profile.timestamp = (long) number(map, "timestamp");
+        return profile;
+    }
+
+    @Override
+    public String toString()
+    {
+        return String.format(Locale.ENGLISH,
+                "%s: H2D %.2f GB/s, D2H %.2f GB/s, global %.2f GB/s, " +
+                "local %.2f GB/s, launch %.1f us, float %.1f GFLOPS, " +
+                "float4 %.1f GFLOPS", deviceName,
+                getBestHostToDeviceBandwidth(), getBestDeviceToHostBandwidth(),
+                globalMemoryBandwidth, localMemoryBandwidth, launchLatency,
+                floatGflops, float4Gflops);
+    }
+
+    /**
+     * Returns the name of the type of the given device
+     *
+     * @param c The device capabilities
+     * @return The type name
+     */
+    private static String typeName(DeviceCapabilities c)
+    {
+        if ((c.getType() & CL_DEVICE_TYPE_GPU) != 0)
+        {
+            return "GPU";
+        }
+        if ((c.getType() & CL_DEVICE_TYPE_CPU) != 0)
+        {
+            return "CPU";
+        }
+        if ((c.getType() & CL_DEVICE_TYPE_ACCELERATOR) != 0)
+        {
+            return "ACCELERATOR";
+        }
+        return "OTHER";
+    }
+
+    /**
+     * Returns the file name for the profile of the given device
+     *
+     * @param deviceName The device name
+     * @param driverVersion The driver version
+     * @return The file name
+     */
+    private static String fileNameFor(String deviceName, String driverVersion)
+    {
+        String name = (deviceName + "_" + driverVersion)
+                .replaceAll("[^A-Za-z0-9._-]+", "_");
+        return name + ".json";
+    }
+
+    /**
+     * Returns the maximum of the given values, or 0.0 if there are none
+     *
+     * @param values The values
+     * @return The maximum
+     */
+    private static double max(Collection<Double> values)
+    {
+        double result = 0.0;
+        for (Double value : values)
+        {
+            result = Math.max(result, value);
+        }
+        return result;
+    }
+
+    /**
+     * Append a field with the given name and JSON value
+     */
+    private static void appendField(StringBuilder sb, String name, String value)
+    {
+        sb.append("  ").append(quote(name)).append(": ").append(value).append(",\n");
+    }
+
+    /**
+     * Returns a JSON object for the given map
+     */
+    private static String toJson(Map<String, Double> map)
+    {
+        StringBuilder sb = new StringBuilder("{");
+        String separator = " ";
+        for (Map.Entry<String, Double> entry : map.entrySet())
+        {
+            sb.append(separator).append(quote(entry.getKey()));
+            sb.append(": ").append(format(entry.getValue()));
+            separator = ", ";
+        }
+        return sb.append(" }").toString();
+    }
+
+    /**
+     * Format the given value as a JSON number
+     */
+    private static String format(double value)
+    {
+        if (Double.isNaN(value) || Double.isInfinite(value))
+        {
+            return "0";
+        }
+        return String.format(Locale.ENGLISH, "%.4f", value);
+    }
+
+    /**
+     * Returns the given string as a quoted JSON string
+     */
+    private static String quote(String s)
+    {
+        StringBuilder sb = new StringBuilder("\"");
+        for (int i = 0; i < s.length(); i++)
+        {
+            char c = s.charAt(i);
+            if (c == '"' || c == '\\')
+            {
+                sb.append('\\').append(c);
+            }
+            else if (c < 0x20)
+            {
+                sb.append(String.format("\\u%04x", (int) c));
+            }
+            else
+            {
+                sb.append(c);
+            }
+        }
+        return sb.append('"').toString();
+    }
+
+    /**
+     * Returns the number with the given name, or 0.0 if it is missing
+     */
+    private static double number(Map<String, Object> map, String name)
+    {
+        Object value = map.get(name);
+        return value instanceof Double ? (Double) value : 0.0;
+    }
+
+    /**
+     * Put the numbers of the nested object with the given name into the target
+     */
+    private static void putNumbers(Map<String, Object> map, String name,
+            Map<String, Double> target)
+    {
+        Object value = map.get(name);
+        if (value instanceof Map<?, ?>)
+        {
+            for (Map.Entry<?, ?> entry : ((Map<?, ?>) value).entrySet())
+            {
+                if (entry.getValue() instanceof Double)
+                {
+                    target.put((String) entry.getKey(), (Double) entry.getValue());
+                }
+            }
+        }
+    }
+
+    /**
+     * Read the contents of the given UTF-8 file
+     */
+    private static String readFile(File file) throws IOException
+    {
+        StringBuilder sb = new StringBuilder();
+        try (Reader reader = new InputStreamReader(
+                new FileInputStream(file), "UTF-8"))
+        {
+            char buffer[] = new char[4096];
+            int read;
+            while ((read = reader.read(buffer)) != -1)
+            {
+                sb.append(buffer, 0, read);
+            }
+        }
+        return sb.toString();
+    }
+
+    /**
+     * A minimal reader for the JSON objects that are written by
+     * {@link DeviceProfile#toJson()}, supporting nested objects,
+     * strings, numbers, booleans and <code>null</code>
+     */
+    private static final class JsonReader
+    {
+        /**
+         * The JSON string
+         */
+        private final String json;
+
+        /**
+         * The current position in the string
+         */
+        private int position;
+
+        /**
+         * Creates a reader for the given JSON string
+         */
+        JsonReader(String json)
+        {
+            this.json = json;
+        }
+
+        /**
+         * Read an object
+         */
+        Map<String, Object> readObject()
+        {
+            Map<String, Object> result = new LinkedHashMap<String, Object>();
+            expect('{');
+            if (peek() == '}')
+            {
+                position++;
+                return result;
+            }
+            while (true)
+            {
+                String name = readString();
+                expect(':');
+                result.put(name, readValue());
+                char c = next();
+                if (c == '}')
+                {
+                    return result;
+                }
+                if (c != ',')
+                {
+                    throw error("Expected ',' or '}'");
+                }
+            }
+        }
+
+        /**
+         * Read an object, string, number, boolean or null
+         */
+        private Object readValue()
+        {
+            char c = peek();
+            if (c == '{')
+            {
+                return readObject();
+            }
+            if (c == '"')
+            {
+                return readString();
+            }
+            int start = position;
+            while (position < json.length() &&
+                    ",}] \t\r\n".indexOf(json.charAt(position)) < 0)
+            {
+                position++;
+            }
+            String token = json.substring(start, position);
+            if (token.equals("true") || token.equals("false"))
+            {
+                return Boolean.valueOf(token);
+            }
+            if (token.equals("null"))
+            {
+                return null;
+            }
+            try
+            {
+                return Double.valueOf(token);
+            }
+            catch (NumberFormatException e)
+            {
+                throw error("Invalid value '" + token + "'");
+            }
+        }
+
+        /**
+         * Read a quoted string
+         */
+        private String readString()
+        {
+            expect('"');
+            StringBuilder sb = new StringBuilder();
+            while (position < json.length())
+            {
+                char c = json.charAt(position++);
+                if (c == '"')
+                {
+                    return sb.toString();
+                }
+                if (c == '\\' && position < json.length())
+                {
+                    char e = json.charAt(position++);
+                    if (e == 'u' && position + 4 <= json.length())
+                    {
+                        sb.append((char) Integer.parseInt(
+                                json.substring(position, position + 4), 16));
+                        position += 4;
+                    }
+                    else if (e == 'n')
+                    {
+                        sb.append('\n');
+                    }
+                    else if (e == 't')
+                    {
+                        sb.append('\t');
+                    }
+                    else
+                    {
+                        sb.append(e);
+                    }
+                }
+                else
+                {
+                    sb.append(c);
+                }
+            }
+            throw error("Unterminated string");
+        }
+
+        /**
+         * Consume the next non-whitespace character, which must be the expected one
+         */
+        private void expect(char expected)
+        {
+            if (next() != expected)
+            {
+                throw error("Expected '" + expected + "'");
+            }
+        }
+
+        /**
+         * Consume and return the next non-whitespace character
+         */
+        private char next()
+        {
+            char c = peek();
+            position++;
+            return c;
+        }
+
+        /**
+         * Returns the next non-whitespace character, without consuming it
+         */
+        private char peek()
+        {
+            while (position < json.length() &&
+                    Character.isWhitespace(json.charAt(position)))
+            {
+                position++;
+            }
+            if (position >= json.length())
+            {
+                throw error("Unexpected end of input");
+            }
+            return json.charAt(position);
+        }
+
+        /**
+         * Create an exception with the given message and the current position
+         */
+        private IllegalArgumentException error(String message)
+        {
+            return new IllegalArgumentException(
+                    message + " at position " + position);
+        }
+    }
+}
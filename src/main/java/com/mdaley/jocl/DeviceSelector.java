@@ -0,0 +1,659 @@
+package com.mdaley.jocl;
+
+import static org.jocl.CL.*;
+
+import java.util.*;
+
+import org.jocl.*;
+
+/**
+ * Selects the device that is best suited for a given {@link Workload},
+ * based on the {@link DeviceCapabilities} of all devices of all platforms.
+ * <br />
+ * <br />
+ * Devices that do not meet the requirements of the workload (e.g. double
+ * precision, image support, extensions or a minimum OpenCL version) are
+ * not considered. The remaining devices are scored with the weights of
+ * the workload: Each capability (estimated GFLOPS, global memory size and
+ * local memory size) is normalized to the best value among the candidates,
+ * and the weighted sum of these values is the score of the device. <br />
+ * <br />
+ * The selection may be overridden with the system property
+ * <code>jocl.device.&lt;workload name&gt;</code>, or, for all workloads,
+ * with <code>jocl.device</code>. The value may be
+ * <ul>
+ *   <li><code>platformIndex:deviceIndex</code>, e.g. <code>1:0</code></li>
+ *   <li>a device type: <code>cpu</code>, <code>gpu</code> or
+ *   <code>accelerator</code>, to select the best device of this type</li>
+ *   <li>any other string, to select the first device whose name contains
+ *   this string, ignoring the case</li>
+ * </ul>
+ */
+public final class DeviceSelector
+{
+    /**
+     * The name of the system property for overriding the selection
+     */
+    public static final String DEVICE_PROPERTY = "jocl.device";
+
+    /**
+     * Describes the requirements of a workload, and how much it benefits
+     * from the different capabilities of a device.
+     */
+    public static final class Workload
+    {
+        /**
+         * The name of the workload
+         */
+        private final String name;
+
+        /**
+         * The weight of the estimated GFLOPS
+         */
+        private double computeWeight = 1.0;
+
+        /**
+         * The weight of the global memory size
+         */
+        private double globalMemoryWeight = 0.25;
+
+        /**
+         * The weight of the local memory size
+         */
+        private double localMemoryWeight = 0.0;
+
+        /**
+         * The required device type
+         */
+        private long deviceType = CL_DEVICE_TYPE_ALL;
+
+        /**
+         * The required major and minor OpenCL version
+         */
+        private int versionMajor = 1, versionMinor = 0;
+
+        /**
+         * Whether double precision is required
+         */
+        private boolean doublePrecision;
+
+        /**
+         * Whether image support is required
+         */
+        private boolean imageSupport;
+
+        /**
+         * The required extensions
+         */
+        private final Set<String> extensions = new TreeSet<String>();
+
+        /**
+         * The minimum global memory size
+         */
+        private long minGlobalMemSize;
+
+        /**
+         * The minimum local memory size
+         */
+        private long minLocalMemSize;
+
+        /**
+         * Creates a new workload with the given name, a compute weight
+         * of 1.0, a global memory weight of 0.25, and no requirements.
+         *
+         * @param name The name, which is used for logging and for the
+         * system property that overrides the selection
+         */
+        public Workload(String name)
+        {
+            this.name = name;
+        }
+
+        /**
+         * Returns the name of this workload
+         *
+         * @return The name
+         */
+        public String getName()
+        {
+            return name;
+        }
+
+        /**
+         * Set the weight of the estimated compute throughput
+         *
+         * @param weight The weight
+         * @return This workload
+         */
+        public Workload computeWeight(double weight)
+        {
+            this.computeWeight = weight;
+            return this;
+        }
+
+        /**
+         * Set the weight of the global memory size
+         *
+         * @param weight The weight
+         * @return This workload
+         */
+        public Workload globalMemoryWeight(double weight)
+        {
+            this.globalMemoryWeight = weight;
+            return this;
+        }
+
+        /**
+         * Set the weight of the local memory size. Devices whose local
+         * memory is emulated with global memory only count half.
+         *
+         * @param weight The weight
+         * @return This workload
+         */
+        public Workload localMemoryWeight(double weight)
+        {
+            this.localMemoryWeight = weight;
+            return this;
+        }
+
+        /**
+         * Require the given device type
+         *
+         * @param deviceType The device type, e.g. CL_DEVICE_TYPE_GPU
+         * @return This workload
+         */
+        public Workload requireDeviceType(long deviceType)
+        {
+            this.deviceType = deviceType;
+            return this;
+        }
+
+        /**
+         * Require at least the given OpenCL version
+         *
+         * @param major The major version
+         * @param minor The minor version
+         * @return This workload
+         */
+        public Workload requireVersion(int major, int minor)
+        {
+            this.versionMajor = major;
+            this.versionMinor = minor;
+            return this;
+        }
+
+        /**
+         * Require double precision support
+         *
+         * @return This workload
+         */
+        public Workload requireDoublePrecision()
+        {
+            this.doublePrecision = true;
+            return this;
+        }
+
+        /**
+         * Require image support
+         *
+         * @return This workload
+         */
+        public Workload requireImageSupport()
+        {
+            this.imageSupport = true;
+            return this;
+        }
+
+        /**
+         * Require the given extension
+         *
+         * @param extension The extension, e.g. "cl_khr_fp64"
+         * @return This workload
+         */
+        public Workload requireExtension(String extension)
+        {
+            this.extensions.add(extension);
+            return this;
+        }
+
+        /**
+         * Require at least the given global memory size
+         *
+         * @param bytes The size, in bytes
+         * @return This workload
+         */
+        public Workload requireGlobalMemory(long bytes)
+        {
+            this.minGlobalMemSize = bytes;
+            return this;
+        }
+
+        /**
+         * Require at least the given local memory size
+         *
+         * @param bytes The size, in bytes
+         * @return This workload
+         */
+        public Workload requireLocalMemory(long bytes)
+        {
+            this.minLocalMemSize = bytes;
+            return this;
+        }
+
+        /**
+         * Returns the reason why the given device does not meet the
+         * requirements of this workload, or <code>null</code> if it
+         * meets all requirements
+         *
+         * @param c The device capabilities
+         * @return The reason, or <code>null</code>
+         */
+        String checkRequirements(DeviceCapabilities c)
+        {
+            if (!c.isType(deviceType))
+            {
+                return "wrong device type";
+            }
+            if (!c.supportsVersion(versionMajor, versionMinor))
+            {
+                return "OpenCL " + versionMajor + "." + versionMinor +
+                        " not supported";
+            }
+            if (doublePrecision && !c.hasDoublePrecision())
+            {
+                return "no double precision";
+            }
+            if (imageSupport && !c.hasImageSupport())
+            {
+                return "no image support";
+            }
+            for (String extension : extensions)
+            {
+                if (!c.getExtensions().contains(extension))
+                {
+                    return "no " + extension;
+                }
+            }
+            if (c.getGlobalMemSize() < minGlobalMemSize)
+            {
+                return "not enough global memory";
+            }
+            if (c.getLocalMemSize() < minLocalMemSize)
+            {
+                return "not enough local memory";
+            }
+            return null;
+        }
+    }
+
+    /**
+     * The result of a selection: The selected device, and why it was
+     * selected. The selector does not print anything; callers may print
+     * the {@link #toString() string representation} of the selection.
+     */
+    public static final class Selection
+    {
+        /**
+         * The name of the workload
+         */
+        private final String workloadName;
+
+        /**
+         * The selected device
+         */
+        private final cl_device_id device;
+
+        /**
+         * The score of the device, or NaN if it was given by the
+         * system property
+         */
+        private final double score;
+
+        /**
+         * The value of the system property that selected the device,
+         * or <code>null</code>
+         */
+        private final String override;
+
+        /**
+         * The requirement of the workload that the device does not meet,
+         * or <code>null</code>
+         */
+        private final String unmetRequirement;
+
+        /**
+         * Creates a new selection
+         *
+         * @param workloadName The name of the workload
+         * @param device The device
+         * @param score The score
+         * @param override The override
+         * @param unmetRequirement The unmet requirement
+         */
+        Selection(String workloadName, cl_device_id device, double score,
+                String override, String unmetRequirement)
+        {
+            this.workloadName = workloadName;
+            this.device = device;
+            this.score = score;
+            this.override = override;
+            this.unmetRequirement = unmetRequirement;
+        }
+
+        /**
+         * Returns the selected device
+         *
+         * @return The device
+         */
+        public cl_device_id getDevice()
+        {
+            return device;
+        }
+
+        /**
+         * Returns the score of the selected device, or <code>NaN</code>
+         * if the device was given explicitly by the system property
+         *
+         * @return The score
+         */
+        public double getScore()
+        {
+            return score;
+        }
+
+        /**
+         * Returns the value of the system property that selected the
+         * device explicitly, or <code>null</code> if it was selected by
+         * its score
+         *
+         * @return The override
+         */
+        public String getOverride()
+        {
+            return override;
+        }
+
+        /**
+         * Returns the requirement of the workload that the device does
+         * not meet, or <code>null</code>. This may only be non-null when
+         * the device was given explicitly by the system property.
+         *
+         * @return The unmet requirement
+         */
+        public String getUnmetRequirement()
+        {
+            return unmetRequirement;
+        }
+
+        @Override
+        public String toString()
+        {
+            String deviceName = DeviceCapabilities.of(device).getName();
+            if (override == null)
+            {
+                return String.format(Locale.ENGLISH,
+                        "Using device %s for %s (score %.3f)",
+                        deviceName, workloadName, score);
+            }
+            String result = "Using device " + deviceName + " for " +
+                    workloadName + " (" + override + ")";
+            if (unmetRequirement != null)
+            {
+                result += ", which does not meet the requirements: " +
+                        unmetRequirement;
+            }
+            return result;
+        }
+    }
+
+    /**
+     * Select the device that is best suited for the given workload,
+     * or the device that is given by the system property override.
+     * This is a shortcut for <code>choose(workload).getDevice()</code>.
+     *
+     * @param workload The workload
+     * @return The device
+     * @throws CLException If no device meets the requirements of the
+     * workload, or the device that is given by the system property
+     * does not exist
+     */
+    public static cl_device_id select(Workload workload)
+    {
+        return choose(workload).getDevice();
+    }
+
+    /**
+     * Select the device that is best suited for the given workload,
+     * or the device that is given by the system property override,
+     * and return it together with the reason for the selection.
+     * A device that is given by the system property is used even if
+     * it does not meet the requirements of the workload.
+     *
+     * @param workload The workload
+     * @return The selection
+     * @throws CLException If no device meets the requirements of the
+     * workload, or the device that is given by the system property
+     * does not exist
+     */
+    public static Selection choose(Workload workload)
+    {
+        ClRuntime runtime = ClRuntime.getInstance();
+        List<cl_device_id> devices = runtime.getDevices(CL_DEVICE_TYPE_ALL);
+        String override = System.getProperty(
+                DEVICE_PROPERTY + "." + workload.getName(),
+                System.getProperty(DEVICE_PROPERTY));
+        if (override != null && !override.trim().isEmpty())
+        {
+            override = override.trim();
+            long deviceType = parseDeviceType(override);
+            if (deviceType != 0)
+            {
+                devices = runtime.getDevices(deviceType);
+            }
+            else
+            {
+                cl_device_id device = selectOverride(runtime, override);
+                String reason = workload.checkRequirements(
+                        DeviceCapabilities.of(device));
+                return new Selection(workload.getName(), device,
+                        Double.NaN, override, reason);
+            }
+        }
+        Map<cl_device_id, Double> scores = score(workload, devices);
+        if (scores.isEmpty())
+        {
+            throw new CLException("No device meets the requirements of " +
+                    workload.getName(), CL_DEVICE_NOT_FOUND);
+        }
+        Map.Entry<cl_device_id, Double> best = scores.entrySet().iterator().next();
+        return new Selection(workload.getName(),
+                best.getKey(), best.getValue(), null, null);
+    }
+
+    /**
+     * Compute the scores of all devices of all platforms that meet the
+     * requirements of the given workload. The scores are between 0.0
+     * and the sum of the weights of the workload.
+     *
+     * @param workload The workload
+     * @return The scores, sorted by descending score
+     */
+    public static Map<cl_device_id, Double> score(Workload workload)
+    {
+        return score(workload,
+                ClRuntime.getInstance().getDevices(CL_DEVICE_TYPE_ALL));
+    }
+
+    /**
+     * Compute the scores of the given devices that meet the requirements
+     * of the given workload
+     *
+     * @param workload The workload
+     * @param devices The devices
+     * @return The scores, sorted by descending score
+     */
+    private static Map<cl_device_id, Double> score(
+            Workload workload, List<cl_device_id> devices)
+    {
+        List<DeviceCapabilities> candidates = new ArrayList<DeviceCapabilities>();
+        for (cl_device_id device : devices)
+        {
+            DeviceCapabilities c = DeviceCapabilities.of(device);
+            if (workload.checkRequirements(c) == null)
+            {
+                candidates.add(c);
+            }
+        }
+
+        // Determine the maximum values for the normalization
+        double maxGflops = 0;
+        double maxGlobalMem = 0;
+        double maxLocalMem = 0;
+        for (DeviceCapabilities c : candidates)
+        {
+            maxGflops = Math.max(maxGflops, c.getEstimatedGflops());
+            maxGlobalMem = Math.max(maxGlobalMem, c.getGlobalMemSize());
+            maxLocalMem = Math.max(maxLocalMem, effectiveLocalMemSize(c));
+        }
+
+        final Map<cl_device_id, Double> scores =
+                new HashMap<cl_device_id, Double>();
+        for (DeviceCapabilities c : candidates)
+        {
+            double score = 0;
+            score += workload.computeWeight *
+                    normalize(c.getEstimatedGflops(), maxGflops);
+            score += workload.globalMemoryWeight *
+                    normalize(c.getGlobalMemSize(), maxGlobalMem);
+            score += workload.localMemoryWeight *
+                    normalize(effectiveLocalMemSize(c), maxLocalMem);
+            scores.put(c.getDevice(), score);
+        }
+
+        // Sort by descending score. The sort is stable, so that devices
+        // with equal scores keep their platform and device order.
+        List<cl_device_id> sorted = new ArrayList<cl_device_id>();
+        for (DeviceCapabilities c : candidates)
+        {
+            sorted.add(c.getDevice());
+        }
+        Collections.sort(sorted, new Comparator<cl_device_id>()
+        {
+            @Override
+            public int compare(cl_device_id d0, cl_device_id d1)
+            {
+                return Double.compare(scores.get(d1), scores.get(d0));
+            }
+        });
+        Map<cl_device_id, Double> result =
+                new LinkedHashMap<cl_device_id, Double>();
+        for (cl_device_id device : sorted)
+        {
+            result.put(device, scores.get(device));
+        }
+        return result;
+    }
+
+    /**
+     * Returns the local memory size of the given device, counting
+     * emulated local memory only half
+     *
+     * @param c The device capabilities
+     * @return The effective local memory size
+     */
+    private static double effectiveLocalMemSize(DeviceCapabilities c)
+    {
+        double size = c.getLocalMemSize();
+        return c.hasDedicatedLocalMem() ? size : size * 0.5;
+    }
+
+    /**
+     * Returns the given value divided by the given maximum, or 0.0
+     * if the maximum is not positive
+     *
+     * @param value The value
+     * @param max The maximum
+     * @return The normalized value
+     */
+    private static double normalize(double value, double max)
+    {
+        if (max <= 0)
+        {
+            return 0.0;
+        }
+        return value / max;
+    }
+
+    /**
+     * Returns the device that is described by the given override string,
+     * which is either a pair of indices or a part of the device name
+     *
+     * @param runtime The runtime
+     * @param override The override string
+     * @return The device
+     * @throws CLException If there is no matching device
+     */
+    private static cl_device_id selectOverride(
+            ClRuntime runtime, String override)
+    {
+        int colonIndex = override.indexOf(':');
+        if (colonIndex > 0)
+        {
+            try
+            {
+                int platformIndex =
+                        Integer.parseInt(override.substring(0, colonIndex));
+                int deviceIndex =
+                        Integer.parseInt(override.substring(colonIndex + 1));
+                return runtime.getDevice(
+                        platformIndex, CL_DEVICE_TYPE_ALL, deviceIndex);
+            }
+            catch (NumberFormatException e)
+            {
+                // Not an index pair, try the device name
+            }
+        }
+        String lowerCaseOverride = override.toLowerCase(Locale.ENGLISH);
+        for (cl_device_id device : runtime.getDevices(CL_DEVICE_TYPE_ALL))
+        {
+            String name = DeviceCapabilities.of(device).getName();
+            if (name.toLowerCase(Locale.ENGLISH).contains(lowerCaseOverride))
+            {
+                return device;
+            }
+        }
+        throw new CLException("No device matches the " + DEVICE_PROPERTY +
+                " override '" + override + "'", CL_DEVICE_NOT_FOUND);
+    }
+
+    /**
+     * Parse the given device type string
+     *
+     * @param s The string
+     * @return The device type, or 0 if the string is not a device type
+     */
+    private static long parseDeviceType(String s)
+    {
+        if (s.equalsIgnoreCase("cpu"))
+        {
+            return CL_DEVICE_TYPE_CPU;
+        }
+        if (s.equalsIgnoreCase("gpu"))
+        {
+            return CL_DEVICE_TYPE_GPU;
+        }
+        if (s.equalsIgnoreCase("accelerator"))
+        {
+            return CL_DEVICE_TYPE_ACCELERATOR;
+        }
+        return 0;
+    }
+
+    /**
+     * Private constructor to prevent instantiation
+     */
+    private DeviceSelector()
+    {
+        // Private constructor to prevent instantiation
+    }
+}
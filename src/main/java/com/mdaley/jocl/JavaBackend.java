@@ -0,0 +1,770 @@
+package com.mdaley.jocl;
+
+import java.util.*;
+import java.util.concurrent.*;
+
+/**
+ * A {@link ComputeBackend} that executes the computations of the kernels
+ * in Java, in parallel with a <code>ForkJoinPool</code>. <br />
+ * <br />
+ * Each computation is split recursively into ranges of work items (the
+ * elements of a vector or the rows of an image), until a range is small
+ * enough to be computed by one task. The ranges are not smaller than a
+ * minimum grain size, so that the tasks amortize their scheduling
+ * overhead, and there are a few times more of them than threads, so that
+ * idle threads can steal work from busy ones. The reduction and the
+ * histogram combine the partial results of the tasks, like the work
+ * groups of the kernels. <br />
+ * <br />
+ * This backend needs no OpenCL platform, and is used by
+ * {@link ComputeBackends#get()} if there is none. The extended precision
+ * mandelbrot uses double-double arithmetic instead of quad-float, which
+ * has a higher precision.
+ */
+public final class JavaBackend implements ComputeBackend
+{
+    /**
+     * The computation of a range of work items
+     */
+    private interface RangeBody
+    {
+        /**
+         * Compute the work items in the given range
+         *
+         * @param from The start of the range, inclusive
+         * @param to The end of the range, exclusive
+         */
+        void run(int from, int to);
+    }
+
+    /**
+     * The action that splits a range of work items until it is not
+     * larger than the grain size, and computes it
+     */
+    private static final class RangeAction extends RecursiveAction
+    {
+        /**
+         * Serial UID
+         */
+        private static final long serialVersionUID = 1L;
+
+        /**
+         * The start of the range, inclusive
+         */
+        private final int from;
+
+        /**
+         * The end of the range, exclusive
+         */
+        private final int to;
+
+        /**
+         * The grain size
+         */
+        private final int grain;
+
+        /**
+         * The body
+         */
+        private final RangeBody body;
+
+        /**
+         * Creates a new action
+         *
+         * @param from The start of the range, inclusive
+         * @param to The end of the range, exclusive
+         * @param grain The grain size
+         * @param body The body
+         */
+        RangeAction(int from, int to, int grain, RangeBody body)
+        {
+            this.from = from;
+            this.to = to;
+            this.grain = grain;
+            this.body = body;
+        }
+
+        @Override
+        protected void compute()
+        {
+            if (to - from <= grain)
+            {
+                body.run(from, to);
+                return;
+            }
+            int middle = (from + to) >>> 1;
+            invokeAll(new RangeAction(from, middle, grain, body),
+                    new RangeAction(middle, to, grain, body));
+        }
+    }
+
+    /**
+     * The task that computes the sum of a range of values
+     */
+    private static final class SumTask extends RecursiveTask<Double>
+    {
+        /**
+         * Serial UID
+         */
+        private static final long serialVersionUID = 1L;
+
+        /**
+         * The input
+         */
+        private final float input[];
+
+        /**
+         * The start of the range, inclusive
+         */
+        private final int from;
+
+        /**
+         * The end of the range, exclusive
+         */
+        private final int to;
+
+        /**
+         * The grain size
+         */
+        private final int grain;
+
+        /**
+         * Creates a new task
+         *
+         * @param input The input
+         * @param from The start of the range, inclusive
+         * @param to The end of the range, exclusive
+         * @param grain The grain size
+         */
+        SumTask(float input[], int from, int to, int grain)
+        {
+            this.input = input;
+            this.from = from;
+            this.to = to;
+            this.grain = grain;
+        }
+
+        @Override
+        protected Double compute()
+        {
+            if (to - from <= grain)
+            {
+                double sum = 0;
+                for (int i = from; i < to; i++)
+                {
+                    sum += input[i];
+                }
+                return sum;
+            }
+            int middle = (from + to) >>> 1;
+            SumTask left = new SumTask(input, from, middle, grain);
+            left.fork();
+            double right = new SumTask(input, middle, to, grain).compute();
+            return left.join() + right;
+        }
+    }
+
+    /**
+     * The task that computes the histogram of a range of bytes
+     */
+    private static final class HistogramTask extends RecursiveTask<int[]>
+    {
+        /**
+         * Serial UID
+         */
+        private static final long serialVersionUID = 1L;
+
+        /**
+         * The data
+         */
+        private final byte data[];
+
+        /**
+         * The start of the range, inclusive
+         */
+        private final int from;
+
+        /**
+         * The end of the range, exclusive
+         */
+        private final int to;
+
+        /**
+         * The grain size
+         */
+        private final int grain;
+
+        /**
+         * Creates a new task
+         *
+         * @param data The data
+         * @param from The start of the range, inclusive
+         * @param to The end of the range, exclusive
+         * @param grain The grain size
+         */
+        HistogramTask(byte data[], int from, int to, int grain)
+        {
+            this.data = data;
+            this.from = from;
+            this.to = to;
+            this.grain = grain;
+        }
+
+        @Override
+        protected int[] compute()
+        {
+            if (to - from <= grain)
+            {
+                int histogram[] = new int[HISTOGRAM_BIN_COUNT];
+                for (int i = from; i < to; i++)
+                {
+                    histogram[data[i] & 0xFF]++;
+                }
+                return histogram;
+            }
+            int middle = (from + to) >>> 1;
+            HistogramTask left = new HistogramTask(data, from, middle, grain);
+            left.fork();
+            int histogram[] =
+                    new HistogramTask(data, middle, to, grain).compute();
+            int leftHistogram[] = left.join();
+            for (int i = 0; i < HISTOGRAM_BIN_COUNT; i++)
+            {
+                histogram[i] += leftHistogram[i];
+            }
+            return histogram;
+        }
+    }
+
+    /**
+     * A double-double number, consisting of a high and a low part whose
+     * sum is the value
+     */
+    private static final class DoubleDouble
+    {
+        /**
+         * The factor for splitting a double into two halves
+         */
+        private static final double SPLITTER = (1 << 27) + 1;
+
+        /**
+         * The high part
+         */
+        private double hi;
+
+        /**
+         * The low part
+         */
+        private double lo;
+
+        /**
+         * Set this number to the given value
+         *
+         * @param value The value
+         * @return This number
+         */
+        DoubleDouble set(double value)
+        {
+            hi = value;
+            lo = 0;
+            return this;
+        }
+
+        /**
+         * Set this number to the sum of the given numbers
+         *
+         * @param a The first number
+         * @param b The second number
+         * @return This number
+         */
+        DoubleDouble add(DoubleDouble a, DoubleDouble b)
+        {
+            double s = a.hi + b.hi;
+            double bb = s - a.hi;
+            double e = (a.hi - (s - bb)) + (b.hi - bb) + a.lo + b.lo;
+            return normalize(s, e);
+        }
+
+        /**
+         * Set this number to the difference of the given numbers
+         *
+         * @param a The first number
+         * @param b The second number
+         * @return This number
+         */
+        DoubleDouble subtract(DoubleDouble a, DoubleDouble b)
+        {
+            double s = a.hi - b.hi;
+            double bb = s - a.hi;
+            double e = (a.hi - (s - bb)) - (b.hi + bb) + a.lo - b.lo;
+            return normalize(s, e);
+        }
+
+        /**
+         * Set this number to the product of the given numbers
+         *
+         * @param a The first number
+         * @param b The second number
+         * @return This number
+         */
+        DoubleDouble multiply(DoubleDouble a, DoubleDouble b)
+        {
+            double p = a.hi * b.hi;
+            double e = productError(a.hi, b.hi, p) +
+                    a.hi * b.lo + a.lo * b.hi;
+            return normalize(p, e);
+        }
+
+        /**
+         * Set this number to the product of the given numbers
+         *
+         * @param a The first number
+         * @param b The second number
+         * @return This number
+         */
+        DoubleDouble multiply(DoubleDouble a, double b)
+        {
+            double p = a.hi * b;
+            double e = productError(a.hi, b, p) + a.lo * b;
+            return normalize(p, e);
+        }
+
+        /**
+         * Returns whether this number is smaller than the given value
+         *
+         * @param value The value
+         * @return Whether this number is smaller
+         */
+        boolean lessThan(double value)
+        {
+            return hi < value || (hi == value && lo < 0);
+        }
+
+        /**
+         * Set this number to the sum of the given values, where the
+         * magnitude of the first value is not smaller than that of the
+         * second
+         *
+         * @param s The first value
+         * @param e The second value
+         * @return This number
+         */
+        private DoubleDouble normalize(double s, double e)
+        {
+            hi = s + e;
+            lo = e - (hi - s);
+            return this;
+        }
+
+        /**
+         * Returns the rounding error of the product of the given values,
+         * with Dekker's algorithm
+         *
+         * @param a The first value
+         * @param b The second value
+         * @param p The rounded product
+         * @return The error
+         */
+        private static double productError(double a, double b, double p)
+        {
+            double t = SPLITTER * a;
+            double aHi = t - (t - a);
+            double aLo = a - aHi;
+            t = SPLITTER * b;
+            double bHi = t - (t - b);
+            double bLo = b - bHi;
+            return ((aHi * bHi - p) + aHi * bLo + aLo * bHi) + aLo * bLo;
+        }
+    }
+
+    /**
+     * The number of bins of the histogram
+     */
+    private static final int HISTOGRAM_BIN_COUNT = 256;
+
+    /**
+     * The minimum number of vector elements that are computed by one task
+     */
+    private static final int MIN_ELEMENT_GRAIN = 1 << 14;
+
+    /**
+     * The number of tasks for each thread of the pool
+     */
+    private static final int TASKS_PER_THREAD = 4;
+
+    /**
+     * The pool that executes the tasks
+     */
+    private final ForkJoinPool pool;
+
+    /**
+     * Creates a new backend that uses the common <code>ForkJoinPool</code>
+     */
+    public JavaBackend()
+    {
+        this(ForkJoinPool.commonPool());
+    }
+
+    /**
+     * Creates a new backend that uses the given pool. The pool remains
+     * owned by the caller, and is not shut down in {@link #release()}.
+     *
+     * @param pool The pool
+     */
+    public JavaBackend(ForkJoinPool pool)
+    {
+        this.pool = pool;
+    }
+
+    /**
+     * Returns the grain size for splitting the given number of work items
+     * into a few tasks for each thread, but not into tasks with fewer
+     * than the given minimum number of work items
+     *
+     * @param n The number of work items
+     * @param minGrain The minimum grain size
+     * @return The grain size
+     */
+    private int grain(int n, int minGrain)
+    {
+        int tasks = pool.getParallelism() * TASKS_PER_THREAD;
+        return Math.max(minGrain, (n + tasks - 1) / tasks);
+    }
+
+    /**
+     * Compute the given body for all work items in [0, n)
+     *
+     * @param n The number of work items
+     * @param minGrain The minimum number of work items for one task
+     * @param body The body
+     */
+    private void parallelFor(int n, int minGrain, RangeBody body)
+    {
+        if (n > 0)
+        {
+            pool.invoke(new RangeAction(0, n, grain(n, minGrain), body));
+        }
+    }
+
+    /**
+     * Returns the minimum number of rows that are computed by one task,
+     * for rows with the given width
+     *
+     * @param sizeX The width of the rows
+     * @return The minimum number of rows
+     */
+    private static int minRows(int sizeX)
+    {
+        return Math.max(1, MIN_ELEMENT_GRAIN / Math.max(1, sizeX));
+    }
+
+    @Override
+    public String getName()
+    {
+        return "Java (ForkJoin, " + pool.getParallelism() + " threads)";
+    }
+
+    @Override
+    public void multiply(
+            final float a[], final float b[], final float c[], int n)
+    {
+        parallelFor(n, MIN_ELEMENT_GRAIN, new RangeBody()
+        {
+            @Override
+            public void run(int from, int to)
+            {
+                for (int i = from; i < to; i++)
+                {
+                    c[i] = a[i] * b[i];
+                }
+            }
+        });
+    }
+
+    @Override
+    public void add(final float a[], final float b[], final float c[], int n)
+    {
+        parallelFor(n, MIN_ELEMENT_GRAIN, new RangeBody()
+        {
+            @Override
+            public void run(int from, int to)
+            {
+                for (int i = from; i < to; i++)
+                {
+                    c[i] = a[i] + b[i];
+                }
+            }
+        });
+    }
+
+    @Override
+    public float reduce(float input[], int n)
+    {
+        if (n <= 0)
+        {
+            return 0;
+        }
+        return pool.invoke(new SumTask(
+                input, 0, n, grain(n, MIN_ELEMENT_GRAIN))).floatValue();
+    }
+
+    @Override
+    public void histogram256(byte data[], int byteCount, int histogram[])
+    {
+        if (byteCount <= 0)
+        {
+            Arrays.fill(histogram, 0, HISTOGRAM_BIN_COUNT, 0);
+            return;
+        }
+        int result[] = pool.invoke(new HistogramTask(
+                data, 0, byteCount, grain(byteCount, MIN_ELEMENT_GRAIN)));
+        System.arraycopy(result, 0, histogram, 0, HISTOGRAM_BIN_COUNT);
+    }
+
+    @Override
+    public void convolve(final int input[], final int output[],
+            final int sizeX, final int sizeY, final float mask[],
+            final int maskSizeX, final int maskSizeY,
+            final int maskOriginX, final int maskOriginY)
+    {
+        parallelFor(sizeY, minRows(sizeX), new RangeBody()
+        {
+            @Override
+            public void run(int from, int to)
+            {
+                float sum[] = new float[4];
+                for (int gy = from; gy < to; gy++)
+                {
+                    for (int gx = 0; gx < sizeX; gx++)
+                    {
+                        if (gx < maskOriginX || gy < maskOriginY ||
+                                gx >= sizeX - (maskSizeX - maskOriginX - 1) ||
+                                gy >= sizeY - (maskSizeY - maskOriginY - 1))
+                        {
+                            output[gy * sizeX + gx] = 0;
+                            continue;
+                        }
+                        Arrays.fill(sum, 0);
+                        for (int my = 0; my < maskSizeY; my++)
+                        {
+                            int iy = gy - maskOriginY + my;
+                            for (int mx = 0; mx < maskSizeX; mx++)
+                            {
+                                int ix = gx - maskOriginX + mx;
+                                int pixel = input[iy * sizeX + ix];
+                                float m = mask[my * maskSizeX + mx];
+                                for (int c = 0; c < 4; c++)
+                                {
+                                    sum[c] += ((pixel >>> (c * 8)) & 0xFF) * m;
+                                }
+                            }
+                        }
+                        int result = 0;
+                        for (int c = 0; c < 4; c++)
+                        {
+                            result |= saturate(sum[c]) << (c * 8);
+                        }
+                        output[gy * sizeX + gx] = result;
+                    }
+                }
+            }
+        });
+    }
+
+    /**
+     * Convert the given value to an unsigned byte value, rounding towards
+     * zero and saturating, like <code>convert_uchar_sat</code>
+     *
+     * @param value The value
+     * @return The unsigned byte value
+     */
+    private static int saturate(float value)
+    {
+        if (!(value > 0))
+        {
+            return 0;
+        }
+        return value >= 255 ? 255 : (int) value;
+    }
+
+    @Override
+    public void rotate(final int input[], final int output[],
+            final int sizeX, final int sizeY, float angle)
+    {
+        final float ca = (float) Math.cos(angle);
+        final float sa = (float) Math.sin(angle);
+        parallelFor(sizeY, minRows(sizeX), new RangeBody()
+        {
+            @Override
+            public void run(int from, int to)
+            {
+                int cx = sizeX / 2;
+                int cy = sizeY / 2;
+                for (int y = from; y < to; y++)
+                {
+                    int dy = y - cy;
+                    for (int x = 0; x < sizeX; x++)
+                    {
+                        int dx = x - cx;
+                        int inX = (int) (cx + ca * dx - sa * dy);
+                        int inY = (int) (cy + sa * dx + ca * dy);
+                        if (inX < 0 || inX >= sizeX || inY < 0 || inY >= sizeY)
+                        {
+                            output[y * sizeX + x] = 0;
+                        }
+                        else
+                        {
+                            output[y * sizeX + x] = input[inY * sizeX + inX];
+                        }
+                    }
+                }
+            }
+        });
+    }
+
+    @Override
+    public void sineWave(final float positions[],
+            final int sizeX, final int sizeY, final float time)
+    {
+        parallelFor(sizeY, minRows(sizeX), new RangeBody()
+        {
+            @Override
+            public void run(int from, int to)
+            {
+                float freq = 4.0f;
+                for (int y = from; y < to; y++)
+                {
+                    float v = y / (float) sizeY;
+                    v = v * 2.0f - 1.0f;
+                    for (int x = 0; x < sizeX; x++)
+                    {
+                        float u = x / (float) sizeX;
+                        u = u * 2.0f - 1.0f;
+                        float w = (float) (Math.sin(u * freq + time) *
+                                Math.cos(v * freq + time) * 0.5);
+                        int index = (y * sizeX + x) * 4;
+                        positions[index + 0] = u;
+                        positions[index + 1] = w;
+                        positions[index + 2] = v;
+                        positions[index + 3] = 1.0f;
+                    }
+                }
+            }
+        });
+    }
+
+    @Override
+    public void mandelbrot(final int output[], final int sizeX,
+            final int sizeY, final float x0, final float y0,
+            final float x1, final float y1, final int maxIterations,
+            final int colorMap[])
+    {
+        parallelFor(sizeY, 1, new RangeBody()
+        {
+            @Override
+            public void run(int from, int to)
+            {
+                for (int iy = from; iy < to; iy++)
+                {
+                    float i = y0 + iy * (y1 - y0) / sizeY;
+                    for (int ix = 0; ix < sizeX; ix++)
+                    {
+                        float r = x0 + ix * (x1 - x0) / sizeX;
+                        float x = 0;
+                        float y = 0;
+                        float magnitudeSquared = 0;
+                        int iteration = 0;
+                        while (iteration < maxIterations &&
+                                magnitudeSquared < 4)
+                        {
+                            float xx = x * x;
+                            float yy = y * y;
+                            y = 2 * x * y + i;
+                            x = xx - yy + r;
+                            magnitudeSquared = xx + yy;
+                            iteration++;
+                        }
+                        if (iteration == maxIterations)
+                        {
+                            output[iy * sizeX + ix] = 0;
+                        }
+                        else
+                        {
+                            float alpha = (float) iteration / maxIterations;
+                            int colorIndex = (int) (alpha * colorMap.length);
+                            output[iy * sizeX + ix] = colorMap[colorIndex];
+                        }
+                    }
+                }
+            }
+        });
+    }
+
+    @Override
+    public void mandelbrotQuadFloat(final int iterations[],
+            final int sizeX, final int sizeY, final int tileX,
+            final int tileY, final int tileSizeX, final int tileSizeY,
+            final double x0, final double y0, final double dx,
+            final double dy, final int maxIterations)
+    {
+        parallelFor(tileSizeY, 1, new RangeBody()
+        {
+            @Override
+            public void run(int from, int to)
+            {
+                DoubleDouble qx0 = new DoubleDouble().set(x0);
+                DoubleDouble qy0 = new DoubleDouble().set(y0);
+                DoubleDouble qdx = new DoubleDouble().set(dx);
+                DoubleDouble qdy = new DoubleDouble().set(dy);
+                DoubleDouble r = new DoubleDouble();
+                DoubleDouble i = new DoubleDouble();
+                DoubleDouble x = new DoubleDouble();
+                DoubleDouble y = new DoubleDouble();
+                DoubleDouble xx = new DoubleDouble();
+                DoubleDouble yy = new DoubleDouble();
+                DoubleDouble temp = new DoubleDouble();
+                DoubleDouble magnitudeSquared = new DoubleDouble();
+                for (int iy = from; iy < to; iy++)
+                {
+                    float relY = (float) (iy + tileY * tileSizeY) / sizeY;
+                    i.add(qy0, temp.multiply(qdy, relY));
+                    for (int ix = 0; ix < tileSizeX; ix++)
+                    {
+                        float relX = (float) (ix + tileX * tileSizeX) / sizeX;
+                        r.add(qx0, temp.multiply(qdx, relX));
+                        x.set(0);
+                        y.set(0);
+                        magnitudeSquared.set(0);
+                        int iteration = 0;
+                        while (iteration < maxIterations &&
+                                magnitudeSquared.lessThan(4))
+                        {
+                            xx.multiply(x, x);
+                            yy.multiply(y, y);
+                            temp.multiply(x, 2);
+                            temp.multiply(temp, y);
+                            y.add(temp, i);
+                            temp.subtract(xx, yy);
+                            x.add(temp, r);
+                            magnitudeSquared.add(xx, yy);
+                            iteration++;
+                        }
+                        iterations[iy * tileSizeX + ix] = iteration;
+                    }
+                }
+            }
+        });
+    }
+
+    @Override
+    public void release()
+    {
+        // The pool is not owned by this backend
+    }
+
+    @Override
+    public String toString()
+    {
+        return "JavaBackend[" + getName() + "]";
+    }
+}
@@ -0,0 +1,239 @@
+package com.mdaley.jocl;
+
+import static org.jocl.CL.*;
+
+import java.util.*;
+
+import org.jocl.*;
+
+/**
+ * The information about one argument of a kernel, as reported by
+ * clGetKernelArgInfo. This information is only available for programs
+ * that have been built with the <code>-cl-kernel-arg-info</code> option
+ * on OpenCL 1.2 or later. It is used by the {@link KernelFacadeGenerator}
+ * to create type-checked facades for kernels.
+ */
+public final class KernelArgInfo
+{
+    /**
+     * The argument index
+     */
+    private final int index;
+
+    /**
+     * The argument name
+     */
+    private final String name;
+
+    /**
+     * The type name, e.g. "float*" or "int2"
+     */
+    private final String typeName;
+
+    /**
+     * The address qualifier, CL_KERNEL_ARG_ADDRESS_*
+     */
+    private final int addressQualifier;
+
+    /**
+     * The access qualifier, CL_KERNEL_ARG_ACCESS_*
+     */
+    private final int accessQualifier;
+
+    /**
+     * The type qualifier bitfield, CL_KERNEL_ARG_TYPE_*
+     */
+    private final long typeQualifier;
+
+    /**
+     * Creates a new argument info
+     *
+     * @param index The argument index
+     * @param name The argument name
+     * @param typeName The type name
+     * @param addressQualifier The address qualifier
+     * @param accessQualifier The access qualifier
+     * @param typeQualifier The type qualifier bitfield
+     */
+    KernelArgInfo(int index, String name, String typeName,
+            int addressQualifier, int accessQualifier, long typeQualifier)
+    {
+        this.index = index;
+        this.name = name;
+        this.typeName = typeName;
+        this.addressQualifier = addressQualifier;
+        this.accessQualifier = accessQualifier;
+        this.typeQualifier = typeQualifier;
+    }
+
+    /**
+     * Query the information about all arguments of the given kernel
+     *
+     * @param kernel The kernel
+     * @return The argument infos, by index
+     * @throws CLException If the information is not available, e.g.
+     * because the program was not built with -cl-kernel-arg-info
+     */
+    public static List<KernelArgInfo> query(cl_kernel kernel)
+    {
+        int numArgs = ClInfo.getInt(kernel, CL_KERNEL_NUM_ARGS);
+        List<KernelArgInfo> infos = new ArrayList<KernelArgInfo>(numArgs);
+        int intValue[] = { 0 };
+        long longValue[] = { 0 };
+        for (int a = 0; a < numArgs; a++)
+        {
+            String name = getString(kernel, a, CL_KERNEL_ARG_NAME);
+            String typeName = getString(kernel, a, CL_KERNEL_ARG_TYPE_NAME);
+            clGetKernelArgInfo(kernel, a, CL_KERNEL_ARG_ADDRESS_QUALIFIER,
+                    Sizeof.cl_int, Pointer.to(intValue), null);
+            int addressQualifier = intValue[0];
+            clGetKernelArgInfo(kernel, a, CL_KERNEL_ARG_ACCESS_QUALIFIER,
+                    Sizeof.cl_int, Pointer.to(intValue), null);
+            int accessQualifier = intValue[0];
+            clGetKernelArgInfo(kernel, a, CL_KERNEL_ARG_TYPE_QUALIFIER,
+                    Sizeof.cl_long, Pointer.to(longValue), null);
+            long typeQualifier = longValue[0];
+            infos.add(new KernelArgInfo(a, name, typeName,
+                    addressQualifier, accessQualifier, typeQualifier));
+        }
+        return infos;
+    }
+
+    /**
+     * Returns the value of the string kernel argument info parameter
+     * with the given name
+     *
+     * @param kernel The kernel
+     * @param index The argument index
+     * @param paramName The parameter name
+     * @return The value
+     */
+    private static String getString(cl_kernel kernel, int index, int paramName)
+    {
+        long size[] = { 0 };
+        clGetKernelArgInfo(kernel, index, paramName, 0, null, size);
+        byte buffer[] = new byte[(int)size[0]];
+        clGetKernelArgInfo(kernel, index, paramName,
+                buffer.length, Pointer.to(buffer), null);
+        return new String(buffer, 0, buffer.length - 1);
+    }
+
+    /**
+     * Returns the argument index
+     *
+     * @return The index
+     */
+    public int getIndex()
+    {
+        return index;
+    }
+
+    /**
+     * Returns the argument name
+     *
+     * @return The name
+     */
+    public String getName()
+    {
+        return name;
+    }
+
+    /**
+     * Returns the type name, e.g. "float*" or "int2"
+     *
+     * @return The type name
+     */
+    public String getTypeName()
+    {
+        return typeName;
+    }
+
+    /**
+     * Returns the address qualifier, CL_KERNEL_ARG_ADDRESS_*
+     *
+     * @return The address qualifier
+     */
+    public int getAddressQualifier()
+    {
+        return addressQualifier;
+    }
+
+    /**
+     * Returns the access qualifier, CL_KERNEL_ARG_ACCESS_*
+     *
+     * @return The access qualifier
+     */
+    public int getAccessQualifier()
+    {
+        return accessQualifier;
+    }
+
+    /**
+     * Returns the type qualifier bitfield, CL_KERNEL_ARG_TYPE_*
+     *
+     * @return The type qualifier
+     */
+    public long getTypeQualifier()
+    {
+        return typeQualifier;
+    }
+
+    /**
+     * Returns whether this argument is a <code>__local</code> pointer
+     *
+     * @return Whether this is a local memory argument
+     */
+    public boolean isLocal()
+    {
+        return addressQualifier == CL_KERNEL_ARG_ADDRESS_LOCAL;
+    }
+
+    /**
+     * Returns whether this argument is passed as a memory object, i.e.
+     * whether it is a <code>__global</code> or <code>__constant</code>
+     * pointer, or an image
+     *
+     * @return Whether this is a memory object argument
+     */
+    public boolean isMemObject()
+    {
+        return addressQualifier == CL_KERNEL_ARG_ADDRESS_GLOBAL ||
+                addressQualifier == CL_KERNEL_ARG_ADDRESS_CONSTANT ||
+                typeName.startsWith("image");
+    }
+
+    /**
+     * Returns a declaration of this argument as it appears in the
+     * kernel source, e.g. "__global float* buffer"
+     *
+     * @return The declaration
+     */
+    public String toDeclaration()
+    {
+        StringBuilder sb = new StringBuilder();
+        if (addressQualifier == CL_KERNEL_ARG_ADDRESS_GLOBAL)
+        {
+            sb.append("__global ");
+        }
+        else if (addressQualifier == CL_KERNEL_ARG_ADDRESS_LOCAL)
+        {
+            sb.append("__local ");
+        }
+        else if (addressQualifier == CL_KERNEL_ARG_ADDRESS_CONSTANT)
+        {
+            sb.append("__constant ");
+        }
+        if ((typeQualifier & CL_KERNEL_ARG_TYPE_CONST) != 0)
+        {
+            sb.append("const ");
+        }
+        sb.append(typeName).append(" ").append(name);
+        return sb.toString();
+    }
+
+    @Override
+    public String toString()
+    {
+        return "KernelArgInfo[" + index + ": " + toDeclaration() + "]";
+    }
+}
@@ -0,0 +1,500 @@
+package com.mdaley.jocl;
+
+import static org.jocl.CL.*;
+
+import java.nio.*;
+
+import org.jocl.*;
+
+/**
+ * Binds the arguments of one kernel without allocating Java objects. <br />
+ * <br />
+ * Setting a kernel argument with <code>Pointer.to(new int[]{ value })</code>
+ * creates an array and a pointer for every call, which adds up when a kernel
+ * is launched for thousands of tiles or frames. Instances of this class hold
+ * a preallocated slot in direct memory for each argument index, together
+ * with a pointer to this slot. Setting a scalar or vector argument writes the
+ * value into the slot and passes the existing pointer to clSetKernelArg. The
+ * pointer to a memory object is only created again when a different memory
+ * object is bound to the same index. <br />
+ * <br />
+ * The value that was last bound to each index is kept as a shadow copy.
+ * When the same value is bound again, for example an output buffer or a
+ * size that does not change between launches, the call to clSetKernelArg
+ * is skipped, since the kernel still holds the value. The number of
+ * skipped calls is reported by {@link #getSkippedCalls()}. If the
+ * arguments of the kernel are also set without this binder, then
+ * {@link #invalidate()} has to be called afterwards. <br />
+ * <br />
+ * One instance should be created for each kernel, and used instead of
+ * calling clSetKernelArg directly. Like the kernel itself, instances are
+ * not thread-safe.
+ */
+public final class KernelArgs
+{
+    /**
+     * The size of the slot for each argument, which is large enough
+     * for all scalar and vector types up to 16 bytes
+     */
+    private static final int SLOT_SIZE = 16;
+
+    /**
+     * The kind of an argument that has not been bound by this binder
+     */
+    private static final int UNBOUND = 0;
+
+    /**
+     * The kind of an argument that is bound to a value in its slot
+     */
+    private static final int VALUE = 1;
+
+    /**
+     * The kind of an argument that is bound to a memory object
+     */
+    private static final int MEM = 2;
+
+    /**
+     * The kind of an argument that is bound to a local memory block
+     */
+    private static final int LOCAL = 3;
+
+    /**
+     * Sets the arguments of a kernel
+     */
+    interface Setter
+    {
+        /**
+         * Set the argument with the given index of the given kernel
+         *
+         * @param kernel The kernel
+         * @param index The argument index
+         * @param size The size of the value, in bytes
+         * @param pointer The pointer to the value, or <code>null</code>
+         * for local memory
+         * @throws CLException If the argument can not be set
+         */
+        void set(cl_kernel kernel, int index, long size, Pointer pointer);
+    }
+
+    /**
+     * The setter that calls clSetKernelArg
+     */
+    private static final Setter CL_SETTER = new Setter()
+    {
+        @Override
+        public void set(cl_kernel kernel, int index, long size, Pointer pointer)
+        {
+            clSetKernelArg(kernel, index, size, pointer);
+        }
+    };
+
+    /**
+     * The setter for the arguments
+     */
+    private final Setter setter;
+
+    /**
+     * The kernel
+     */
+    private final cl_kernel kernel;
+
+    /**
+     * The slots for the argument values, in native byte order
+     */
+    private final ByteBuffer slots;
+
+    /**
+     * The pointers to the slots
+     */
+    private final Pointer slotPointers[];
+
+    /**
+     * The memory objects that are currently bound, by argument index
+     */
+    private final cl_mem memObjects[];
+
+    /**
+     * The pointers to the memory objects that are currently bound
+     */
+    private final Pointer memPointers[];
+
+    /**
+     * The kind of the value that is currently bound, by argument index
+     */
+    private final int boundKinds[];
+
+    /**
+     * The size of the value that is currently bound, by argument index
+     */
+    private final long boundSizes[];
+
+    /**
+     * The number of calls to clSetKernelArg
+     */
+    private long calls;
+
+    /**
+     * The number of calls to clSetKernelArg that have been skipped
+     */
+    private long skippedCalls;
+
+    /**
+     * Creates a new argument binder for the given kernel
+     *
+     * @param kernel The kernel
+     */
+    public KernelArgs(cl_kernel kernel)
+    {
+        this(kernel, ClInfo.getInt(kernel, CL_KERNEL_NUM_ARGS));
+    }
+
+    /**
+     * Creates a new argument binder for the given kernel, with the
+     * given number of arguments
+     *
+     * @param kernel The kernel
+     * @param numArgs The number of arguments
+     */
+    public KernelArgs(cl_kernel kernel, int numArgs)
+    {
+        this(kernel, numArgs, CL_SETTER);
+    }
+
+    /**
+     * Creates a new argument binder for the given kernel, with the
+     * given number of arguments, that sets the arguments with the
+     * given setter
+     *
+     * @param kernel The kernel
+     * @param numArgs The number of arguments
+     * @param setter The setter
+     */
+    KernelArgs(cl_kernel kernel, int numArgs, Setter setter)
+    {
+        this.kernel = kernel;
+        this.setter = setter;
+        this.slots = ByteBuffer.allocateDirect(numArgs * SLOT_SIZE)
+                .order(ByteOrder.nativeOrder());
+        this.slotPointers = new Pointer[numArgs];
+        Pointer base = Pointer.to(slots);
+        for (int i = 0; i < numArgs; i++)
+        {
+            slotPointers[i] = base.withByteOffset((long) i * SLOT_SIZE);
+        }
+        this.memObjects = new cl_mem[numArgs];
+        this.memPointers = new Pointer[numArgs];
+        this.boundKinds = new int[numArgs];
+        this.boundSizes = new long[numArgs];
+    }
+
+    /**
+     * Returns the kernel
+     *
+     * @return The kernel
+     */
+    public cl_kernel getKernel()
+    {
+        return kernel;
+    }
+
+    /**
+     * Returns the number of arguments
+     *
+     * @return The number of arguments
+     */
+    public int getNumArgs()
+    {
+        return slotPointers.length;
+    }
+
+    /**
+     * Returns the number of calls to clSetKernelArg that have been made
+     *
+     * @return The number of calls
+     */
+    public long getCalls()
+    {
+        return calls;
+    }
+
+    /**
+     * Returns the number of calls to clSetKernelArg that have been
+     * skipped, because the argument was already bound to the same value
+     *
+     * @return The number of skipped calls
+     */
+    public long getSkippedCalls()
+    {
+        return skippedCalls;
+    }
+
+    /**
+     * Forget the values that have been bound, so that all arguments are
+     * set again. This must be called when the arguments of the kernel
+     * have been set without this binder, or when a memory object that
+     * is bound has been released, since a new memory object may reuse
+     * its handle.
+     */
+    public void invalidate()
+    {
+        for (int i = 0; i < boundKinds.length; i++)
+        {
+            boundKinds[i] = UNBOUND;
+        }
+    }
+
+    /**
+     * Set the memory object argument with the given index
+     *
+     * @param index The argument index
+     * @param mem The memory object
+     * @return This instance
+     */
+    public KernelArgs setMem(int index, cl_mem mem)
+    {
+        if (mem.equals(memObjects[index]))
+        {
+            if (isBound(index, MEM, Sizeof.cl_mem))
+            {
+                return skip();
+            }
+        }
+        else
+        {
+            memObjects[index] = mem;
+            memPointers[index] = Pointer.to(mem);
+        }
+        return bind(index, MEM, Sizeof.cl_mem, memPointers[index]);
+    }
+
+    /**
+     * Set the argument with the given index to a local memory
+     * block of the given size
+     *
+     * @param index The argument index
+     * @param size The size, in bytes
+     * @return This instance
+     */
+    public KernelArgs setLocal(int index, long size)
+    {
+        if (isBound(index, LOCAL, size))
+        {
+            return skip();
+        }
+        return bind(index, LOCAL, size, null);
+    }
+
+    /**
+     * Set the int (or uint) argument with the given index
+     *
+     * @param index The argument index
+     * @param value The value
+     * @return This instance
+     */
+    public KernelArgs setInt(int index, int value)
+    {
+        int offset = index * SLOT_SIZE;
+        if (isBound(index, VALUE, Sizeof.cl_int) &&
+                slots.getInt(offset) == value)
+        {
+            return skip();
+        }
+        slots.putInt(offset, value);
+        return bind(index, VALUE, Sizeof.cl_int, slotPointers[index]);
+    }
+
+    /**
+     * Set the int2 (or uint2) argument with the given index
+     *
+     * @param index The argument index
+     * @param x The x component
+     * @param y The y component
+     * @return This instance
+     */
+    public KernelArgs setInt2(int index, int x, int y)
+    {
+        int offset = index * SLOT_SIZE;
+        if (isBound(index, VALUE, Sizeof.cl_int2) &&
+                slots.getInt(offset) == x &&
+                slots.getInt(offset + 4) == y)
+        {
+            return skip();
+        }
+        slots.putInt(offset, x);
+        slots.putInt(offset + 4, y);
+        return bind(index, VALUE, Sizeof.cl_int2, slotPointers[index]);
+    }
+
+    /**
+     * Set the long (or ulong) argument with the given index
+     *
+     * @param index The argument index
+     * @param value The value
+     * @return This instance
+     */
+    public KernelArgs setLong(int index, long value)
+    {
+        int offset = index * SLOT_SIZE;
+        if (isBound(index, VALUE, Sizeof.cl_long) &&
+                slots.getLong(offset) == value)
+        {
+            return skip();
+        }
+        slots.putLong(offset, value);
+        return bind(index, VALUE, Sizeof.cl_long, slotPointers[index]);
+    }
+
+    /**
+     * Set the float argument with the given index
+     *
+     * @param index The argument index
+     * @param value The value
+     * @return This instance
+     */
+    public KernelArgs setFloat(int index, float value)
+    {
+        int offset = index * SLOT_SIZE;
+        if (isBound(index, VALUE, Sizeof.cl_float) &&
+                sameBits(slots.getFloat(offset), value))
+        {
+            return skip();
+        }
+        slots.putFloat(offset, value);
+        return bind(index, VALUE, Sizeof.cl_float, slotPointers[index]);
+    }
+
+    /**
+     * Set the float2 argument with the given index
+     *
+     * @param index The argument index
+     * @param x The x component
+     * @param y The y component
+     * @return This instance
+     */
+    public KernelArgs setFloat2(int index, float x, float y)
+    {
+        int offset = index * SLOT_SIZE;
+        if (isBound(index, VALUE, Sizeof.cl_float2) &&
+                sameBits(slots.getFloat(offset), x) &&
+                sameBits(slots.getFloat(offset + 4), y))
+        {
+            return skip();
+        }
+        slots.putFloat(offset, x);
+        slots.putFloat(offset + 4, y);
+        return bind(index, VALUE, Sizeof.cl_float2, slotPointers[index]);
+    }
+
+    /**
+     * Set the float4 argument with the given index
+     *
+     * @param index The argument index
+     * @param x The x component
+     * @param y The y component
+     * @param z The z component
+     * @param w The w component
+     * @return This instance
+     */
+    public KernelArgs setFloat4(int index, float x, float y, float z, float w)
+    {
+        int offset = index * SLOT_SIZE;
+        if (isBound(index, VALUE, Sizeof.cl_float4) &&
+                sameBits(slots.getFloat(offset), x) &&
+                sameBits(slots.getFloat(offset + 4), y) &&
+                sameBits(slots.getFloat(offset + 8), z) &&
+                sameBits(slots.getFloat(offset + 12), w))
+        {
+            return skip();
+        }
+        slots.putFloat(offset, x);
+        slots.putFloat(offset + 4, y);
+        slots.putFloat(offset + 8, z);
+        slots.putFloat(offset + 12, w);
+        return bind(index, VALUE, Sizeof.cl_float4, slotPointers[index]);
+    }
+
+    /**
+     * Set the double argument with the given index
+     *
+     * @param index The argument index
+     * @param value The value
+     * @return This instance
+     */
+    public KernelArgs setDouble(int index, double value)
+    {
+        int offset = index * SLOT_SIZE;
+        if (isBound(index, VALUE, Sizeof.cl_double) &&
+                Double.doubleToRawLongBits(slots.getDouble(offset)) ==
+                Double.doubleToRawLongBits(value))
+        {
+            return skip();
+        }
+        slots.putDouble(offset, value);
+        return bind(index, VALUE, Sizeof.cl_double, slotPointers[index]);
+    }
+
+    @Override
+    public String toString()
+    {
+        return "KernelArgs[calls=" + calls + ", skipped=" + skippedCalls + "]";
+    }
+
+    /**
+     * Returns whether the argument with the given index is currently
+     * bound to a value of the given kind and size
+     *
+     * @param index The argument index
+     * @param kind The kind
+     * @param size The size, in bytes
+     * @return Whether the argument is bound
+     */
+    private boolean isBound(int index, int kind, long size)
+    {
+        return boundKinds[index] == kind && boundSizes[index] == size;
+    }
+
+    /**
+     * Set the argument with the given index, and record the kind and
+     * size of its value. If the call fails, the argument is considered
+     * to be unbound.
+     *
+     * @param index The argument index
+     * @param kind The kind
+     * @param size The size, in bytes
+     * @param pointer The pointer to the value
+     * @return This instance
+     */
+    private KernelArgs bind(int index, int kind, long size, Pointer pointer)
+    {
+        boundKinds[index] = UNBOUND;
+        setter.set(kernel, index, size, pointer);
+        boundKinds[index] = kind;
+        boundSizes[index] = size;
+        calls++;
+        return this;
+    }
+
+    /**
+     * Count a call to clSetKernelArg that has been skipped
+     *
+     * @return This instance
+     */
+    private KernelArgs skip()
+    {
+        skippedCalls++;
+        return this;
+    }
+
+    /**
+     * Returns whether the given float values have the same bits, so that
+     * a NaN is equal to itself, and 0.0f is not equal to -0.0f
+     *
+     * @param a The first value
+     * @param b The second value
+     * @return Whether the values have the same bits
+     */
+    private static boolean sameBits(float a, float b)
+    {
+        return Float.floatToRawIntBits(a) == Float.floatToRawIntBits(b);
+    }
+}
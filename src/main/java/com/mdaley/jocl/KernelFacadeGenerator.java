@@ -0,0 +1,607 @@
+package com.mdaley.jocl;
+
+import static org.jocl.CL.*;
+
+import java.io.*;
+import java.util.*;
+
+import org.jocl.*;
+
+/**
+ * Generates type-checked Java facades for the kernels of an OpenCL
+ * program. <br />
+ * <br />
+ * The program is built with <code>-cl-kernel-arg-info</code>, and the
+ * names, address qualifiers and types of the arguments of each kernel
+ * are obtained with {@link KernelArgInfo#query(cl_kernel)}. For each
+ * kernel, a class is generated that offers a <code>setArgs</code> and
+ * a <code>launch</code> method whose parameters have the Java types
+ * that correspond to the kernel arguments: A <code>cl_mem</code> for
+ * global and constant pointers and images, a {@link LocalBuffer} for
+ * local pointers, and primitive values for scalars and vectors. The
+ * arguments are bound with a {@link KernelArgs} instance, using the
+ * sizes that are fixed by the generated code, so that a wrong
+ * <code>Sizeof</code> can no longer be passed, and no reflection or
+ * introspection takes place when the kernel is launched. <br />
+ * <br />
+ * The generator requires an OpenCL 1.2 device, and is therefore run
+ * once, and the generated sources are added to the source tree:
+ * <pre>
+ * java com.mdaley.jocl.KernelFacadeGenerator /reduction.cl \
+ *     com.mdaley.jocl.kernels src/main/java [buildOptions]
+ * </pre>
+ */
+public final class KernelFacadeGenerator
+{
+    /**
+     * The build option that keeps the kernel argument info
+     */
+    private static final String ARG_INFO_OPTION = "-cl-kernel-arg-info";
+
+    /**
+     * The maximum length of a line in the generated code
+     */
+    private static final int MAX_LINE_LENGTH = 80;
+
+    /**
+     * The package of the generated classes
+     */
+    private final String packageName;
+
+    /**
+     * Creates a new generator for classes in the given package
+     *
+     * @param packageName The package name
+     */
+    public KernelFacadeGenerator(String packageName)
+    {
+        this.packageName = packageName;
+    }
+
+    /**
+     * Entry point of the generator. The arguments are the resource name
+     * of the kernel source, the package of the generated classes, the
+     * source directory that the classes are written to, and optional
+     * build options. The device is selected with the {@link DeviceSelector}
+     * and may be overridden with <code>-Djocl.device=...</code>.
+     *
+     * @param args The arguments
+     */
+    public static void main(String args[])
+    {
+        if (args.length < 3)
+        {
+            System.err.println("Usage: KernelFacadeGenerator " +
+                    "<resourceName> <packageName> <sourceDirectory> " +
+                    "[buildOptions]");
+            System.exit(1);
+        }
+        String options = args.length > 3 ? args[3] : null;
+        cl_device_id device = DeviceSelector.select(
+                new DeviceSelector.Workload("KernelFacadeGenerator")
+                .requireVersion(1, 2));
+        KernelFacadeGenerator generator = new KernelFacadeGenerator(args[1]);
+        try
+        {
+            for (File file : generator.generate(
+                    device, args[0], options, new File(args[2])))
+            {
+                System.out.println("Generated " + file);
+            }
+        }
+        catch (IOException e)
+        {
+            System.err.println("Could not write facade: " + e.getMessage());
+            System.exit(1);
+        }
+        finally
+        {
+            ClRuntime.getInstance().shutdown();
+        }
+    }
+
+    /**
+     * Build the program from the given kernel source resource for the
+     * given device, and write a facade for each of its kernels into the
+     * given source directory
+     *
+     * @param device The device
+     * @param resourceName The resource name of the kernel source
+     * @param options The build options, may be null
+     * @param sourceDirectory The source directory
+     * @return The files that have been written
+     * @throws IOException If a file can not be written
+     * @throws CLException If the program can not be built
+     * @throws IllegalArgumentException If a kernel has an argument
+     * with a type that is not supported
+     */
+    public List<File> generate(cl_device_id device, String resourceName,
+            String options, File sourceDirectory) throws IOException
+    {
+        String buildOptions = options == null ?
+                ARG_INFO_OPTION : ARG_INFO_OPTION + " " + options;
+        String source = KernelSources.getResolved(resourceName);
+        cl_context context = ClRuntime.getInstance().getContext(device);
+        cl_program program = clCreateProgramWithSource(context,
+                1, new String[]{ source }, null, null);
+        File directory = new File(sourceDirectory,
+                packageName.replace('.', File.separatorChar));
+        List<File> files = new ArrayList<File>();
+        try
+        {
+            clBuildProgram(program, 1, new cl_device_id[]{ device },
+                    buildOptions, null, null);
+            int numKernels[] = { 0 };
+            clCreateKernelsInProgram(program, 0, null, numKernels);
+            cl_kernel kernels[] = new cl_kernel[numKernels[0]];
+            clCreateKernelsInProgram(program, kernels.length, kernels, null);
+            if (!directory.isDirectory() && !directory.mkdirs())
+            {
+                throw new IOException("Could not create " + directory);
+            }
+            for (cl_kernel kernel : kernels)
+            {
+                try
+                {
+                    String kernelName = getKernelName(kernel);
+                    String code = generate(resourceName, kernelName,
+                            KernelArgInfo.query(kernel));
+                    File file = new File(directory,
+                            toClassName(kernelName) + ".java");
+                    Writer writer = new OutputStreamWriter(
+                            new FileOutputStream(file), "UTF-8");
+                    try
+                    {
+                        writer.write(code);
+                    }
+                    finally
+                    {
+                        writer.close();
+                    }
+                    files.add(file);
+                }
+                finally
+                {
+                    clReleaseKernel(kernel);
+                }
+            }
+        }
+        finally
+        {
+            clReleaseProgram(program);
+        }
+        return files;
+    }
+
+    /**
+     * Generate the source code of the facade for the kernel with the
+     * given name and arguments
+     *
+     * @param resourceName The resource name of the kernel source
+     * @param kernelName The kernel name
+     * @param args The argument infos
+     * @return The source code
+     * @throws IllegalArgumentException If an argument has a type
+     * that is not supported
+     */
+    public String generate(String resourceName, String kernelName,
+            List<KernelArgInfo> args)
+    {
+        String className = toClassName(kernelName);
+        List<String> parameters = new ArrayList<String>();
+        List<String> parameterNames = new ArrayList<String>();
+        List<String> parameterDocs = new ArrayList<String>();
+        List<String> bindings = new ArrayList<String>();
+        boolean usesLocalBuffer = false;
+        for (KernelArgInfo arg : args)
+        {
+            usesLocalBuffer |= arg.isLocal();
+            addArgument(kernelName, arg,
+                    parameters, parameterNames, parameterDocs, bindings);
+        }
+
+        StringBuilder sb = new StringBuilder();
+        sb.append("package ").append(packageName).append(";\n");
+        sb.append("\n");
+        sb.append("import static org.jocl.CL.*;\n");
+        sb.append("\n");
+        sb.append("import com.mdaley.jocl.ClInfo;\n");
+        sb.append("import com.mdaley.jocl.KernelArgs;\n");
+        if (usesLocalBuffer)
+        {
+            sb.append("import com.mdaley.jocl.LocalBuffer;\n");
+        }
+        sb.append("import org.jocl.*;\n");
+        sb.append("\n");
+        sb.append("/**\n");
+        sb.append(" * Facade for the <code>").append(kernelName);
+        sb.append("</code> kernel of <code>").append(resourceName);
+        sb.append("</code>. <br />\n");
+        sb.append(" * <br />\n");
+        sb.append(" * This class was generated by the\n");
+        sb.append(" * {@link com.mdaley.jocl.KernelFacadeGenerator} from the ");
+        sb.append("kernel argument\n");
+        sb.append(" * info, and should not be edited. Like the kernel itself, ");
+        sb.append("instances\n");
+        sb.append(" * are not thread-safe.\n");
+        sb.append(" */\n");
+        sb.append("public final class ").append(className).append("\n");
+        sb.append("{\n");
+        sb.append("    /**\n");
+        sb.append("     * The name of the kernel\n");
+        sb.append("     */\n");
+        sb.append("    public static final String NAME = \"");
+        sb.append(kernelName).append("\";\n");
+        sb.append("\n");
+        sb.append("    /**\n");
+        sb.append("     * The number of arguments of the kernel\n");
+        sb.append("     */\n");
+        sb.append("    public static final int NUM_ARGS = ");
+        sb.append(args.size()).append(";\n");
+        sb.append("\n");
+        sb.append("    /**\n");
+        sb.append("     * The argument binder for the kernel\n");
+        sb.append("     */\n");
+        sb.append("    private final KernelArgs args;\n");
+        sb.append("\n");
+        sb.append("    /**\n");
+        sb.append("     * Creates a new facade for a new instance of the ");
+        sb.append("kernel in the\n");
+        sb.append("     * given program\n");
+        sb.append("     *\n");
+        sb.append("     * @param program The program\n");
+        sb.append("     */\n");
+        sb.append("    public ").append(className);
+        sb.append("(cl_program program)\n");
+        sb.append("    {\n");
+        sb.append("        this(clCreateKernel(program, NAME, null));\n");
+        sb.append("    }\n");
+        sb.append("\n");
+        sb.append("    /**\n");
+        sb.append("     * Creates a new facade for the given kernel\n");
+        sb.append("     *\n");
+        sb.append("     * @param kernel The kernel\n");
+        sb.append("     * @throws IllegalArgumentException If the kernel ");
+        sb.append("does not have the\n");
+        sb.append("     * expected number of arguments\n");
+        sb.append("     */\n");
+        sb.append("    public ").append(className);
+        sb.append("(cl_kernel kernel)\n");
+        sb.append("    {\n");
+        sb.append("        int numArgs = ClInfo.getInt(kernel, ");
+        sb.append("CL_KERNEL_NUM_ARGS);\n");
+        sb.append("        if (numArgs != NUM_ARGS)\n");
+        sb.append("        {\n");
+        sb.append("            throw new IllegalArgumentException(\"The ");
+        sb.append("kernel has \" + numArgs +\n");
+        sb.append("                    \" arguments, expected \" + ");
+        sb.append("NUM_ARGS);\n");
+        sb.append("        }\n");
+        sb.append("        this.args = new KernelArgs(kernel, NUM_ARGS);\n");
+        sb.append("    }\n");
+        sb.append("\n");
+        sb.append("    /**\n");
+        sb.append("     * Returns the kernel\n");
+        sb.append("     *\n");
+        sb.append("     * @return The kernel\n");
+        sb.append("     */\n");
+        sb.append("    public cl_kernel getKernel()\n");
+        sb.append("    {\n");
+        sb.append("        return args.getKernel();\n");
+        sb.append("    }\n");
+        sb.append("\n");
+        sb.append("    /**\n");
+        sb.append("     * Returns the argument binder for the kernel\n");
+        sb.append("     *\n");
+        sb.append("     * @return The argument binder\n");
+        sb.append("     */\n");
+        sb.append("    public KernelArgs getArgs()\n");
+        sb.append("    {\n");
+        sb.append("        return args;\n");
+        sb.append("    }\n");
+        sb.append("\n");
+        sb.append("    /**\n");
+        sb.append("     * Set the arguments of the kernel\n");
+        sb.append("     *\n");
+        appendParameterDocs(sb, parameterDocs);
+        sb.append("     * @return This instance\n");
+        sb.append("     */\n");
+        appendSignature(sb, "    public " + className + " setArgs(",
+                parameters);
+        sb.append("    {\n");
+        for (String binding : bindings)
+        {
+            sb.append("        ").append(binding).append("\n");
+        }
+        sb.append("        return this;\n");
+        sb.append("    }\n");
+        sb.append("\n");
+        sb.append("    /**\n");
+        sb.append("     * Set the arguments of the kernel, and enqueue it ");
+        sb.append("on the given\n");
+        sb.append("     * command queue\n");
+        sb.append("     *\n");
+        sb.append("     * @param commandQueue The command queue\n");
+        sb.append("     * @param globalWorkSize The global work size\n");
+        sb.append("     * @param localWorkSize The local work size, ");
+        sb.append("may be null\n");
+        appendParameterDocs(sb, parameterDocs);
+        sb.append("     */\n");
+        List<String> launchParameters = new ArrayList<String>();
+        launchParameters.add("cl_command_queue commandQueue");
+        launchParameters.add("long globalWorkSize[]");
+        launchParameters.add("long localWorkSize[]");
+        launchParameters.addAll(parameters);
+        appendSignature(sb, "    public void launch(", launchParameters);
+        sb.append("    {\n");
+        appendCall(sb, "        setArgs(", parameterNames);
+        sb.append("        clEnqueueNDRangeKernel(commandQueue, ");
+        sb.append("args.getKernel(),\n");
+        sb.append("                globalWorkSize.length, null, ");
+        sb.append("globalWorkSize, localWorkSize,\n");
+        sb.append("                0, null, null);\n");
+        sb.append("    }\n");
+        sb.append("\n");
+        sb.append("    /**\n");
+        sb.append("     * Release the kernel\n");
+        sb.append("     */\n");
+        sb.append("    public void release()\n");
+        sb.append("    {\n");
+        sb.append("        clReleaseKernel(args.getKernel());\n");
+        sb.append("    }\n");
+        sb.append("}\n");
+        return sb.toString();
+    }
+
+    /**
+     * Add the Java parameters, their documentation and the statements
+     * that bind them for the given kernel argument
+     *
+     * @param kernelName The kernel name
+     * @param arg The argument info
+     * @param parameters The parameter declarations
+     * @param parameterNames The parameter names
+     * @param parameterDocs The parameter documentation
+     * @param bindings The statements that bind the parameters
+     * @throws IllegalArgumentException If the argument has a type
+     * that is not supported
+     */
+    private static void addArgument(String kernelName, KernelArgInfo arg,
+            List<String> parameters, List<String> parameterNames,
+            List<String> parameterDocs, List<String> bindings)
+    {
+        String name = arg.getName();
+        int index = arg.getIndex();
+        String doc = "<code>" + arg.toDeclaration() + "</code>";
+        if (arg.isLocal())
+        {
+            parameters.add("LocalBuffer " + name);
+            parameterNames.add(name);
+            parameterDocs.add(name + " " + doc);
+            bindings.add("args.setLocal(" + index + ", " +
+                    name + ".getSize());");
+            return;
+        }
+        if (arg.isMemObject())
+        {
+            parameters.add("cl_mem " + name);
+            parameterNames.add(name);
+            parameterDocs.add(name + " " + doc);
+            bindings.add("args.setMem(" + index + ", " + name + ");");
+            return;
+        }
+        String type = normalizeTypeName(arg.getTypeName());
+        String javaType;
+        String setter;
+        int components;
+        if (type.equals("int") || type.equals("uint"))
+        {
+            javaType = "int";
+            setter = "setInt";
+            components = 1;
+        }
+        else if (type.equals("long") || type.equals("ulong"))
+        {
+            javaType = "long";
+            setter = "setLong";
+            components = 1;
+        }
+        else if (type.equals("float"))
+        {
+            javaType = "float";
+            setter = "setFloat";
+            components = 1;
+        }
+        else if (type.equals("double"))
+        {
+            javaType = "double";
+            setter = "setDouble";
+            components = 1;
+        }
+        else if (type.equals("int2") || type.equals("uint2"))
+        {
+            javaType = "int";
+            setter = "setInt2";
+            components = 2;
+        }
+        else if (type.equals("float2"))
+        {
+            javaType = "float";
+            setter = "setFloat2";
+            components = 2;
+        }
+        else if (type.equals("float4"))
+        {
+            javaType = "float";
+            setter = "setFloat4";
+            components = 4;
+        }
+        else
+        {
+            throw new IllegalArgumentException("Unsupported type " +
+                    arg.getTypeName() + " of argument " + name +
+                    " of kernel " + kernelName);
+        }
+        StringBuilder binding = new StringBuilder();
+        binding.append("args.").append(setter).append("(").append(index);
+        if (components == 1)
+        {
+            parameters.add(javaType + " " + name);
+            parameterNames.add(name);
+            parameterDocs.add(name + " " + doc);
+            binding.append(", ").append(name);
+        }
+        else
+        {
+            String suffixes = "XYZW";
+            for (int c = 0; c < components; c++)
+            {
+                String component = name + suffixes.charAt(c);
+                parameters.add(javaType + " " + component);
+                parameterNames.add(component);
+                parameterDocs.add(component + " The " +
+                        Character.toLowerCase(suffixes.charAt(c)) +
+                        " component of " + doc);
+                binding.append(", ").append(component);
+            }
+        }
+        binding.append(");");
+        bindings.add(binding.toString());
+    }
+
+    /**
+     * Normalize the given type name, by removing qualifiers and
+     * replacing "unsigned T" with "uT"
+     *
+     * @param typeName The type name
+     * @return The normalized type name
+     */
+    static String normalizeTypeName(String typeName)
+    {
+        String type = typeName.trim();
+        for (String qualifier : new String[]{ "const ", "volatile " })
+        {
+            if (type.startsWith(qualifier))
+            {
+                type = type.substring(qualifier.length()).trim();
+            }
+        }
+        if (type.startsWith("unsigned "))
+        {
+            type = "u" + type.substring("unsigned ".length()).trim();
+        }
+        return type;
+    }
+
+    /**
+     * Append the documentation of the given parameters
+     *
+     * @param sb The string builder
+     * @param parameterDocs The parameter documentation
+     */
+    private static void appendParameterDocs(
+            StringBuilder sb, List<String> parameterDocs)
+    {
+        for (String parameterDoc : parameterDocs)
+        {
+            sb.append("     * @param ").append(parameterDoc).append("\n");
+        }
+    }
+
+    /**
+     * Append a method signature with the given prefix and parameters,
+     * wrapping the parameters so that the lines do not become too long
+     *
+     * @param sb The string builder
+     * @param prefix The part of the signature before the parameters
+     * @param parameters The parameter declarations
+     */
+    private static void appendSignature(StringBuilder sb, String prefix,
+            List<String> parameters)
+    {
+        appendWrapped(sb, prefix, parameters, ")", "            ");
+    }
+
+    /**
+     * Append a method call with the given prefix and arguments,
+     * wrapping the arguments so that the lines do not become too long
+     *
+     * @param sb The string builder
+     * @param prefix The part of the call before the arguments
+     * @param arguments The arguments
+     */
+    private static void appendCall(StringBuilder sb, String prefix,
+            List<String> arguments)
+    {
+        appendWrapped(sb, prefix, arguments, ");", "                ");
+    }
+
+    /**
+     * Append the given prefix, the comma-separated elements and the
+     * given suffix, continuing on a new line with the given indentation
+     * whenever a line would become too long
+     *
+     * @param sb The string builder
+     * @param prefix The prefix
+     * @param elements The elements
+     * @param suffix The suffix
+     * @param indentation The indentation of continued lines
+     */
+    private static void appendWrapped(StringBuilder sb, String prefix,
+            List<String> elements, String suffix, String indentation)
+    {
+        StringBuilder line = new StringBuilder(prefix);
+        boolean empty = true;
+        for (int i = 0; i < elements.size(); i++)
+        {
+            String element = elements.get(i) +
+                    (i < elements.size() - 1 ? "," : suffix);
+            if (!empty && line.length() + 1 + element.length() > MAX_LINE_LENGTH)
+            {
+                sb.append(line).append("\n");
+                line = new StringBuilder(indentation);
+                empty = true;
+            }
+            if (!empty)
+            {
+                line.append(" ");
+            }
+            line.append(element);
+            empty = false;
+        }
+        if (elements.isEmpty())
+        {
+            line.append(suffix);
+        }
+        sb.append(line).append("\n");
+    }
+
+    /**
+     * Returns the name of the facade class for the given kernel name,
+     * e.g. "ReduceKernel" for "reduce"
+     *
+     * @param kernelName The kernel name
+     * @return The class name
+     */
+    static String toClassName(String kernelName)
+    {
+        return Character.toUpperCase(kernelName.charAt(0)) +
+                kernelName.substring(1) + "Kernel";
+    }
+
+    /**
+     * Returns the name of the given kernel
+     *
+     * @param kernel The kernel
+     * @return The name
+     */
+    private static String getKernelName(cl_kernel kernel)
+    {
+        long size[] = { 0 };
+        clGetKernelInfo(kernel, CL_KERNEL_FUNCTION_NAME, 0, null, size);
+        byte buffer[] = new byte[(int)size[0]];
+        clGetKernelInfo(kernel, CL_KERNEL_FUNCTION_NAME,
+                buffer.length, Pointer.to(buffer), null);
+        return new String(buffer, 0, buffer.length - 1);
+    }
+}
@@ -0,0 +1,186 @@
+package com.mdaley.jocl;
+
+import static org.jocl.CL.*;
+
+import java.util.*;
+import java.util.concurrent.*;
+
+import org.jocl.*;
+
+/**
+ * A pool of instances of one kernel, so that the kernel may be launched
+ * from multiple threads concurrently. <br />
+ * <br />
+ * The arguments of a <code>cl_kernel</code> are state that is shared by
+ * all threads that use it, so that two threads that set the arguments
+ * and enqueue the same kernel at the same time may launch it with mixed
+ * arguments. This pool hands out a separate kernel instance, created from
+ * the same program, to each caller of {@link #acquire()}, together with
+ * its own {@link KernelArgs}. The caller has exclusive access to the
+ * instance until it passes it to {@link #release(KernelArgs)}, which may
+ * be done directly after the kernel has been enqueued, because the
+ * arguments are captured when the kernel is enqueued. <br />
+ * <br />
+ * Instances are created on demand, so the pool grows to the number of
+ * threads that launch the kernel at the same time, and are reused
+ * afterwards. The program is not owned by the pool. All methods of this
+ * class are thread-safe.
+ */
+public final class KernelPool
+{
+    /**
+     * The future that will receive the program
+     */
+    private final Future<cl_program> program;
+
+    /**
+     * The name of the kernel
+     */
+    private final String kernelName;
+
+    /**
+     * The kernel instances that are currently not in use
+     */
+    private final Deque<KernelArgs> idle = new ArrayDeque<KernelArgs>();
+
+    /**
+     * The kernel instances that are currently in use
+     */
+    private final Set<KernelArgs> used = new HashSet<KernelArgs>();
+
+    /**
+     * Whether this pool has been released
+     */
+    private boolean released;
+
+    /**
+     * Creates a new pool for the kernel with the given name in the
+     * given program. The program is only waited for when the first
+     * kernel instance is acquired.
+     *
+     * @param program The future that will receive the program
+     * @param kernelName The name of the kernel
+     */
+    public KernelPool(Future<cl_program> program, String kernelName)
+    {
+        this.program = program;
+        this.kernelName = kernelName;
+    }
+
+    /**
+     * Acquire a kernel instance for exclusive use by the caller. It
+     * must be returned with {@link #release(KernelArgs)}.
+     *
+     * @return The argument binder of the kernel instance
+     * @throws IllegalStateException If the pool has been released, or
+     * the program could not be built
+     * @throws CLException If the kernel can not be created
+     */
+    public KernelArgs acquire()
+    {
+        synchronized (this)
+        {
+            if (released)
+            {
+                throw new IllegalStateException("The pool has been released");
+            }
+            KernelArgs args = idle.pollLast();
+            if (args != null)
+            {
+                used.add(args);
+                return args;
+            }
+        }
+        KernelArgs args = new KernelArgs(
+                clCreateKernel(getProgram(), kernelName, null));
+        synchronized (this)
+        {
+            if (released)
+            {
+                clReleaseKernel(args.getKernel());
+                throw new IllegalStateException("The pool has been released");
+            }
+            used.add(args);
+        }
+        return args;
+    }
+
+    /**
+     * Return the given kernel instance to this pool
+     *
+     * @param args The argument binder of the kernel instance
+     * @throws IllegalArgumentException If the instance was not acquired
+     * from this pool, or has already been released
+     */
+    public synchronized void release(KernelArgs args)
+    {
+        if (!used.remove(args))
+        {
+            throw new IllegalArgumentException(
+                    "Kernel was not acquired from this pool");
+        }
+        if (released)
+        {
+            clReleaseKernel(args.getKernel());
+            return;
+        }
+        idle.addLast(args);
+    }
+
+    /**
+     * Returns the number of kernel instances that have been created
+     * and not yet been released
+     *
+     * @return The number of kernel instances
+     */
+    public synchronized int getSize()
+    {
+        return idle.size() + used.size();
+    }
+
+    /**
+     * Release all kernel instances of this pool. Instances that are
+     * still in use are released when they are returned.
+     */
+    public synchronized void release()
+    {
+        released = true;
+        for (KernelArgs args : idle)
+        {
+            clReleaseKernel(args.getKernel());
+        }
+        idle.clear();
+    }
+
+    @Override
+    public synchronized String toString()
+    {
+        return "KernelPool[" + kernelName + ", idle=" + idle.size() +
+                ", used=" + used.size() + "]";
+    }
+
+    /**
+     * Returns the program, waiting for it to be built if necessary
+     *
+     * @return The program
+     * @throws IllegalStateException If the program could not be built
+     */
+    private cl_program getProgram()
+    {
+        try
+        {
+            return program.get();
+        }
+        catch (InterruptedException e)
+        {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException(
+                    "Interrupted while waiting for the program", e);
+        }
+        catch (ExecutionException e)
+        {
+            throw new IllegalStateException(
+                    "Could not build the program", e.getCause());
+        }
+    }
+}
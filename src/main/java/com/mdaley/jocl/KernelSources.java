@@ -0,0 +1,268 @@
+package com.mdaley.jocl;
+
+import java.io.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.regex.*;
+
+/**
+ * A cache and preprocessor for the OpenCL kernel sources that are read
+ * from the class path. <br />
+ * <br />
+ * Each resource is read only once, and the same string is returned for
+ * all subsequent requests. The {@link #getResolved(String)} method
+ * additionally replaces <code>#include "name.cl"</code> directives with
+ * the contents of the respective resource, which is looked up relative
+ * to the including resource. <br />
+ * <br />
+ * Specialized variants of a program are created by passing compile-time
+ * constants as <code>-D</code> build options, which are created with
+ * {@link #toBuildOptions(String, Map)}. Since these options are created
+ * in a canonical order, the {@link ProgramCache} and the
+ * {@link ProgramBinaryCache} cache each variant by its parameter set.
+ * The kernel sources should declare the constants that may be
+ * specialized with <code>#ifndef</code> guards that define the defaults.
+ */
+public final class KernelSources
+{
+    /**
+     * The pattern for an include directive
+     */
+    private static final Pattern INCLUDE_PATTERN =
+            Pattern.compile("^\\s*#\\s*include\\s*[\"<]([^\">]+)[\">].*$");
+
+    /**
+     * The pattern for a valid macro name
+     */
+    private static final Pattern MACRO_NAME_PATTERN =
+            Pattern.compile("[A-Za-z_][A-Za-z0-9_]*");
+
+    /**
+     * The sources that have already been read, by resource name
+     */
+    private static final ConcurrentMap<String, String> sources =
+            new ConcurrentHashMap<String, String>();
+
+    /**
+     * The sources with resolved includes, by resource name
+     */
+    private static final ConcurrentMap<String, String> resolvedSources =
+            new ConcurrentHashMap<String, String>();
+
+    /**
+     * Returns the contents of the class path resource with the given
+     * name, reading it if it has not been read before.
+     *
+     * @param resourceName The resource name, e.g. "/reduction.cl"
+     * @return The source
+     * @throws IllegalArgumentException If the resource does not exist
+     * @throws IllegalStateException If the resource can not be read
+     */
+    public static String get(String resourceName)
+    {
+        String source = sources.get(resourceName);
+        if (source == null)
+        {
+            source = read(resourceName);
+            String previous = sources.putIfAbsent(resourceName, source);
+            if (previous != null)
+            {
+                source = previous;
+            }
+        }
+        return source;
+    }
+
+    /**
+     * Returns the contents of the class path resource with the given
+     * name, where all <code>#include</code> directives have been
+     * replaced with the contents of the included resources. Each
+     * resource is included at most once.
+     *
+     * @param resourceName The resource name, e.g. "/QuadFloatMandelbrot.cl"
+     * @return The source
+     * @throws IllegalArgumentException If the resource or one of the
+     * included resources does not exist
+     * @throws IllegalStateException If a resource can not be read
+     */
+    public static String getResolved(String resourceName)
+    {
+        String source = resolvedSources.get(resourceName);
+        if (source == null)
+        {
+            StringBuilder sb = new StringBuilder();
+            resolve(resourceName, new HashSet<String>(), sb);
+            source = sb.toString();
+            String previous = resolvedSources.putIfAbsent(resourceName, source);
+            if (previous != null)
+            {
+                source = previous;
+            }
+        }
+        return source;
+    }
+
+    /**
+     * Create the build options that consist of the given options,
+     * followed by one <code>-D NAME=VALUE</code> option for each of the
+     * given constants, sorted by name. Constants with a <code>null</code>
+     * value are passed as <code>-D NAME</code>.
+     *
+     * @param options The base build options, may be <code>null</code>
+     * @param constants The compile-time constants
+     * @return The build options
+     * @throws IllegalArgumentException If a constant name is not a
+     * valid macro name, or a value contains whitespace
+     */
+    public static String toBuildOptions(
+            String options, Map<String, ?> constants)
+    {
+        StringBuilder sb = new StringBuilder();
+        if (options != null)
+        {
+            sb.append(options.trim());
+        }
+        for (Map.Entry<String, ?> entry :
+            new TreeMap<String, Object>(constants).entrySet())
+        {
+            String name = entry.getKey();
+            if (!MACRO_NAME_PATTERN.matcher(name).matches())
+            {
+                throw new IllegalArgumentException(
+                        "Invalid macro name: " + name);
+            }
+            if (sb.length() > 0)
+            {
+                sb.append(" ");
+            }
+            sb.append("-D ").append(name);
+            Object value = entry.getValue();
+            if (value != null)
+            {
+                String valueString = String.valueOf(value);
+                if (valueString.isEmpty() || valueString.matches(".*\\s.*"))
+                {
+                    throw new IllegalArgumentException(
+                            "Invalid value for " + name + ": '" + valueString + "'");
+                }
+                sb.append("=").append(valueString);
+            }
+        }
+        return sb.toString();
+    }
+
+    /**
+     * Append the source of the given resource to the given string builder,
+     * replacing the include directives with the included sources
+     *
+     * @param resourceName The resource name
+     * @param included The names of the resources that have already been
+     * included
+     * @param sb The string builder
+     */
+    private static void resolve(
+            String resourceName, Set<String> included, StringBuilder sb)
+    {
+        if (!included.add(resourceName))
+        {
+            return;
+        }
+        String source = get(resourceName);
+        String lines[] = source.split("\n", -1);
+        for (int i=0; i<lines.length; i++)
+        {
+            Matcher matcher = INCLUDE_PATTERN.matcher(lines[i]);
+            if (matcher.matches())
+            {
+                resolve(resolveName(resourceName, matcher.group(1)), included, sb);
+            }
+            else
+            {
+                sb.append(lines[i]);
+                if (i < lines.length - 1)
+                {
+                    sb.append("\n");
+                }
+            }
+        }
+    }
+
+    /**
+     * Resolve the name of an included resource against the name of the
+     * including resource
+     *
+     * @param resourceName The name of the including resource
+     * @param includeName The name in the include directive
+     * @return The name of the included resource
+     */
+    private static String resolveName(String resourceName, String includeName)
+    {
+        if (includeName.startsWith("/"))
+        {
+            return includeName;
+        }
+        int index = resourceName.lastIndexOf('/');
+        return resourceName.substring(0, index + 1) + includeName;
+    }
+
+    /**
+     * Read the class path resource with the given name
+     *
+     * @param resourceName The resource name
+     * @return The contents of the resource
+     */
+    private static String read(String resourceName)
+    {
+        InputStream inputStream =
+                KernelSources.class.getResourceAsStream(resourceName);
+        if (inputStream == null)
+        {
+            throw new IllegalArgumentException(
+                    "Kernel source not found: " + resourceName);
+        }
+        BufferedReader br = null;
+        try
+        {
+            br = new BufferedReader(new InputStreamReader(inputStream, "UTF-8"));
+            StringBuilder sb = new StringBuilder();
+            String line = null;
+            while (true)
+            {
+                line = br.readLine();
+                if (line == null)
+                {
+                    break;
+                }
+                sb.append(line).append("\n");
+            }
+            return sb.toString();
+        }
+        catch (IOException e)
+        {
+            throw new IllegalStateException(
+                    "Could not read kernel source " + resourceName, e);
+        }
+        finally
+        {
+            if (br != null)
+            {
+                try
+                {
+                    br.close();
+                }
+                catch (IOException e)
+                {
+                    // Ignored
+                }
+            }
+        }
+    }
+
+    /**
+     * Private constructor to prevent instantiation
+     */
+    private KernelSources()
+    {
+        // Private constructor to prevent instantiation
+    }
+}
@@ -0,0 +1,85 @@
+package com.mdaley.jocl;
+
+import org.jocl.*;
+
+/**
+ * The size of a <code>__local</code> memory block that is passed as a
+ * kernel argument. Instances are used by the generated kernel facades,
+ * so that a local memory argument can not be confused with a memory
+ * object or a scalar value. They are immutable, and may be created once
+ * and reused for all launches.
+ */
+public final class LocalBuffer
+{
+    /**
+     * The size, in bytes
+     */
+    private final long size;
+
+    /**
+     * Creates a new local buffer with the given size
+     *
+     * @param size The size, in bytes
+     */
+    private LocalBuffer(long size)
+    {
+        this.size = size;
+    }
+
+    /**
+     * Returns a local buffer with the given size
+     *
+     * @param size The size, in bytes
+     * @return The local buffer
+     * @throws IllegalArgumentException If the size is not positive
+     */
+    public static LocalBuffer bytes(long size)
+    {
+        if (size <= 0)
+        {
+            throw new IllegalArgumentException(
+                    "The size must be positive, but is " + size);
+        }
+        return new LocalBuffer(size);
+    }
+
+    /**
+     * Returns a local buffer for the given number of float values
+     *
+     * @param count The number of values
+     * @return The local buffer
+     * @throws IllegalArgumentException If the count is not positive
+     */
+    public static LocalBuffer floats(long count)
+    {
+        return bytes(count * Sizeof.cl_float);
+    }
+
+    /**
+     * Returns a local buffer for the given number of int values
+     *
+     * @param count The number of values
+     * @return The local buffer
+     * @throws IllegalArgumentException If the count is not positive
+     */
+    public static LocalBuffer ints(long count)
+    {
+        return bytes(count * Sizeof.cl_int);
+    }
+
+    /**
+     * Returns the size of this buffer
+     *
+     * @return The size, in bytes
+     */
+    public long getSize()
+    {
+        return size;
+    }
+
+    @Override
+    public String toString()
+    {
+        return "LocalBuffer[" + size + " bytes]";
+    }
+}
@@ -0,0 +1,548 @@
+package com.mdaley.jocl;
+
+import static org.jocl.CL.*;
+
+import java.nio.*;
+import java.util.*;
+
+import org.jocl.*;
+
+/**
+ * An executor that splits one NDRange across multiple devices, instead of
+ * running the whole NDRange on each of them. <br />
+ * <br />
+ * The last dimension of a 1D or 2D NDRange (i.e. the rows of a 2D range)
+ * is divided into contiguous shares, one for each device, and each share
+ * is launched on the queue of its device with a global work offset, so
+ * that <code>get_global_id</code> returns the same values as for a launch
+ * of the whole range. The shares are multiples of the local work size in
+ * that dimension. <br />
+ * <br />
+ * The size of each share is proportional to the throughput of the device.
+ * Initially, this is the measured float GFLOPS of the {@link DeviceProfile}
+ * of the device, or the {@link DeviceCapabilities#getEstimatedGflops()
+ * estimated GFLOPS} if no profile has been stored. When the queues have
+ * CL_QUEUE_PROFILING_ENABLE, the weights are refined after each execution
+ * with the measured kernel durations, so that the devices of repeated
+ * executions finish at about the same time. <br />
+ * <br />
+ * All queues must belong to the same context, and the program must have
+ * been built for all of their devices. The executor creates one kernel for
+ * each device, so that the arguments of the shares may be set and enqueued
+ * independently. The partial outputs are gathered with
+ * {@link Share#read(cl_mem, long, ByteBuffer)}. Note that the devices
+ * should write into different memory objects, because the contents of a
+ * memory object that is written by multiple devices at the same time are
+ * undefined.
+ */
+public final class MultiDeviceExecutor
+{
+    /**
+     * The part of an NDRange that is executed on one device
+     */
+    public static final class Share
+    {
+        /**
+         * The index of the device in the executor
+         */
+        private final int deviceIndex;
+
+        /**
+         * The command queue of the device
+         */
+        private final cl_command_queue queue;
+
+        /**
+         * The arguments of the kernel for the device
+         */
+        private final KernelArgs args;
+
+        /**
+         * The global work offset of this share
+         */
+        private final long globalWorkOffset[];
+
+        /**
+         * The global work size of this share
+         */
+        private final long globalWorkSize[];
+
+        /**
+         * The number of work items per index of the split dimension
+         */
+        private final long itemsPerIndex;
+
+        /**
+         * The event of the kernel of this share
+         */
+        private cl_event event;
+
+        /**
+         * Creates a new share
+         *
+         * @param deviceIndex The device index
+         * @param queue The command queue
+         * @param args The kernel arguments
+         * @param globalWorkOffset The global work offset
+         * @param globalWorkSize The global work size
+         * @param itemsPerIndex The number of work items per index of the
+         * split dimension
+         */
+        Share(int deviceIndex, cl_command_queue queue, KernelArgs args,
+                long globalWorkOffset[], long globalWorkSize[],
+                long itemsPerIndex)
+        {
+            this.deviceIndex = deviceIndex;
+            this.queue = queue;
+            this.args = args;
+            this.globalWorkOffset = globalWorkOffset;
+            this.globalWorkSize = globalWorkSize;
+            this.itemsPerIndex = itemsPerIndex;
+        }
+
+        /**
+         * Returns the index of the device of this share in the executor
+         *
+         * @return The device index
+         */
+        public int getDeviceIndex()
+        {
+            return deviceIndex;
+        }
+
+        /**
+         * Returns the command queue of the device of this share
+         *
+         * @return The command queue
+         */
+        public cl_command_queue getQueue()
+        {
+            return queue;
+        }
+
+        /**
+         * Returns the arguments of the kernel for the device of this share
+         *
+         * @return The kernel arguments
+         */
+        public KernelArgs getArgs()
+        {
+            return args;
+        }
+
+        /**
+         * Returns the global work offset of this share
+         *
+         * @return The global work offset
+         */
+        public long[] getGlobalWorkOffset()
+        {
+            return globalWorkOffset.clone();
+        }
+
+        /**
+         * Returns the global work size of this share
+         *
+         * @return The global work size
+         */
+        public long[] getGlobalWorkSize()
+        {
+            return globalWorkSize.clone();
+        }
+
+        /**
+         * Returns the first index of this share in the split dimension
+         *
+         * @return The first index
+         */
+        public long getFirst()
+        {
+            return globalWorkOffset[globalWorkOffset.length - 1];
+        }
+
+        /**
+         * Returns the number of indices of this share in the split
+         * dimension
+         *
+         * @return The number of indices
+         */
+        public long getCount()
+        {
+            return globalWorkSize[globalWorkSize.length - 1];
+        }
+
+        /**
+         * Returns the number of work items of this share
+         *
+         * @return The number of work items
+         */
+        public long getWorkItems()
+        {
+            return getCount() * itemsPerIndex;
+        }
+
+        /**
+         * Enqueue a non-blocking read of the part of the given output
+         * memory object that belongs to this share, into the same part of
+         * the given buffer. The output is assumed to contain one element
+         * of the given size for each work item, stored in row-major order.
+         * The buffer must be a direct buffer whose position is 0, and may
+         * not be accessed until the execution has finished.
+         *
+         * @param src The output memory object
+         * @param elementSize The size of one element, in bytes
+         * @param dst The buffer for the whole output
+         */
+        public void read(cl_mem src, long elementSize, ByteBuffer dst)
+        {
+            long rowSize = itemsPerIndex * elementSize;
+            long offset = getFirst() * rowSize;
+            long size = getCount() * rowSize;
+            clEnqueueReadBuffer(queue, src, CL_FALSE, offset, size,
+                    Pointer.to(dst).withByteOffset(offset), 0, null, null);
+        }
+
+        @Override
+        public String toString()
+        {
+            return "Share[device=" + deviceIndex + ", first=" + getFirst() +
+                    ", count=" + getCount() + "]";
+        }
+    }
+
+    /**
+     * The per-share part of an execution
+     */
+    public interface Stage
+    {
+        /**
+         * Set the arguments of the kernel for the given share. The kernel
+         * is enqueued when this method returns.
+         *
+         * @param share The share
+         */
+        void bind(Share share);
+
+        /**
+         * Enqueue the commands that gather the output of the given share,
+         * after its kernel has been enqueued. The commands may only be
+         * enqueued on the queue of the share, and must not block.
+         *
+         * @param share The share
+         */
+        void gather(Share share);
+    }
+
+    /**
+     * The weight of a new measurement when the weights are refined
+     */
+    private static final double SMOOTHING = 0.5;
+
+    /**
+     * The command queues, one for each device
+     */
+    private final cl_command_queue queues[];
+
+    /**
+     * The arguments of the kernels, one for each device
+     */
+    private final KernelArgs args[];
+
+    /**
+     * Whether the queues have profiling enabled
+     */
+    private final boolean profiling[];
+
+    /**
+     * The relative throughput of the devices, summing up to 1.0
+     */
+    private final double weights[];
+
+    /**
+     * The shares of the most recent execution
+     */
+    private Share shares[];
+
+    /**
+     * The number of executions
+     */
+    private long executions;
+
+    /**
+     * Creates a new executor for the kernel with the given name from the
+     * given program, using the given queues
+     *
+     * @param queues The command queues, one for each device
+     * @param program The program, built for all devices of the queues
+     * @param kernelName The name of the kernel
+     * @throws IllegalArgumentException If no queues are given
+     */
+    public MultiDeviceExecutor(cl_command_queue queues[],
+            cl_program program, String kernelName)
+    {
+        if (queues.length == 0)
+        {
+            throw new IllegalArgumentException("No command queues given");
+        }
+        int n = queues.length;
+        this.queues = queues.clone();
+        this.args = new KernelArgs[n];
+        this.profiling = new boolean[n];
+        this.weights = new double[n];
+        this.shares = new Share[0];
+        double sum = 0;
+        for (int i = 0; i < n; i++)
+        {
+            args[i] = new KernelArgs(clCreateKernel(program, kernelName, null));
+            long properties[] = new long[1];
+            clGetCommandQueueInfo(queues[i], CL_QUEUE_PROPERTIES,
+                    Sizeof.cl_long, Pointer.to(properties), null);
+            profiling[i] = (properties[0] & CL_QUEUE_PROFILING_ENABLE) != 0;
+            weights[i] = estimateThroughput(ClRuntime.getDevice(queues[i]));
+            sum += weights[i];
+        }
+        for (int i = 0; i < n; i++)
+        {
+            weights[i] /= sum;
+        }
+    }
+
+    /**
+     * Returns an estimate of the throughput of the given device, in GFLOPS
+     *
+     * @param device The device
+     * @return The estimated throughput
+     */
+    private static double estimateThroughput(cl_device_id device)
+    {
+        DeviceProfile profile = DeviceProfile.load(device);
+        if (profile != null && profile.getFloatGflops() > 0)
+        {
+            return profile.getFloatGflops();
+        }
+        double gflops = DeviceCapabilities.of(device).getEstimatedGflops();
+        return gflops > 0 ? gflops : 1.0;
+    }
+
+    /**
+     * Execute the kernel for the given NDRange, split across the devices,
+     * and wait until all shares have been executed and gathered
+     *
+     * @param globalWorkSize The global work size, with 1 or 2 dimensions
+     * @param localWorkSize The local work size, may be null
+     * @param stage The stage that binds the arguments and gathers the
+     * outputs of the shares
+     * @throws IllegalArgumentException If the global work size does not
+     * have 1 or 2 dimensions, or is not a multiple of the local work size
+     */
+    public void execute(long globalWorkSize[], long localWorkSize[],
+            Stage stage)
+    {
+        int dims = globalWorkSize.length;
+        if (dims < 1 || dims > 2)
+        {
+            throw new IllegalArgumentException(
+                    "Only 1D and 2D ranges can be split, but got " + dims);
+        }
+        int d = dims - 1;
+        long granularity = localWorkSize == null ? 1 : localWorkSize[d];
+        if (globalWorkSize[d] % granularity != 0)
+        {
+            throw new IllegalArgumentException("The global work size " +
+                    globalWorkSize[d] + " is not a multiple of the local " +
+                    "work size " + granularity);
+        }
+        long itemsPerIndex = dims == 1 ? 1 : globalWorkSize[0];
+        long counts[] = split(globalWorkSize[d] / granularity);
+
+        List<Share> active = new ArrayList<Share>();
+        long first = 0;
+        try
+        {
+            for (int i = 0; i < queues.length; i++)
+            {
+                long count = counts[i] * granularity;
+                if (count == 0)
+                {
+                    continue;
+                }
+                long offset[] = new long[dims];
+                offset[d] = first;
+                long size[] = globalWorkSize.clone();
+                size[d] = count;
+                first += count;
+
+                Share share = new Share(
+                        i, queues[i], args[i], offset, size, itemsPerIndex);
+                stage.bind(share);
+                share.event = new cl_event();
+                clEnqueueNDRangeKernel(queues[i], args[i].getKernel(), dims,
+                        offset, size, localWorkSize, 0, null, share.event);
+                active.add(share);
+                stage.gather(share);
+                clFlush(queues[i]);
+            }
+            for (Share share : active)
+            {
+                clFinish(share.queue);
+            }
+            refineWeights(active);
+        }
+        finally
+        {
+            for (Share share : active)
+            {
+                clReleaseEvent(share.event);
+                share.event = null;
+            }
+        }
+        shares = active.toArray(new Share[active.size()]);
+        executions++;
+    }
+
+    /**
+     * Split the given number of units into counts that are proportional
+     * to the weights, distributing the remainder by the largest fractional
+     * parts
+     *
+     * @param units The number of units
+     * @return The counts, one for each device
+     */
+    private long[] split(long units)
+    {
+        int n = weights.length;
+        long counts[] = new long[n];
+        double fractions[] = new double[n];
+        long assigned = 0;
+        for (int i = 0; i < n; i++)
+        {
+            double exact = units * weights[i];
+            counts[i] = (long)Math.floor(exact);
+            fractions[i] = exact - counts[i];
+            assigned += counts[i];
+        }
+        for (long r = assigned; r < units; r++)
+        {
+            int best = 0;
+            for (int i = 1; i < n; i++)
+            {
+                if (fractions[i] > fractions[best])
+                {
+                    best = i;
+                }
+            }
+            counts[best]++;
+            fractions[best] = -1.0;
+        }
+        return counts;
+    }
+
+    /**
+     * Refine the weights of the devices of the given shares with the
+     * throughput that was measured for their kernels. The weights of
+     * devices without a measurement remain unchanged.
+     *
+     * @param active The shares of the execution
+     */
+    private void refineWeights(List<Share> active)
+    {
+        double rates[] = new double[weights.length];
+        double rateSum = 0;
+        double weightSum = 0;
+        for (Share share : active)
+        {
+            int i = share.deviceIndex;
+            if (!profiling[i])
+            {
+                continue;
+            }
+            long start[] = new long[1];
+            long end[] = new long[1];
+            clGetEventProfilingInfo(share.event, CL_PROFILING_COMMAND_START,
+                    Sizeof.cl_ulong, Pointer.to(start), null);
+            clGetEventProfilingInfo(share.event, CL_PROFILING_COMMAND_END,
+                    Sizeof.cl_ulong, Pointer.to(end), null);
+            long durationNs = Math.max(1, end[0] - start[0]);
+            rates[i] = (double)share.getWorkItems() / durationNs;
+            rateSum += rates[i];
+            weightSum += weights[i];
+        }
+        if (rateSum <= 0)
+        {
+            return;
+        }
+
+        // The measured devices keep their total weight, which is
+        // redistributed according to their measured throughput
+        for (int i = 0; i < weights.length; i++)
+        {
+            if (rates[i] > 0)
+            {
+                double measured = weightSum * rates[i] / rateSum;
+                weights[i] = (1 - SMOOTHING) * weights[i] + SMOOTHING * measured;
+            }
+        }
+    }
+
+    /**
+     * Returns the number of devices of this executor
+     *
+     * @return The number of devices
+     */
+    public int getNumDevices()
+    {
+        return queues.length;
+    }
+
+    /**
+     * Returns the relative throughput of the devices that determines the
+     * sizes of their shares. The weights sum up to 1.0.
+     *
+     * @return The weights, one for each device
+     */
+    public double[] getWeights()
+    {
+        return weights.clone();
+    }
+
+    /**
+     * Returns the shares of the most recent execution, excluding devices
+     * that did not receive any work
+     *
+     * @return The shares
+     */
+    public Share[] getShares()
+    {
+        return shares.clone();
+    }
+
+    /**
+     * Returns the number of executions
+     *
+     * @return The number of executions
+     */
+    public long getExecutions()
+    {
+        return executions;
+    }
+
+    /**
+     * Release the kernels of this executor. The queues and the program
+     * are not released.
+     */
+    public void release()
+    {
+        for (KernelArgs kernelArgs : args)
+        {
+            clReleaseKernel(kernelArgs.getKernel());
+        }
+    }
+
+    @Override
+    public String toString()
+    {
+        return "MultiDeviceExecutor[devices=" + queues.length +
+                ", weights=" + Arrays.toString(weights) +
+                ", executions=" + executions + "]";
+    }
+}
@@ -0,0 +1,492 @@
+package com.mdaley.jocl;
+
+import java.util.*;
+import java.util.logging.Logger;
+
+import org.jocl.*;
+
+/**
+ * An advisor that decides, for each call of an operation, whether the
+ * operation should be executed on the device, on the host, or split
+ * across both. <br />
+ * <br />
+ * The decision is based on a simple cost model of an operation that
+ * streams its input once, like a reduction: On the device, a call costs
+ * the kernel launch latency, the transfer of the input to the device, and
+ * one pass over the input in global memory. On the host, it costs one pass
+ * with the measured host throughput of the operation. When the work is
+ * split, the device processes a fraction of the input while the host
+ * processes the rest, and the fraction is chosen so that both finish at
+ * the same time. <br />
+ * <br />
+ * The bandwidths and the launch latency are taken from the stored
+ * {@link DeviceProfile} of the device, which can be measured with the
+ * <code>DeviceBenchmark</code> sample. If no profile has been stored,
+ * conservative defaults are used. The host throughput depends on the host
+ * implementation of the operation, and has to be measured by the caller.
+ * <br />
+ * <br />
+ * Each decision is logged with the level <code>FINE</code> to the
+ * <code>java.util.logging</code> logger of this class. The decision
+ * may be overridden with
+ * {@link #setOverride(Placement)}, or with the system property
+ * <code>jocl.offload.&lt;operation&gt;</code> or <code>jocl.offload</code>,
+ * whose value is <code>device</code>, <code>host</code> or
+ * <code>split</code>.
+ */
+public final class OffloadAdvisor
+{
+    /**
+     * The places where an operation may be executed
+     */
+    public enum Placement
+    {
+        /**
+         * Execute the operation on the device
+         */
+        DEVICE,
+
+        /**
+         * Execute the operation on the host
+         */
+        HOST,
+
+        /**
+         * Split the operation across the device and the host
+         */
+        SPLIT
+    }
+
+    /**
+     * The decision for one call of an operation
+     */
+    public static final class Decision
+    {
+        /**
+         * The placement
+         */
+        private final Placement placement;
+
+        /**
+         * The fraction of the elements that are processed on the device
+         */
+        private final double deviceFraction;
+
+        /**
+         * The estimated time on the device, in seconds
+         */
+        private final double deviceTime;
+
+        /**
+         * The estimated time on the host, in seconds
+         */
+        private final double hostTime;
+
+        /**
+         * The estimated time of the split, in seconds
+         */
+        private final double splitTime;
+
+        /**
+         * Whether the placement was overridden
+         */
+        private final boolean overridden;
+
+        /**
+         * Creates a new decision
+         *
+         * @param placement The placement
+         * @param deviceFraction The fraction of the elements for the device
+         * @param deviceTime The estimated device time
+         * @param hostTime The estimated host time
+         * @param splitTime The estimated split time
+         * @param overridden Whether the placement was overridden
+         */
+        Decision(Placement placement, double deviceFraction,
+                double deviceTime, double hostTime, double splitTime,
+                boolean overridden)
+        {
+            this.placement = placement;
+            this.deviceFraction = deviceFraction;
+            this.deviceTime = deviceTime;
+            this.hostTime = hostTime;
+            this.splitTime = splitTime;
+            this.overridden = overridden;
+        }
+
+        /**
+         * Returns the placement
+         *
+         * @return The placement
+         */
+        public Placement getPlacement()
+        {
+            return placement;
+        }
+
+        /**
+         * Returns the fraction of the elements that should be processed
+         * on the device. This is 1.0 for {@link Placement#DEVICE} and 0.0
+         * for {@link Placement#HOST}.
+         *
+         * @return The fraction
+         */
+        public double getDeviceFraction()
+        {
+            return deviceFraction;
+        }
+
+        /**
+         * Returns the number of the given elements that should be
+         * processed on the device
+         *
+         * @param elements The number of elements
+         * @param granularity The granularity, i.e. the number of device
+         * elements is rounded down to a multiple of this value
+         * @return The number of elements for the device
+         */
+        public long getDeviceElements(long elements, long granularity)
+        {
+            if (deviceFraction >= 1.0)
+            {
+                return elements;
+            }
+            long n = (long)(elements * deviceFraction);
+            return n - n % granularity;
+        }
+
+        /**
+         * Returns the estimated time on the device
+         *
+         * @return The time, in seconds
+         */
+        public double getDeviceTime()
+        {
+            return deviceTime;
+        }
+
+        /**
+         * Returns the estimated time on the host
+         *
+         * @return The time, in seconds
+         */
+        public double getHostTime()
+        {
+            return hostTime;
+        }
+
+        /**
+         * Returns the estimated time when the work is split
+         *
+         * @return The time, in seconds
+         */
+        public double getSplitTime()
+        {
+            return splitTime;
+        }
+
+        /**
+         * Returns whether the placement was overridden instead of being
+         * chosen by the cost model
+         *
+         * @return Whether the placement was overridden
+         */
+        public boolean isOverridden()
+        {
+            return overridden;
+        }
+
+        @Override
+        public String toString()
+        {
+            return String.format(Locale.ENGLISH,
+                    "%s%s (device %.3f ms, host %.3f ms, split %.3f ms " +
+                    "with %.1f%% on the device)",
+                    placement, overridden ? " (overridden)" : "",
+                    deviceTime * 1e3, hostTime * 1e3, splitTime * 1e3,
+                    deviceFraction * 100);
+        }
+    }
+
+    /**
+     * The logger for the decisions
+     */
+    private static final Logger logger =
+            Logger.getLogger(OffloadAdvisor.class.getName());
+
+    /**
+     * The name of the system property for overriding the placement
+     */
+    public static final String OFFLOAD_PROPERTY = "jocl.offload";
+
+    /**
+     * The host-to-device bandwidth that is assumed without a profile,
+     * in GB/s
+     */
+    private static final double DEFAULT_TRANSFER_BANDWIDTH = 4.0;
+
+    /**
+     * The global memory bandwidth that is assumed without a profile,
+     * in GB/s
+     */
+    private static final double DEFAULT_MEMORY_BANDWIDTH = 20.0;
+
+    /**
+     * The launch latency that is assumed without a profile, in
+     * microseconds
+     */
+    private static final double DEFAULT_LAUNCH_LATENCY = 50.0;
+
+    /**
+     * The factor by which a split must be faster than the best single
+     * placement, to compensate for the additional synchronization
+     */
+    private static final double SPLIT_BENEFIT = 0.9;
+
+    /**
+     * The name of the device
+     */
+    private final String deviceName;
+
+    /**
+     * The host-to-device bandwidth, in bytes per second
+     */
+    private final double transferBandwidth;
+
+    /**
+     * The global memory bandwidth, in bytes per second
+     */
+    private final double memoryBandwidth;
+
+    /**
+     * The launch latency, in seconds
+     */
+    private final double launchLatency;
+
+    /**
+     * Whether the parameters were taken from a device profile
+     */
+    private final boolean profiled;
+
+    /**
+     * The host throughput, in elements per second
+     */
+    private volatile double hostThroughput;
+
+    /**
+     * The placement that overrides the cost model, or null
+     */
+    private volatile Placement override;
+
+    /**
+     * Creates a new advisor for the given device
+     *
+     * @param device The device
+     * @param hostThroughput The throughput of the host implementation
+     * of the operation, in elements per second
+     * @throws IllegalArgumentException If the host throughput is not
+     * positive
+     */
+    public OffloadAdvisor(cl_device_id device, double hostThroughput)
+    {
+        this(DeviceCapabilities.of(device).getName(),
+                DeviceProfile.load(device), hostThroughput);
+    }
+
+    /**
+     * Creates a new advisor for the device with the given name and
+     * profile
+     *
+     * @param deviceName The name of the device
+     * @param profile The profile of the device, or null to use the
+     * defaults
+     * @param hostThroughput The throughput of the host implementation
+     * of the operation, in elements per second
+     * @throws IllegalArgumentException If the host throughput is not
+     * positive
+     */
+    OffloadAdvisor(String deviceName, DeviceProfile profile,
+            double hostThroughput)
+    {
+        setHostThroughput(hostThroughput);
+        this.deviceName = deviceName;
+        this.profiled = profile != null;
+
+        double transfer = DEFAULT_TRANSFER_BANDWIDTH;
+        double memory = DEFAULT_MEMORY_BANDWIDTH;
+        double latency = DEFAULT_LAUNCH_LATENCY;
+        if (profile != null)
+        {
+            double direct = profile.getHostToDeviceBandwidth(
+                    DeviceProfile.TRANSFER_DIRECT_BUFFER);
+            transfer = direct > 0 ? direct :
+                positiveOr(profile.getBestHostToDeviceBandwidth(), transfer);
+            memory = positiveOr(profile.getGlobalMemoryBandwidth(), memory);
+            latency = positiveOr(profile.getLaunchLatency(), latency);
+        }
+        this.transferBandwidth = transfer * 1e9;
+        this.memoryBandwidth = memory * 1e9;
+        this.launchLatency = latency * 1e-6;
+    }
+
+    /**
+     * Returns the given value if it is positive, and the default value
+     * otherwise
+     *
+     * @param value The value
+     * @param defaultValue The default value
+     * @return The result
+     */
+    private static double positiveOr(double value, double defaultValue)
+    {
+        return value > 0 ? value : defaultValue;
+    }
+
+    /**
+     * Decide where the given operation should be executed for the given
+     * number of elements, and log the decision
+     *
+     * @param operation The name of the operation
+     * @param elements The number of elements
+     * @param elementSize The size of one element, in bytes
+     * @return The decision
+     */
+    public Decision decide(String operation, long elements, long elementSize)
+    {
+        long bytes = elements * elementSize;
+        double perByteDevice = 1.0 / transferBandwidth + 1.0 / memoryBandwidth;
+        double perElementHost = 1.0 / hostThroughput;
+
+        double deviceTime = launchLatency + bytes * perByteDevice;
+        double hostTime = elements * perElementHost;
+
+        // The device fraction f for which both sides finish at the same
+        // time: latency + f * bytes * perByteDevice =
+        //     (1 - f) * elements * perElementHost
+        double a = bytes * perByteDevice;
+        double b = elements * perElementHost;
+        double fraction = (a + b) > 0 ? (b - launchLatency) / (a + b) : 0.0;
+        fraction = Math.max(0.0, Math.min(1.0, fraction));
+        double splitTime = Math.max(
+                launchLatency + fraction * a, (1 - fraction) * b);
+
+        Placement placement = getOverride(operation);
+        boolean overridden = placement != null;
+        if (placement == null)
+        {
+            placement = deviceTime < hostTime ? Placement.DEVICE : Placement.HOST;
+            if (fraction > 0 && fraction < 1 &&
+                    splitTime < SPLIT_BENEFIT * Math.min(deviceTime, hostTime))
+            {
+                placement = Placement.SPLIT;
+            }
+        }
+        if (placement == Placement.DEVICE)
+        {
+            fraction = 1.0;
+        }
+        else if (placement == Placement.HOST)
+        {
+            fraction = 0.0;
+        }
+        Decision decision = new Decision(placement, fraction,
+                deviceTime, hostTime, splitTime, overridden);
+        logger.fine("Offload decision for " + operation + " of " +
+                elements + " elements on " + deviceName + ": " + decision);
+        return decision;
+    }
+
+    /**
+     * Returns the placement that overrides the cost model for the given
+     * operation, from {@link #setOverride(Placement)} or the system
+     * properties
+     *
+     * @param operation The operation
+     * @return The placement, or null if it is not overridden
+     * @throws IllegalArgumentException If the system property has an
+     * invalid value
+     */
+    private Placement getOverride(String operation)
+    {
+        if (override != null)
+        {
+            return override;
+        }
+        String value = System.getProperty(OFFLOAD_PROPERTY + "." + operation,
+                System.getProperty(OFFLOAD_PROPERTY));
+        if (value == null || value.trim().isEmpty())
+        {
+            return null;
+        }
+        try
+        {
+            return Placement.valueOf(value.trim().toUpperCase(Locale.ENGLISH));
+        }
+        catch (IllegalArgumentException e)
+        {
+            throw new IllegalArgumentException("Invalid value for " +
+                    OFFLOAD_PROPERTY + ": " + value + ", expected one of " +
+                    Arrays.toString(Placement.values()), e);
+        }
+    }
+
+    /**
+     * Set the placement that overrides the cost model for all operations
+     *
+     * @param override The placement, or null to use the cost model
+     */
+    public void setOverride(Placement override)
+    {
+        this.override = override;
+    }
+
+    /**
+     * Set the measured throughput of the host implementation of the
+     * operation
+     *
+     * @param hostThroughput The throughput, in elements per second
+     * @throws IllegalArgumentException If the throughput is not positive
+     */
+    public void setHostThroughput(double hostThroughput)
+    {
+        if (!(hostThroughput > 0))
+        {
+            throw new IllegalArgumentException(
+                    "The host throughput must be positive, but is " +
+                    hostThroughput);
+        }
+        this.hostThroughput = hostThroughput;
+    }
+
+    /**
+     * Returns the throughput of the host implementation of the operation
+     *
+     * @return The throughput, in elements per second
+     */
+    public double getHostThroughput()
+    {
+        return hostThroughput;
+    }
+
+    /**
+     * Returns whether the device parameters were taken from a stored
+     * {@link DeviceProfile}, and not from defaults
+     *
+     * @return Whether the device was profiled
+     */
+    public boolean isProfiled()
+    {
+        return profiled;
+    }
+
+    @Override
+    public String toString()
+    {
+        return String.format(Locale.ENGLISH,
+                "OffloadAdvisor[%s, transfer %.2f GB/s, memory %.2f GB/s, " +
+                "latency %.1f us, host %.1f M elements/s%s]",
+                deviceName, transferBandwidth / 1e9, memoryBandwidth / 1e9,
+                launchLatency * 1e6, hostThroughput / 1e6,
+                profiled ? "" : ", defaults");
+    }
+}
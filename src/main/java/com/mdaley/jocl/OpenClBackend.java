@@ -0,0 +1,488 @@
+package com.mdaley.jocl;
+
+import static org.jocl.CL.*;
+
+import java.util.*;
+
+import org.jocl.*;
+
+/**
+ * A {@link ComputeBackend} that executes the kernels of the samples on an
+ * OpenCL device. <br />
+ * <br />
+ * The context and command queue of the device are obtained from the
+ * {@link ClRuntime}, the kernels from its {@link ProgramCache}, and the
+ * buffers from its {@link BufferPool}, so that they are shared with the
+ * samples that use the same device. The kernels that the samples define
+ * inline are contained in <code>ComputeBackend.cl</code>. <br />
+ * <br />
+ * The kernel arguments are set on kernels that are owned by this backend,
+ * so the methods of this class are synchronized.
+ */
+public final class OpenClBackend implements ComputeBackend
+{
+    /**
+     * The source of the kernels that the samples define inline
+     */
+    private static final String BACKEND_SOURCE = "/ComputeBackend.cl";
+
+    /**
+     * The number of work groups of the reduction
+     */
+    private static final int REDUCE_WORK_GROUPS = 64;
+
+    /**
+     * The largest local work size of the reduction
+     */
+    private static final int REDUCE_LOCAL_WORK_SIZE = 128;
+
+    /**
+     * The work group size of the histogram256 kernel, which is the
+     * default WARP_COUNT * WARP_SIZE of <code>Histogram256.cl</code>
+     */
+    private static final int HISTOGRAM_WORK_GROUP_SIZE = 6 * 32;
+
+    /**
+     * The number of partial histograms
+     */
+    private static final int PARTIAL_HISTOGRAM_COUNT = 240;
+
+    /**
+     * The work group size of the mergeHistogram256 kernel
+     */
+    private static final int MERGE_WORK_GROUP_SIZE = 256;
+
+    /**
+     * The number of bins of the histogram
+     */
+    private static final int HISTOGRAM_BIN_COUNT = 256;
+
+    /**
+     * The device
+     */
+    private final cl_device_id device;
+
+    /**
+     * The context
+     */
+    private final cl_context context;
+
+    /**
+     * The command queue
+     */
+    private final cl_command_queue commandQueue;
+
+    /**
+     * The argument binders of the kernels that have been acquired, with
+     * keys of the form <code>resourceName#kernelName</code>
+     */
+    private final Map<String, KernelArgs> kernels =
+            new LinkedHashMap<String, KernelArgs>();
+
+    /**
+     * Creates a new backend for the given device
+     *
+     * @param device The device
+     */
+    public OpenClBackend(cl_device_id device)
+    {
+        ClRuntime runtime = ClRuntime.getInstance();
+        this.device = device;
+        this.context = runtime.getContext(device);
+        this.commandQueue = runtime.getCommandQueue(device);
+    }
+
+    /**
+     * Returns the argument binder for the kernel with the given name from
+     * the given resource, acquiring the kernel from the program cache if
+     * necessary
+     *
+     * @param resourceName The resource name of the program source
+     * @param options The build options, may be <code>null</code>
+     * @param kernelName The kernel name
+     * @return The argument binder
+     */
+    private KernelArgs kernel(
+            String resourceName, String options, String kernelName)
+    {
+        String key = resourceName + "#" + kernelName;
+        KernelArgs args = kernels.get(key);
+        if (args == null)
+        {
+            String source = KernelSources.getResolved(resourceName);
+            cl_kernel kernel = ClRuntime.getInstance().getProgramCache()
+                    .acquireKernel(context, new cl_device_id[]{ device },
+                            new String[]{ source }, options, kernelName);
+            args = new KernelArgs(kernel);
+            kernels.put(key, args);
+        }
+        return args;
+    }
+
+    /**
+     * Acquire a buffer with the given size from the buffer pool
+     *
+     * @param flags The memory flags
+     * @param size The size, in bytes
+     * @return The buffer
+     */
+    private cl_mem acquire(long flags, long size)
+    {
+        return ClRuntime.getInstance().getBufferPool().acquireBuffer(
+                context, flags, Math.max(1, size));
+    }
+
+    /**
+     * Acquire a read-only buffer with the given size from the buffer
+     * pool, and write the given data into it
+     *
+     * @param data The data
+     * @param size The size, in bytes
+     * @return The buffer
+     */
+    private cl_mem upload(Pointer data, long size)
+    {
+        cl_mem mem = acquire(CL_MEM_READ_ONLY, size);
+        if (size > 0)
+        {
+            clEnqueueWriteBuffer(commandQueue, mem, CL_TRUE,
+                    0, size, data, 0, null, null);
+        }
+        return mem;
+    }
+
+    /**
+     * Read the given number of bytes from the given buffer
+     *
+     * @param mem The buffer
+     * @param data The target
+     * @param size The size, in bytes
+     */
+    private void download(cl_mem mem, Pointer data, long size)
+    {
+        if (size > 0)
+        {
+            clEnqueueReadBuffer(commandQueue, mem, CL_TRUE,
+                    0, size, data, 0, null, null);
+        }
+    }
+
+    /**
+     * Return the given buffers to the buffer pool
+     *
+     * @param mems The buffers
+     */
+    private static void release(cl_mem ... mems)
+    {
+        BufferPool bufferPool = ClRuntime.getInstance().getBufferPool();
+        for (cl_mem mem : mems)
+        {
+            bufferPool.releaseBuffer(mem);
+        }
+    }
+
+    /**
+     * Enqueue the kernel of the given binder with the given global work
+     * size, and the given local work size
+     *
+     * @param args The argument binder
+     * @param globalWorkSize The global work size
+     * @param localWorkSize The local work size, may be <code>null</code>
+     */
+    private void launch(KernelArgs args,
+            long globalWorkSize[], long localWorkSize[])
+    {
+        clEnqueueNDRangeKernel(commandQueue, args.getKernel(),
+                globalWorkSize.length, null, globalWorkSize, localWorkSize,
+                0, null, null);
+    }
+
+    @Override
+    public String getName()
+    {
+        return "OpenCL (" + DeviceCapabilities.of(device).getName() + ")";
+    }
+
+    @Override
+    public synchronized void multiply(float a[], float b[], float c[], int n)
+    {
+        elementWise("multiply", a, b, c, n);
+    }
+
+    @Override
+    public synchronized void add(float a[], float b[], float c[], int n)
+    {
+        elementWise("add", a, b, c, n);
+    }
+
+    /**
+     * Execute the given element-wise kernel of the backend source
+     *
+     * @param kernelName The kernel name
+     * @param a The first input
+     * @param b The second input
+     * @param c The output
+     * @param n The number of elements
+     */
+    private void elementWise(
+            String kernelName, float a[], float b[], float c[], int n)
+    {
+        if (n <= 0)
+        {
+            return;
+        }
+        long size = (long) n * Sizeof.cl_float;
+        cl_mem memA = upload(Pointer.to(a), size);
+        cl_mem memB = upload(Pointer.to(b), size);
+        cl_mem memC = acquire(CL_MEM_WRITE_ONLY, size);
+        KernelArgs args = kernel(BACKEND_SOURCE, null, kernelName);
+        args.setMem(0, memA).setMem(1, memB).setMem(2, memC);
+        launch(args, new long[]{ n }, null);
+        download(memC, Pointer.to(c), size);
+        release(memA, memB, memC);
+    }
+
+    @Override
+    public synchronized float reduce(float input[], int n)
+    {
+        if (n <= 0)
+        {
+            return 0;
+        }
+        KernelArgs args = kernel("/reduction.cl", null, "reduce");
+
+        // The kernel halves the local work size, which must be a
+        // power of two that the kernel supports
+        long maxLocalWorkSize[] = new long[1];
+        clGetKernelWorkGroupInfo(args.getKernel(), device,
+                CL_KERNEL_WORK_GROUP_SIZE, Sizeof.size_t,
+                Pointer.to(maxLocalWorkSize), null);
+        int localWorkSize = Math.max(1, Integer.highestOneBit((int)
+                Math.min(REDUCE_LOCAL_WORK_SIZE, maxLocalWorkSize[0])));
+
+        cl_mem inputMem = upload(Pointer.to(input), (long) n * Sizeof.cl_float);
+        cl_mem outputMem = acquire(
+                CL_MEM_READ_WRITE, REDUCE_WORK_GROUPS * Sizeof.cl_float);
+        args.setMem(0, inputMem);
+        args.setLocal(1, localWorkSize * Sizeof.cl_float);
+        args.setInt(2, n);
+        args.setMem(3, outputMem);
+        launch(args, new long[]{ REDUCE_WORK_GROUPS * localWorkSize },
+                new long[]{ localWorkSize });
+        float partialSums[] = new float[REDUCE_WORK_GROUPS];
+        download(outputMem, Pointer.to(partialSums),
+                REDUCE_WORK_GROUPS * Sizeof.cl_float);
+        release(inputMem, outputMem);
+
+        double sum = 0;
+        for (float partialSum : partialSums)
+        {
+            sum += partialSum;
+        }
+        return (float) sum;
+    }
+
+    @Override
+    public synchronized void histogram256(
+            byte data[], int byteCount, int histogram[])
+    {
+        // The kernel reads 4-byte words. The trailing bytes that do
+        // not form a word are counted on the host
+        int wordCount = byteCount / 4;
+        for (int i = 0; i < HISTOGRAM_BIN_COUNT; i++)
+        {
+            histogram[i] = 0;
+        }
+        for (int i = wordCount * 4; i < byteCount; i++)
+        {
+            histogram[data[i] & 0xFF]++;
+        }
+        if (wordCount == 0)
+        {
+            return;
+        }
+
+        cl_mem dataMem = upload(Pointer.to(data), wordCount * 4L);
+        cl_mem partialMem = acquire(CL_MEM_READ_WRITE, (long)
+                PARTIAL_HISTOGRAM_COUNT * HISTOGRAM_BIN_COUNT * Sizeof.cl_uint);
+        cl_mem histogramMem = acquire(
+                CL_MEM_READ_WRITE, HISTOGRAM_BIN_COUNT * Sizeof.cl_uint);
+
+        KernelArgs histogramArgs =
+                kernel("/Histogram256.cl", null, "histogram256");
+        histogramArgs.setMem(0, partialMem);
+        histogramArgs.setMem(1, dataMem);
+        histogramArgs.setInt(2, wordCount);
+        launch(histogramArgs,
+                new long[]{ PARTIAL_HISTOGRAM_COUNT * HISTOGRAM_WORK_GROUP_SIZE },
+                new long[]{ HISTOGRAM_WORK_GROUP_SIZE });
+
+        KernelArgs mergeArgs =
+                kernel("/Histogram256.cl", null, "mergeHistogram256");
+        mergeArgs.setMem(0, histogramMem);
+        mergeArgs.setMem(1, partialMem);
+        mergeArgs.setInt(2, PARTIAL_HISTOGRAM_COUNT);
+        launch(mergeArgs,
+                new long[]{ HISTOGRAM_BIN_COUNT * MERGE_WORK_GROUP_SIZE },
+                new long[]{ MERGE_WORK_GROUP_SIZE });
+
+        int deviceHistogram[] = new int[HISTOGRAM_BIN_COUNT];
+        download(histogramMem, Pointer.to(deviceHistogram),
+                HISTOGRAM_BIN_COUNT * Sizeof.cl_uint);
+        release(dataMem, partialMem, histogramMem);
+        for (int i = 0; i < HISTOGRAM_BIN_COUNT; i++)
+        {
+            histogram[i] += deviceHistogram[i];
+        }
+    }
+
+    @Override
+    public synchronized void convolve(int input[], int output[],
+            int sizeX, int sizeY, float mask[], int maskSizeX, int maskSizeY,
+            int maskOriginX, int maskOriginY)
+    {
+        long imageSize = (long) sizeX * sizeY * Sizeof.cl_uint;
+        cl_mem inputMem = upload(Pointer.to(input), imageSize);
+        cl_mem maskMem = upload(Pointer.to(mask),
+                (long) maskSizeX * maskSizeY * Sizeof.cl_float);
+        cl_mem outputMem = acquire(CL_MEM_WRITE_ONLY, imageSize);
+        KernelArgs args = kernel(
+                "/SimpleConvolution.cl", "-cl-mad-enable", "convolution");
+        args.setMem(0, inputMem);
+        args.setMem(1, maskMem);
+        args.setMem(2, outputMem);
+        args.setInt2(3, sizeX, sizeY);
+        args.setInt2(4, maskSizeX, maskSizeY);
+        args.setInt2(5, maskOriginX, maskOriginY);
+        launch(args, new long[]{ sizeX, sizeY }, null);
+        download(outputMem, Pointer.to(output), imageSize);
+        release(inputMem, maskMem, outputMem);
+    }
+
+    @Override
+    public synchronized void rotate(
+            int input[], int output[], int sizeX, int sizeY, float angle)
+    {
+        long imageSize = (long) sizeX * sizeY * Sizeof.cl_uint;
+        cl_mem inputMem = upload(Pointer.to(input), imageSize);
+        cl_mem outputMem = acquire(CL_MEM_WRITE_ONLY, imageSize);
+        KernelArgs args = kernel(BACKEND_SOURCE, null, "rotateImage");
+        args.setMem(0, inputMem);
+        args.setMem(1, outputMem);
+        args.setInt(2, sizeX);
+        args.setInt(3, sizeY);
+        args.setFloat(4, angle);
+        launch(args, new long[]{ sizeX, sizeY }, null);
+        download(outputMem, Pointer.to(output), imageSize);
+        release(inputMem, outputMem);
+    }
+
+    @Override
+    public synchronized void sineWave(
+            float positions[], int sizeX, int sizeY, float time)
+    {
+        long size = (long) sizeX * sizeY * 4 * Sizeof.cl_float;
+        cl_mem positionsMem = acquire(CL_MEM_WRITE_ONLY, size);
+        KernelArgs args = kernel("/SimpleGL.cl", null, "sine_wave");
+        args.setMem(0, positionsMem);
+        args.setInt(1, sizeX);
+        args.setInt(2, sizeY);
+        args.setFloat(3, time);
+        launch(args, new long[]{ sizeX, sizeY }, null);
+        download(positionsMem, Pointer.to(positions), size);
+        release(positionsMem);
+    }
+
+    @Override
+    public synchronized void mandelbrot(int output[], int sizeX, int sizeY,
+            float x0, float y0, float x1, float y1,
+            int maxIterations, int colorMap[])
+    {
+        long size = (long) sizeX * sizeY * Sizeof.cl_uint;
+        cl_mem outputMem = acquire(CL_MEM_WRITE_ONLY, size);
+        cl_mem colorMapMem = upload(Pointer.to(colorMap),
+                (long) colorMap.length * Sizeof.cl_uint);
+        KernelArgs args =
+                kernel("/SimpleMandelbrot.cl", null, "computeMandelbrot");
+        args.setMem(0, outputMem);
+        args.setInt(1, sizeX);
+        args.setInt(2, sizeY);
+        args.setFloat(3, x0);
+        args.setFloat(4, y0);
+        args.setFloat(5, x1);
+        args.setFloat(6, y1);
+        args.setInt(7, maxIterations);
+        args.setMem(8, colorMapMem);
+        args.setInt(9, colorMap.length);
+        launch(args, new long[]{ sizeX, sizeY }, null);
+        download(outputMem, Pointer.to(output), size);
+        release(outputMem, colorMapMem);
+    }
+
+    @Override
+    public synchronized void mandelbrotQuadFloat(int iterations[],
+            int sizeX, int sizeY, int tileX, int tileY,
+            int tileSizeX, int tileSizeY, double x0, double y0,
+            double dx, double dy, int maxIterations)
+    {
+        long size = (long) tileSizeX * tileSizeY * Sizeof.cl_uint;
+        cl_mem outputMem = acquire(CL_MEM_WRITE_ONLY, size);
+        KernelArgs args =
+                kernel("/QuadFloatMandelbrot.cl", null, "computeMandelbrot");
+        args.setMem(0, outputMem);
+        args.setInt(1, sizeX);
+        args.setInt(2, sizeY);
+        args.setInt(3, tileX);
+        args.setInt(4, tileY);
+        args.setInt(5, tileSizeX);
+        args.setInt(6, tileSizeY);
+        args.setFloat2(7, hi(x0), lo(x0));
+        args.setFloat2(8, hi(y0), lo(y0));
+        args.setFloat2(9, hi(dx), lo(dx));
+        args.setFloat2(10, hi(dy), lo(dy));
+        args.setInt(11, maxIterations);
+        launch(args, new long[]{ tileSizeX, tileSizeY }, null);
+        download(outputMem, Pointer.to(iterations), size);
+        release(outputMem);
+    }
+
+    /**
+     * Returns the high word of the given value as a float
+     *
+     * @param a The value
+     * @return The high word
+     */
+    private static float hi(double a)
+    {
+        return (float) a;
+    }
+
+    /**
+     * Returns the low word of the given value as a float, which is the
+     * remainder of the value after subtracting its high word
+     *
+     * @param a The value
+     * @return The low word
+     */
+    private static float lo(double a)
+    {
+        return (float) (a - hi(a));
+    }
+
+    @Override
+    public synchronized void release()
+    {
+        ProgramCache programCache = ClRuntime.getInstance().getProgramCache();
+        for (KernelArgs args : kernels.values())
+        {
+            programCache.releaseKernel(args.getKernel());
+        }
+        kernels.clear();
+    }
+
+    @Override
+    public String toString()
+    {
+        return "OpenClBackend[" + getName() + "]";
+    }
+}
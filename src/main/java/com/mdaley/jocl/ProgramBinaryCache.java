@@ -0,0 +1,711 @@
+package com.mdaley.jocl;
+
+import static org.jocl.CL.*;
+
+import java.io.*;
+import java.nio.*;
+import java.security.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+import java.util.logging.*;
+
+import org.jocl.*;
+
+/**
+ * A persistent cache for OpenCL program binaries. <br />
+ * <br />
+ * When a program is built with {@link #buildProgram}, the binaries of
+ * the program (CL_PROGRAM_BINARIES) are stored in the cache directory,
+ * under a key that consists of the hash of the program sources, the
+ * platform name, the device name and version, the driver version and
+ * the build options. Subsequent builds with the same key will create
+ * the program with clCreateProgramWithBinary instead of compiling the
+ * sources. <br />
+ * <br />
+ * Entries that can not be read, or that are rejected by the driver,
+ * are considered to be stale: They are deleted, and the program is
+ * rebuilt from the sources and stored again. <br />
+ * <br />
+ * Programs may be built in the background with {@link #buildProgramAsync},
+ * which runs clBuildProgram on a separate build thread, so that the
+ * caller does not block and the builds of several programs may run
+ * concurrently. <br />
+ * <br />
+ * The default cache directory is <code>~/.jocl-samples/programs</code>,
+ * and may be changed with the system property
+ * <code>jocl.programCache.dir</code>. The cache may be disabled by
+ * setting the system property <code>jocl.programCache</code> to
+ * <code>false</code>. <br />
+ * <br />
+ * Stale entries and failures to store binaries are not errors, and are
+ * only reported to the <code>java.util.logging</code> logger of this
+ * class: Stale entries are rebuilt from source, and binaries that could
+ * not be stored are compiled again in the next run. <br />
+ * <br />
+ * This class is thread-safe.
+ */
+public final class ProgramBinaryCache
+{
+    /**
+     * The magic number at the start of each cache file
+     */
+    private static final int MAGIC = 0x4A4F434C;
+
+    /**
+     * The logger for stale entries and failures to store binaries
+     */
+    private static final Logger logger =
+            Logger.getLogger(ProgramBinaryCache.class.getName());
+
+    /**
+     * The executor that runs the builds that are started with
+     * {@link #buildProgramAsync}. The number of threads is not bounded,
+     * so that each build may start immediately.
+     */
+    private static final ExecutorService BUILD_EXECUTOR =
+            Executors.newCachedThreadPool(new ThreadFactory()
+    {
+        /**
+         * The counter for the thread names
+         */
+        private final AtomicInteger counter = new AtomicInteger();
+
+        @Override
+        public Thread newThread(Runnable runnable)
+        {
+            Thread thread = new Thread(runnable,
+                    "jocl-program-build-" + counter.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        }
+    });
+
+    /**
+     * The default instance
+     */
+    private static ProgramBinaryCache defaultInstance;
+
+    /**
+     * Returns the default program binary cache, which is configured
+     * with the system properties that are described in the class
+     * documentation
+     *
+     * @return The default cache
+     */
+    public static synchronized ProgramBinaryCache getDefault()
+    {
+        if (defaultInstance == null)
+        {
+            String directoryName = System.getProperty("jocl.programCache.dir",
+                    System.getProperty("user.home") + File.separator +
+                    ".jocl-samples" + File.separator + "programs");
+            boolean enabled = !"false".equalsIgnoreCase(
+                    System.getProperty("jocl.programCache"));
+            defaultInstance = new ProgramBinaryCache(
+                    new File(directoryName), enabled);
+        }
+        return defaultInstance;
+    }
+
+    /**
+     * The directory that the binaries are stored in
+     */
+    private final File directory;
+
+    /**
+     * Whether the cache is enabled
+     */
+    private final boolean enabled;
+
+    /**
+     * The number of programs that have been created from cached binaries
+     */
+    private final AtomicInteger hits = new AtomicInteger();
+
+    /**
+     * The number of programs that have been built from source
+     */
+    private final AtomicInteger misses = new AtomicInteger();
+
+    /**
+     * The number of cache entries that have been found to be stale
+     */
+    private final AtomicInteger staleEntries = new AtomicInteger();
+
+    /**
+     * Creates a new cache that stores the binaries in the given directory
+     *
+     * @param directory The cache directory
+     * @param enabled Whether the cache is enabled. If this is
+     * <code>false</code>, then all programs are built from source
+     */
+    public ProgramBinaryCache(File directory, boolean enabled)
+    {
+        this.directory = directory;
+        this.enabled = enabled;
+    }
+
+    /**
+     * Create and build a program for the given devices from the given
+     * sources, using the cached binaries if possible. This method blocks
+     * until the program has been built.
+     *
+     * @param context The context
+     * @param devices The devices to build the program for
+     * @param sources The program sources
+     * @param options The build options, may be <code>null</code>
+     * @return The program, which has been built for the given devices
+     * @throws CLException If the program can not be built
+     */
+    public cl_program buildProgram(cl_context context,
+            cl_device_id devices[], String sources[], String options)
+    {
+        String sourceHash = hash(sources);
+        String keys[] = new String[devices.length];
+        File files[] = new File[devices.length];
+        for (int i=0; i<devices.length; i++)
+        {
+            keys[i] = createKey(devices[i], sourceHash, options);
+            files[i] = new File(directory, hash(new String[]{ keys[i] }) + ".bin");
+        }
+
+        if (enabled)
+        {
+            byte binaries[][] = readBinaries(keys, files);
+            if (binaries != null)
+            {
+                cl_program program =
+                        createProgramWithBinaries(context, devices, binaries);
+                if (program != null)
+                {
+                    CLException failure = build(program, devices, options);
+                    if (failure == null)
+                    {
+                        hits.incrementAndGet();
+                        return program;
+                    }
+                    clReleaseProgram(program);
+                }
+                discardStaleEntries(files);
+            }
+        }
+        return buildFromSource(context, devices, sources, options, keys, files);
+    }
+
+    /**
+     * Create a program for the given devices from the given sources,
+     * using the cached binaries if possible, and build it on a build
+     * thread. This method returns immediately: The program is created
+     * and built by {@link #buildProgram} on the build thread, and the
+     * returned future is completed when the build is finished.
+     *
+     * @param context The context
+     * @param devices The devices to build the program for
+     * @param sources The program sources
+     * @param options The build options, may be <code>null</code>
+     * @return The future that will receive the program. If the program
+     * can not be built, the future completes exceptionally with a
+     * CLException that contains the build log.
+     */
+    public CompletableFuture<cl_program> buildProgramAsync(
+            final cl_context context, final cl_device_id devices[],
+            final String sources[], final String options)
+    {
+        final CompletableFuture<cl_program> result =
+                new CompletableFuture<cl_program>();
+        BUILD_EXECUTOR.execute(new Runnable()
+        {
+            @Override
+            public void run()
+            {
+                try
+                {
+                    result.complete(
+                            buildProgram(context, devices, sources, options));
+                }
+                catch (RuntimeException | Error e)
+                {
+                    result.completeExceptionally(e);
+                }
+            }
+        });
+        return result;
+    }
+
+    /**
+     * Create the program from the given sources and build it. When the
+     * build succeeded, the binaries are stored.
+     *
+     * @param context The context
+     * @param devices The devices
+     * @param sources The sources
+     * @param options The build options
+     * @param keys The cache keys, one for each device
+     * @param files The cache files, one for each device
+     * @return The program
+     * @throws CLException If the program can not be built
+     */
+    private cl_program buildFromSource(cl_context context,
+            cl_device_id devices[], String sources[], String options,
+            String keys[], File files[])
+    {
+        misses.incrementAndGet();
+        cl_program program = clCreateProgramWithSource(
+                context, sources.length, sources, null, null);
+        CLException failure = build(program, devices, options);
+        if (failure != null)
+        {
+            clReleaseProgram(program);
+            throw failure;
+        }
+        if (enabled)
+        {
+            try
+            {
+                writeBinaries(program, devices, keys, files);
+            }
+            catch (CLException e)
+            {
+                logger.log(Level.WARNING,
+                        "Could not obtain program binaries", e);
+            }
+        }
+        return program;
+    }
+
+    /**
+     * Delete the given stale cache files
+     *
+     * @param files The files
+     */
+    private void discardStaleEntries(File files[])
+    {
+        logger.fine("Stale program binary cache entry, rebuilding from source");
+        staleEntries.incrementAndGet();
+        for (File file : files)
+        {
+            file.delete();
+        }
+    }
+
+    /**
+     * Returns the number of programs that have been created from
+     * cached binaries
+     *
+     * @return The number of cache hits
+     */
+    public int getHits()
+    {
+        return hits.get();
+    }
+
+    /**
+     * Returns the number of programs that have been built from source
+     *
+     * @return The number of cache misses
+     */
+    public int getMisses()
+    {
+        return misses.get();
+    }
+
+    /**
+     * Returns the number of cache entries that have been found to be
+     * stale and have been rebuilt
+     *
+     * @return The number of stale entries
+     */
+    public int getStaleEntries()
+    {
+        return staleEntries.get();
+    }
+
+    /**
+     * Create a program from the given binaries. Returns <code>null</code>
+     * if the binaries are rejected by the driver.
+     *
+     * @param context The context
+     * @param devices The devices
+     * @param binaries The binaries, one for each device
+     * @return The program, or <code>null</code>
+     */
+    private static cl_program createProgramWithBinaries(cl_context context,
+            cl_device_id devices[], byte binaries[][])
+    {
+        long lengths[] = new long[binaries.length];
+        for (int i=0; i<binaries.length; i++)
+        {
+            lengths[i] = binaries[i].length;
+        }
+        int binaryStatus[] = new int[devices.length];
+        cl_program program = null;
+        try
+        {
+            program = clCreateProgramWithBinary(context, devices.length,
+                    devices, lengths, binaries, binaryStatus, null);
+            for (int status : binaryStatus)
+            {
+                if (status != CL_SUCCESS)
+                {
+                    clReleaseProgram(program);
+                    return null;
+                }
+            }
+            return program;
+        }
+        catch (CLException e)
+        {
+            if (program != null)
+            {
+                clReleaseProgram(program);
+            }
+            return null;
+        }
+    }
+
+    /**
+     * Build the given program for the given devices. This method blocks
+     * until the build is finished.
+     *
+     * @param program The program
+     * @param devices The devices
+     * @param options The build options
+     * @return <code>null</code> if the build succeeded, or an exception
+     * that contains the build log of the first failing device
+     */
+    private static CLException build(cl_program program,
+            cl_device_id devices[], String options)
+    {
+        try
+        {
+            clBuildProgram(program, devices.length, devices, options,
+                    null, null);
+        }
+        catch (CLException e)
+        {
+            CLException failure = checkBuildStatus(program, devices);
+            return failure != null ? failure : e;
+        }
+        return checkBuildStatus(program, devices);
+    }
+
+    /**
+     * Check whether the given program was built successfully for all
+     * given devices
+     *
+     * @param program The program
+     * @param devices The devices
+     * @return <code>null</code> if the build succeeded, or an exception
+     * that contains the build log of the first failing device
+     */
+    private static CLException checkBuildStatus(
+            cl_program program, cl_device_id devices[])
+    {
+        for (cl_device_id device : devices)
+        {
+            int status[] = new int[1];
+            try
+            {
+                clGetProgramBuildInfo(program, device, CL_PROGRAM_BUILD_STATUS,
+                        Sizeof.cl_int, Pointer.to(status), null);
+            }
+            catch (CLException e)
+            {
+                return e;
+            }
+            if (status[0] != CL_BUILD_SUCCESS)
+            {
+                return new CLException("Could not build program for " +
+                        ClInfo.getString(device, CL_DEVICE_NAME) + ":\n" +
+                        getBuildLog(program, device), CL_BUILD_PROGRAM_FAILURE);
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Returns the build log of the given program for the given device
+     *
+     * @param program The program
+     * @param device The device
+     * @return The build log
+     */
+    private static String getBuildLog(cl_program program, cl_device_id device)
+    {
+        long size[] = new long[1];
+        clGetProgramBuildInfo(program, device, CL_PROGRAM_BUILD_LOG, 0, null, size);
+        if (size[0] <= 1)
+        {
+            return "";
+        }
+        byte buffer[] = new byte[(int)size[0]];
+        clGetProgramBuildInfo(program, device, CL_PROGRAM_BUILD_LOG,
+                buffer.length, Pointer.to(buffer), null);
+        return new String(buffer, 0, buffer.length-1);
+    }
+
+    /**
+     * Wait for the given future and return its result. If the future
+     * completed exceptionally with a runtime exception, then this
+     * exception is thrown.
+     *
+     * @param <T> The result type
+     * @param future The future
+     * @return The result
+     * @throws CLException If the computation failed with a CLException
+     */
+    static <T> T join(Future<T> future)
+    {
+        boolean interrupted = false;
+        try
+        {
+            while (true)
+            {
+                try
+                {
+                    return future.get();
+                }
+                catch (InterruptedException e)
+                {
+                    interrupted = true;
+                }
+                catch (ExecutionException e)
+                {
+                    Throwable cause = e.getCause();
+                    if (cause instanceof RuntimeException)
+                    {
+                        throw (RuntimeException)cause;
+                    }
+                    if (cause instanceof Error)
+                    {
+                        throw (Error)cause;
+                    }
+                    throw new IllegalStateException(cause);
+                }
+            }
+        }
+        finally
+        {
+            if (interrupted)
+            {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    /**
+     * Read the binaries from the given files. Returns <code>null</code>
+     * if any of the files does not exist or does not contain a binary
+     * for the respective key.
+     *
+     * @param keys The keys
+     * @param files The files
+     * @return The binaries, or <code>null</code>
+     */
+    private byte[][] readBinaries(String keys[], File files[])
+    {
+        byte binaries[][] = new byte[files.length][];
+        for (int i=0; i<files.length; i++)
+        {
+            if (!files[i].isFile())
+            {
+                return null;
+            }
+            DataInputStream in = null;
+            try
+            {
+                in = new DataInputStream(new BufferedInputStream(
+                        new FileInputStream(files[i])));
+                if (in.readInt() != MAGIC || !keys[i].equals(in.readUTF()))
+                {
+                    staleEntries.incrementAndGet();
+                    files[i].delete();
+                    return null;
+                }
+                binaries[i] = new byte[in.readInt()];
+                in.readFully(binaries[i]);
+            }
+            catch (IOException e)
+            {
+                staleEntries.incrementAndGet();
+                files[i].delete();
+                return null;
+            }
+            finally
+            {
+                closeQuietly(in);
+            }
+        }
+        return binaries;
+    }
+
+    /**
+     * Obtain the binaries of the given program, and write the binary
+     * for each of the given devices into the respective file
+     *
+     * @param program The program
+     * @param devices The devices
+     * @param keys The keys
+     * @param files The files
+     */
+    private void writeBinaries(cl_program program,
+            cl_device_id devices[], String keys[], File files[])
+    {
+        // Obtain the devices of the program. These may be more than
+        // the devices that the program was built for.
+        int numDevicesArray[] = new int[1];
+        clGetProgramInfo(program, CL_PROGRAM_NUM_DEVICES,
+                Sizeof.cl_uint, Pointer.to(numDevicesArray), null);
+        int numDevices = numDevicesArray[0];
+        cl_device_id programDevices[] = new cl_device_id[numDevices];
+        clGetProgramInfo(program, CL_PROGRAM_DEVICES,
+                numDevices * Sizeof.cl_device_id, Pointer.to(programDevices), null);
+
+        // Obtain the binary sizes and the binaries
+        ByteBuffer sizesBuffer = ByteBuffer.allocate(
+                numDevices * Sizeof.size_t).order(ByteOrder.nativeOrder());
+        clGetProgramInfo(program, CL_PROGRAM_BINARY_SIZES,
+                numDevices * Sizeof.size_t, Pointer.to(sizesBuffer), null);
+        long sizes[] = ClInfo.toSizes(sizesBuffer, numDevices);
+        byte binaries[][] = new byte[numDevices][];
+        Pointer binaryPointers[] = new Pointer[numDevices];
+        for (int i=0; i<numDevices; i++)
+        {
+            binaries[i] = new byte[(int)Math.max(1, sizes[i])];
+            binaryPointers[i] = Pointer.to(binaries[i]);
+        }
+        clGetProgramInfo(program, CL_PROGRAM_BINARIES,
+                numDevices * Sizeof.POINTER, Pointer.to(binaryPointers), null);
+
+        // Write the binary of each requested device
+        directory.mkdirs();
+        for (int i=0; i<devices.length; i++)
+        {
+            for (int j=0; j<numDevices; j++)
+            {
+                if (programDevices[j].equals(devices[i]) && sizes[j] > 0)
+                {
+                    writeBinary(keys[i], binaries[j], (int)sizes[j], files[i]);
+                }
+            }
+        }
+    }
+
+    /**
+     * Write the given binary into the given file. The file is first
+     * written to a temporary file that is then renamed, so that
+     * concurrent readers never see a partially written file.
+     *
+     * @param key The key
+     * @param binary The binary
+     * @param size The size of the binary
+     * @param file The file
+     */
+    private static void writeBinary(String key, byte binary[], int size, File file)
+    {
+        File tempFile = new File(file.getPath() + "." +
+                Thread.currentThread().getId() + ".tmp");
+        DataOutputStream out = null;
+        try
+        {
+            out = new DataOutputStream(new BufferedOutputStream(
+                    new FileOutputStream(tempFile)));
+            out.writeInt(MAGIC);
+            out.writeUTF(key);
+            out.writeInt(size);
+            out.write(binary, 0, size);
+            out.close();
+            out = null;
+            file.delete();
+            if (!tempFile.renameTo(file))
+            {
+                tempFile.delete();
+            }
+        }
+        catch (IOException e)
+        {
+            logger.log(Level.WARNING,
+                    "Could not write program binary cache entry " + file, e);
+            tempFile.delete();
+        }
+        finally
+        {
+            closeQuietly(out);
+        }
+    }
+
+    /**
+     * Create the cache key for the given device, source hash and options
+     *
+     * @param device The device
+     * @param sourceHash The source hash
+     * @param options The build options
+     * @return The key
+     */
+    private static String createKey(
+            cl_device_id device, String sourceHash, String options)
+    {
+        cl_platform_id platform = new cl_platform_id();
+        clGetDeviceInfo(device, CL_DEVICE_PLATFORM,
+                Sizeof.cl_platform_id, Pointer.to(platform), null);
+        return sourceHash +
+                "|" + ClInfo.getString(platform, CL_PLATFORM_NAME) +
+                "|" + ClInfo.getString(device, CL_DEVICE_NAME) +
+                "|" + ClInfo.getString(device, CL_DEVICE_VERSION) +
+                "|" + ClInfo.getString(device, CL_DRIVER_VERSION) +
+                "|" + (options == null ? "" : options.trim());
+    }
+
+    /**
+     * Compute the hexadecimal SHA-256 hash of the given strings
+     *
+     * @param strings The strings
+     * @return The hash
+     */
+    static String hash(String strings[])
+    {
+        try
+        {
+            MessageDigest digest = MessageDigest.getInstance("SHA-256");
+            for (String string : strings)
+            {
+                digest.update(string.getBytes("UTF-8"));
+                digest.update((byte)0);
+            }
+            StringBuilder sb = new StringBuilder();
+            for (byte b : digest.digest())
+            {
+                sb.append(String.format("%02x", b & 0xFF));
+            }
+            return sb.toString();
+        }
+        catch (NoSuchAlgorithmException e)
+        {
+            throw new IllegalStateException(e);
+        }
+        catch (UnsupportedEncodingException e)
+        {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * Close the given closeable, ignoring any exceptions
+     *
+     * @param closeable The closeable, may be <code>null</code>
+     */
+    private static void closeQuietly(Closeable closeable)
+    {
+        if (closeable != null)
+        {
+            try
+            {
+                closeable.close();
+            }
+            catch (IOException e)
+            {
+                // Ignored
+            }
+        }
+    }
+}
@@ -0,0 +1,553 @@
+package com.mdaley.jocl;
+
+import static org.jocl.CL.*;
+
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.function.*;
+
+import org.jocl.*;
+
+/**
+ * An in-process cache for OpenCL programs and kernels. <br />
+ * <br />
+ * Programs are cached per context, set of devices, sources and build
+ * options, so that building the same program twice only causes one
+ * build. Kernels are cached per program and kernel name. Programs
+ * that are not yet cached are built with the {@link ProgramBinaryCache}.
+ * <br />
+ * <br />
+ * Builds are started in the background. The <code>Async</code> methods
+ * return futures, so that callers only have to wait for the build when
+ * they actually need the program or kernel, and the builds of different
+ * programs may run concurrently. The {@link ProgramWarmup} uses this to
+ * start all builds at startup. <br />
+ * <br />
+ * Each call to one of the <code>acquire</code> methods increases the
+ * reference count of the respective entry, and must be matched by a
+ * call to the corresponding <code>release</code> method. Entries whose
+ * reference count dropped to zero remain cached, so that they may be
+ * acquired again without rebuilding them, until {@link #trim()} is
+ * called or the context is shut down. <br />
+ * <br />
+ * Note that a cached kernel is shared between all callers that acquire
+ * it. Callers must set all kernel arguments before each launch, and
+ * must not use the same kernel concurrently from multiple threads. A
+ * {@link KernelPool} provides separate kernel instances for concurrent
+ * callers. <br />
+ * <br />
+ * The cache of the shared runtime is obtained with
+ * {@link ClRuntime#getProgramCache()}, and all its entries are released
+ * when the runtime is shut down. This class is thread-safe.
+ */
+public final class ProgramCache
+{
+    /**
+     * A cached program
+     */
+    private static final class ProgramEntry
+    {
+        /**
+         * The context that the program was created for
+         */
+        private final cl_context context;
+
+        /**
+         * The key of this entry
+         */
+        private final List<Object> key;
+
+        /**
+         * The future that will receive the program when it is built
+         */
+        private final CompletableFuture<cl_program> future;
+
+        /**
+         * The kernels that have been created from the program, by name
+         */
+        private final Map<String, KernelEntry> kernels =
+                new HashMap<String, KernelEntry>();
+
+        /**
+         * The number of references to the program, including the
+         * references to its kernels
+         */
+        private int referenceCount;
+
+        /**
+         * Creates a new entry
+         *
+         * @param key The key
+         * @param context The context
+         * @param future The future that will receive the program
+         */
+        ProgramEntry(List<Object> key, cl_context context,
+                CompletableFuture<cl_program> future)
+        {
+            this.key = key;
+            this.context = context;
+            this.future = future;
+        }
+
+        /**
+         * Returns the program if it has been built successfully, or
+         * <code>null</code> otherwise
+         *
+         * @return The program
+         */
+        cl_program getProgram()
+        {
+            if (future.isDone() && !future.isCompletedExceptionally())
+            {
+                return future.join();
+            }
+            return null;
+        }
+    }
+
+    /**
+     * A cached kernel
+     */
+    private static final class KernelEntry
+    {
+        /**
+         * The program entry that the kernel belongs to
+         */
+        private final ProgramEntry programEntry;
+
+        /**
+         * The kernel
+         */
+        private final cl_kernel kernel;
+
+        /**
+         * The number of references to the kernel
+         */
+        private int referenceCount;
+
+        /**
+         * Creates a new entry
+         *
+         * @param programEntry The program entry
+         * @param kernel The kernel
+         */
+        KernelEntry(ProgramEntry programEntry, cl_kernel kernel)
+        {
+            this.programEntry = programEntry;
+            this.kernel = kernel;
+        }
+    }
+
+    /**
+     * The cached programs, by key
+     */
+    private final Map<List<Object>, ProgramEntry> programs =
+            new LinkedHashMap<List<Object>, ProgramEntry>();
+
+    /**
+     * The kernel entries, by kernel
+     */
+    private final Map<cl_kernel, KernelEntry> kernelEntries =
+            new HashMap<cl_kernel, KernelEntry>();
+
+    /**
+     * The number of programs that have been built by this cache
+     */
+    private int buildCount;
+
+    /**
+     * Creates a new, empty program cache
+     */
+    ProgramCache()
+    {
+        // Package-private constructor, instances are owned by the ClRuntime
+    }
+
+    /**
+     * Returns the program for the given context, devices, sources and
+     * build options, building it if necessary, and increases its
+     * reference count. This method blocks until the program is built.
+     *
+     * @param context The context
+     * @param devices The devices that the program is built for
+     * @param sources The program sources
+     * @param options The build options, may be <code>null</code>
+     * @return The program
+     * @throws CLException If the program can not be built
+     */
+    public cl_program acquireProgram(cl_context context,
+            cl_device_id devices[], String sources[], String options)
+    {
+        return ProgramBinaryCache.join(
+                acquireProgramAsync(context, devices, sources, options));
+    }
+
+    /**
+     * Returns a future that will receive the program for the given
+     * context, devices, sources and build options, starting the build
+     * if necessary, and increases the reference count of the program.
+     *
+     * @param context The context
+     * @param devices The devices that the program is built for
+     * @param sources The program sources
+     * @param options The build options, may be <code>null</code>
+     * @return The future that will receive the program
+     */
+    public synchronized CompletableFuture<cl_program> acquireProgramAsync(
+            cl_context context, cl_device_id devices[], String sources[],
+            String options)
+    {
+        ProgramEntry programEntry =
+                obtainProgramEntry(context, devices, sources, options);
+        programEntry.referenceCount++;
+        return programEntry.future;
+    }
+
+    /**
+     * Start building the program for the given context, devices, sources
+     * and build options if it is not yet cached. This does not increase
+     * the reference count of the program: The program is only built so
+     * that it is readily available when it is acquired later.
+     *
+     * @param context The context
+     * @param devices The devices that the program is built for
+     * @param sources The program sources
+     * @param options The build options, may be <code>null</code>
+     * @return The future that will receive the program
+     */
+    public synchronized CompletableFuture<cl_program> prefetchProgram(
+            cl_context context, cl_device_id devices[], String sources[],
+            String options)
+    {
+        return obtainProgramEntry(context, devices, sources, options).future;
+    }
+
+    /**
+     * Release a program that was obtained with {@link #acquireProgram}
+     * or {@link #acquireProgramAsync}
+     *
+     * @param program The program
+     * @throws IllegalArgumentException If the program was not acquired
+     * from this cache
+     */
+    public synchronized void releaseProgram(cl_program program)
+    {
+        ProgramEntry programEntry = findProgramEntry(program);
+        if (programEntry == null || programEntry.referenceCount <= 0)
+        {
+            throw new IllegalArgumentException(
+                    "Program was not acquired from this cache: " + program);
+        }
+        programEntry.referenceCount--;
+    }
+
+    /**
+     * Returns the kernel with the given name from the program for the
+     * given context, devices, sources and build options, building the
+     * program and creating the kernel if necessary, and increases its
+     * reference count. This method blocks until the program is built.
+     *
+     * @param context The context
+     * @param devices The devices that the program is built for
+     * @param sources The program sources
+     * @param options The build options, may be <code>null</code>
+     * @param kernelName The name of the kernel
+     * @return The kernel
+     * @throws CLException If the program can not be built
+     */
+    public cl_kernel acquireKernel(cl_context context,
+            cl_device_id devices[], String sources[], String options,
+            String kernelName)
+    {
+        return ProgramBinaryCache.join(acquireKernelAsync(
+                context, devices, sources, options, kernelName));
+    }
+
+    /**
+     * Returns a future that will receive the kernel with the given name
+     * from the program for the given context, devices, sources and build
+     * options, starting the build if necessary. The reference count of
+     * the kernel is increased when the kernel is created.
+     *
+     * @param context The context
+     * @param devices The devices that the program is built for
+     * @param sources The program sources
+     * @param options The build options, may be <code>null</code>
+     * @param kernelName The name of the kernel
+     * @return The future that will receive the kernel
+     */
+    public CompletableFuture<cl_kernel> acquireKernelAsync(cl_context context,
+            cl_device_id devices[], String sources[], String options,
+            final String kernelName)
+    {
+        final ProgramEntry programEntry;
+        synchronized (this)
+        {
+            programEntry = obtainProgramEntry(context, devices, sources, options);
+            programEntry.referenceCount++;
+        }
+        return programEntry.future.thenApply(
+                new Function<cl_program, cl_kernel>()
+        {
+            @Override
+            public cl_kernel apply(cl_program program)
+            {
+                return obtainKernel(programEntry, kernelName);
+            }
+        });
+    }
+
+    /**
+     * Release a kernel that was obtained with {@link #acquireKernel}
+     * or {@link #acquireKernelAsync}
+     *
+     * @param kernel The kernel
+     * @throws IllegalArgumentException If the kernel was not acquired
+     * from this cache
+     */
+    public synchronized void releaseKernel(cl_kernel kernel)
+    {
+        KernelEntry kernelEntry = kernelEntries.get(kernel);
+        if (kernelEntry == null || kernelEntry.referenceCount <= 0)
+        {
+            throw new IllegalArgumentException(
+                    "Kernel was not acquired from this cache: " + kernel);
+        }
+        kernelEntry.referenceCount--;
+        kernelEntry.programEntry.referenceCount--;
+    }
+
+    /**
+     * Returns the number of programs that have been built by this cache
+     *
+     * @return The number of builds
+     */
+    public synchronized int getBuildCount()
+    {
+        return buildCount;
+    }
+
+    /**
+     * Release all kernels and programs that are no longer referenced.
+     * Programs that are still being built are not affected.
+     */
+    public synchronized void trim()
+    {
+        Iterator<ProgramEntry> iterator = programs.values().iterator();
+        while (iterator.hasNext())
+        {
+            ProgramEntry programEntry = iterator.next();
+            cl_program program = programEntry.getProgram();
+            if (program == null)
+            {
+                continue;
+            }
+            Iterator<KernelEntry> kernelIterator =
+                    programEntry.kernels.values().iterator();
+            while (kernelIterator.hasNext())
+            {
+                KernelEntry kernelEntry = kernelIterator.next();
+                if (kernelEntry.referenceCount == 0)
+                {
+                    kernelIterator.remove();
+                    kernelEntries.remove(kernelEntry.kernel);
+                    clReleaseKernel(kernelEntry.kernel);
+                }
+            }
+            if (programEntry.referenceCount == 0)
+            {
+                iterator.remove();
+                clReleaseProgram(program);
+            }
+        }
+    }
+
+    /**
+     * Release all kernels and programs that have been created for the
+     * given context, regardless of their reference count. Builds that
+     * are still running for the context are awaited first. This is
+     * called when the context is about to be released.
+     *
+     * @param context The context
+     */
+    void release(cl_context context)
+    {
+        List<ProgramEntry> contextEntries = new ArrayList<ProgramEntry>();
+        synchronized (this)
+        {
+            for (ProgramEntry programEntry : programs.values())
+            {
+                if (programEntry.context.equals(context))
+                {
+                    contextEntries.add(programEntry);
+                }
+            }
+        }
+
+        // Wait for the running builds without holding the lock, because
+        // the completion of the builds has to acquire it
+        for (ProgramEntry programEntry : contextEntries)
+        {
+            try
+            {
+                programEntry.future.get();
+            }
+            catch (InterruptedException e)
+            {
+                Thread.currentThread().interrupt();
+            }
+            catch (ExecutionException e)
+            {
+                // The entry has been removed when the build failed
+            }
+        }
+
+        synchronized (this)
+        {
+            for (ProgramEntry programEntry : contextEntries)
+            {
+                if (programs.get(programEntry.key) != programEntry)
+                {
+                    continue;
+                }
+                programs.remove(programEntry.key);
+                for (KernelEntry kernelEntry : programEntry.kernels.values())
+                {
+                    kernelEntries.remove(kernelEntry.kernel);
+                    clReleaseKernel(kernelEntry.kernel);
+                }
+                cl_program program = programEntry.getProgram();
+                if (program != null)
+                {
+                    clReleaseProgram(program);
+                }
+            }
+        }
+    }
+
+    /**
+     * Returns the program entry for the given parameters, starting the
+     * build of the program if necessary. The build runs on a build thread
+     * of the {@link ProgramBinaryCache}, so that the lock of this cache is
+     * not held while the program is compiled.
+     *
+     * @param context The context
+     * @param devices The devices
+     * @param sources The sources
+     * @param options The build options
+     * @return The program entry
+     */
+    private ProgramEntry obtainProgramEntry(cl_context context,
+            cl_device_id devices[], String sources[], String options)
+    {
+        List<Object> key = Arrays.<Object>asList(context,
+                Arrays.asList(devices.clone()),
+                Arrays.asList(sources.clone()),
+                options == null ? "" : options.trim());
+        ProgramEntry programEntry = programs.get(key);
+        if (programEntry == null)
+        {
+            CompletableFuture<cl_program> future =
+                    ProgramBinaryCache.getDefault().buildProgramAsync(
+                            context, devices, sources, options);
+            buildCount++;
+            final ProgramEntry newProgramEntry =
+                    new ProgramEntry(key, context, future);
+            programs.put(key, newProgramEntry);
+
+            // Remove the entry if the build fails, so that a subsequent
+            // request may try to build the program again
+            future.whenComplete(
+                    new BiConsumer<cl_program, Throwable>()
+            {
+                @Override
+                public void accept(cl_program program, Throwable failure)
+                {
+                    if (failure != null)
+                    {
+                        removeProgramEntry(newProgramEntry);
+                    }
+                }
+            });
+            programEntry = newProgramEntry;
+        }
+        return programEntry;
+    }
+
+    /**
+     * Remove the given entry from this cache, if it is still contained
+     *
+     * @param programEntry The entry
+     */
+    private synchronized void removeProgramEntry(ProgramEntry programEntry)
+    {
+        if (programs.get(programEntry.key) == programEntry)
+        {
+            programs.remove(programEntry.key);
+        }
+    }
+
+    /**
+     * Returns the entry of the given program, or <code>null</code> if
+     * the program is not contained in this cache
+     *
+     * @param program The program
+     * @return The entry
+     */
+    private ProgramEntry findProgramEntry(cl_program program)
+    {
+        for (ProgramEntry programEntry : programs.values())
+        {
+            if (program.equals(programEntry.getProgram()))
+            {
+                return programEntry;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Returns the kernel with the given name from the program of the
+     * given entry, creating it if necessary, and increases its
+     * reference count. If the kernel can not be created, the reference
+     * to the program that was taken for it is released, because the
+     * caller does not receive a kernel that it could release, and the
+     * program is released when this was its last reference.
+     *
+     * @param programEntry The program entry, whose program has been built
+     * @param kernelName The kernel name
+     * @return The kernel
+     * @throws CLException If the kernel can not be created
+     */
+    private synchronized cl_kernel obtainKernel(
+            ProgramEntry programEntry, String kernelName)
+    {
+        KernelEntry kernelEntry = programEntry.kernels.get(kernelName);
+        if (kernelEntry == null)
+        {
+            cl_kernel kernel;
+            try
+            {
+                kernel = clCreateKernel(
+                        programEntry.getProgram(), kernelName, null);
+            }
+            catch (CLException e)
+            {
+                programEntry.referenceCount--;
+                if (programEntry.referenceCount == 0 &&
+                        programEntry.kernels.isEmpty() &&
+                        programs.get(programEntry.key) == programEntry)
+                {
+                    programs.remove(programEntry.key);
+                    clReleaseProgram(programEntry.getProgram());
+                }
+                throw e;
+            }
+            kernelEntry = new KernelEntry(programEntry, kernel);
+            programEntry.kernels.put(kernelName, kernelEntry);
+            kernelEntries.put(kernel, kernelEntry);
+        }
+        kernelEntry.referenceCount++;
+        return kernelEntry.kernel;
+    }
+}
@@ -0,0 +1,209 @@
+package com.mdaley.jocl;
+
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.function.*;
+
+import org.jocl.*;
+
+/**
+ * A service that builds a set of registered programs concurrently in
+ * the background. <br />
+ * <br />
+ * Programs are registered with their devices, kernel source resources
+ * and build options, and their includes are resolved with
+ * {@link KernelSources#getResolved(String)}. Calling {@link #start()}
+ * starts all builds at once through the {@link ProgramCache} of the
+ * runtime on a background thread, without waiting for them to finish,
+ * and the builds themselves run on the build threads of the
+ * {@link ProgramBinaryCache}. When the programs are later acquired from the cache
+ * with the same parameters, the running (or finished) builds are reused,
+ * so that the callers only block until the respective build is done,
+ * and the whole warm-up takes about as long as the slowest build.
+ */
+public final class ProgramWarmup
+{
+    /**
+     * A registered program
+     */
+    private static final class Registration
+    {
+        /**
+         * The name of the program, used for logging
+         */
+        private final String name;
+
+        /**
+         * The devices to build the program for
+         */
+        private final cl_device_id devices[];
+
+        /**
+         * The kernel source resource names
+         */
+        private final String resourceNames[];
+
+        /**
+         * The build options
+         */
+        private final String options;
+
+        /**
+         * Creates a new registration
+         *
+         * @param name The name
+         * @param devices The devices
+         * @param resourceNames The resource names
+         * @param options The build options
+         */
+        Registration(String name, cl_device_id devices[],
+                String resourceNames[], String options)
+        {
+            this.name = name;
+            this.devices = devices.clone();
+            this.resourceNames = resourceNames.clone();
+            this.options = options;
+        }
+    }
+
+    /**
+     * The runtime that provides the contexts and the program cache
+     */
+    private final ClRuntime runtime;
+
+    /**
+     * The registered programs
+     */
+    private final List<Registration> registrations =
+            new ArrayList<Registration>();
+
+    /**
+     * Creates a new warm-up service for the given runtime
+     *
+     * @param runtime The runtime
+     */
+    public ProgramWarmup(ClRuntime runtime)
+    {
+        this.runtime = runtime;
+    }
+
+    /**
+     * Register a program that should be built when {@link #start()}
+     * is called. All devices must belong to the same platform.
+     *
+     * @param name The name of the program, used for logging
+     * @param devices The devices to build the program for
+     * @param options The build options, may be <code>null</code>
+     * @param resourceNames The names of the kernel source resources
+     * @return This instance
+     */
+    public synchronized ProgramWarmup register(String name,
+            cl_device_id devices[], String options, String ... resourceNames)
+    {
+        registrations.add(
+                new Registration(name, devices, resourceNames, options));
+        return this;
+    }
+
+    /**
+     * Start building all registered programs concurrently. This method
+     * returns immediately: The sources are resolved and the builds are
+     * started on a background thread. The returned future completes when
+     * all builds have finished, regardless of whether they succeeded.
+     * Failed builds are reported on the console, and will be attempted
+     * again when the program is acquired from the cache.
+     *
+     * @return The future that completes when all builds are finished
+     */
+    public CompletableFuture<Void> start()
+    {
+        final List<Registration> startedRegistrations;
+        synchronized (this)
+        {
+            startedRegistrations = new ArrayList<Registration>(registrations);
+        }
+        final CompletableFuture<Void> result = new CompletableFuture<Void>();
+        Thread thread = new Thread(new Runnable()
+        {
+            @Override
+            public void run()
+            {
+                startBuilds(startedRegistrations).whenComplete(
+                        new BiConsumer<Void, Throwable>()
+                {
+                    @Override
+                    public void accept(Void value, Throwable failure)
+                    {
+                        result.complete(null);
+                    }
+                });
+            }
+        }, "jocl-warmup");
+        thread.setDaemon(true);
+        thread.start();
+        return result;
+    }
+
+    /**
+     * Start building the given programs through the program cache
+     *
+     * @param registrations The registrations of the programs
+     * @return The future that completes when all builds are finished
+     */
+    private CompletableFuture<Void> startBuilds(
+            List<Registration> registrations)
+    {
+        final long before = System.nanoTime();
+        ProgramCache programCache = runtime.getProgramCache();
+        List<CompletableFuture<cl_program>> futures =
+                new ArrayList<CompletableFuture<cl_program>>();
+        for (final Registration registration : registrations)
+        {
+            CompletableFuture<cl_program> future;
+            try
+            {
+                String sources[] = new String[registration.resourceNames.length];
+                for (int i=0; i<sources.length; i++)
+                {
+                    sources[i] = KernelSources.getResolved(registration.resourceNames[i]);
+                }
+                cl_context context = runtime.getContext(registration.devices[0]);
+                future = programCache.prefetchProgram(context,
+                        registration.devices, sources, registration.options);
+            }
+            catch (RuntimeException e)
+            {
+                System.err.println("Warm-up of " + registration.name +
+                        " failed: " + e.getMessage());
+                continue;
+            }
+            future.whenComplete(new BiConsumer<cl_program, Throwable>()
+            {
+                @Override
+                public void accept(cl_program program, Throwable failure)
+                {
+                    if (failure != null)
+                    {
+                        System.err.println("Warm-up of " + registration.name +
+                                " failed: " + failure.getMessage());
+                    }
+                }
+            });
+            futures.add(future);
+        }
+        final int numPrograms = futures.size();
+        return CompletableFuture.allOf(
+                futures.toArray(new CompletableFuture<?>[numPrograms]))
+                .handle(new BiFunction<Void, Throwable, Void>()
+        {
+            @Override
+            public Void apply(Void result, Throwable failure)
+            {
+                long after = System.nanoTime();
+                System.out.printf("Warm-up of %d programs finished after %.2f ms\n",
+                        numPrograms, (after - before) / 1e6);
+                return null;
+            }
+        });
+    }
+}
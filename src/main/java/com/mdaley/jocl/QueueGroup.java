@@ -0,0 +1,132 @@
+package com.mdaley.jocl;
+
+import static org.jocl.CL.*;
+
+import org.jocl.*;
+
+/**
+ * A group of command queues for one device, with separate queues for
+ * uploads, kernels and downloads. <br />
+ * <br />
+ * Commands on one in-order queue are executed one after the other, so a
+ * readback that is enqueued after a kernel delays the next kernel until
+ * the transfer has finished. When the transfers are enqueued on their own
+ * queues, devices with DMA engines can transfer the data for one piece of
+ * work while the kernel of another piece of work is running. <br />
+ * <br />
+ * The commands of one piece of work are handed off between the queues with
+ * events: The upload is enqueued with an event, the kernel waits for this
+ * event and is enqueued with an event itself, and the download waits for
+ * the event of the kernel. Since a command only waits for events of other
+ * queues once these queues have been flushed, the queue must be flushed
+ * after enqueueing a command whose event is waited for on another queue.
+ * <br />
+ * <br />
+ * The groups of the {@link ClRuntime} are obtained with
+ * {@link ClRuntime#getQueueGroup(cl_device_id, long)}, and are owned by the
+ * runtime. A group that uses one queue for all roles can be created with
+ * {@link #QueueGroup(cl_command_queue)}, for callers that provide their own
+ * command queue.
+ */
+public final class QueueGroup
+{
+    /**
+     * The queue for uploads from the host to the device
+     */
+    private final cl_command_queue uploadQueue;
+
+    /**
+     * The queue for kernels
+     */
+    private final cl_command_queue computeQueue;
+
+    /**
+     * The queue for downloads from the device to the host
+     */
+    private final cl_command_queue downloadQueue;
+
+    /**
+     * Creates a group that uses the given command queue for all roles
+     *
+     * @param commandQueue The command queue
+     */
+    public QueueGroup(cl_command_queue commandQueue)
+    {
+        this(commandQueue, commandQueue, commandQueue);
+    }
+
+    /**
+     * Creates a new group with the given queues, which must belong to
+     * the same device and context
+     *
+     * @param uploadQueue The queue for uploads
+     * @param computeQueue The queue for kernels
+     * @param downloadQueue The queue for downloads
+     */
+    public QueueGroup(cl_command_queue uploadQueue,
+            cl_command_queue computeQueue, cl_command_queue downloadQueue)
+    {
+        this.uploadQueue = uploadQueue;
+        this.computeQueue = computeQueue;
+        this.downloadQueue = downloadQueue;
+    }
+
+    /**
+     * Returns the queue for uploads from the host to the device
+     *
+     * @return The upload queue
+     */
+    public cl_command_queue getUploadQueue()
+    {
+        return uploadQueue;
+    }
+
+    /**
+     * Returns the queue for kernels
+     *
+     * @return The compute queue
+     */
+    public cl_command_queue getComputeQueue()
+    {
+        return computeQueue;
+    }
+
+    /**
+     * Returns the queue for downloads from the device to the host
+     *
+     * @return The download queue
+     */
+    public cl_command_queue getDownloadQueue()
+    {
+        return downloadQueue;
+    }
+
+    /**
+     * Returns whether the roles of this group use different queues, so
+     * that transfers may overlap with kernels
+     *
+     * @return Whether the queues are separate
+     */
+    public boolean isSeparate()
+    {
+        return !uploadQueue.equals(computeQueue) ||
+                !downloadQueue.equals(computeQueue);
+    }
+
+    /**
+     * Wait until all commands on the queues of this group have completed
+     */
+    public void finish()
+    {
+        clFinish(uploadQueue);
+        clFinish(computeQueue);
+        clFinish(downloadQueue);
+    }
+
+    @Override
+    public String toString()
+    {
+        return "QueueGroup[" + (isSeparate() ? "separate" : "shared") +
+                " queues]";
+    }
+}
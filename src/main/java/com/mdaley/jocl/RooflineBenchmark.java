@@ -0,0 +1,473 @@
+package com.mdaley.jocl;
+
+import static org.jocl.CL.*;
+
+import java.nio.*;
+import java.util.*;
+
+import org.jocl.*;
+
+/**
+ * A set of micro-benchmarks that measure the actual capabilities of a
+ * device, and summarize them in a {@link DeviceProfile}:
+ * <ul>
+ *   <li>The host-to-device and device-to-host bandwidth for each of the
+ *   transfer strategies that are listed in {@link DeviceProfile}</li>
+ *   <li>The global memory bandwidth, with a float4 copy kernel</li>
+ *   <li>The local memory bandwidth</li>
+ *   <li>The kernel launch latency, with an empty kernel</li>
+ *   <li>The float and float4 throughput, with chains of multiply-adds</li>
+ * </ul>
+ * Each measurement is repeated, and the best result is used. The sizes
+ * are chosen so that the benchmark also completes quickly on CPU drivers.
+ * With the system property <code>jocl.benchmark.quick=true</code>, the
+ * sizes and repetitions are reduced further, e.g. for running in CI.
+ */
+public final class RooflineBenchmark
+{
+    /**
+     * The kernel source resource
+     */
+    private static final String KERNEL_SOURCE = "/DeviceBenchmark.cl";
+
+    /**
+     * The number of iterations of the local memory kernel
+     */
+    private static final int LOCAL_ITERATIONS = 256;
+
+    /**
+     * The number of iterations of the FLOP kernels
+     */
+    private static final int FLOP_ITERATIONS = 256;
+
+    /**
+     * The device
+     */
+    private final cl_device_id device;
+
+    /**
+     * The context of the device
+     */
+    private final cl_context context;
+
+    /**
+     * The profiling command queue of the device
+     */
+    private final cl_command_queue commandQueue;
+
+    /**
+     * The number of repetitions of each measurement
+     */
+    private final int repetitions;
+
+    /**
+     * The size of the buffers for the transfer and bandwidth
+     * measurements, in bytes
+     */
+    private final int bufferSize;
+
+    /**
+     * The global work size of the FLOP kernels
+     */
+    private final long flopGlobalSize;
+
+    /**
+     * Creates a benchmark for the given device, using the shared
+     * context of the {@link ClRuntime}
+     *
+     * @param device The device
+     */
+    public RooflineBenchmark(cl_device_id device)
+    {
+        ClRuntime runtime = ClRuntime.getInstance();
+        this.device = device;
+        this.context = runtime.getContext(device);
+        this.commandQueue = runtime.getCommandQueue(
+                device, CL_QUEUE_PROFILING_ENABLE);
+
+        boolean quick = Boolean.getBoolean("jocl.benchmark.quick");
+        DeviceCapabilities c = DeviceCapabilities.of(device);
+        int size = quick ? (4 << 20) : (64 << 20);
+        while (size > (1 << 20) && size > c.getMaxMemAllocSize() / 2)
+        {
+            size >>= 1;
+        }
+        this.bufferSize = size;
+        this.repetitions = quick ? 3 : 10;
+        this.flopGlobalSize = quick ? (1 << 16) : (1 << 20);
+    }
+
+    /**
+     * Run all measurements
+     *
+     * @return The profile with the results
+     * @throws CLException If an OpenCL operation fails
+     */
+    public DeviceProfile run()
+    {
+        DeviceProfile profile = new DeviceProfile(device);
+        measureTransfers(profile);
+        String sources[] = { KernelSources.get(KERNEL_SOURCE) };
+        Map<String, Object> constants = new HashMap<String, Object>();
+        constants.put("LOCAL_ITERATIONS", LOCAL_ITERATIONS);
+        constants.put("FLOP_ITERATIONS", FLOP_ITERATIONS);
+        String options = KernelSources.toBuildOptions(null, constants);
+        ProgramCache programCache = ClRuntime.getInstance().getProgramCache();
+        cl_device_id devices[] = { device };
+        cl_program program = programCache.acquireProgram(
+                context, devices, sources, options);
+        try
+        {
+            profile.setLaunchLatency(measureLaunchLatency(program));
+            profile.setGlobalMemoryBandwidth(measureGlobalMemory(program));
+            profile.setLocalMemoryBandwidth(measureLocalMemory(program));
+            profile.setFloatGflops(measureFlops(program, "flopsFloat", 1));
+            profile.setFloat4Gflops(measureFlops(program, "flopsFloat4", 4));
+        }
+        finally
+        {
+            programCache.releaseProgram(program);
+        }
+        return profile;
+    }
+
+    /**
+     * Measure the host-to-device and device-to-host bandwidth for
+     * all transfer strategies
+     *
+     * @param profile The profile to store the results in
+     */
+    private void measureTransfers(DeviceProfile profile)
+    {
+        cl_mem deviceMem = clCreateBuffer(context,
+                CL_MEM_READ_WRITE, bufferSize, null, null);
+        cl_mem pinnedMem = clCreateBuffer(context,
+                CL_MEM_READ_WRITE | CL_MEM_ALLOC_HOST_PTR, bufferSize, null, null);
+        try
+        {
+            // Heap array: JOCL has to pin or copy the array
+            byte array[] = new byte[bufferSize];
+            Pointer arrayPointer = Pointer.to(array);
+            profile.setHostToDeviceBandwidth(DeviceProfile.TRANSFER_HEAP_ARRAY,
+                    measureWrite(deviceMem, arrayPointer));
+            profile.setDeviceToHostBandwidth(DeviceProfile.TRANSFER_HEAP_ARRAY,
+                    measureRead(deviceMem, arrayPointer));
+
+            // Direct buffer: The memory may be passed to the driver directly
+            ByteBuffer direct = ByteBuffer.allocateDirect(bufferSize);
+            Pointer directPointer = Pointer.to(direct);
+            profile.setHostToDeviceBandwidth(DeviceProfile.TRANSFER_DIRECT_BUFFER,
+                    measureWrite(deviceMem, directPointer));
+            profile.setDeviceToHostBandwidth(DeviceProfile.TRANSFER_DIRECT_BUFFER,
+                    measureRead(deviceMem, directPointer));
+
+            // Pinned staging: Transfer from and to the mapped host memory
+            // of a CL_MEM_ALLOC_HOST_PTR buffer
+            ByteBuffer pinned = clEnqueueMapBuffer(commandQueue, pinnedMem,
+                    CL_TRUE, CL_MAP_READ | CL_MAP_WRITE, 0, bufferSize,
+                    0, null, null, null);
+            Pointer pinnedPointer = Pointer.to(pinned);
+            profile.setHostToDeviceBandwidth(DeviceProfile.TRANSFER_PINNED_STAGING,
+                    measureWrite(deviceMem, pinnedPointer));
+            profile.setDeviceToHostBandwidth(DeviceProfile.TRANSFER_PINNED_STAGING,
+                    measureRead(deviceMem, pinnedPointer));
+            clEnqueueUnmapMemObject(commandQueue, pinnedMem, pinned, 0, null, null);
+            clFinish(commandQueue);
+
+            // Mapped: Map the buffer and copy the data from or to the host
+            profile.setHostToDeviceBandwidth(DeviceProfile.TRANSFER_MAPPED,
+                    measureMapped(pinnedMem, direct, CL_MAP_WRITE));
+            profile.setDeviceToHostBandwidth(DeviceProfile.TRANSFER_MAPPED,
+                    measureMapped(pinnedMem, direct, CL_MAP_READ));
+        }
+        finally
+        {
+            clReleaseMemObject(deviceMem);
+            clReleaseMemObject(pinnedMem);
+        }
+    }
+
+    /**
+     * Measure the bandwidth of blocking writes from the given host memory
+     *
+     * @param mem The device memory
+     * @param host The host memory
+     * @return The bandwidth, in GB/s
+     */
+    private double measureWrite(cl_mem mem, Pointer host)
+    {
+        long best = Long.MAX_VALUE;
+        for (int i = 0; i < repetitions; i++)
+        {
+            long before = System.nanoTime();
+            clEnqueueWriteBuffer(commandQueue, mem, CL_TRUE, 0,
+                    bufferSize, host, 0, null, null);
+            best = Math.min(best, System.nanoTime() - before);
+        }
+        return gigabytesPerSecond(bufferSize, best);
+    }
+
+    /**
+     * Measure the bandwidth of blocking reads into the given host memory
+     *
+     * @param mem The device memory
+     * @param host The host memory
+     * @return The bandwidth, in GB/s
+     */
+    private double measureRead(cl_mem mem, Pointer host)
+    {
+        long best = Long.MAX_VALUE;
+        for (int i = 0; i < repetitions; i++)
+        {
+            long before = System.nanoTime();
+            clEnqueueReadBuffer(commandQueue, mem, CL_TRUE, 0,
+                    bufferSize, host, 0, null, null);
+            best = Math.min(best, System.nanoTime() - before);
+        }
+        return gigabytesPerSecond(bufferSize, best);
+    }
+
+    /**
+     * Measure the bandwidth of mapping the given buffer, copying the
+     * data from or to the given host buffer, and unmapping the buffer
+     *
+     * @param mem The CL_MEM_ALLOC_HOST_PTR buffer
+     * @param host The host buffer
+     * @param mapFlags CL_MAP_WRITE or CL_MAP_READ
+     * @return The bandwidth, in GB/s
+     */
+    private double measureMapped(cl_mem mem, ByteBuffer host, long mapFlags)
+    {
+        long best = Long.MAX_VALUE;
+        for (int i = 0; i < repetitions; i++)
+        {
+            long before = System.nanoTime();
+            ByteBuffer mapped = clEnqueueMapBuffer(commandQueue, mem,
+                    CL_TRUE, mapFlags, 0, bufferSize, 0, null, null, null);
+            host.clear();
+            mapped.clear();
+            if (mapFlags == CL_MAP_WRITE)
+            {
+                mapped.put(host);
+            }
+            else
+            {
+                host.put(mapped);
+            }
+            clEnqueueUnmapMemObject(commandQueue, mem, mapped, 0, null, null);
+            clFinish(commandQueue);
+            best = Math.min(best, System.nanoTime() - before);
+        }
+        return gigabytesPerSecond(bufferSize, best);
+    }
+
+    /**
+     * Measure the time for enqueueing an empty kernel and waiting for
+     * its completion
+     *
+     * @param program The program
+     * @return The average latency, in microseconds
+     */
+    private double measureLaunchLatency(cl_program program)
+    {
+        cl_kernel kernel = clCreateKernel(program, "empty", null);
+        cl_mem dst = clCreateBuffer(context,
+                CL_MEM_READ_WRITE, Sizeof.cl_float, null, null);
+        try
+        {
+            clSetKernelArg(kernel, 0, Sizeof.cl_mem, Pointer.to(dst));
+            long globalSize[] = { 1 };
+
+            // Warm up, then measure the average of many launches
+            clEnqueueNDRangeKernel(commandQueue, kernel, 1, null,
+                    globalSize, null, 0, null, null);
+            clFinish(commandQueue);
+            int launches = repetitions * 10;
+            long before = System.nanoTime();
+            for (int i = 0; i < launches; i++)
+            {
+                clEnqueueNDRangeKernel(commandQueue, kernel, 1, null,
+                        globalSize, null, 0, null, null);
+                clFinish(commandQueue);
+            }
+            long duration = System.nanoTime() - before;
+            return duration / 1e3 / launches;
+        }
+        finally
+        {
+            clReleaseMemObject(dst);
+            clReleaseKernel(kernel);
+        }
+    }
+
+    /**
+     * Measure the global memory bandwidth with the float4 copy kernel.
+     * Each copied byte is counted twice, for the read and the write.
+     *
+     * @param program The program
+     * @return The bandwidth, in GB/s
+     */
+    private double measureGlobalMemory(cl_program program)
+    {
+        cl_kernel kernel = clCreateKernel(program, "copyFloat4", null);
+        int size = bufferSize / 2;
+        cl_mem src = clCreateBuffer(context, CL_MEM_READ_ONLY, size, null, null);
+        cl_mem dst = clCreateBuffer(context, CL_MEM_WRITE_ONLY, size, null, null);
+        try
+        {
+            clSetKernelArg(kernel, 0, Sizeof.cl_mem, Pointer.to(src));
+            clSetKernelArg(kernel, 1, Sizeof.cl_mem, Pointer.to(dst));
+            long globalSize[] = { size / (4 * Sizeof.cl_float) };
+            long nanos = measureKernel(kernel, globalSize, null);
+            return gigabytesPerSecond(2L * size, nanos);
+        }
+        finally
+        {
+            clReleaseMemObject(src);
+            clReleaseMemObject(dst);
+            clReleaseKernel(kernel);
+        }
+    }
+
+    /**
+     * Measure the local memory bandwidth with the local read kernel
+     *
+     * @param program The program
+     * @return The bandwidth, in GB/s
+     */
+    private double measureLocalMemory(cl_program program)
+    {
+        cl_kernel kernel = clCreateKernel(program, "localRead", null);
+        DeviceCapabilities c = DeviceCapabilities.of(device);
+        long maxLocalSize = Math.min(256, Math.min(c.getMaxWorkGroupSize(),
+                getKernelWorkGroupSize(kernel)));
+        long localSize = Long.highestOneBit(Math.max(1, maxLocalSize));
+        long globalSize = localSize * Math.max(1, c.getComputeUnits()) * 64;
+        cl_mem dst = clCreateBuffer(context, CL_MEM_WRITE_ONLY,
+                globalSize * Sizeof.cl_float, null, null);
+        try
+        {
+            clSetKernelArg(kernel, 0, Sizeof.cl_mem, Pointer.to(dst));
+            clSetKernelArg(kernel, 1, localSize * Sizeof.cl_float, null);
+            long nanos = measureKernel(kernel,
+                    new long[]{ globalSize }, new long[]{ localSize });
+            long bytes = globalSize * 4L * LOCAL_ITERATIONS * Sizeof.cl_float;
+            return gigabytesPerSecond(bytes, nanos);
+        }
+        finally
+        {
+            clReleaseMemObject(dst);
+            clReleaseKernel(kernel);
+        }
+    }
+
+    /**
+     * Measure the throughput of the FLOP kernel with the given name
+     *
+     * @param program The program
+     * @param kernelName The kernel name
+     * @param vectorWidth The vector width of the kernel
+     * @return The throughput, in GFLOPS
+     */
+    private double measureFlops(cl_program program, String kernelName,
+            int vectorWidth)
+    {
+        cl_kernel kernel = clCreateKernel(program, kernelName, null);
+        cl_mem dst = clCreateBuffer(context, CL_MEM_WRITE_ONLY,
+                flopGlobalSize * vectorWidth * Sizeof.cl_float, null, null);
+        try
+        {
+            clSetKernelArg(kernel, 0, Sizeof.cl_mem, Pointer.to(dst));
+            clSetKernelArg(kernel, 1, Sizeof.cl_float,
+                    Pointer.to(new float[]{ 0.999f }));
+            clSetKernelArg(kernel, 2, Sizeof.cl_float,
+                    Pointer.to(new float[]{ 0.001f }));
+            long nanos = measureKernel(kernel,
+                    new long[]{ flopGlobalSize }, null);
+            double flops = (double) flopGlobalSize * vectorWidth * 4 * 2 *
+                    FLOP_ITERATIONS;
+            return flops / nanos;
+        }
+        finally
+        {
+            clReleaseMemObject(dst);
+            clReleaseKernel(kernel);
+        }
+    }
+
+    /**
+     * Execute the given kernel once for warming up, and then measure
+     * the best execution time of the given number of repetitions,
+     * using the profiling information of the events
+     *
+     * @param kernel The kernel
+     * @param globalSize The global work size
+     * @param localSize The local work size, may be <code>null</code>
+     * @return The best execution time, in nanoseconds
+     */
+    private long measureKernel(cl_kernel kernel,
+            long globalSize[], long localSize[])
+    {
+        clEnqueueNDRangeKernel(commandQueue, kernel, 1, null,
+                globalSize, localSize, 0, null, null);
+        clFinish(commandQueue);
+        long best = Long.MAX_VALUE;
+        for (int i = 0; i < repetitions; i++)
+        {
+            cl_event event = new cl_event();
+            clEnqueueNDRangeKernel(commandQueue, kernel, 1, null,
+                    globalSize, localSize, 0, null, event);
+            clWaitForEvents(1, new cl_event[]{ event });
+            best = Math.min(best, getExecutionTime(event));
+            clReleaseEvent(event);
+        }
+        return Math.max(1, best);
+    }
+
+    /**
+     * Returns the time between the start and the end of the execution
+     * of the command that is associated with the given event
+     *
+     * @param event The event
+     * @return The execution time, in nanoseconds
+     */
+    private static long getExecutionTime(cl_event event)
+    {
+        long start[] = new long[1];
+        long end[] = new long[1];
+        clGetEventProfilingInfo(event, CL_PROFILING_COMMAND_START,
+                Sizeof.cl_ulong, Pointer.to(start), null);
+        clGetEventProfilingInfo(event, CL_PROFILING_COMMAND_END,
+                Sizeof.cl_ulong, Pointer.to(end), null);
+        return end[0] - start[0];
+    }
+
+    /**
+     * Returns the CL_KERNEL_WORK_GROUP_SIZE of the given kernel
+     * for the device of this benchmark
+     *
+     * @param kernel The kernel
+     * @return The work group size
+     */
+    private long getKernelWorkGroupSize(cl_kernel kernel)
+    {
+        ByteBuffer buffer = ByteBuffer.allocate(Sizeof.size_t)
+                .order(ByteOrder.nativeOrder());
+        clGetKernelWorkGroupInfo(kernel, device, CL_KERNEL_WORK_GROUP_SIZE,
+                Sizeof.size_t, Pointer.to(buffer), null);
+        return ClInfo.toSizes(buffer, 1)[0];
+    }
+
+    /**
+     * Returns the bandwidth for transferring the given number of bytes
+     * in the given time
+     *
+     * @param bytes The number of bytes
+     * @param nanos The time, in nanoseconds
+     * @return The bandwidth, in GB/s
+     */
+    private static double gigabytesPerSecond(long bytes, long nanos)
+    {
+        return (double) bytes / Math.max(1, nanos);
+    }
+}
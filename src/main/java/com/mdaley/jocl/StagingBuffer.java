@@ -0,0 +1,263 @@
+package com.mdaley.jocl;
+
+import static org.jocl.CL.*;
+
+import java.nio.*;
+
+import org.jocl.*;
+
+/**
+ * A pinned host buffer that is used for staging the transfers between the
+ * host and a device. It is backed by a memory object that was created with
+ * CL_MEM_ALLOC_HOST_PTR, and that stays mapped into the host memory for its
+ * whole lifetime, so that the driver can transfer the data with DMA, without
+ * pinning or copying Java arrays. <br />
+ * <br />
+ * Staging buffers are obtained from the {@link StagingBufferPool} of the
+ * {@link ClRuntime}. The data is put into or taken from the views that are
+ * returned by {@link #asByteBuffer()}, {@link #asIntBuffer()} and
+ * {@link #asFloatBuffer()}, and transferred with {@link #write} and
+ * {@link #read}. The buffer must not be used after it has been released.
+ */
+public final class StagingBuffer
+{
+    /**
+     * The pool that this buffer belongs to
+     */
+    private final StagingBufferPool pool;
+
+    /**
+     * The context of the memory object
+     */
+    private final cl_context context;
+
+    /**
+     * The CL_MEM_ALLOC_HOST_PTR memory object
+     */
+    private final cl_mem mem;
+
+    /**
+     * The command queue that was used for mapping the memory object,
+     * and will be used for unmapping it
+     */
+    private final cl_command_queue mapQueue;
+
+    /**
+     * The size of the memory object, in bytes
+     */
+    private final long capacity;
+
+    /**
+     * The mapped host memory
+     */
+    private final ByteBuffer mapped;
+
+    /**
+     * The pointer to the mapped host memory
+     */
+    private final Pointer pointer;
+
+    /**
+     * Creates a new staging buffer with the given capacity, and maps it
+     * into the host memory using the given command queue
+     *
+     * @param pool The pool that the buffer belongs to
+     * @param context The context
+     * @param mapQueue The command queue for mapping and unmapping
+     * @param capacity The capacity, in bytes
+     */
+    StagingBuffer(StagingBufferPool pool, cl_context context,
+            cl_command_queue mapQueue, long capacity)
+    {
+        this.pool = pool;
+        this.context = context;
+        this.mapQueue = mapQueue;
+        this.capacity = capacity;
+        this.mem = clCreateBuffer(context,
+                CL_MEM_READ_WRITE | CL_MEM_ALLOC_HOST_PTR, capacity, null, null);
+        try
+        {
+            this.mapped = clEnqueueMapBuffer(mapQueue, mem, CL_TRUE,
+                    CL_MAP_READ | CL_MAP_WRITE, 0, capacity, 0, null, null, null)
+                    .order(ByteOrder.nativeOrder());
+        }
+        catch (CLException e)
+        {
+            clReleaseMemObject(mem);
+            throw e;
+        }
+        this.pointer = Pointer.to(mapped);
+    }
+
+    /**
+     * Returns the context of this buffer
+     *
+     * @return The context
+     */
+    cl_context getContext()
+    {
+        return context;
+    }
+
+    /**
+     * Returns the capacity of this buffer, which may be larger than
+     * the size that was requested
+     *
+     * @return The capacity, in bytes
+     */
+    public long getCapacity()
+    {
+        return capacity;
+    }
+
+    /**
+     * Returns a new view on the mapped host memory, in native byte order,
+     * with the position 0 and the limit at the capacity
+     *
+     * @return The byte buffer
+     */
+    public ByteBuffer asByteBuffer()
+    {
+        ByteBuffer view = mapped.duplicate().order(ByteOrder.nativeOrder());
+        view.clear();
+        return view;
+    }
+
+    /**
+     * Returns a new int view on the mapped host memory
+     *
+     * @return The int buffer
+     */
+    public IntBuffer asIntBuffer()
+    {
+        return asByteBuffer().asIntBuffer();
+    }
+
+    /**
+     * Returns a new float view on the mapped host memory
+     *
+     * @return The float buffer
+     */
+    public FloatBuffer asFloatBuffer()
+    {
+        return asByteBuffer().asFloatBuffer();
+    }
+
+    /**
+     * Enqueue a write of the given number of bytes from the start of
+     * this buffer into the given memory object. For a non-blocking
+     * write, the contents of this buffer must not be modified until
+     * the write has finished.
+     *
+     * @param commandQueue The command queue
+     * @param dst The destination memory object
+     * @param dstOffset The offset in the destination, in bytes
+     * @param size The number of bytes
+     * @param blocking Whether the write is blocking
+     */
+    public void write(cl_command_queue commandQueue, cl_mem dst,
+            long dstOffset, long size, boolean blocking)
+    {
+        write(commandQueue, dst, dstOffset, size, blocking, null, null);
+    }
+
+    /**
+     * Enqueue a write of the given number of bytes from the start of
+     * this buffer into the given memory object, after the commands of
+     * the given events have completed. For a non-blocking write, the
+     * contents of this buffer must not be modified until the write has
+     * finished.
+     *
+     * @param commandQueue The command queue
+     * @param dst The destination memory object
+     * @param dstOffset The offset in the destination, in bytes
+     * @param size The number of bytes
+     * @param blocking Whether the write is blocking
+     * @param waitList The events to wait for, may be null
+     * @param event The event for the write, may be null
+     */
+    public void write(cl_command_queue commandQueue, cl_mem dst,
+            long dstOffset, long size, boolean blocking,
+            cl_event waitList[], cl_event event)
+    {
+        checkSize(size);
+        clEnqueueWriteBuffer(commandQueue, dst, blocking, dstOffset,
+                size, pointer, waitList == null ? 0 : waitList.length,
+                waitList, event);
+    }
+
+    /**
+     * Enqueue a read of the given number of bytes from the given memory
+     * object into the start of this buffer. For a non-blocking read, the
+     * contents of this buffer are only valid after the read has finished.
+     *
+     * @param commandQueue The command queue
+     * @param src The source memory object
+     * @param srcOffset The offset in the source, in bytes
+     * @param size The number of bytes
+     * @param blocking Whether the read is blocking
+     */
+    public void read(cl_command_queue commandQueue, cl_mem src,
+            long srcOffset, long size, boolean blocking)
+    {
+        read(commandQueue, src, srcOffset, size, blocking, null, null);
+    }
+
+    /**
+     * Enqueue a read of the given number of bytes from the given memory
+     * object into the start of this buffer, after the commands of the
+     * given events have completed. For a non-blocking read, the contents
+     * of this buffer are only valid after the read has finished.
+     *
+     * @param commandQueue The command queue
+     * @param src The source memory object
+     * @param srcOffset The offset in the source, in bytes
+     * @param size The number of bytes
+     * @param blocking Whether the read is blocking
+     * @param waitList The events to wait for, may be null
+     * @param event The event for the read, may be null
+     */
+    public void read(cl_command_queue commandQueue, cl_mem src,
+            long srcOffset, long size, boolean blocking,
+            cl_event waitList[], cl_event event)
+    {
+        checkSize(size);
+        clEnqueueReadBuffer(commandQueue, src, blocking, srcOffset,
+                size, pointer, waitList == null ? 0 : waitList.length,
+                waitList, event);
+    }
+
+    /**
+     * Return this buffer to its pool
+     */
+    public void release()
+    {
+        pool.release(this);
+    }
+
+    /**
+     * Unmap and release the memory object of this buffer. This is called
+     * by the pool when the buffer is evicted.
+     */
+    void dispose()
+    {
+        clEnqueueUnmapMemObject(mapQueue, mem, mapped, 0, null, null);
+        clFinish(mapQueue);
+        clReleaseMemObject(mem);
+    }
+
+    /**
+     * Make sure that the given size does not exceed the capacity
+     *
+     * @param size The size
+     * @throws IllegalArgumentException If the size is too large
+     */
+    private void checkSize(long size)
+    {
+        if (size > capacity)
+        {
+            throw new IllegalArgumentException("The size " + size +
+                    " exceeds the capacity " + capacity);
+        }
+    }
+}
@@ -0,0 +1,314 @@
+package com.mdaley.jocl;
+
+import static org.jocl.CL.*;
+
+import java.util.*;
+
+import org.jocl.*;
+
+/**
+ * A pool of pinned {@link StagingBuffer staging buffers}. <br />
+ * <br />
+ * Creating and mapping a pinned buffer is expensive, so the buffers are
+ * kept mapped and recycled. They are handed out by context and size class,
+ * using the same size classes as the {@link BufferPool}. When the idle
+ * buffers exceed the limit, which is 64 MB by default and may be changed
+ * with the system property <code>jocl.stagingPool.maxIdleBytes</code>, the
+ * buffers that have been idle for the longest time are unmapped and
+ * released. <br />
+ * <br />
+ * A staging buffer is mapped with the command queue that is passed to
+ * {@link #acquire(cl_command_queue, long)} when it is created, and this
+ * queue is used for unmapping it later. It must therefore remain valid
+ * while the pool holds the buffer, which is always the case for the
+ * command queues of the {@link ClRuntime}. <br />
+ * <br />
+ * The pool is owned by the {@link ClRuntime}, which releases all buffers
+ * when it is shut down. All methods of this class are thread-safe.
+ */
+public final class StagingBufferPool
+{
+    /**
+     * The key for a size class: The context and size class
+     */
+    private static final class PoolKey
+    {
+        /**
+         * The context
+         */
+        private final cl_context context;
+
+        /**
+         * The size class
+         */
+        private final long size;
+
+        /**
+         * Creates a new key
+         *
+         * @param context The context
+         * @param size The size class
+         */
+        PoolKey(cl_context context, long size)
+        {
+            this.context = context;
+            this.size = size;
+        }
+
+        @Override
+        public int hashCode()
+        {
+            return context.hashCode() * 31 + (int)(size ^ (size >>> 32));
+        }
+
+        @Override
+        public boolean equals(Object object)
+        {
+            if (!(object instanceof PoolKey))
+            {
+                return false;
+            }
+            PoolKey other = (PoolKey)object;
+            return context.equals(other.context) && size == other.size;
+        }
+    }
+
+    /**
+     * The idle buffers, by size class
+     */
+    private final Map<PoolKey, Deque<StagingBuffer>> idleBuffers =
+            new HashMap<PoolKey, Deque<StagingBuffer>>();
+
+    /**
+     * All idle buffers, in the order in which they have been released
+     */
+    private final Set<StagingBuffer> idleOrder =
+            new LinkedHashSet<StagingBuffer>();
+
+    /**
+     * The buffers that have been acquired and not yet been released
+     */
+    private final Set<StagingBuffer> usedBuffers =
+            new HashSet<StagingBuffer>();
+
+    /**
+     * The maximum number of bytes that are kept in idle buffers
+     */
+    private final long maxIdleBytes;
+
+    /**
+     * The number of bytes in idle buffers
+     */
+    private long idleBytes;
+
+    /**
+     * The number of acquisitions that have been served from idle buffers
+     */
+    private long hits;
+
+    /**
+     * The number of acquisitions that required a new buffer
+     */
+    private long misses;
+
+    /**
+     * Creates a new staging buffer pool
+     */
+    StagingBufferPool()
+    {
+        this.maxIdleBytes = Long.getLong(
+                "jocl.stagingPool.maxIdleBytes", 64L << 20);
+    }
+
+    /**
+     * Acquire a staging buffer with at least the given size for the
+     * context of the given command queue. If a new buffer has to be
+     * created, it is mapped with the given command queue. The buffer
+     * must be returned with {@link StagingBuffer#release()}.
+     *
+     * @param commandQueue The command queue
+     * @param size The minimum size, in bytes
+     * @return The staging buffer
+     * @throws IllegalArgumentException If the size is not positive
+     * @throws CLException If the buffer can not be created or mapped
+     */
+    public StagingBuffer acquire(cl_command_queue commandQueue, long size)
+    {
+        if (size <= 0)
+        {
+            throw new IllegalArgumentException(
+                    "The size must be positive, but is " + size);
+        }
+        cl_context context = getContext(commandQueue);
+        PoolKey key = new PoolKey(context, BufferPool.sizeClass(size));
+        synchronized (this)
+        {
+            Deque<StagingBuffer> idle = idleBuffers.get(key);
+            if (idle != null && !idle.isEmpty())
+            {
+                StagingBuffer buffer = idle.pollLast();
+                idleOrder.remove(buffer);
+                idleBytes -= key.size;
+                usedBuffers.add(buffer);
+                hits++;
+                return buffer;
+            }
+            misses++;
+        }
+        StagingBuffer buffer =
+                new StagingBuffer(this, context, commandQueue, key.size);
+        synchronized (this)
+        {
+            usedBuffers.add(buffer);
+        }
+        return buffer;
+    }
+
+    /**
+     * Return the given buffer to this pool
+     *
+     * @param buffer The buffer
+     * @throws IllegalArgumentException If the buffer was not acquired
+     * from this pool, or has already been released
+     */
+    void release(StagingBuffer buffer)
+    {
+        List<StagingBuffer> evicted = new ArrayList<StagingBuffer>();
+        synchronized (this)
+        {
+            if (!usedBuffers.remove(buffer))
+            {
+                throw new IllegalArgumentException(
+                        "Staging buffer was not acquired from this pool");
+            }
+            PoolKey key = new PoolKey(buffer.getContext(), buffer.getCapacity());
+            Deque<StagingBuffer> idle = idleBuffers.get(key);
+            if (idle == null)
+            {
+                idle = new ArrayDeque<StagingBuffer>();
+                idleBuffers.put(key, idle);
+            }
+            idle.addLast(buffer);
+            idleOrder.add(buffer);
+            idleBytes += key.size;
+
+            Iterator<StagingBuffer> iterator = idleOrder.iterator();
+            while (idleBytes > maxIdleBytes && iterator.hasNext())
+            {
+                StagingBuffer eldest = iterator.next();
+                iterator.remove();
+                removeIdle(eldest);
+                evicted.add(eldest);
+            }
+        }
+        for (StagingBuffer e : evicted)
+        {
+            e.dispose();
+        }
+    }
+
+    /**
+     * Returns the number of acquisitions that have been served from
+     * idle buffers
+     *
+     * @return The number of hits
+     */
+    public synchronized long getHits()
+    {
+        return hits;
+    }
+
+    /**
+     * Returns the number of acquisitions that required a new buffer
+     *
+     * @return The number of misses
+     */
+    public synchronized long getMisses()
+    {
+        return misses;
+    }
+
+    /**
+     * Returns the number of bytes in idle buffers
+     *
+     * @return The number of idle bytes
+     */
+    public synchronized long getIdleBytes()
+    {
+        return idleBytes;
+    }
+
+    @Override
+    public synchronized String toString()
+    {
+        return "StagingBufferPool[hits=" + hits + ", misses=" + misses +
+                ", used=" + usedBuffers.size() + ", idleBytes=" + idleBytes + "]";
+    }
+
+    /**
+     * Remove the given buffer from the idle buffers of its size class.
+     * Must be called while holding the lock.
+     *
+     * @param buffer The buffer
+     */
+    private void removeIdle(StagingBuffer buffer)
+    {
+        PoolKey key = new PoolKey(buffer.getContext(), buffer.getCapacity());
+        idleBuffers.get(key).remove(buffer);
+        idleBytes -= key.size;
+    }
+
+    /**
+     * Unmap and release all buffers of the given context, regardless of
+     * whether they are still used. This is called when the runtime is
+     * shut down, before the command queues are released.
+     *
+     * @param context The context
+     */
+    void release(cl_context context)
+    {
+        List<StagingBuffer> released = new ArrayList<StagingBuffer>();
+        synchronized (this)
+        {
+            Iterator<StagingBuffer> iterator = idleOrder.iterator();
+            while (iterator.hasNext())
+            {
+                StagingBuffer buffer = iterator.next();
+                if (buffer.getContext().equals(context))
+                {
+                    iterator.remove();
+                    removeIdle(buffer);
+                    released.add(buffer);
+                }
+            }
+            iterator = usedBuffers.iterator();
+            while (iterator.hasNext())
+            {
+                StagingBuffer buffer = iterator.next();
+                if (buffer.getContext().equals(context))
+                {
+                    iterator.remove();
+                    released.add(buffer);
+                }
+            }
+        }
+        for (StagingBuffer buffer : released)
+        {
+            buffer.dispose();
+        }
+    }
+
+    /**
+     * Returns the context of the given command queue
+     *
+     * @param commandQueue The command queue
+     * @return The context
+     */
+    private static cl_context getContext(cl_command_queue commandQueue)
+    {
+        cl_context context = new cl_context();
+        clGetCommandQueueInfo(commandQueue, CL_QUEUE_CONTEXT,
+                Sizeof.cl_context, Pointer.to(context), null);
+        return context;
+    }
+}
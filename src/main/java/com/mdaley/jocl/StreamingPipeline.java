@@ -0,0 +1,416 @@
+package com.mdaley.jocl;
+
+import static org.jocl.CL.*;
+
+import java.nio.*;
+
+import org.jocl.*;
+
+/**
+ * A pipeline that streams data of arbitrary size through a device in
+ * chunks, with the transfers of one chunk overlapping the computation
+ * of another. <br />
+ * <br />
+ * The data is provided by a {@link ChunkSource}, processed by a
+ * {@link KernelStage}, and the results are passed to a {@link ChunkSink}.
+ * The pipeline cycles through a fixed number of slots, each consisting of
+ * an input and an output buffer on the device and a pinned staging buffer
+ * for each of them. While chunk k is processed on the compute queue of the
+ * {@link QueueGroup}, chunk k+1 may be uploaded on the upload queue and the
+ * result of chunk k-1 may be downloaded on the download queue. <br />
+ * <br />
+ * The number of slots limits the number of chunks that are in flight:
+ * Before a slot is reused, the host waits until the result of the chunk
+ * that occupied it has been downloaded, and passes it to the sink. So the
+ * source is only asked for more data when there is room for it, and the
+ * results are passed to the sink in the order of the chunks. <br />
+ * <br />
+ * The stages are handed off between the queues with events: The kernel
+ * stage waits for the event of the upload, and signals the event that
+ * the download waits for. Instances only store the configuration, so
+ * that they may be used for multiple runs, but not concurrently.
+ */
+public final class StreamingPipeline
+{
+    /**
+     * The source of the chunks that are streamed through the pipeline
+     */
+    public interface ChunkSource
+    {
+        /**
+         * Put the data of the next chunk into the given buffer, starting
+         * at its position. The number of bytes that have been put into the
+         * buffer, i.e. its position when this method returns, is the size
+         * of the chunk. A chunk of size 0 marks the end of the stream.
+         *
+         * @param buffer The buffer, with the position 0 and the limit at
+         * the maximum chunk size
+         */
+        void fill(ByteBuffer buffer);
+    }
+
+    /**
+     * The computation that is applied to each chunk
+     */
+    public interface KernelStage
+    {
+        /**
+         * Enqueue the commands that process the given input chunk and write
+         * the result into the given output buffer. The commands may only be
+         * enqueued on the given in-order queue, and must not block. The
+         * first command must wait for the given events, which signal the
+         * upload of the input chunk, and the last command must signal the
+         * given event, which the download of the result waits for.
+         *
+         * @param computeQueue The compute queue
+         * @param input The buffer containing the input chunk
+         * @param inputSize The size of the input chunk, in bytes
+         * @param output The buffer for the result
+         * @param waitList The events that the first command waits for
+         * @param event The event that is signalled by the last command
+         */
+        void enqueue(cl_command_queue computeQueue,
+                cl_mem input, long inputSize, cl_mem output,
+                cl_event waitList[], cl_event event);
+    }
+
+    /**
+     * The receiver of the results of the chunks
+     */
+    public interface ChunkSink
+    {
+        /**
+         * Accept the result of the chunk with the given index. The buffer
+         * is only valid during this call.
+         *
+         * @param result The buffer containing the result, with the
+         * position 0 and the limit at the output size
+         * @param chunkIndex The index of the chunk
+         */
+        void accept(ByteBuffer result, long chunkIndex);
+    }
+
+    /**
+     * The device buffers, staging buffers and events of one slot
+     */
+    private static final class Slot
+    {
+        /**
+         * The device buffer for the input chunk
+         */
+        cl_mem input;
+
+        /**
+         * The device buffer for the result
+         */
+        cl_mem output;
+
+        /**
+         * The staging buffer for the input chunk
+         */
+        StagingBuffer inputStaging;
+
+        /**
+         * The staging buffer for the result
+         */
+        StagingBuffer outputStaging;
+
+        /**
+         * The event of the download of the chunk in this slot, or null
+         * if the slot is free
+         */
+        cl_event downloadEvent;
+
+        /**
+         * The index of the chunk in this slot
+         */
+        long chunkIndex;
+    }
+
+    /**
+     * The default number of slots
+     */
+    public static final int DEFAULT_DEPTH = 3;
+
+    /**
+     * The context of the buffers
+     */
+    private final cl_context context;
+
+    /**
+     * The queue group
+     */
+    private final QueueGroup queueGroup;
+
+    /**
+     * The maximum size of a chunk, in bytes
+     */
+    private final long chunkSize;
+
+    /**
+     * The size of the result of a chunk, in bytes
+     */
+    private final long outputSize;
+
+    /**
+     * The number of slots
+     */
+    private final int depth;
+
+    /**
+     * The number of chunks that have been processed
+     */
+    private long chunks;
+
+    /**
+     * The number of input bytes that have been processed
+     */
+    private long bytes;
+
+    /**
+     * Creates a new pipeline with the default number of slots
+     *
+     * @param context The context
+     * @param queueGroup The queue group of a device in the context
+     * @param chunkSize The maximum size of a chunk, in bytes
+     * @param outputSize The size of the result of a chunk, in bytes
+     */
+    public StreamingPipeline(cl_context context, QueueGroup queueGroup,
+            long chunkSize, long outputSize)
+    {
+        this(context, queueGroup, chunkSize, outputSize, DEFAULT_DEPTH);
+    }
+
+    /**
+     * Creates a new pipeline
+     *
+     * @param context The context
+     * @param queueGroup The queue group of a device in the context
+     * @param chunkSize The maximum size of a chunk, in bytes
+     * @param outputSize The size of the result of a chunk, in bytes
+     * @param depth The number of slots, i.e. the maximum number of
+     * chunks that are in flight
+     * @throws IllegalArgumentException If one of the sizes is not
+     * positive or larger than Integer.MAX_VALUE, or the depth is not
+     * positive
+     */
+    public StreamingPipeline(cl_context context, QueueGroup queueGroup,
+            long chunkSize, long outputSize, int depth)
+    {
+        if (chunkSize <= 0 || outputSize <= 0 ||
+                chunkSize > Integer.MAX_VALUE || outputSize > Integer.MAX_VALUE)
+        {
+            throw new IllegalArgumentException("The chunk size and output " +
+                    "size must be in (0, Integer.MAX_VALUE], but are " +
+                    chunkSize + " and " + outputSize);
+        }
+        if (depth <= 0)
+        {
+            throw new IllegalArgumentException(
+                    "The depth must be positive, but is " + depth);
+        }
+        this.context = context;
+        this.queueGroup = queueGroup;
+        this.chunkSize = chunkSize;
+        this.outputSize = outputSize;
+        this.depth = depth;
+    }
+
+    /**
+     * Stream all chunks of the given source through the given stage, and
+     * pass the results to the given sink. This method returns when the
+     * source is exhausted and all results have been passed to the sink.
+     *
+     * @param source The chunk source
+     * @param stage The kernel stage
+     * @param sink The chunk sink
+     * @return The number of chunks
+     */
+    public long run(ChunkSource source, KernelStage stage, ChunkSink sink)
+    {
+        ClRuntime runtime = ClRuntime.getInstance();
+        BufferPool bufferPool = runtime.getBufferPool();
+        StagingBufferPool stagingBufferPool = runtime.getStagingBufferPool();
+        cl_command_queue uploadQueue = queueGroup.getUploadQueue();
+        cl_command_queue computeQueue = queueGroup.getComputeQueue();
+        cl_command_queue downloadQueue = queueGroup.getDownloadQueue();
+
+        Slot slots[] = new Slot[depth];
+        long chunkIndex = 0;
+        try
+        {
+            for (int i = 0; i < depth; i++)
+            {
+                Slot slot = new Slot();
+                slots[i] = slot;
+                slot.input = bufferPool.acquireBuffer(
+                        context, CL_MEM_READ_ONLY, chunkSize);
+                slot.output = bufferPool.acquireBuffer(
+                        context, CL_MEM_WRITE_ONLY, outputSize);
+                slot.inputStaging = stagingBufferPool.acquire(
+                        uploadQueue, chunkSize);
+                slot.outputStaging = stagingBufferPool.acquire(
+                        downloadQueue, outputSize);
+            }
+            while (true)
+            {
+                // Wait until the slot is free, passing the result of the
+                // chunk that occupied it to the sink
+                Slot slot = slots[(int)(chunkIndex % depth)];
+                drain(slot, sink);
+
+                ByteBuffer buffer = slot.inputStaging.asByteBuffer();
+                buffer.limit((int)chunkSize);
+                source.fill(buffer);
+                long size = buffer.position();
+                if (size == 0)
+                {
+                    break;
+                }
+
+                // Upload the chunk, process it when the upload is done,
+                // and download the result when the processing is done
+                cl_event uploadEvent = new cl_event();
+                slot.inputStaging.write(uploadQueue, slot.input, 0, size,
+                        false, null, uploadEvent);
+                clFlush(uploadQueue);
+
+                cl_event computeEvent = new cl_event();
+                try
+                {
+                    stage.enqueue(computeQueue, slot.input, size, slot.output,
+                            new cl_event[]{ uploadEvent }, computeEvent);
+                    clFlush(computeQueue);
+                }
+                finally
+                {
+                    clReleaseEvent(uploadEvent);
+                }
+
+                cl_event downloadEvent = new cl_event();
+                try
+                {
+                    slot.outputStaging.read(downloadQueue, slot.output, 0,
+                            outputSize, false, new cl_event[]{ computeEvent },
+                            downloadEvent);
+                    clFlush(downloadQueue);
+                }
+                finally
+                {
+                    clReleaseEvent(computeEvent);
+                }
+                slot.downloadEvent = downloadEvent;
+                slot.chunkIndex = chunkIndex;
+
+                chunkIndex++;
+                chunks++;
+                bytes += size;
+            }
+
+            // Pass the remaining results to the sink, in chunk order
+            for (int i = 0; i < depth; i++)
+            {
+                drain(slots[(int)((chunkIndex + i) % depth)], sink);
+            }
+        }
+        finally
+        {
+            queueGroup.finish();
+            for (Slot slot : slots)
+            {
+                if (slot != null)
+                {
+                    release(slot, bufferPool);
+                }
+            }
+        }
+        return chunkIndex;
+    }
+
+    /**
+     * Wait for the download of the chunk in the given slot, if any, and
+     * pass its result to the given sink
+     *
+     * @param slot The slot
+     * @param sink The sink
+     */
+    private void drain(Slot slot, ChunkSink sink)
+    {
+        if (slot.downloadEvent == null)
+        {
+            return;
+        }
+        cl_event event = slot.downloadEvent;
+        slot.downloadEvent = null;
+        try
+        {
+            clWaitForEvents(1, new cl_event[]{ event });
+        }
+        finally
+        {
+            clReleaseEvent(event);
+        }
+        ByteBuffer result = slot.outputStaging.asByteBuffer();
+        result.limit((int)outputSize);
+        sink.accept(result, slot.chunkIndex);
+    }
+
+    /**
+     * Release the buffers and the pending event of the given slot
+     *
+     * @param slot The slot
+     * @param bufferPool The buffer pool
+     */
+    private static void release(Slot slot, BufferPool bufferPool)
+    {
+        if (slot.downloadEvent != null)
+        {
+            clReleaseEvent(slot.downloadEvent);
+        }
+        if (slot.input != null)
+        {
+            bufferPool.releaseBuffer(slot.input);
+        }
+        if (slot.output != null)
+        {
+            bufferPool.releaseBuffer(slot.output);
+        }
+        if (slot.inputStaging != null)
+        {
+            slot.inputStaging.release();
+        }
+        if (slot.outputStaging != null)
+        {
+            slot.outputStaging.release();
+        }
+    }
+
+    /**
+     * Returns the number of chunks that have been processed by this
+     * pipeline
+     *
+     * @return The number of chunks
+     */
+    public long getChunks()
+    {
+        return chunks;
+    }
+
+    /**
+     * Returns the number of input bytes that have been processed by
+     * this pipeline
+     *
+     * @return The number of bytes
+     */
+    public long getBytes()
+    {
+        return bytes;
+    }
+
+    @Override
+    public String toString()
+    {
+        return "StreamingPipeline[chunkSize=" + chunkSize + ", depth=" +
+                depth + ", chunks=" + chunks + ", bytes=" + bytes + "]";
+    }
+}
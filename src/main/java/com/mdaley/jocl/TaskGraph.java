@@ -0,0 +1,726 @@
+package com.mdaley.jocl;
+
+import static org.jocl.CL.*;
+
+import java.util.*;
+import java.util.concurrent.*;
+
+import org.jocl.*;
+
+/**
+ * A graph of kernel launches and buffer transfers, whose dependencies are
+ * derived from the memory objects that they read and write. <br />
+ * <br />
+ * The tasks are declared in program order, i.e. in the order in which
+ * they would be enqueued on a single in-order queue, together with the
+ * memory objects that they access. A task depends on the last preceding
+ * task that wrote a memory object that it reads or writes, and on all
+ * preceding tasks that read a memory object that it writes since that
+ * write. Additional dependencies may be declared with
+ * {@link Task#after(Task...)}. <br />
+ * <br />
+ * When the graph is submitted, the tasks are enqueued with event wait
+ * lists that reflect these dependencies, so that independent tasks may
+ * run concurrently. If the device supports out-of-order execution, all
+ * tasks are enqueued on one out-of-order queue of the {@link ClRuntime}.
+ * Otherwise, the graph creates several in-order queues, and each task is
+ * enqueued on the queue of one of its dependencies if possible, so that
+ * independent chains of tasks end up on different queues. <br />
+ * <br />
+ * The arguments of the kernels are captured when the graph is submitted.
+ * The graph may be submitted again, e.g. after the kernel arguments or the
+ * host memory have been updated. Each submission waits for the previous
+ * one on the device, without blocking the host. The events of the tasks
+ * refer to the most recent submission. <br />
+ * <br />
+ * This class is not thread-safe.
+ */
+public final class TaskGraph
+{
+    /**
+     * The number of in-order queues that are used when the device does
+     * not support out-of-order execution
+     */
+    public static final int DEFAULT_NUM_QUEUES = 3;
+
+    /**
+     * The kind of a task that launches a kernel
+     */
+    private static final int KERNEL = 0;
+
+    /**
+     * The kind of a task that writes host memory into a buffer
+     */
+    private static final int WRITE = 1;
+
+    /**
+     * The kind of a task that reads a buffer into host memory
+     */
+    private static final int READ = 2;
+
+    /**
+     * A single kernel launch or buffer transfer in a {@link TaskGraph}
+     */
+    public final class Task
+    {
+        /**
+         * The name of this task
+         */
+        private final String name;
+
+        /**
+         * The kind of this task, KERNEL, WRITE or READ
+         */
+        private final int kind;
+
+        /**
+         * The kernel of a KERNEL task
+         */
+        private final cl_kernel kernel;
+
+        /**
+         * The global work size of a KERNEL task
+         */
+        private final long globalWorkSize[];
+
+        /**
+         * The local work size of a KERNEL task, may be null
+         */
+        private final long localWorkSize[];
+
+        /**
+         * The buffer of a WRITE or READ task
+         */
+        private final cl_mem buffer;
+
+        /**
+         * The offset in the buffer of a WRITE or READ task, in bytes
+         */
+        private final long offset;
+
+        /**
+         * The number of bytes of a WRITE or READ task
+         */
+        private final long size;
+
+        /**
+         * The host memory of a WRITE or READ task
+         */
+        private final Pointer hostPointer;
+
+        /**
+         * The memory objects that are read by this task
+         */
+        private final Set<cl_mem> reads = new LinkedHashSet<cl_mem>();
+
+        /**
+         * The memory objects that are written by this task
+         */
+        private final Set<cl_mem> writes = new LinkedHashSet<cl_mem>();
+
+        /**
+         * The tasks that this task explicitly depends on
+         */
+        private final Set<Task> explicitDependencies =
+                new LinkedHashSet<Task>();
+
+        /**
+         * The dependencies of this task, computed when the graph is
+         * submitted
+         */
+        private final Set<Task> dependencies = new LinkedHashSet<Task>();
+
+        /**
+         * Whether another task depends on this task
+         */
+        private boolean hasDependents;
+
+        /**
+         * The index of the queue that this task is enqueued on
+         */
+        private int queueIndex;
+
+        /**
+         * The event of the most recent submission, or null
+         */
+        private cl_event event;
+
+        /**
+         * Creates a new task
+         *
+         * @param name The name
+         * @param kind The kind
+         * @param kernel The kernel
+         * @param globalWorkSize The global work size
+         * @param localWorkSize The local work size
+         * @param buffer The buffer
+         * @param offset The offset in the buffer
+         * @param size The number of bytes
+         * @param hostPointer The host memory
+         */
+        private Task(String name, int kind, cl_kernel kernel,
+                long globalWorkSize[], long localWorkSize[], cl_mem buffer,
+                long offset, long size, Pointer hostPointer)
+        {
+            this.name = name;
+            this.kind = kind;
+            this.kernel = kernel;
+            this.globalWorkSize = globalWorkSize;
+            this.localWorkSize = localWorkSize;
+            this.buffer = buffer;
+            this.offset = offset;
+            this.size = size;
+            this.hostPointer = hostPointer;
+        }
+
+        /**
+         * Declare that this task reads the given memory objects
+         *
+         * @param mems The memory objects
+         * @return This task
+         */
+        public Task reads(cl_mem ... mems)
+        {
+            reads.addAll(Arrays.asList(mems));
+            return this;
+        }
+
+        /**
+         * Declare that this task writes the given memory objects
+         *
+         * @param mems The memory objects
+         * @return This task
+         */
+        public Task writes(cl_mem ... mems)
+        {
+            writes.addAll(Arrays.asList(mems));
+            return this;
+        }
+
+        /**
+         * Declare that this task may only start after the given tasks
+         * have completed, in addition to the dependencies that are derived
+         * from the memory objects
+         *
+         * @param tasks The tasks, which must have been declared before
+         * this task in the same graph
+         * @return This task
+         * @throws IllegalArgumentException If one of the tasks belongs to
+         * another graph, or was declared after this task
+         */
+        public Task after(Task ... tasks)
+        {
+            for (Task task : tasks)
+            {
+                int index = TaskGraph.this.tasks.indexOf(task);
+                if (index < 0 || index >= TaskGraph.this.tasks.indexOf(this))
+                {
+                    throw new IllegalArgumentException(
+                            "Task " + task.name + " was not declared before " + name);
+                }
+                explicitDependencies.add(task);
+            }
+            return this;
+        }
+
+        /**
+         * Returns the name of this task
+         *
+         * @return The name
+         */
+        public String getName()
+        {
+            return name;
+        }
+
+        /**
+         * Returns the event of the most recent submission of this task.
+         * The event is owned by the graph, and released when the graph is
+         * submitted again or released.
+         *
+         * @return The event, or null if the graph was not submitted yet
+         */
+        public cl_event getEvent()
+        {
+            return event;
+        }
+
+        /**
+         * Returns an unmodifiable view on the tasks that this task depends
+         * on. This is only valid after the graph has been submitted.
+         *
+         * @return The dependencies
+         */
+        public Set<Task> getDependencies()
+        {
+            return Collections.unmodifiableSet(dependencies);
+        }
+
+        /**
+         * Enqueue this task on the given command queue
+         *
+         * @param commandQueue The command queue
+         * @param waitList The events to wait for
+         */
+        private void enqueue(cl_command_queue commandQueue, cl_event waitList[])
+        {
+            int numEvents = waitList.length;
+            cl_event events[] = numEvents == 0 ? null : waitList;
+            event = new cl_event();
+            if (kind == KERNEL)
+            {
+                clEnqueueNDRangeKernel(commandQueue, kernel,
+                        globalWorkSize.length, null, globalWorkSize,
+                        localWorkSize, numEvents, events, event);
+            }
+            else if (kind == WRITE)
+            {
+                clEnqueueWriteBuffer(commandQueue, buffer, CL_FALSE, offset,
+                        size, hostPointer, numEvents, events, event);
+            }
+            else
+            {
+                clEnqueueReadBuffer(commandQueue, buffer, CL_FALSE, offset,
+                        size, hostPointer, numEvents, events, event);
+            }
+        }
+
+        @Override
+        public String toString()
+        {
+            StringBuilder sb = new StringBuilder(name);
+            if (!dependencies.isEmpty())
+            {
+                sb.append(" after");
+                for (Task dependency : dependencies)
+                {
+                    sb.append(" ").append(dependency.name);
+                }
+            }
+            return sb.toString();
+        }
+    }
+
+    /**
+     * The command queues that the tasks are enqueued on
+     */
+    private final cl_command_queue commandQueues[];
+
+    /**
+     * Whether the command queues are owned by this graph
+     */
+    private final boolean ownsCommandQueues;
+
+    /**
+     * The tasks, in program order
+     */
+    private final List<Task> tasks = new ArrayList<Task>();
+
+    /**
+     * The events that the next submission has to wait for
+     */
+    private final List<cl_event> previousEvents = new ArrayList<cl_event>();
+
+    /**
+     * Creates a new graph for the given device, using the default number
+     * of in-order queues if the device does not support out-of-order
+     * execution
+     *
+     * @param device The device
+     * @param properties Additional command queue properties, e.g.
+     * CL_QUEUE_PROFILING_ENABLE
+     */
+    public TaskGraph(cl_device_id device, long properties)
+    {
+        this(device, properties, DEFAULT_NUM_QUEUES);
+    }
+
+    /**
+     * Creates a new graph for the given device
+     *
+     * @param device The device
+     * @param properties Additional command queue properties, e.g.
+     * CL_QUEUE_PROFILING_ENABLE
+     * @param numQueues The number of in-order queues that are created
+     * if the device does not support out-of-order execution
+     * @throws IllegalArgumentException If the number of queues is
+     * not positive
+     */
+    public TaskGraph(cl_device_id device, long properties, int numQueues)
+    {
+        if (numQueues <= 0)
+        {
+            throw new IllegalArgumentException(
+                    "The number of queues must be positive, but is " + numQueues);
+        }
+        ClRuntime runtime = ClRuntime.getInstance();
+        long queueProperties =
+                ClInfo.getLong(device, CL_DEVICE_QUEUE_ON_HOST_PROPERTIES);
+        if ((queueProperties & CL_QUEUE_OUT_OF_ORDER_EXEC_MODE_ENABLE) != 0)
+        {
+            commandQueues = new cl_command_queue[] {
+                    runtime.getCommandQueue(device,
+                            properties | CL_QUEUE_OUT_OF_ORDER_EXEC_MODE_ENABLE) };
+            ownsCommandQueues = false;
+        }
+        else
+        {
+            cl_context context = runtime.getContext(device);
+            commandQueues = new cl_command_queue[numQueues];
+            for (int i = 0; i < numQueues; i++)
+            {
+                commandQueues[i] = ClRuntime.createCommandQueue(
+                        context, device, properties);
+            }
+            ownsCommandQueues = true;
+        }
+    }
+
+    /**
+     * Creates a new graph that distributes its tasks over the given
+     * command queues
+     *
+     * @param commandQueues The command queues
+     * @param ownsCommandQueues Whether the command queues are in-order
+     * queues that are owned by this graph
+     */
+    TaskGraph(cl_command_queue commandQueues[], boolean ownsCommandQueues)
+    {
+        this.commandQueues = commandQueues.clone();
+        this.ownsCommandQueues = ownsCommandQueues;
+    }
+
+    /**
+     * Declare a task that launches the given kernel. The memory objects
+     * that the kernel accesses have to be declared with
+     * {@link Task#reads(cl_mem...)} and {@link Task#writes(cl_mem...)}.
+     *
+     * @param name The name of the task
+     * @param kernel The kernel
+     * @param globalWorkSize The global work size
+     * @param localWorkSize The local work size, may be null
+     * @return The task
+     */
+    public Task kernel(String name, cl_kernel kernel,
+            long globalWorkSize[], long localWorkSize[])
+    {
+        return add(new Task(name, KERNEL, kernel,
+                globalWorkSize.clone(),
+                localWorkSize == null ? null : localWorkSize.clone(),
+                null, 0, 0, null));
+    }
+
+    /**
+     * Declare a task that writes the given host memory into the given
+     * buffer. The host memory must be a direct buffer, and must not be
+     * modified until the task has completed.
+     *
+     * @param name The name of the task
+     * @param dst The buffer
+     * @param dstOffset The offset in the buffer, in bytes
+     * @param size The number of bytes
+     * @param src The host memory
+     * @return The task
+     */
+    public Task write(String name, cl_mem dst, long dstOffset,
+            long size, Pointer src)
+    {
+        return add(new Task(name, WRITE, null, null, null,
+                dst, dstOffset, size, src)).writes(dst);
+    }
+
+    /**
+     * Declare a task that reads the given buffer into the given host
+     * memory. The host memory must be a direct buffer, and must not be
+     * accessed until the task has completed.
+     *
+     * @param name The name of the task
+     * @param src The buffer
+     * @param srcOffset The offset in the buffer, in bytes
+     * @param size The number of bytes
+     * @param dst The host memory
+     * @return The task
+     */
+    public Task read(String name, cl_mem src, long srcOffset,
+            long size, Pointer dst)
+    {
+        return add(new Task(name, READ, null, null, null,
+                src, srcOffset, size, dst)).reads(src);
+    }
+
+    /**
+     * Add the given task to this graph
+     *
+     * @param task The task
+     * @return The task
+     */
+    private Task add(Task task)
+    {
+        tasks.add(task);
+        return task;
+    }
+
+    /**
+     * Returns an unmodifiable view on the tasks of this graph, in
+     * program order
+     *
+     * @return The tasks
+     */
+    public List<Task> getTasks()
+    {
+        return Collections.unmodifiableList(tasks);
+    }
+
+    /**
+     * Returns the number of command queues that the tasks are
+     * distributed over
+     *
+     * @return The number of command queues
+     */
+    public int getNumQueues()
+    {
+        return commandQueues.length;
+    }
+
+    /**
+     * Returns whether the tasks are enqueued on an out-of-order queue
+     *
+     * @return Whether an out-of-order queue is used
+     */
+    public boolean isOutOfOrder()
+    {
+        return !ownsCommandQueues;
+    }
+
+    /**
+     * Enqueue all tasks of this graph, and flush the command queues. This
+     * method does not block. The tasks of this submission start after all
+     * tasks of the previous submission have completed.
+     */
+    public void submit()
+    {
+        computeDependencies();
+
+        // The events of the previous submission are released after the
+        // tasks of this submission have been enqueued to wait for them
+        List<cl_event> oldEvents = new ArrayList<cl_event>();
+        for (Task task : tasks)
+        {
+            if (task.event != null)
+            {
+                oldEvents.add(task.event);
+            }
+        }
+        Task lastTasks[] = new Task[commandQueues.length];
+        int queueSizes[] = new int[commandQueues.length];
+        List<cl_event> waitList = new ArrayList<cl_event>();
+        for (Task task : tasks)
+        {
+            task.queueIndex = selectQueue(task, lastTasks, queueSizes);
+            waitList.clear();
+            for (Task dependency : task.dependencies)
+            {
+                // Dependencies on the same in-order queue are implied
+                if (dependency.queueIndex != task.queueIndex || isOutOfOrder())
+                {
+                    waitList.add(dependency.event);
+                }
+            }
+            if (task.dependencies.isEmpty())
+            {
+                waitList.addAll(previousEvents);
+            }
+            task.enqueue(commandQueues[task.queueIndex],
+                    waitList.toArray(new cl_event[waitList.size()]));
+            lastTasks[task.queueIndex] = task;
+            queueSizes[task.queueIndex]++;
+        }
+        for (cl_command_queue commandQueue : commandQueues)
+        {
+            clFlush(commandQueue);
+        }
+        for (cl_event event : oldEvents)
+        {
+            clReleaseEvent(event);
+        }
+
+        previousEvents.clear();
+        for (Task task : tasks)
+        {
+            if (!task.hasDependents)
+            {
+                previousEvents.add(task.event);
+            }
+        }
+    }
+
+    /**
+     * Submit this graph, and return a future that is completed when all
+     * tasks have completed. This requires OpenCL 1.2.
+     *
+     * @return The future
+     */
+    public CompletableFuture<Void> submitAsync()
+    {
+        submit();
+        if (previousEvents.isEmpty())
+        {
+            return CompletableFuture.completedFuture(null);
+        }
+        cl_event events[] =
+                previousEvents.toArray(new cl_event[previousEvents.size()]);
+        cl_event event = new cl_event();
+        clEnqueueMarkerWithWaitList(
+                commandQueues[0], events.length, events, event);
+        clFlush(commandQueues[0]);
+        return ClFutures.whenComplete(event, null);
+    }
+
+    /**
+     * Wait until all tasks of the most recent submission have completed
+     */
+    public void waitFor()
+    {
+        if (!previousEvents.isEmpty())
+        {
+            clWaitForEvents(previousEvents.size(),
+                    previousEvents.toArray(new cl_event[previousEvents.size()]));
+        }
+    }
+
+    /**
+     * Wait for the most recent submission, and release the events, and
+     * the command queues that have been created by this graph
+     */
+    public void release()
+    {
+        waitFor();
+        releaseEvents();
+        previousEvents.clear();
+        if (ownsCommandQueues)
+        {
+            for (cl_command_queue commandQueue : commandQueues)
+            {
+                clReleaseCommandQueue(commandQueue);
+            }
+        }
+    }
+
+    /**
+     * Compute the dependencies of all tasks from the memory objects that
+     * they access and their explicit dependencies
+     */
+    void computeDependencies()
+    {
+        Map<cl_mem, Task> lastWriters = new HashMap<cl_mem, Task>();
+        Map<cl_mem, List<Task>> lastReaders = new HashMap<cl_mem, List<Task>>();
+        for (Task task : tasks)
+        {
+            task.dependencies.clear();
+            task.hasDependents = false;
+            task.dependencies.addAll(task.explicitDependencies);
+            for (cl_mem mem : task.reads)
+            {
+                addIfNotNull(task.dependencies, lastWriters.get(mem));
+            }
+            for (cl_mem mem : task.writes)
+            {
+                addIfNotNull(task.dependencies, lastWriters.get(mem));
+                List<Task> readers = lastReaders.get(mem);
+                if (readers != null)
+                {
+                    task.dependencies.addAll(readers);
+                }
+            }
+            task.dependencies.remove(task);
+            for (Task dependency : task.dependencies)
+            {
+                dependency.hasDependents = true;
+            }
+
+            for (cl_mem mem : task.reads)
+            {
+                List<Task> readers = lastReaders.get(mem);
+                if (readers == null)
+                {
+                    readers = new ArrayList<Task>();
+                    lastReaders.put(mem, readers);
+                }
+                readers.add(task);
+            }
+            for (cl_mem mem : task.writes)
+            {
+                lastWriters.put(mem, task);
+                lastReaders.remove(mem);
+            }
+        }
+    }
+
+    /**
+     * Add the given task to the given set if it is not null
+     *
+     * @param tasks The set
+     * @param task The task
+     */
+    private static void addIfNotNull(Set<Task> tasks, Task task)
+    {
+        if (task != null)
+        {
+            tasks.add(task);
+        }
+    }
+
+    /**
+     * Select the queue for the given task. If there is a queue whose last
+     * task is a dependency of the given task, then this queue is used, so
+     * that the dependency is implied by the queue order. Otherwise, the
+     * queue with the fewest tasks is used.
+     *
+     * @param task The task
+     * @param lastTasks The last task on each queue
+     * @param queueSizes The number of tasks on each queue
+     * @return The queue index
+     */
+    private static int selectQueue(Task task, Task lastTasks[], int queueSizes[])
+    {
+        for (int i = 0; i < lastTasks.length; i++)
+        {
+            if (lastTasks[i] != null && task.dependencies.contains(lastTasks[i]))
+            {
+                return i;
+            }
+        }
+        int result = 0;
+        for (int i = 1; i < queueSizes.length; i++)
+        {
+            if (queueSizes[i] < queueSizes[result])
+            {
+                result = i;
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Release the events of the most recent submission
+     */
+    private void releaseEvents()
+    {
+        for (Task task : tasks)
+        {
+            if (task.event != null)
+            {
+                clReleaseEvent(task.event);
+                task.event = null;
+            }
+        }
+    }
+
+    @Override
+    public String toString()
+    {
+        return "TaskGraph[" + tasks.size() + " tasks, " +
+                commandQueues.length + (isOutOfOrder() ?
+                        " out-of-order queue]" : " in-order queues]");
+    }
+}
@@ -0,0 +1,611 @@
+package com.mdaley.jocl;
+
+import static org.jocl.CL.*;
+
+import java.io.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import org.jocl.*;
+
+/**
+ * An auto-tuner for the launch geometry of kernels, i.e. the global and
+ * local work sizes. <br />
+ * <br />
+ * The caller provides a list of candidate geometries and a
+ * {@link Launcher} that enqueues the kernel with a given geometry. The
+ * tuner launches each candidate a few times, and selects the one with the
+ * lowest execution time. Candidates that can not be launched on the device,
+ * e.g. because their local work size exceeds CL_KERNEL_WORK_GROUP_SIZE or
+ * the local memory, are skipped. Suitable local work sizes can be obtained
+ * with {@link #localSizes(cl_kernel, cl_device_id)} and
+ * {@link #localSizes2D(cl_kernel, cl_device_id)}, which are multiples of
+ * the CL_KERNEL_PREFERRED_WORK_GROUP_SIZE_MULTIPLE. <br />
+ * <br />
+ * The winners are stored for each kernel, variant, device and problem size
+ * bucket. The variant is usually the build options of the program, because
+ * the compile-time constants may change the best geometry. The bucket is
+ * the problem size rounded up to a power of two. The winners
+ * are saved as a properties file in the directory
+ * <code>~/.jocl-samples/tuning</code>, which may be changed with the system
+ * property <code>jocl.tuning.dir</code>, with a file name that is derived
+ * from the device name and driver version, like for the
+ * {@link DeviceProfile}. Later runs use the stored winners without
+ * benchmarking. Tuning may be disabled with the system property
+ * <code>jocl.tuning=false</code>, in which case the first candidate is
+ * used. <br />
+ * <br />
+ * The candidates are benchmarked without holding the lock of the tuner,
+ * so that other kernels may be tuned or looked up concurrently. While a
+ * kernel is benchmarked for a key, concurrent calls for the same key use
+ * the first candidate. The winners and failures to read or write the file
+ * are reported to the <code>java.util.logging</code> logger of this class.
+ */
+public final class WorkGroupTuner
+{
+    /**
+     * The enqueueing of a kernel with a given geometry
+     */
+    public interface Launcher
+    {
+        /**
+         * Set the arguments of the kernel for the given geometry, and
+         * enqueue it on the queue that was passed to the tuner. This
+         * method must not block.
+         *
+         * @param globalWorkSize The global work size
+         * @param localWorkSize The local work size, may be null
+         */
+        void launch(long globalWorkSize[], long localWorkSize[]);
+    }
+
+    /**
+     * A launch geometry, consisting of a global and an optional local
+     * work size
+     */
+    public static final class Geometry
+    {
+        /**
+         * The global work size
+         */
+        private final long globalWorkSize[];
+
+        /**
+         * The local work size, or null
+         */
+        private final long localWorkSize[];
+
+        /**
+         * Creates a new geometry
+         *
+         * @param globalWorkSize The global work size
+         * @param localWorkSize The local work size, may be null
+         * @throws IllegalArgumentException If the local work size does
+         * not have the same number of dimensions as the global work size
+         */
+        public Geometry(long globalWorkSize[], long localWorkSize[])
+        {
+            if (localWorkSize != null &&
+                    localWorkSize.length != globalWorkSize.length)
+            {
+                throw new IllegalArgumentException(
+                        "The global and local work sizes have different " +
+                        "dimensions: " + Arrays.toString(globalWorkSize) +
+                        " and " + Arrays.toString(localWorkSize));
+            }
+            this.globalWorkSize = globalWorkSize.clone();
+            this.localWorkSize =
+                    localWorkSize == null ? null : localWorkSize.clone();
+        }
+
+        /**
+         * Returns the global work size
+         *
+         * @return The global work size
+         */
+        public long[] getGlobalWorkSize()
+        {
+            return globalWorkSize.clone();
+        }
+
+        /**
+         * Returns the local work size
+         *
+         * @return The local work size, or null
+         */
+        public long[] getLocalWorkSize()
+        {
+            return localWorkSize == null ? null : localWorkSize.clone();
+        }
+
+        /**
+         * Parse a geometry from the given string, as it was created
+         * with {@link #toString()}
+         *
+         * @param s The string
+         * @return The geometry
+         * @throws IllegalArgumentException If the string is not valid
+         */
+        static Geometry parse(String s)
+        {
+            String parts[] = s.trim().split("/");
+            if (parts.length != 2)
+            {
+                throw new IllegalArgumentException("Invalid geometry: " + s);
+            }
+            long global[] = parseSizes(parts[0]);
+            long local[] = parts[1].equals("null") ? null : parseSizes(parts[1]);
+            return new Geometry(global, local);
+        }
+
+        /**
+         * Parse a comma-separated list of sizes
+         *
+         * @param s The string
+         * @return The sizes
+         * @throws NumberFormatException If the string is not valid
+         */
+        private static long[] parseSizes(String s)
+        {
+            String tokens[] = s.split(",");
+            long sizes[] = new long[tokens.length];
+            for (int i = 0; i < tokens.length; i++)
+            {
+                sizes[i] = Long.parseLong(tokens[i].trim());
+            }
+            return sizes;
+        }
+
+        /**
+         * Returns the given sizes as a comma-separated list
+         *
+         * @param sizes The sizes
+         * @return The string
+         */
+        private static String format(long sizes[])
+        {
+            if (sizes == null)
+            {
+                return "null";
+            }
+            StringBuilder sb = new StringBuilder();
+            for (int i = 0; i < sizes.length; i++)
+            {
+                if (i > 0)
+                {
+                    sb.append(",");
+                }
+                sb.append(sizes[i]);
+            }
+            return sb.toString();
+        }
+
+        @Override
+        public int hashCode()
+        {
+            return Arrays.hashCode(globalWorkSize) * 31 +
+                    Arrays.hashCode(localWorkSize);
+        }
+
+        @Override
+        public boolean equals(Object object)
+        {
+            if (this == object)
+            {
+                return true;
+            }
+            if (!(object instanceof Geometry))
+            {
+                return false;
+            }
+            Geometry other = (Geometry) object;
+            return Arrays.equals(globalWorkSize, other.globalWorkSize) &&
+                    Arrays.equals(localWorkSize, other.localWorkSize);
+        }
+
+        @Override
+        public String toString()
+        {
+            return format(globalWorkSize) + "/" + format(localWorkSize);
+        }
+    }
+
+    /**
+     * The logger for the winners and for failures to read or write them
+     */
+    private static final Logger logger =
+            Logger.getLogger(WorkGroupTuner.class.getName());
+
+    /**
+     * The tuners, one for each device
+     */
+    private static final ConcurrentMap<cl_device_id, WorkGroupTuner>
+            tuners = new ConcurrentHashMap<cl_device_id, WorkGroupTuner>();
+
+    /**
+     * The number of timed launches of each candidate
+     */
+    private static final int REPETITIONS = 5;
+
+    /**
+     * The largest local work size in one dimension that is considered
+     * by {@link #localSizes2D(cl_kernel, cl_device_id)}
+     */
+    private static final long MAX_LOCAL_SIZE_2D = 64;
+
+    /**
+     * The name of the device
+     */
+    private final String deviceName;
+
+    /**
+     * The file where the winners are stored
+     */
+    private final File file;
+
+    /**
+     * The winners, with keys of the form
+     * <code>kernelName[variant].2^bucket</code>
+     */
+    private final Properties winners = new Properties();
+
+    /**
+     * The keys whose candidates are currently benchmarked
+     */
+    private final Set<String> tuning = new HashSet<String>();
+
+    /**
+     * Creates a new tuner for the given device, and loads the stored
+     * winners for the device
+     *
+     * @param device The device
+     */
+    private WorkGroupTuner(cl_device_id device)
+    {
+        this.deviceName = DeviceCapabilities.of(device).getName();
+        String driverVersion =
+                ClInfo.getString(device, CL_DRIVER_VERSION).trim();
+        String name = (deviceName + "_" + driverVersion)
+                .replaceAll("[^A-Za-z0-9._-]+", "_");
+        this.file = new File(getDirectory(), name + ".properties");
+        if (file.exists())
+        {
+            try (InputStream inputStream = new FileInputStream(file))
+            {
+                winners.load(inputStream);
+            }
+            catch (IOException e)
+            {
+                logger.log(Level.WARNING,
+                        "Could not read tuning results " + file, e);
+            }
+        }
+    }
+
+    /**
+     * Returns the tuner for the given device
+     *
+     * @param device The device
+     * @return The tuner
+     */
+    public static WorkGroupTuner of(cl_device_id device)
+    {
+        WorkGroupTuner tuner = tuners.get(device);
+        if (tuner == null)
+        {
+            tuner = new WorkGroupTuner(device);
+            WorkGroupTuner existing = tuners.putIfAbsent(device, tuner);
+            if (existing != null)
+            {
+                tuner = existing;
+            }
+        }
+        return tuner;
+    }
+
+    /**
+     * Returns the directory where the tuning results are stored
+     *
+     * @return The directory
+     */
+    public static File getDirectory()
+    {
+        return new File(System.getProperty("jocl.tuning.dir",
+                System.getProperty("user.home") + File.separator +
+                ".jocl-samples" + File.separator + "tuning"));
+    }
+
+    /**
+     * Returns the bucket of the given problem size, which is the
+     * exponent of the smallest power of two that is not smaller
+     * than the problem size
+     *
+     * @param problemSize The problem size
+     * @return The bucket
+     */
+    static int bucket(long problemSize)
+    {
+        if (problemSize <= 1)
+        {
+            return 0;
+        }
+        return 64 - Long.numberOfLeadingZeros(problemSize - 1);
+    }
+
+    /**
+     * Returns the key for the given kernel, variant and problem size.
+     * Whitespace in the variant is normalized.
+     *
+     * @param kernelName The kernel name
+     * @param variant The variant, may be null
+     * @param problemSize The problem size
+     * @return The key
+     */
+    static String key(String kernelName, String variant, long problemSize)
+    {
+        String v = variant == null ? "" :
+                variant.trim().replaceAll("\\s+", " ");
+        return kernelName + (v.isEmpty() ? "" : "[" + v + "]") +
+                ".2^" + bucket(problemSize);
+    }
+
+    /**
+     * Returns the stored winner for the given kernel, variant and
+     * problem size
+     *
+     * @param kernelName The name of the kernel
+     * @param variant The variant of the kernel, usually the build
+     * options of the program, may be null
+     * @param problemSize The problem size
+     * @return The geometry, or null if no winner has been stored
+     */
+    public synchronized Geometry getStored(
+            String kernelName, String variant, long problemSize)
+    {
+        String value = winners.getProperty(
+                key(kernelName, variant, problemSize));
+        if (value == null)
+        {
+            return null;
+        }
+        try
+        {
+            return Geometry.parse(value);
+        }
+        catch (IllegalArgumentException e)
+        {
+            logger.log(Level.WARNING, "Ignoring invalid tuning result " +
+                    value + " for " + kernelName, e);
+            return null;
+        }
+    }
+
+    /**
+     * Returns the best geometry for the given kernel, variant and problem
+     * size. If a winner has been stored for the problem size bucket and it
+     * is one of the candidates, it is returned. Otherwise, the candidates
+     * are benchmarked with the given launcher, and the winner is stored.
+     * If the same key is benchmarked by another thread, the first
+     * candidate is returned. The launches that are performed for the
+     * benchmark compute the same results as a regular launch.
+     *
+     * @param queue The queue that the launcher enqueues the kernel on
+     * @param kernelName The name of the kernel
+     * @param variant The variant of the kernel, usually the build
+     * options of the program, may be null
+     * @param problemSize The problem size
+     * @param candidates The candidate geometries, the first one being
+     * the default
+     * @param launcher The launcher
+     * @return The best geometry
+     * @throws IllegalArgumentException If no candidates are given
+     * @throws CLException If none of the candidates can be launched
+     */
+    public Geometry tune(cl_command_queue queue, String kernelName,
+            String variant, long problemSize, List<Geometry> candidates,
+            Launcher launcher)
+    {
+        if (candidates.isEmpty())
+        {
+            throw new IllegalArgumentException("No candidates given");
+        }
+        String key = key(kernelName, variant, problemSize);
+        synchronized (this)
+        {
+            Geometry stored = getStored(kernelName, variant, problemSize);
+            if (stored != null && candidates.contains(stored))
+            {
+                return stored;
+            }
+            if ("false".equalsIgnoreCase(System.getProperty("jocl.tuning")) ||
+                    !tuning.add(key))
+            {
+                return candidates.get(0);
+            }
+        }
+
+        Geometry best = null;
+        long bestNs = Long.MAX_VALUE;
+        try
+        {
+            CLException failure = null;
+            for (Geometry candidate : candidates)
+            {
+                try
+                {
+                    long ns = measure(queue, candidate, launcher);
+                    if (ns < bestNs)
+                    {
+                        best = candidate;
+                        bestNs = ns;
+                    }
+                }
+                catch (CLException e)
+                {
+                    // The candidate can not be launched on this device
+                    failure = e;
+                    clFinish(queue);
+                }
+            }
+            if (best == null)
+            {
+                throw failure;
+            }
+        }
+        finally
+        {
+            synchronized (this)
+            {
+                tuning.remove(key);
+            }
+        }
+        if (logger.isLoggable(Level.FINE))
+        {
+            logger.fine(String.format(Locale.ENGLISH,
+                    "Tuned %s on %s: %s (%.3f ms, %d candidates)", key,
+                    deviceName, best, bestNs / 1e6, candidates.size()));
+        }
+        synchronized (this)
+        {
+            winners.setProperty(key, best.toString());
+            save();
+        }
+        return best;
+    }
+
+    /**
+     * Measure the execution time of the given geometry, as the minimum
+     * of a few launches after a warm-up launch
+     *
+     * @param queue The queue
+     * @param geometry The geometry
+     * @param launcher The launcher
+     * @return The time, in nanoseconds
+     * @throws CLException If the geometry can not be launched
+     */
+    private static long measure(
+            cl_command_queue queue, Geometry geometry, Launcher launcher)
+    {
+        launcher.launch(geometry.getGlobalWorkSize(),
+                geometry.getLocalWorkSize());
+        clFinish(queue);
+        long bestNs = Long.MAX_VALUE;
+        for (int i = 0; i < REPETITIONS; i++)
+        {
+            long before = System.nanoTime();
+            launcher.launch(geometry.getGlobalWorkSize(),
+                    geometry.getLocalWorkSize());
+            clFinish(queue);
+            bestNs = Math.min(bestNs, System.nanoTime() - before);
+        }
+        return bestNs;
+    }
+
+    /**
+     * Save the winners to the file of this tuner. Must be called while
+     * holding the monitor.
+     */
+    private void save()
+    {
+        File directory = file.getParentFile();
+        if (!directory.isDirectory() && !directory.mkdirs())
+        {
+            logger.warning("Could not create directory " + directory);
+            return;
+        }
+        try (OutputStream outputStream = new FileOutputStream(file))
+        {
+            winners.store(outputStream, "Work-group sizes for " + deviceName);
+        }
+        catch (IOException e)
+        {
+            logger.log(Level.WARNING,
+                    "Could not write tuning results " + file, e);
+        }
+    }
+
+    /**
+     * Returns candidate 1D local work sizes for the given kernel on the
+     * given device: The CL_KERNEL_PREFERRED_WORK_GROUP_SIZE_MULTIPLE and
+     * its multiples by powers of two, up to the CL_KERNEL_WORK_GROUP_SIZE
+     *
+     * @param kernel The kernel
+     * @param device The device
+     * @return The local work sizes
+     */
+    public static List<Long> localSizes(cl_kernel kernel, cl_device_id device)
+    {
+        long maxSize = getKernelSize(
+                kernel, device, CL_KERNEL_WORK_GROUP_SIZE);
+        long multiple = Math.max(1, getKernelSize(kernel, device,
+                CL_KERNEL_PREFERRED_WORK_GROUP_SIZE_MULTIPLE));
+        List<Long> sizes = new ArrayList<Long>();
+        for (long size = multiple; size <= maxSize; size *= 2)
+        {
+            sizes.add(size);
+        }
+        if (sizes.isEmpty())
+        {
+            sizes.add(maxSize);
+        }
+        return sizes;
+    }
+
+    /**
+     * Returns candidate 2D local work sizes for the given kernel on the
+     * given device: Pairs of powers of two whose product is a multiple of
+     * the CL_KERNEL_PREFERRED_WORK_GROUP_SIZE_MULTIPLE and not larger than
+     * the CL_KERNEL_WORK_GROUP_SIZE
+     *
+     * @param kernel The kernel
+     * @param device The device
+     * @return The local work sizes
+     */
+    public static List<long[]> localSizes2D(
+            cl_kernel kernel, cl_device_id device)
+    {
+        long maxSize = getKernelSize(
+                kernel, device, CL_KERNEL_WORK_GROUP_SIZE);
+        long multiple = Math.max(1, getKernelSize(kernel, device,
+                CL_KERNEL_PREFERRED_WORK_GROUP_SIZE_MULTIPLE));
+        List<long[]> sizes = new ArrayList<long[]>();
+        for (long x = 1; x <= MAX_LOCAL_SIZE_2D; x *= 2)
+        {
+            for (long y = 1; y <= MAX_LOCAL_SIZE_2D; y *= 2)
+            {
+                long size = x * y;
+                if (size <= maxSize && size % multiple == 0)
+                {
+                    sizes.add(new long[]{ x, y });
+                }
+            }
+        }
+        return sizes;
+    }
+
+    /**
+     * Returns the given size_t work group info of the given kernel
+     *
+     * @param kernel The kernel
+     * @param device The device
+     * @param paramName The parameter name
+     * @return The value
+     */
+    private static long getKernelSize(
+            cl_kernel kernel, cl_device_id device, int paramName)
+    {
+        long value[] = new long[1];
+        clGetKernelWorkGroupInfo(kernel, device, paramName,
+                Sizeof.size_t, Pointer.to(value), null);
+        return value[0];
+    }
+
+    @Override
+    public synchronized String toString()
+    {
+        return "WorkGroupTuner[" + deviceName + ", " + winners.size() +
+                " winners]";
+    }
+}
@@ -0,0 +1,533 @@
+package com.mdaley.jocl;
+
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.function.*;
+
+/**
+ * A scheduler that distributes work items over multiple workers, usually
+ * one for each device, with a deque for each worker and work stealing.
+ * <br />
+ * <br />
+ * Each worker has a thread that takes items from the head of its own deque
+ * and passes them to {@link Worker#execute(Object)}, which only enqueues
+ * the work and returns a future that is completed when the item is done.
+ * A worker whose deque is empty steals the item at the tail of the
+ * longest deque of another worker, so that no device is idle while there
+ * is pending work. <br />
+ * <br />
+ * Several items may be in flight for each worker, to keep its device busy
+ * while the results of the previous items are transferred and processed.
+ * The number of items in flight is adapted to the throughput that is
+ * measured for each worker: The fastest worker may have the maximum number
+ * of items in flight, and the others proportionally fewer, but at least
+ * one. This way, slow devices do not take more items than they can
+ * complete while faster devices could already process them. New items are
+ * added to the deque of the worker that is expected to become free
+ * first. <br />
+ * <br />
+ * An item fails when {@link Worker#execute(Object)} throws an exception,
+ * or when the returned future is completed exceptionally. The first
+ * failure is thrown by the next call to {@link #awaitIdle()}. <br />
+ * <br />
+ * The worker threads are daemon threads, and are stopped with
+ * {@link #shutdown()}.
+ *
+ * @param <T> The type of the work items
+ */
+public final class WorkStealingScheduler<T>
+{
+    /**
+     * The executor of the work items of one worker
+     *
+     * @param <T> The type of the work items
+     */
+    public interface Worker<T>
+    {
+        /**
+         * Start the execution of the given item, and return a future that
+         * is completed when the item is done. This method is called on the
+         * thread of the worker, and should not block until the item is
+         * done.
+         *
+         * @param item The item
+         * @return The future
+         */
+        CompletableFuture<?> execute(T item);
+    }
+
+    /**
+     * The state of one worker
+     */
+    private final class WorkerState implements Runnable
+    {
+        /**
+         * The index of the worker
+         */
+        private final int index;
+
+        /**
+         * The worker
+         */
+        private final Worker<T> worker;
+
+        /**
+         * The deque of pending items
+         */
+        private final Deque<T> deque = new ArrayDeque<T>();
+
+        /**
+         * The number of items in flight
+         */
+        private int inFlight;
+
+        /**
+         * The maximum number of items in flight
+         */
+        private int inFlightLimit;
+
+        /**
+         * The measured throughput, in items per second, or 0.0 if no
+         * item has been completed yet
+         */
+        private double throughput;
+
+        /**
+         * The time when the current measurement interval started, in
+         * nanoseconds
+         */
+        private long intervalStart;
+
+        /**
+         * The number of completed items
+         */
+        private long completed;
+
+        /**
+         * The number of failed items
+         */
+        private long failed;
+
+        /**
+         * The number of items that this worker stole from others
+         */
+        private long stolen;
+
+        /**
+         * Creates a new state for the given worker
+         *
+         * @param index The index of the worker
+         * @param worker The worker
+         */
+        WorkerState(int index, Worker<T> worker)
+        {
+            this.index = index;
+            this.worker = worker;
+            this.inFlightLimit = initialInFlight;
+        }
+
+        @Override
+        public void run()
+        {
+            while (!Thread.currentThread().isInterrupted())
+            {
+                T item;
+                synchronized (WorkStealingScheduler.this)
+                {
+                    try
+                    {
+                        item = next(this);
+                        while (item == null)
+                        {
+                            WorkStealingScheduler.this.wait();
+                            item = next(this);
+                        }
+                    }
+                    catch (InterruptedException e)
+                    {
+                        Thread.currentThread().interrupt();
+                        break;
+                    }
+                    if (inFlight == 0)
+                    {
+                        intervalStart = System.nanoTime();
+                    }
+                    inFlight++;
+                }
+                CompletableFuture<?> future;
+                try
+                {
+                    future = worker.execute(item);
+                }
+                catch (RuntimeException e)
+                {
+                    CompletableFuture<Object> failed =
+                            new CompletableFuture<Object>();
+                    failed.completeExceptionally(e);
+                    future = failed;
+                }
+                future.whenComplete(new BiConsumer<Object, Throwable>()
+                {
+                    @Override
+                    public void accept(Object result, Throwable failure)
+                    {
+                        completed(WorkerState.this, failure);
+                    }
+                });
+            }
+        }
+    }
+
+    /**
+     * The default maximum number of items in flight for each worker
+     */
+    public static final int DEFAULT_MAX_IN_FLIGHT = 4;
+
+    /**
+     * The weight of a new measurement in the throughput average
+     */
+    private static final double SMOOTHING = 0.25;
+
+    /**
+     * The states of the workers
+     */
+    private final List<WorkerState> states = new ArrayList<WorkerState>();
+
+    /**
+     * The threads of the workers
+     */
+    private final List<Thread> threads = new ArrayList<Thread>();
+
+    /**
+     * The maximum number of items in flight for each worker
+     */
+    private final int maxInFlight;
+
+    /**
+     * The number of items in flight for workers without a measured
+     * throughput
+     */
+    private final int initialInFlight;
+
+    /**
+     * The first failure of an item since the last call to
+     * {@link #awaitIdle()}, or null
+     */
+    private Throwable failure;
+
+    /**
+     * Creates a new scheduler with the default maximum number of items in
+     * flight, and starts the worker threads
+     *
+     * @param name The name prefix for the threads
+     * @param workers The workers
+     */
+    public WorkStealingScheduler(String name, List<? extends Worker<T>> workers)
+    {
+        this(name, workers, DEFAULT_MAX_IN_FLIGHT);
+    }
+
+    /**
+     * Creates a new scheduler and starts the worker threads
+     *
+     * @param name The name prefix for the threads
+     * @param workers The workers
+     * @param maxInFlight The maximum number of items in flight for
+     * each worker
+     * @throws IllegalArgumentException If no workers are given, or the
+     * maximum number of items in flight is not positive
+     */
+    public WorkStealingScheduler(String name,
+            List<? extends Worker<T>> workers, int maxInFlight)
+    {
+        if (workers.isEmpty())
+        {
+            throw new IllegalArgumentException("No workers given");
+        }
+        if (maxInFlight <= 0)
+        {
+            throw new IllegalArgumentException(
+                    "The maximum number of items in flight must be " +
+                    "positive, but is " + maxInFlight);
+        }
+        this.maxInFlight = maxInFlight;
+        this.initialInFlight = Math.max(1, maxInFlight / 2);
+        for (int i = 0; i < workers.size(); i++)
+        {
+            WorkerState state = new WorkerState(i, workers.get(i));
+            states.add(state);
+            Thread thread = new Thread(state, name + "-" + i);
+            thread.setDaemon(true);
+            threads.add(thread);
+        }
+        for (Thread thread : threads)
+        {
+            thread.start();
+        }
+    }
+
+    /**
+     * Add the given item to the deque of the worker that is expected to
+     * become free first
+     *
+     * @param item The item
+     */
+    public synchronized void submit(T item)
+    {
+        WorkerState best = null;
+        double bestTime = Double.MAX_VALUE;
+        for (WorkerState state : states)
+        {
+            double rate = state.throughput > 0 ? state.throughput : 1.0;
+            double time = (state.deque.size() + state.inFlight) / rate;
+            if (time < bestTime)
+            {
+                best = state;
+                bestTime = time;
+            }
+        }
+        best.deque.addLast(item);
+        notifyAll();
+    }
+
+    /**
+     * Remove all pending items that have not been started yet
+     *
+     * @return The removed items
+     */
+    public synchronized List<T> clear()
+    {
+        List<T> removed = new ArrayList<T>();
+        for (WorkerState state : states)
+        {
+            removed.addAll(state.deque);
+            state.deque.clear();
+        }
+        return removed;
+    }
+
+    /**
+     * Wait until no items are pending or in flight. If an item failed
+     * since the previous call, then the failure is reset and thrown.
+     *
+     * @throws InterruptedException If the thread is interrupted
+     * @throws ExecutionException If an item failed, with the first
+     * failure as its cause
+     */
+    public synchronized void awaitIdle()
+            throws InterruptedException, ExecutionException
+    {
+        while (!isIdle())
+        {
+            wait();
+        }
+        if (failure != null)
+        {
+            Throwable cause = failure;
+            failure = null;
+            throw new ExecutionException(cause);
+        }
+    }
+
+    /**
+     * Returns whether no items are pending or in flight
+     *
+     * @return Whether this scheduler is idle
+     */
+    private boolean isIdle()
+    {
+        for (WorkerState state : states)
+        {
+            if (state.inFlight > 0 || !state.deque.isEmpty())
+            {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Returns the next item for the given worker, from its own deque or
+     * stolen from the longest deque of another worker, or null if the
+     * worker has reached its limit of items in flight or there are no
+     * pending items. Must be called while holding the monitor.
+     *
+     * @param state The worker state
+     * @return The next item, or null
+     */
+    private T next(WorkerState state)
+    {
+        if (state.inFlight >= state.inFlightLimit)
+        {
+            return null;
+        }
+        T item = state.deque.pollFirst();
+        if (item != null)
+        {
+            return item;
+        }
+        WorkerState victim = null;
+        for (WorkerState other : states)
+        {
+            if (other != state && !other.deque.isEmpty() &&
+                    (victim == null || other.deque.size() > victim.deque.size()))
+            {
+                victim = other;
+            }
+        }
+        if (victim == null)
+        {
+            return null;
+        }
+        state.stolen++;
+        return victim.deque.pollLast();
+    }
+
+    /**
+     * Called when an item of the given worker has been completed. Updates
+     * the throughput of the worker and the limits of items in flight,
+     * and records the given failure.
+     *
+     * @param state The worker state
+     * @param itemFailure The failure of the item, or null
+     */
+    private synchronized void completed(WorkerState state, Throwable itemFailure)
+    {
+        if (itemFailure != null)
+        {
+            state.failed++;
+            if (failure == null)
+            {
+                failure = itemFailure instanceof CompletionException &&
+                        itemFailure.getCause() != null ?
+                        itemFailure.getCause() : itemFailure;
+            }
+        }
+        long now = System.nanoTime();
+        double seconds = Math.max(1, now - state.intervalStart) / 1e9;
+        double rate = 1.0 / seconds;
+        state.intervalStart = now;
+        state.throughput = state.throughput == 0 ? rate :
+            (1 - SMOOTHING) * state.throughput + SMOOTHING * rate;
+        state.inFlight--;
+        state.completed++;
+
+        double maxThroughput = 0;
+        for (WorkerState s : states)
+        {
+            maxThroughput = Math.max(maxThroughput, s.throughput);
+        }
+        for (WorkerState s : states)
+        {
+            if (s.throughput > 0)
+            {
+                int limit = (int)Math.round(
+                        maxInFlight * s.throughput / maxThroughput);
+                s.inFlightLimit = Math.max(1, Math.min(maxInFlight, limit));
+            }
+        }
+        notifyAll();
+    }
+
+    /**
+     * Returns the number of workers
+     *
+     * @return The number of workers
+     */
+    public int getNumWorkers()
+    {
+        return states.size();
+    }
+
+    /**
+     * Returns the measured throughput of the worker with the given index
+     *
+     * @param index The index of the worker
+     * @return The throughput, in items per second, or 0.0 if no item has
+     * been completed yet
+     */
+    public synchronized double getThroughput(int index)
+    {
+        return states.get(index).throughput;
+    }
+
+    /**
+     * Returns the current maximum number of items in flight for the
+     * worker with the given index
+     *
+     * @param index The index of the worker
+     * @return The maximum number of items in flight
+     */
+    public synchronized int getInFlightLimit(int index)
+    {
+        return states.get(index).inFlightLimit;
+    }
+
+    /**
+     * Returns the number of items that have been completed by the worker
+     * with the given index
+     *
+     * @param index The index of the worker
+     * @return The number of completed items
+     */
+    public synchronized long getCompleted(int index)
+    {
+        return states.get(index).completed;
+    }
+
+    /**
+     * Returns the number of items of the worker with the given index
+     * that failed
+     *
+     * @param index The index of the worker
+     * @return The number of failed items
+     */
+    public synchronized long getFailed(int index)
+    {
+        return states.get(index).failed;
+    }
+
+    /**
+     * Returns the number of items that the worker with the given index
+     * stole from other workers
+     *
+     * @param index The index of the worker
+     * @return The number of stolen items
+     */
+    public synchronized long getStolen(int index)
+    {
+        return states.get(index).stolen;
+    }
+
+    /**
+     * Stop the worker threads. Items that are in flight are still
+     * completed, but pending items are not started.
+     */
+    public void shutdown()
+    {
+        for (Thread thread : threads)
+        {
+            thread.interrupt();
+        }
+    }
+
+    @Override
+    public synchronized String toString()
+    {
+        StringBuilder sb = new StringBuilder("WorkStealingScheduler[");
+        for (WorkerState state : states)
+        {
+            if (state.index > 0)
+            {
+                sb.append(", ");
+            }
+            sb.append(state.index).append(": ").append(state.completed)
+                .append(" completed, ").append(state.failed)
+                .append(" failed, ").append(state.stolen)
+                .append(" stolen, ").append(state.inFlightLimit)
+                .append(" in flight");
+        }
+        sb.append("]");
+        return sb.toString();
+    }
+}
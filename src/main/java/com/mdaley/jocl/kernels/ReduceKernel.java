@@ -0,0 +1,132 @@
+package com.mdaley.jocl.kernels;
+
+import static org.jocl.CL.*;
+
+import com.mdaley.jocl.ClInfo;
+import com.mdaley.jocl.KernelArgs;
+import com.mdaley.jocl.LocalBuffer;
+import org.jocl.*;
+
+/**
+ * Facade for the <code>reduce</code> kernel of <code>/reduction.cl</code>. <br />
+ * <br />
+ * This class was generated by the
+ * {@link com.mdaley.jocl.KernelFacadeGenerator} from the kernel argument
+ * info, and should not be edited. Like the kernel itself, instances
+ * are not thread-safe.
+ */
+public final class ReduceKernel
+{
+    /**
+     * The name of the kernel
+     */
+    public static final String NAME = "reduce";
+
+    /**
+     * The number of arguments of the kernel
+     */
+    public static final int NUM_ARGS = 4;
+
+    /**
+     * The argument binder for the kernel
+     */
+    private final KernelArgs args;
+
+    /**
+     * Creates a new facade for a new instance of the kernel in the
+     * given program
+     *
+     * @param program The program
+     */
+    public ReduceKernel(cl_program program)
+    {
+        this(clCreateKernel(program, NAME, null));
+    }
+
+    /**
+     * Creates a new facade for the given kernel
+     *
+     * @param kernel The kernel
+     * @throws IllegalArgumentException If the kernel does not have the
+     * expected number of arguments
+     */
+    public ReduceKernel(cl_kernel kernel)
+    {
+        int numArgs = ClInfo.getInt(kernel, CL_KERNEL_NUM_ARGS);
+        if (numArgs != NUM_ARGS)
+        {
+            throw new IllegalArgumentException("The kernel has " + numArgs +
+                    " arguments, expected " + NUM_ARGS);
+        }
+        this.args = new KernelArgs(kernel, NUM_ARGS);
+    }
+
+    /**
+     * Returns the kernel
+     *
+     * @return The kernel
+     */
+    public cl_kernel getKernel()
+    {
+        return args.getKernel();
+    }
+
+    /**
+     * Returns the argument binder for the kernel
+     *
+     * @return The argument binder
+     */
+    public KernelArgs getArgs()
+    {
+        return args;
+    }
+
+    /**
+     * Set the arguments of the kernel
+     *
+     * @param buffer <code>__global float* buffer</code>
+     * @param scratch <code>__local float* scratch</code>
+     * @param length <code>const int length</code>
+     * @param result <code>__global float* result</code>
+     * @return This instance
+     */
+    public ReduceKernel setArgs(cl_mem buffer, LocalBuffer scratch, int length,
+            cl_mem result)
+    {
+        args.setMem(0, buffer);
+        args.setLocal(1, scratch.getSize());
+        args.setInt(2, length);
+        args.setMem(3, result);
+        return this;
+    }
+
+    /**
+     * Set the arguments of the kernel, and enqueue it on the given
+     * command queue
+     *
+     * @param commandQueue The command queue
+     * @param globalWorkSize The global work size
+     * @param localWorkSize The local work size, may be null
+     * @param buffer <code>__global float* buffer</code>
+     * @param scratch <code>__local float* scratch</code>
+     * @param length <code>const int length</code>
+     * @param result <code>__global float* result</code>
+     */
+    public void launch(cl_command_queue commandQueue, long globalWorkSize[],
+            long localWorkSize[], cl_mem buffer, LocalBuffer scratch,
+            int length, cl_mem result)
+    {
+        setArgs(buffer, scratch, length, result);
+        clEnqueueNDRangeKernel(commandQueue, args.getKernel(),
+                globalWorkSize.length, null, globalWorkSize, localWorkSize,
+                0, null, null);
+    }
+
+    /**
+     * Release the kernel
+     */
+    public void release()
+    {
+        clReleaseKernel(args.getKernel());
+    }
+}
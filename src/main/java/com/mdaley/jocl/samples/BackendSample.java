@@ -0,0 +1,282 @@
+package com.mdaley.jocl.samples;
+
+import com.mdaley.jocl.ComputeBackend;
+import com.mdaley.jocl.ComputeBackends;
+import com.mdaley.jocl.JavaBackend;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+import java.util.Random;
+
+/**
+ * A sample that executes the kernels of the other samples with all
+ * available {@link ComputeBackend}s: On the OpenCL device that is selected
+ * for the backend, if there is one, and in Java with a ForkJoinPool. The
+ * time of each computation is printed, and the results of the OpenCL
+ * backend are compared to those of the Java backend. <br />
+ * <br />
+ * This sample also runs on machines without an OpenCL platform, where it
+ * only uses the Java backend.
+ */
+public class BackendSample
+{
+    /**
+     * A computation that is executed with each backend
+     */
+    private interface Operation
+    {
+        /**
+         * Execute this operation with the given backend
+         *
+         * @param backend The backend
+         * @return The result, as a float array or an int array
+         */
+        Object execute(ComputeBackend backend);
+    }
+
+    /**
+     * The number of timed executions of each operation
+     */
+    private static final int RUNS = 3;
+
+    /**
+     * The number of elements of the vectors
+     */
+    private static final int VECTOR_SIZE = 1 << 22;
+
+    /**
+     * The number of bytes for the histogram
+     */
+    private static final int HISTOGRAM_SIZE = 1 << 24;
+
+    /**
+     * The width and height of the images
+     */
+    private static final int IMAGE_SIZE = 1024;
+
+    /**
+     * The width and height of the sine wave mesh
+     */
+    private static final int MESH_SIZE = 512;
+
+    /**
+     * The width and height of the tiles of the extended precision
+     * mandelbrot
+     */
+    private static final int TILE_SIZE = 256;
+
+    /**
+     * The entry point of this sample
+     */
+    public static void run()
+    {
+        final Random random = new Random(0);
+        final float a[] = new float[VECTOR_SIZE];
+        final float b[] = new float[VECTOR_SIZE];
+        for (int i = 0; i < VECTOR_SIZE; i++)
+        {
+            a[i] = random.nextFloat();
+            b[i] = random.nextFloat();
+        }
+        final byte data[] = new byte[HISTOGRAM_SIZE];
+        random.nextBytes(data);
+        final int image[] = new int[IMAGE_SIZE * IMAGE_SIZE];
+        for (int i = 0; i < image.length; i++)
+        {
+            image[i] = random.nextInt() & 0xFFFFFF;
+        }
+        final float mask[] = new float[5 * 5];
+        Arrays.fill(mask, 1.0f / mask.length);
+        final int colorMap[] = new int[256];
+        for (int i = 0; i < colorMap.length; i++)
+        {
+            colorMap[i] = (i << 16) | (i << 8) | i;
+        }
+
+        List<ComputeBackend> backends = ComputeBackends.createAll();
+        if (!ComputeBackends.isOpenClAvailable())
+        {
+            Throwable error = ComputeBackends.getOpenClError();
+            System.out.println("OpenCL is not available" +
+                    (error == null ? "" : ": " + error));
+        }
+        for (ComputeBackend backend : backends)
+        {
+            System.out.println("Using compute backend " + backend.getName());
+        }
+        benchmark("multiply", backends, new Operation()
+        {
+            @Override
+            public Object execute(ComputeBackend backend)
+            {
+                float c[] = new float[VECTOR_SIZE];
+                backend.multiply(a, b, c, VECTOR_SIZE);
+                return c;
+            }
+        });
+        benchmark("add", backends, new Operation()
+        {
+            @Override
+            public Object execute(ComputeBackend backend)
+            {
+                float c[] = new float[VECTOR_SIZE];
+                backend.add(a, b, c, VECTOR_SIZE);
+                return c;
+            }
+        });
+        benchmark("reduce", backends, new Operation()
+        {
+            @Override
+            public Object execute(ComputeBackend backend)
+            {
+                return new float[]{ backend.reduce(a, VECTOR_SIZE) };
+            }
+        });
+        benchmark("histogram256", backends, new Operation()
+        {
+            @Override
+            public Object execute(ComputeBackend backend)
+            {
+                int histogram[] = new int[256];
+                backend.histogram256(data, HISTOGRAM_SIZE, histogram);
+                return histogram;
+            }
+        });
+        benchmark("convolution", backends, new Operation()
+        {
+            @Override
+            public Object execute(ComputeBackend backend)
+            {
+                int output[] = new int[image.length];
+                backend.convolve(image, output, IMAGE_SIZE, IMAGE_SIZE,
+                        mask, 5, 5, 2, 2);
+                return output;
+            }
+        });
+        benchmark("rotate", backends, new Operation()
+        {
+            @Override
+            public Object execute(ComputeBackend backend)
+            {
+                int output[] = new int[image.length];
+                backend.rotate(image, output, IMAGE_SIZE, IMAGE_SIZE, 0.5f);
+                return output;
+            }
+        });
+        benchmark("sine_wave", backends, new Operation()
+        {
+            @Override
+            public Object execute(ComputeBackend backend)
+            {
+                float positions[] = new float[MESH_SIZE * MESH_SIZE * 4];
+                backend.sineWave(positions, MESH_SIZE, MESH_SIZE, 1.0f);
+                return positions;
+            }
+        });
+        benchmark("mandelbrot", backends, new Operation()
+        {
+            @Override
+            public Object execute(ComputeBackend backend)
+            {
+                int output[] = new int[IMAGE_SIZE * IMAGE_SIZE];
+                backend.mandelbrot(output, IMAGE_SIZE, IMAGE_SIZE,
+                        -2.0f, -1.25f, 0.5f, 1.25f, 500, colorMap);
+                return output;
+            }
+        });
+        benchmark("mandelbrot quad-float", backends, new Operation()
+        {
+            @Override
+            public Object execute(ComputeBackend backend)
+            {
+                int iterations[] = new int[TILE_SIZE * TILE_SIZE];
+                backend.mandelbrotQuadFloat(iterations,
+                        IMAGE_SIZE, IMAGE_SIZE, 1, 1, TILE_SIZE, TILE_SIZE,
+                        -0.743643887037151, 0.131825904205330,
+                        1e-11, 1e-11, 1000);
+                return iterations;
+            }
+        });
+
+        for (ComputeBackend backend : backends)
+        {
+            backend.release();
+        }
+        System.out.println("Done");
+    }
+
+    /**
+     * Execute the given operation with each of the given backends, print
+     * the best time of a few executions, and the difference between the
+     * results of each backend and those of the Java backend
+     *
+     * @param name The name of the operation
+     * @param backends The backends
+     * @param operation The operation
+     */
+    private static void benchmark(String name,
+            List<ComputeBackend> backends, Operation operation)
+    {
+        Object results[] = new Object[backends.size()];
+        Object reference = null;
+        for (int i = 0; i < backends.size(); i++)
+        {
+            ComputeBackend backend = backends.get(i);
+            long bestNs = Long.MAX_VALUE;
+            for (int r = 0; r < RUNS; r++)
+            {
+                long before = System.nanoTime();
+                results[i] = operation.execute(backend);
+                bestNs = Math.min(bestNs, System.nanoTime() - before);
+            }
+            if (backend instanceof JavaBackend)
+            {
+                reference = results[i];
+            }
+            System.out.printf(Locale.ENGLISH, "%-22s %-40s %10.3f ms\n",
+                    name, backend.getName(), bestNs / 1e6);
+        }
+        for (int i = 0; i < backends.size(); i++)
+        {
+            if (results[i] != reference && reference != null)
+            {
+                System.out.println("    " + backends.get(i).getName() +
+                        ": " + difference(results[i], reference));
+            }
+        }
+    }
+
+    /**
+     * Returns a description of the difference between the given results
+     *
+     * @param result The result
+     * @param reference The reference result
+     * @return The description
+     */
+    private static String difference(Object result, Object reference)
+    {
+        if (result instanceof float[])
+        {
+            float r[] = (float[]) result;
+            float e[] = (float[]) reference;
+            float maxDifference = 0;
+            for (int i = 0; i < r.length; i++)
+            {
+                maxDifference = Math.max(maxDifference, Math.abs(r[i] - e[i]));
+            }
+            return "maximum difference " + maxDifference;
+        }
+        int r[] = (int[]) result;
+        int e[] = (int[]) reference;
+        int mismatches = 0;
+        for (int i = 0; i < r.length; i++)
+        {
+            if (r[i] != e[i])
+            {
+                mismatches++;
+            }
+        }
+        return mismatches + " of " + r.length + " elements differ";
+    }
+}
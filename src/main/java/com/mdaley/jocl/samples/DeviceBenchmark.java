@@ -0,0 +1,123 @@
+package com.mdaley.jocl.samples;
+
+import static org.jocl.CL.*;
+
+import java.io.*;
+import java.util.*;
+
+import com.mdaley.jocl.ClRuntime;
+import com.mdaley.jocl.DeviceProfile;
+import com.mdaley.jocl.RooflineBenchmark;
+import org.jocl.*;
+
+/**
+ * The benchmark counterpart of the {@link DeviceQuery}: Instead of the
+ * static device properties, it measures the transfer bandwidths, memory
+ * bandwidths, launch latency and FLOP rates of all devices with the
+ * {@link RooflineBenchmark}, and stores the results as JSON capability
+ * profiles in the {@link DeviceProfile#getDirectory() profile directory}.
+ * <br />
+ * <br />
+ * When the system property <code>jocl.benchmark.output</code> is set,
+ * the profiles of all devices are additionally written into this file,
+ * as a JSON array. Devices may be skipped with
+ * <code>jocl.benchmark.deviceType=cpu</code> (or <code>gpu</code>,
+ * <code>accelerator</code>).
+ */
+public class DeviceBenchmark
+{
+    /**
+     * The entry point of this program.
+     */
+    public static void run()
+    {
+        ClRuntime runtime = ClRuntime.getInstance();
+        List<cl_device_id> devices = runtime.getDevices(parseDeviceType(
+                System.getProperty("jocl.benchmark.deviceType", "all")));
+        System.out.println("Benchmarking " + devices.size() + " devices");
+
+        List<DeviceProfile> profiles = new ArrayList<DeviceProfile>();
+        for (cl_device_id device : devices)
+        {
+            RooflineBenchmark benchmark = new RooflineBenchmark(device);
+            DeviceProfile profile = benchmark.run();
+            profiles.add(profile);
+            System.out.println("--- Profile for device " +
+                    profile.getDeviceName() + ": ---");
+            System.out.println(profile.toJson());
+            System.out.printf(Locale.ENGLISH,
+                    "Ridge point: %.2f FLOP/byte\n", profile.getRidgePoint());
+            try
+            {
+                File file = profile.save();
+                System.out.println("Saved profile to " + file);
+            }
+            catch (IOException e)
+            {
+                System.err.println("Could not save profile: " + e.getMessage());
+            }
+        }
+
+        String output = System.getProperty("jocl.benchmark.output");
+        if (output != null)
+        {
+            try
+            {
+                writeProfiles(profiles, new File(output));
+                System.out.println("Wrote " + profiles.size() +
+                        " profiles to " + output);
+            }
+            catch (IOException e)
+            {
+                System.err.println("Could not write " + output + ": " +
+                        e.getMessage());
+            }
+        }
+    }
+
+    /**
+     * Write the given profiles into the given file, as a JSON array
+     *
+     * @param profiles The profiles
+     * @param file The file
+     * @throws IOException If the file can not be written
+     */
+    private static void writeProfiles(
+            List<DeviceProfile> profiles, File file) throws IOException
+    {
+        try (Writer writer = new OutputStreamWriter(
+                new FileOutputStream(file), "UTF-8"))
+        {
+            writer.write("[\n");
+            for (int i = 0; i < profiles.size(); i++)
+            {
+                writer.write(profiles.get(i).toJson());
+                writer.write(i < profiles.size() - 1 ? ",\n" : "\n");
+            }
+            writer.write("]\n");
+        }
+    }
+
+    /**
+     * Parse the given device type name
+     *
+     * @param name The name, "all", "cpu", "gpu" or "accelerator"
+     * @return The device type
+     */
+    private static long parseDeviceType(String name)
+    {
+        if (name.equalsIgnoreCase("cpu"))
+        {
+            return CL_DEVICE_TYPE_CPU;
+        }
+        if (name.equalsIgnoreCase("gpu"))
+        {
+            return CL_DEVICE_TYPE_GPU;
+        }
+        if (name.equalsIgnoreCase("accelerator"))
+        {
+            return CL_DEVICE_TYPE_ACCELERATOR;
+        }
+        return CL_DEVICE_TYPE_ALL;
+    }
+}
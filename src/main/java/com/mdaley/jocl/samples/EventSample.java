@@ -10,6 +10,10 @@ import static org.jocl.CL.*;
 
 import java.util.*;
 
+import com.mdaley.jocl.ClFloatArray;
+import com.mdaley.jocl.ClRuntime;
+import com.mdaley.jocl.DeviceSelector;
+import com.mdaley.jocl.TaskGraph;
 import org.jocl.*;
 
 /**
@@ -56,63 +60,32 @@ public class EventSample
     {
         // Initialize the input data
         int n = 50000;
-        float srcArrayA[] = new float[n];
-        float srcArrayB[] = new float[n];
-        float dstArray0[] = new float[n];
-        float dstArray1[] = new float[n];
-        for (int i=0; i<srcArrayA.length; i++)
+        ClFloatArray srcArrayA = new ClFloatArray(n);
+        ClFloatArray srcArrayB = new ClFloatArray(n);
+        ClFloatArray dstArray0 = new ClFloatArray(n);
+        ClFloatArray dstArray1 = new ClFloatArray(n);
+        for (int i=0; i<srcArrayA.length(); i++)
         {
-            srcArrayA[i] = i;
-            srcArrayB[i] = i;
+            srcArrayA.set(i, i);
+            srcArrayB.set(i, i);
         }
-        Pointer srcA = Pointer.to(srcArrayA);
-        Pointer srcB = Pointer.to(srcArrayB);
-        Pointer dst0 = Pointer.to(dstArray0);
-        Pointer dst1 = Pointer.to(dstArray1);
-
-        // The platform, device type and device number
-        // that will be used
-        final int platformIndex = 0;
-        final long deviceType = CL_DEVICE_TYPE_ALL;
-        final int deviceIndex = 0;
-
-        // Enable exceptions and subsequently omit error checks in this sample
-        CL.setExceptionsEnabled(true);
-
-        // Obtain the number of platforms
-        int numPlatformsArray[] = new int[1];
-        clGetPlatformIDs(0, null, numPlatformsArray);
-        int numPlatforms = numPlatformsArray[0];
-
-        // Obtain a platform ID
-        cl_platform_id platforms[] = new cl_platform_id[numPlatforms];
-        clGetPlatformIDs(platforms.length, platforms, null);
-        cl_platform_id platform = platforms[platformIndex];
-
-        // Initialize the context properties
-        cl_context_properties contextProperties = new cl_context_properties();
-        contextProperties.addProperty(CL_CONTEXT_PLATFORM, platform);
-
-        // Obtain the number of devices for the platform
-        int numDevicesArray[] = new int[1];
-        clGetDeviceIDs(platform, deviceType, 0, null, numDevicesArray);
-        int numDevices = numDevicesArray[0];
-
-        // Obtain a device ID
-        cl_device_id devices[] = new cl_device_id[numDevices];
-        clGetDeviceIDs(platform, deviceType, numDevices, devices, null);
-        cl_device_id device = devices[deviceIndex];
-
-        // Create a context for the selected device
-        cl_context context = clCreateContext(
-                contextProperties, 1, new cl_device_id[]{device},
-                null, null, null);
-
-        // Create a command-queue, with profiling info enabled
-        long properties = 0;
-        properties |= CL.CL_QUEUE_PROFILING_ENABLE;
-        cl_command_queue commandQueue = CL.clCreateCommandQueue(
-                context, devices[0], properties, null);
+        Pointer srcA = srcArrayA.getPointer();
+        Pointer srcB = srcArrayB.getPointer();
+        Pointer dst0 = dstArray0.getPointer();
+        Pointer dst1 = dstArray1.getPointer();
+
+        // Select the device that is best suited for this sample, unless
+        // it is overridden with the jocl.device system property
+        ClRuntime runtime = ClRuntime.getInstance();
+        DeviceSelector.Selection selection = DeviceSelector.choose(
+                new DeviceSelector.Workload("EventSample"));
+        System.out.println(selection);
+        cl_device_id device = selection.getDevice();
+        cl_context context = runtime.getContext(device);
+
+        // Create a task graph whose command queues have profiling
+        // info enabled
+        TaskGraph graph = new TaskGraph(device, CL.CL_QUEUE_PROFILING_ENABLE);
 
         // Allocate the buffer memory objects
         cl_mem srcMemA = CL.clCreateBuffer(context,
@@ -138,8 +111,9 @@ public class EventSample
                 1, new String[]{ programSource1 }, null, null);
 
         // Build the programs
-        CL.clBuildProgram(program0, 0, null, null, null, null);
-        CL.clBuildProgram(program1, 0, null, null, null, null);
+        cl_device_id buildDevices[] = new cl_device_id[]{ device };
+        CL.clBuildProgram(program0, 1, buildDevices, null, null, null);
+        CL.clBuildProgram(program1, 1, buildDevices, null, null, null);
 
         // Create the kernels
         cl_kernel kernel0 = CL.clCreateKernel(program0, "vectorAdd", null);
@@ -154,35 +128,28 @@ public class EventSample
         CL.clSetKernelArg(kernel1, 1, Sizeof.cl_mem, Pointer.to(srcMemB));
         CL.clSetKernelArg(kernel1, 2, Sizeof.cl_mem, Pointer.to(dstMem1));
 
-        // Set work-item dimensions and execute the kernels
+        // Set the work-item dimensions
         long globalWorkSize[] = new long[]{n};
 
-        System.out.println("Enqueueing kernels...");
-        cl_event kernelEvent0 = new cl_event();
-        CL.clEnqueueNDRangeKernel(commandQueue, kernel0, 1, null,
-                globalWorkSize, null, 0, null, kernelEvent0);
-
-        cl_event kernelEvent1 = new cl_event();
-        CL.clEnqueueNDRangeKernel(commandQueue, kernel1, 1, null,
-                globalWorkSize, null, 0, null, kernelEvent1);
-
-        // Wait for the the events, i.e. until the kernels have completed
-        System.out.println("Waiting for events...");
-        CL.clWaitForEvents(2, new cl_event[]{kernelEvent0, kernelEvent1});
-
-        // Read the results
-        System.out.println("Enqueueing output reads...");
-        cl_event readEvent0 = new cl_event();
-        CL.clEnqueueReadBuffer(commandQueue, dstMem0, CL.CL_TRUE, 0,
-                n * Sizeof.cl_float, dst0, 0, null, readEvent0);
-
-        cl_event readEvent1 = new cl_event();
-        CL.clEnqueueReadBuffer(commandQueue, dstMem1, CL.CL_TRUE, 0,
-                n * Sizeof.cl_float, dst1, 0, null, readEvent1);
-
-        // Wait for the the events, i.e. until the results are read
+        // Declare the kernels and the reads of their results. The
+        // kernels only read the same buffers, so they may run
+        // concurrently, and each read only waits for its kernel
+        TaskGraph.Task kernelTask0 = graph.kernel(
+                "kernel0", kernel0, globalWorkSize, null)
+                .reads(srcMemA, srcMemB).writes(dstMem0);
+        TaskGraph.Task kernelTask1 = graph.kernel(
+                "kernel1", kernel1, globalWorkSize, null)
+                .reads(srcMemA, srcMemB).writes(dstMem1);
+        TaskGraph.Task readTask0 = graph.read(
+                "read0", dstMem0, 0, n * Sizeof.cl_float, dst0);
+        TaskGraph.Task readTask1 = graph.read(
+                "read1", dstMem1, 0, n * Sizeof.cl_float, dst1);
+
+        // Submit the graph, and wait until the results are read
+        System.out.println("Submitting " + graph + "...");
+        graph.submit();
         System.out.println("Waiting for events...");
-        CL.clWaitForEvents(2, new cl_event[]{readEvent0, readEvent1});
+        graph.waitFor();
 
         // Print the results
         printResult(dstArray0, 10);
@@ -190,11 +157,12 @@ public class EventSample
 
         // Print the timing information for the commands
         ExecutionStatistics executionStatistics = new ExecutionStatistics();
-        executionStatistics.addEntry("kernel0", kernelEvent0);
-        executionStatistics.addEntry("kernel1", kernelEvent1);
-        executionStatistics.addEntry("  read0", readEvent0);
-        executionStatistics.addEntry("  read1", readEvent1);
+        executionStatistics.addEntry("kernel0", kernelTask0.getEvent());
+        executionStatistics.addEntry("kernel1", kernelTask1.getEvent());
+        executionStatistics.addEntry("  read0", readTask0.getEvent());
+        executionStatistics.addEntry("  read1", readTask1.getEvent());
         executionStatistics.print();
+        graph.release();
 
     }
 
@@ -204,18 +172,18 @@ public class EventSample
      * @param result The array containing the result
      * @param max The maximum number of entries to print
      */
-    private static void printResult(float result[], int max)
+    private static void printResult(ClFloatArray result, int max)
     {
         System.out.print("Result: ");
-        max = Math.min(result.length, max);
+        max = (int) Math.min(result.length(), max);
         for (int i=0; i<max; i++)
         {
-            System.out.print(result[i]);
+            System.out.print(result.get(i));
             if (i < max-1)
             {
                 System.out.print(", ");
             }
-            else if (result.length > max)
+            else if (result.length() > max)
             {
                 System.out.print(" ...");
             }
@@ -9,8 +9,18 @@ package com.mdaley.jocl.samples;
 import static org.jocl.CL.*;
 
 import java.io.*;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
 import java.util.Random;
 
+import com.mdaley.jocl.ClRuntime;
+import com.mdaley.jocl.DeviceSelector;
+import com.mdaley.jocl.KernelSources;
+import com.mdaley.jocl.ProgramCache;
+import com.mdaley.jocl.StagingBuffer;
+import com.mdaley.jocl.WorkGroupTuner;
 import org.jocl.*;
 
 /**
@@ -27,6 +37,7 @@ public class HistogramAMD
     public static final int HEIGHT = 1024;
     public static final int BIN_SIZE = 256;
     public static final int GROUP_SIZE = 16;
+    public static final int MAX_GROUP_SIZE = 128;
     public static final int SUB_HISTOGRAM_COUNT =
             ((WIDTH * HEIGHT) / (GROUP_SIZE * BIN_SIZE));
 
@@ -96,6 +107,7 @@ cl_mem   deviceBinBuf;     /**< CL memory buffer for deviceBin */
 
 cl_command_queue commandQueue;  /**< CL command queue */
 cl_program program;             /**< CL program  */
+ProgramCache programCache;      /**< cache that the programs are acquired from */
 cl_kernel kernel;               /**< CL kernel */
 
     /**
@@ -165,7 +177,6 @@ cl_kernel kernel;               /**< CL kernel */
         //CL.setLogLevel(LogLevel.LOG_DEBUGTRACE);
 
         int status[] = new int[1];
-        long deviceListSize[] = new long[1];
 
         long dType;
 
@@ -178,35 +189,48 @@ cl_kernel kernel;               /**< CL kernel */
             dType = CL_DEVICE_TYPE_GPU;
         }
 
-        // Obtain the platform IDs and initialize the context properties
-        cl_platform_id platforms[] = new cl_platform_id[1];
-        clGetPlatformIDs(platforms.length, platforms, null);
-        cl_context_properties contextProperties = new cl_context_properties();
-        contextProperties.addProperty(CL_CONTEXT_PLATFORM, platforms[0]);
-
-        context = clCreateContextFromType(contextProperties, dType, null, null, status);
-
-        /*
-         * if device is not set using command line arguments and opencl fails to open a
-         * context on default device GPU then it falls back to CPU
-         */
-        if(status[0] != CL_SUCCESS && dType == CL_DEVICE_TYPE_GPU)
+        // Select the best suited device of the requested type. The
+        // runtime also allows to subsequently omit the error checks...
+        ClRuntime runtime = ClRuntime.getInstance();
+        cl_device_id device;
+        try
         {
+            DeviceSelector.Selection selection = DeviceSelector.choose(
+                new DeviceSelector.Workload("HistogramAMD")
+                .requireDeviceType(dType)
+                .localMemoryWeight(0.5));
+            System.out.println(selection);
+            device = selection.getDevice();
+        }
+        catch (CLException e)
+        {
+            /*
+             * if device is not set using command line arguments and there is no
+             * device of the default type GPU then it falls back to CPU
+             */
+            if(dType != CL_DEVICE_TYPE_GPU)
+            {
+                return SDK_FAILURE;
+            }
             System.out.println("Unsupported GPU device; falling back to CPU ...");
-            context = clCreateContextFromType(contextProperties, CL_DEVICE_TYPE_CPU, null, null, status);
+            try
+            {
+                DeviceSelector.Selection selection = DeviceSelector.choose(
+                    new DeviceSelector.Workload("HistogramAMD")
+                    .requireDeviceType(CL_DEVICE_TYPE_CPU));
+                System.out.println(selection);
+                device = selection.getDevice();
+            }
+            catch (CLException e2)
+            {
+                return SDK_FAILURE;
+            }
         }
 
-        // This allows to subsequently omit the error checks for this sample...
-        CL.setExceptionsEnabled(true);
-
-        /* First, get the size of device list data */
-        status[0] = clGetContextInfo(context, CL_CONTEXT_DEVICES, 0, null, deviceListSize);
-
-        /* Now allocate memory for device list based on the size we got earlier */
-        devices = new cl_device_id[(int)deviceListSize[0] / Sizeof.cl_device_id];
-
-        /* Now, get the device list data */
-        status[0] = clGetContextInfo(context, CL_CONTEXT_DEVICES, deviceListSize[0], Pointer.to(devices), null);
+        /* Use the selected device and the shared context */
+        devices = new cl_device_id[]{ device };
+        context = runtime.getContext(device);
+        programCache = runtime.getProgramCache();
 
         /* Check whether the device supports byte-addressable
          * load/stores : required for Histogram */
@@ -229,7 +253,7 @@ cl_kernel kernel;               /**< CL kernel */
         if(timing)
             prop |= CL_QUEUE_PROFILING_ENABLE;
 
-        commandQueue = clCreateCommandQueue(context, devices[0], prop, status);
+        commandQueue = runtime.getCommandQueue(devices[0], prop);
 
         /* Get Device specific Information */
         status[0] = clGetDeviceInfo(
@@ -249,26 +273,135 @@ cl_kernel kernel;               /**< CL kernel */
                 devices[0], CL_DEVICE_LOCAL_MEM_SIZE, Sizeof.cl_ulong,
                 Pointer.to(totalLocalMemory), null);
 
+        /* upload the data through a pinned staging buffer, instead of
+         * letting the driver use (and pin) the Java array */
         dataBuf = clCreateBuffer(
-                context, CL_MEM_READ_ONLY | CL_MEM_USE_HOST_PTR,
-                Sizeof.cl_uint * width  * height, Pointer.to(data), status);
-
+                context, CL_MEM_READ_ONLY,
+                Sizeof.cl_uint * width  * height, null, status);
+        StagingBuffer staging = runtime.getStagingBufferPool().acquire(
+                commandQueue, Sizeof.cl_uint * width * height);
+        staging.asIntBuffer().put(data, 0, width * height);
+        staging.write(commandQueue, dataBuf, 0, Sizeof.cl_uint * width * height, true);
+        staging.release();
+
+        /* the buffer for the sub-histograms is allocated for the default
+         * group size, which is the smallest one and yields the most
+         * sub-histograms */
         midDeviceBinBuf = clCreateBuffer(
                 context, CL_MEM_READ_ONLY | CL_MEM_ALLOC_HOST_PTR,
                 Sizeof.cl_uint * binSize * subHistgCnt, null, status);
 
-        /* create a CL program using the kernel source */
-        String source = readFile("/Histogram_Kernels.cl");
+        /* select the group size, build the program for it, and adjust
+         * the sub-histograms to it */
+        if(tuneGroupSize()!=SDK_SUCCESS)
+            return SDK_FAILURE;
+        subHistgCnt = (width * height) / (groupSize * binSize);
+        midDeviceBin = new int[binSize * subHistgCnt];
+
+        return SDK_SUCCESS;
+    }
+
+    /**
+     * Acquire the CL program with the given group size baked in from
+     * the program cache, and create the histogram256 kernel from it.
+     * The cache only builds each variant once per process, and stores
+     * its binaries, so that later runs do not compile it again
+     * @param size The group size
+     * @param programs Receives the program
+     * @param kernels Receives the kernel
+     */
+    void buildKernel(int size, Map<Long, cl_program> programs, Map<Long, cl_kernel> kernels)
+    {
+        int status[] = new int[1];
+
+        String source = KernelSources.getResolved("/Histogram_Kernels.cl");
         //System.out.println("source:\n"+source);
-        program = clCreateProgramWithSource(
-                context, 1, new String[]{source}, new long[] { source.length() }, status);
 
-        /* create a cl program executable for all the devices specified */
-        status[0] = clBuildProgram(program, 1, devices, null, null, null);
+        /* bake the bin and group size into the program */
+        Map<String, Object> constants = new HashMap<String, Object>();
+        constants.put("BIN_SIZE", binSize);
+        constants.put("GROUP_SIZE", size);
+        String options = KernelSources.toBuildOptions(null, constants);
+
+        /* obtain a cl program executable for all the devices specified */
+        cl_program candidateProgram = programCache.acquireProgram(
+                context, devices, new String[]{source}, options);
 
         /* get a kernel object handle for a kernel with the given name */
-        kernel = clCreateKernel(program, "histogram256", status);
+        cl_kernel candidateKernel = clCreateKernel(candidateProgram, "histogram256", status);
+
+        programs.put((long)size, candidateProgram);
+        kernels.put((long)size, candidateKernel);
+    }
 
+    /**
+     * Select the group size with the WorkGroupTuner. The group size is
+     * baked into the program, so a program is built for each candidate
+     * that is benchmarked. The program and kernel of the winner are kept
+     * and the others are released. The winner is stored, so that later
+     * runs only build the program for the winner.
+     * @return 1 on success and 0 on failure
+     */
+    int tuneGroupSize()
+    {
+        final long globalThreads = (width * height) / binSize;
+
+        /* the candidates must divide the bin size and the number of
+         * threads, and their thread-histograms must fit into the local
+         * memory */
+        List<WorkGroupTuner.Geometry> candidates = new ArrayList<WorkGroupTuner.Geometry>();
+        for(long size = groupSize; size <= MAX_GROUP_SIZE; size *= 2)
+        {
+            if(size > maxWorkItemSizes[0] || size > maxWorkGroupSize[0] ||
+               binSize % size != 0 || globalThreads % size != 0 ||
+               size * binSize * Sizeof.cl_uchar > totalLocalMemory[0])
+                continue;
+            candidates.add(new WorkGroupTuner.Geometry(new long[]{globalThreads}, new long[]{size}));
+        }
+        if(candidates.isEmpty())
+        {
+            System.out.println("Unsupported: Device does not support requested number of work items.");
+            return SDK_FAILURE;
+        }
+
+        final Map<Long, cl_program> programs = new HashMap<Long, cl_program>();
+        final Map<Long, cl_kernel> kernels = new HashMap<Long, cl_kernel>();
+        WorkGroupTuner.Geometry best = WorkGroupTuner.of(devices[0]).tune(
+                commandQueue, "HistogramAMD.histogram256", "-D BIN_SIZE=" + binSize, width * height, candidates,
+                new WorkGroupTuner.Launcher()
+        {
+            @Override
+            public void launch(long globalWorkSize[], long localWorkSize[])
+            {
+                if(!kernels.containsKey(localWorkSize[0]))
+                    buildKernel((int)localWorkSize[0], programs, kernels);
+                cl_kernel candidateKernel = kernels.get(localWorkSize[0]);
+                clSetKernelArg(candidateKernel, 0, Sizeof.cl_mem, Pointer.to(dataBuf));
+                clSetKernelArg(candidateKernel, 1, localWorkSize[0] * binSize * Sizeof.cl_uchar, null);
+                clSetKernelArg(candidateKernel, 2, Sizeof.cl_mem, Pointer.to(midDeviceBinBuf));
+                clEnqueueNDRangeKernel(commandQueue, candidateKernel, 1, null,
+                        globalWorkSize, localWorkSize, 0, null, null);
+            }
+        });
+
+        /* keep the program and kernel of the winner, which have not been
+         * built yet if the winner was stored */
+        groupSize = (int)best.getLocalWorkSize()[0];
+        if(!kernels.containsKey((long)groupSize))
+            buildKernel(groupSize, programs, kernels);
+        for(long size : kernels.keySet())
+        {
+            if(size == groupSize)
+            {
+                program = programs.get(size);
+                kernel = kernels.get(size);
+            }
+            else
+            {
+                clReleaseKernel(kernels.get(size));
+                programCache.releaseProgram(programs.get(size));
+            }
+        }
         return SDK_SUCCESS;
     }
 
@@ -282,7 +415,6 @@ cl_kernel kernel;               /**< CL kernel */
     int runCLKernels()
     {
         int status[] = new int[1];
-        cl_event events[] = new cl_event[] { new cl_event() }; // JOCL: Create an event!
 
         long globalThreads = (width * height) / binSize ;
         long localThreads = groupSize;
@@ -313,23 +445,22 @@ cl_kernel kernel;               /**< CL kernel */
          */
         status[0] = clEnqueueNDRangeKernel(
                 commandQueue, kernel, 1, null, new long[]{globalThreads},
-                new long[]{localThreads}, 0, null, events[0]);
+                new long[]{localThreads}, 0, null, null);
 
-        /* wait for the kernel call to finish execution */
-        status[0] = clWaitForEvents(1, events);
-
-        clReleaseEvent(events[0]);
-
-        /* Enqueue the results to application pointer*/
-        status[0] = clEnqueueReadBuffer(
-                commandQueue, midDeviceBinBuf, CL_TRUE, 0,
-                subHistgCnt * binSize * Sizeof.cl_uint,
-                Pointer.to(midDeviceBin), 0, null, events[0]);
+        /* Enqueue the read of the results through a pinned staging buffer,
+         * which is executed after the kernel on the in-order queue */
+        cl_event events[] = new cl_event[] { new cl_event() }; // JOCL: Create an event!
+        StagingBuffer staging = ClRuntime.getInstance().getStagingBufferPool()
+                .acquire(commandQueue, subHistgCnt * binSize * Sizeof.cl_uint);
+        staging.read(commandQueue, midDeviceBinBuf, 0,
+                subHistgCnt * binSize * Sizeof.cl_uint, false, null, events[0]);
 
-        /* wait for the read buffer to finish execution */
+        /* wait once, for the kernel and the read to finish */
         status[0] = clWaitForEvents(1, events);
 
         clReleaseEvent(events[0]);
+        staging.asIntBuffer().get(midDeviceBin, 0, subHistgCnt * binSize);
+        staging.release();
 
         /* Calculate final histogram bin */
         for(int i = 0; i < subHistgCnt; ++i)
@@ -407,18 +538,15 @@ cl_kernel kernel;               /**< CL kernel */
      */
     int cleanup()
     {
-        /* Releases OpenCL resources (Context, Memory etc.) */
+        /* Releases OpenCL resources (Memory etc.). The context and
+         * command queue are owned by the runtime */
         clReleaseMemObject(dataBuf);
 
         clReleaseMemObject(midDeviceBinBuf);
 
         clReleaseKernel(kernel);
 
-        clReleaseProgram(program);
-
-        clReleaseCommandQueue(commandQueue);
-
-        clReleaseContext(context);
+        programCache.releaseProgram(program);
 
         return SDK_SUCCESS;
     }
@@ -473,31 +601,6 @@ cl_kernel kernel;               /**< CL kernel */
 
 
 
-    private static String readFile(String fileName)
-    {
-        try
-        {
-            BufferedReader br = new BufferedReader(new InputStreamReader(HistogramAMD.class.getResourceAsStream(fileName)));
-            StringBuilder sb = new StringBuilder();
-            String line = null;
-            while (true)
-            {
-                line = br.readLine();
-                if (line == null)
-                {
-                    break;
-                }
-                sb.append(line+"\n");
-            }
-            return sb.toString();
-        }
-        catch (IOException e)
-        {
-            e.printStackTrace();
-            return "";
-        }
-    }
-
 };
 
 
@@ -9,8 +9,27 @@ package com.mdaley.jocl.samples;
 import static org.jocl.CL.*;
 
 import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.IntBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.ReadableByteChannel;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
 import java.util.Random;
-
+import java.util.concurrent.*;
+
+import com.mdaley.jocl.ClByteArray;
+import com.mdaley.jocl.ClInfo;
+import com.mdaley.jocl.ClRuntime;
+import com.mdaley.jocl.DeviceSelector;
+import com.mdaley.jocl.KernelArgs;
+import com.mdaley.jocl.KernelSources;
+import com.mdaley.jocl.ProgramWarmup;
+import com.mdaley.jocl.QueueGroup;
+import com.mdaley.jocl.StreamingPipeline;
+import com.mdaley.jocl.WorkGroupTuner;
 import org.jocl.*;
 
 /**
@@ -22,19 +41,66 @@ public class HistogramNVIDIA
 {
     public static final int HISTOGRAM256_BIN_COUNT = 256;
 
-    //OpenCL histogram256 program
-    static cl_program cpHistogram256;
+    //OpenCL histogram256 program, built in the background
+    static Future<cl_program> cpHistogram256;
 
     //OpenCL histogram256 kernels
     static cl_kernel ckHistogram256, ckMergeHistogram256;
 
-    //histogram256() intermediate results buffer
+    //Argument binders for the kernels, which skip the arguments that did not change
+    static KernelArgs ckHistogram256Args, ckMergeHistogram256Args;
+
+    //histogram256() intermediate results buffer, large enough for all tuning candidates
     static int PARTIAL_HISTOGRAM256_COUNT = 240;
+    static final int MAX_PARTIAL_HISTOGRAM256_COUNT = 1024;
     static cl_mem d_PartialHistograms;
 
     //Default command queue for histogram256 kernels
     static cl_command_queue cqDefaultCommandQue;
 
+    //Chunk size for the streaming histogram256, a multiple of the 4-byte words that the kernel reads
+    static final int STREAM_CHUNK_SIZE = 256 * 1024;
+
+    //Compile-time constants of Histogram256.cl, passed as -D build options
+    static final int LOG2_WARP_SIZE = 5;
+    static final int WARP_SIZE = 1 << LOG2_WARP_SIZE;
+    static final int WARP_COUNT = 6;
+    static final int MERGE_WORKGROUP_SIZE = 256;
+
+    //The device requirements: A GPU with local memory for the per-warp sub-histograms
+    static final DeviceSelector.Workload WORKLOAD =
+        new DeviceSelector.Workload("HistogramNVIDIA")
+        .requireDeviceType(CL_DEVICE_TYPE_GPU)
+        .requireLocalMemory(WARP_COUNT * HISTOGRAM256_BIN_COUNT * Sizeof.cl_uint)
+        .localMemoryWeight(0.5);
+
+    static String histogram256Options()
+    {
+        Map<String, Object> constants = new HashMap<String, Object>();
+        constants.put("LOG2_WARP_SIZE", LOG2_WARP_SIZE + "U");
+        constants.put("WARP_COUNT", WARP_COUNT);
+        constants.put("MERGE_WORKGROUP_SIZE", MERGE_WORKGROUP_SIZE);
+        return KernelSources.toBuildOptions(null, constants);
+    }
+
+
+
+    ////////////////////////////////////////////////////////////////////////////////
+    //Register the histogram256 program for the startup warm-up
+    ////////////////////////////////////////////////////////////////////////////////
+    public static void registerPrograms(ProgramWarmup warmup)
+    {
+        cl_device_id cdDevice;
+        try
+        {
+            cdDevice = DeviceSelector.select(WORKLOAD);
+        }
+        catch (CLException e)
+        {
+            return;
+        }
+        warmup.register("HistogramNVIDIA", new cl_device_id[]{ cdDevice }, histogram256Options(), "/Histogram256.cl");
+    }
 
 
     ////////////////////////////////////////////////////////////////////////////////
@@ -46,11 +112,10 @@ public class HistogramNVIDIA
         cl_command_queue cqCommandQue; //OpenCL command que
         cl_mem    d_Data, d_Histogram; //OpenCL memory buffer objects
 
-        long dataBytes[] = new long[1];
         int ciErrNum[] = new int[1];
         int PassFailFlag = 1;
 
-        byte h_Data[];
+        ClByteArray h_Data;
         int h_HistogramCPU[], h_HistogramGPU[];
 
         int byteCount = 128 * 8192;
@@ -59,37 +124,31 @@ public class HistogramNVIDIA
         System.out.println("Starting...\n");
 
         System.out.println("Initializing data...");
-        h_Data         = new byte[byteCount];
+        h_Data         = new ClByteArray(byteCount);
         h_HistogramCPU = new int[HISTOGRAM256_BIN_COUNT];
         h_HistogramGPU = new int[HISTOGRAM256_BIN_COUNT];
 
         Random random = new Random(2009);
         for(int i = 0; i < byteCount; i++)
-            h_Data[i] = (byte)(random.nextInt() & 0xFF);
+            h_Data.set(i, (byte)(random.nextInt() & 0xFF));
 
         // This will allow us to subsequently omit the "shrCheckError" calls for this sample
         CL.setExceptionsEnabled(true);
 
         System.out.println("Initializing OpenCL...");
 
-        // Obtain the platform IDs and initialize the context properties
-        cl_platform_id platforms[] = new cl_platform_id[1];
-        clGetPlatformIDs(platforms.length, platforms, null);
-        cl_context_properties contextProperties = new cl_context_properties();
-        contextProperties.addProperty(CL_CONTEXT_PLATFORM, platforms[0]);
-        cxGPUContext = clCreateContextFromType(contextProperties, CL_DEVICE_TYPE_GPU, null, null, ciErrNum);
-
-        // get the list of GPU devices associated with context
-        clGetContextInfo(cxGPUContext, CL_CONTEXT_DEVICES, 0, null, dataBytes);
-        cl_device_id cdDevices[] = new cl_device_id[(int)dataBytes[0] / Sizeof.cl_device_id];
-
-        clGetContextInfo(cxGPUContext, CL_CONTEXT_DEVICES, dataBytes[0], Pointer.to(cdDevices), null);
-
-        //Create a command-queue
-        cqCommandQue = clCreateCommandQueue(cxGPUContext, cdDevices[0], 0, ciErrNum);
+        // Select the best suited GPU device, and obtain the
+        // shared context and queue group for it
+        ClRuntime runtime = ClRuntime.getInstance();
+        DeviceSelector.Selection selection = DeviceSelector.choose(WORKLOAD);
+        System.out.println(selection);
+        cl_device_id cdDevice = selection.getDevice();
+        cxGPUContext = runtime.getContext(cdDevice);
+        QueueGroup qgQueueGroup = runtime.getQueueGroup(cdDevice, 0);
+        cqCommandQue = qgQueueGroup.getComputeQueue();
 
         System.out.println("Allocating OpenCL memory...\n");
-        d_Data = clCreateBuffer(cxGPUContext, CL_MEM_READ_ONLY | CL_MEM_COPY_HOST_PTR, byteCount * Sizeof.cl_char, Pointer.to(h_Data), ciErrNum);
+        d_Data = h_Data.createBuffer(cxGPUContext, CL_MEM_READ_ONLY, cqCommandQue);
         d_Histogram = clCreateBuffer(cxGPUContext, CL_MEM_READ_WRITE, HISTOGRAM256_BIN_COUNT * Sizeof.cl_int, null, ciErrNum);
 
         System.out.println("Initializing 256-bin OpenCL histogram...");
@@ -115,6 +174,18 @@ public class HistogramNVIDIA
         }
         System.out.println(PassFailFlag != 0 ? "256-bin histograms match\n" : "***256-bin histograms do not match!!!***\n" );
 
+        System.out.printf("Streaming 256-bin OpenCL histogram for %d bytes in chunks of %d bytes...\n", byteCount, STREAM_CHUNK_SIZE);
+        ReadableByteChannel chData = Channels.newChannel(new ByteArrayInputStream(h_Data.toArray()));
+        histogram256Stream(cxGPUContext, qgQueueGroup, chData, h_HistogramGPU);
+        for(int i = 0; i < HISTOGRAM256_BIN_COUNT; i++)
+        {
+            if(h_HistogramGPU[i] != h_HistogramCPU[i])
+            {
+                PassFailFlag = 0;
+            }
+        }
+        System.out.println(PassFailFlag != 0 ? "Streamed 256-bin histograms match\n" : "***Streamed 256-bin histograms do not match!!!***\n" );
+
         System.out.println("Shutting down 256-bin OpenCL histogram...\n\n");
 
         //Release kernels and program
@@ -125,21 +196,19 @@ public class HistogramNVIDIA
 
         System.out.println("Shutting down...");
 
-        //Release other OpenCL Objects
+        //Release other OpenCL Objects (the context and command queue are owned by the runtime)
         ciErrNum[0]  = clReleaseMemObject(d_Histogram);
         ciErrNum[0] |= clReleaseMemObject(d_Data);
-        ciErrNum[0] |= clReleaseCommandQueue(cqCommandQue);
-        ciErrNum[0] |= clReleaseContext(cxGPUContext);
     }
 
 
-    static void histogram256CPU(int h_Histogram[], byte h_Data[], int byteCount)
+    static void histogram256CPU(int h_Histogram[], ClByteArray h_Data, int byteCount)
     {
         for(int i = 0; i < HISTOGRAM256_BIN_COUNT; i++)
             h_Histogram[i] = 0;
 
         for(int i = 0; i < byteCount; i++){
-            int data = h_Data[i];
+            int data = h_Data.get(i);
             if (data < 0)
             {
                 data+=256;
@@ -158,89 +227,209 @@ public class HistogramNVIDIA
         int ciErrNum[] = new int[1];
 
         System.out.println("...loading Histogram256.cl");
-        String cHistogram256 = readFile("/Histogram256.cl");
+        String cHistogram256 = KernelSources.getResolved("/Histogram256.cl");
 
-        System.out.println("...creating histogram256 program");
-        cpHistogram256 = clCreateProgramWithSource(cxGPUContext, 1, new String[]{cHistogram256}, new long[]{cHistogram256.length()}, ciErrNum);
-
-        System.out.println("...building histogram256 program");
-        ciErrNum[0] = clBuildProgram(cpHistogram256, 0, null, null, null, null);
-
-        System.out.println("...creating histogram256 kernels");
-        ckHistogram256 = clCreateKernel(cpHistogram256, "histogram256", ciErrNum);
-        ckMergeHistogram256 = clCreateKernel(cpHistogram256, "mergeHistogram256", ciErrNum);
+        System.out.println("...building histogram256 program in the background");
+        cl_device_id devices[] = new cl_device_id[]{ ClRuntime.getDevice(cqParamCommandQue) };
+        cpHistogram256 = ClRuntime.getInstance().getProgramCache().acquireProgramAsync(cxGPUContext, devices, new String[]{cHistogram256}, histogram256Options());
 
         System.out.println("...allocating internal histogram256 buffer");
-        d_PartialHistograms = clCreateBuffer(cxGPUContext, CL_MEM_READ_WRITE, PARTIAL_HISTOGRAM256_COUNT * HISTOGRAM256_BIN_COUNT * Sizeof.cl_uint, null, ciErrNum);
+        d_PartialHistograms = clCreateBuffer(cxGPUContext, CL_MEM_READ_WRITE, MAX_PARTIAL_HISTOGRAM256_COUNT * HISTOGRAM256_BIN_COUNT * Sizeof.cl_uint, null, ciErrNum);
 
         //Save default command queue
         cqDefaultCommandQue = cqParamCommandQue;
     }
 
+    //The kernels are created when they are first launched, so that only
+    //the first launch has to wait for the program build
+    static void createHistogram256Kernels()
+    {
+        if(ckHistogram256 != null)
+            return;
+
+        cl_program program;
+        try
+        {
+            program = cpHistogram256.get();
+        }
+        catch (InterruptedException e)
+        {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Interrupted while building histogram256 program", e);
+        }
+        catch (ExecutionException e)
+        {
+            throw new IllegalStateException("Could not build histogram256 program", e.getCause());
+        }
+
+        System.out.println("...creating histogram256 kernels");
+        ckHistogram256 = clCreateKernel(program, "histogram256", null);
+        ckMergeHistogram256 = clCreateKernel(program, "mergeHistogram256", null);
+        ckHistogram256Args = new KernelArgs(ckHistogram256);
+        ckMergeHistogram256Args = new KernelArgs(ckMergeHistogram256);
+    }
+
     static void closeHistogram256()
     {
         clReleaseMemObject(d_PartialHistograms);
-        clReleaseKernel(ckMergeHistogram256);
-        clReleaseKernel(ckHistogram256);
-        clReleaseProgram(cpHistogram256);
+        if(ckHistogram256 != null)
+        {
+            clReleaseKernel(ckMergeHistogram256);
+            clReleaseKernel(ckHistogram256);
+            ckHistogram256 = null;
+            ckMergeHistogram256 = null;
+            ckHistogram256Args = null;
+            ckMergeHistogram256Args = null;
+        }
+        try
+        {
+            ClRuntime.getInstance().getProgramCache().releaseProgram(cpHistogram256.get());
+        }
+        catch (InterruptedException e)
+        {
+            Thread.currentThread().interrupt();
+        }
+        catch (ExecutionException e)
+        {
+            //The failed program has not been cached
+        }
     }
 
     static void histogram256(cl_command_queue cqCommandQue, cl_mem d_Histogram, cl_mem d_Data, int byteCount)
     {
-        long localWorkSize[] = new long[1];
-        long globalWorkSize[] = new long[1];
-
         if(cqCommandQue == null)
             cqCommandQue = cqDefaultCommandQue;
 
-        int WARP_SIZE = 32;
-        int WARP_COUNT = 6;
+        createHistogram256Kernels();
+
+        int partialCount = tuneHistogram256(cqCommandQue, d_Histogram, d_Data, byteCount);
+        enqueueHistogram256(cqCommandQue, d_Histogram, d_Data, byteCount, partialCount, null, null);
+    }
+
+    //The work-group size is fixed by the compile-time WARP_COUNT, so the tuner
+    //selects the number of partial histograms, i.e. the number of work groups.
+    //The stored winner for the problem size is used after the first run.
+    static int tuneHistogram256(final cl_command_queue cqCommandQue, final cl_mem d_Histogram, final cl_mem d_Data, final int byteCount)
+    {
+        cl_device_id cdDevice = ClRuntime.getDevice(cqCommandQue);
+        int computeUnits = Math.max(1, ClInfo.getInt(cdDevice, CL_DEVICE_MAX_COMPUTE_UNITS));
+        long localWorkSize[] = new long[]{ WARP_SIZE * WARP_COUNT };
+
+        List<WorkGroupTuner.Geometry> candidates = new ArrayList<WorkGroupTuner.Geometry>();
+        candidates.add(new WorkGroupTuner.Geometry(new long[]{ PARTIAL_HISTOGRAM256_COUNT * localWorkSize[0] }, localWorkSize));
+        for(int factor = 1; factor <= 32; factor *= 2)
+        {
+            long partialCount = Math.min(MAX_PARTIAL_HISTOGRAM256_COUNT, computeUnits * factor);
+            WorkGroupTuner.Geometry candidate = new WorkGroupTuner.Geometry(new long[]{ partialCount * localWorkSize[0] }, localWorkSize);
+            if(!candidates.contains(candidate))
+                candidates.add(candidate);
+        }
+
+        WorkGroupTuner.Geometry geometry = WorkGroupTuner.of(cdDevice).tune(cqCommandQue, "HistogramNVIDIA.histogram256", histogram256Options(), byteCount, candidates, new WorkGroupTuner.Launcher()
+        {
+            @Override
+            public void launch(long globalWorkSize[], long localWorkSize[])
+            {
+                enqueueHistogram256(cqCommandQue, d_Histogram, d_Data, byteCount, (int)(globalWorkSize[0] / localWorkSize[0]), null, null);
+            }
+        });
+        return (int)(geometry.getGlobalWorkSize()[0] / geometry.getLocalWorkSize()[0]);
+    }
+
+    static void enqueueHistogram256(cl_command_queue cqCommandQue, cl_mem d_Histogram, cl_mem d_Data, int byteCount, int partialCount, cl_event waitList[], cl_event event)
+    {
+        long localWorkSize[] = new long[1];
+        long globalWorkSize[] = new long[1];
 
         int dataCount = byteCount / 4;
-        clSetKernelArg(ckHistogram256, 0, Sizeof.cl_mem,  Pointer.to(d_PartialHistograms));
-        clSetKernelArg(ckHistogram256, 1, Sizeof.cl_mem,  Pointer.to(d_Data));
-        clSetKernelArg(ckHistogram256, 2, Sizeof.cl_uint, Pointer.to(new int[]{dataCount}));
+        ckHistogram256Args.setMem(0, d_PartialHistograms);
+        ckHistogram256Args.setMem(1, d_Data);
+        ckHistogram256Args.setInt(2, dataCount);
 
         localWorkSize[0]  = WARP_SIZE * WARP_COUNT;
-        globalWorkSize[0] = PARTIAL_HISTOGRAM256_COUNT * localWorkSize[0];
+        globalWorkSize[0] = partialCount * localWorkSize[0];
 
-        clEnqueueNDRangeKernel(cqCommandQue, ckHistogram256, 1, null, globalWorkSize, localWorkSize, 0, null, null);
+        clEnqueueNDRangeKernel(cqCommandQue, ckHistogram256, 1, null, globalWorkSize, localWorkSize, waitList == null ? 0 : waitList.length, waitList, null);
 
-        int MERGE_WORKGROUP_SIZE = 256;
-        clSetKernelArg(ckMergeHistogram256, 0, Sizeof.cl_mem,  Pointer.to(d_Histogram));
-        clSetKernelArg(ckMergeHistogram256, 1, Sizeof.cl_mem,  Pointer.to(d_PartialHistograms));
-        clSetKernelArg(ckMergeHistogram256, 2, Sizeof.cl_uint, Pointer.to(new int[]{PARTIAL_HISTOGRAM256_COUNT}));
+        ckMergeHistogram256Args.setMem(0, d_Histogram);
+        ckMergeHistogram256Args.setMem(1, d_PartialHistograms);
+        ckMergeHistogram256Args.setInt(2, partialCount);
 
         localWorkSize[0]  = MERGE_WORKGROUP_SIZE;
         globalWorkSize[0] = HISTOGRAM256_BIN_COUNT * localWorkSize[0];
 
-        clEnqueueNDRangeKernel(cqCommandQue, ckMergeHistogram256, 1, null, globalWorkSize, localWorkSize, 0, null, null);
+        clEnqueueNDRangeKernel(cqCommandQue, ckMergeHistogram256, 1, null, globalWorkSize, localWorkSize, 0, null, event);
     }
 
 
-    private static String readFile(String fileName)
+    ////////////////////////////////////////////////////////////////////////////////
+    // Streaming histogram256 for inputs of any size: The chunks of the channel are
+    // uploaded while the previous chunk is processed, and the partial results are
+    // accumulated on the host. Trailing bytes that do not form a 4-byte word are
+    // counted on the host.
+    ////////////////////////////////////////////////////////////////////////////////
+    static long histogram256Stream(cl_context cxGPUContext, QueueGroup qgQueueGroup, final ReadableByteChannel chData, final int h_Histogram[])
     {
+        for(int i = 0; i < HISTOGRAM256_BIN_COUNT; i++)
+            h_Histogram[i] = 0;
+
+        createHistogram256Kernels();
+
+        //Tune the number of partial histograms for the chunk size before streaming,
+        //because the kernel stage must not block
+        cl_mem d_ScratchData = clCreateBuffer(cxGPUContext, CL_MEM_READ_ONLY, STREAM_CHUNK_SIZE, null, null);
+        cl_mem d_ScratchHistogram = clCreateBuffer(cxGPUContext, CL_MEM_READ_WRITE, HISTOGRAM256_BIN_COUNT * Sizeof.cl_uint, null, null);
+        final int partialCount;
         try
         {
-            BufferedReader br = new BufferedReader(new InputStreamReader(Reduction.class.getResourceAsStream(fileName)));
-            StringBuilder sb = new StringBuilder();
-            String line = null;
-            while (true)
+            partialCount = tuneHistogram256(qgQueueGroup.getComputeQueue(), d_ScratchHistogram, d_ScratchData, STREAM_CHUNK_SIZE);
+        }
+        finally
+        {
+            clReleaseMemObject(d_ScratchHistogram);
+            clReleaseMemObject(d_ScratchData);
+        }
+
+        StreamingPipeline pipeline = new StreamingPipeline(cxGPUContext, qgQueueGroup, STREAM_CHUNK_SIZE, HISTOGRAM256_BIN_COUNT * Sizeof.cl_uint);
+        pipeline.run(new StreamingPipeline.ChunkSource()
+        {
+            @Override
+            public void fill(ByteBuffer buffer)
             {
-                line = br.readLine();
-                if (line == null)
+                try
+                {
+                    while(buffer.hasRemaining() && chData.read(buffer) >= 0)
+                    {
+                        //Read until the chunk is full or the channel is exhausted
+                    }
+                }
+                catch (IOException e)
                 {
-                    break;
+                    throw new UncheckedIOException(e);
                 }
-                sb.append(line+"\n");
+                int remainder = buffer.position() % 4;
+                for(int i = buffer.position() - remainder; i < buffer.position(); i++)
+                    h_Histogram[buffer.get(i) & 0xFF]++;
+                buffer.position(buffer.position() - remainder);
             }
-            return sb.toString();
-        }
-        catch (IOException e)
+        }, new StreamingPipeline.KernelStage()
         {
-            e.printStackTrace();
-            return "";
-        }
+            @Override
+            public void enqueue(cl_command_queue cqComputeQue, cl_mem d_Data, long dataSize, cl_mem d_Histogram, cl_event waitList[], cl_event event)
+            {
+                enqueueHistogram256(cqComputeQue, d_Histogram, d_Data, (int)dataSize, partialCount, waitList, event);
+            }
+        }, new StreamingPipeline.ChunkSink()
+        {
+            @Override
+            public void accept(ByteBuffer result, long chunkIndex)
+            {
+                IntBuffer h_ChunkHistogram = result.asIntBuffer();
+                for(int i = 0; i < HISTOGRAM256_BIN_COUNT; i++)
+                    h_Histogram[i] += h_ChunkHistogram.get(i);
+            }
+        });
+        System.out.println("..." + pipeline);
+        return pipeline.getBytes();
     }
-
 }
@@ -17,12 +17,23 @@ import java.nio.IntBuffer;
 import java.util.*;
 import java.util.List;
 import java.util.concurrent.*;
+import java.util.function.BiConsumer;
 
 import javax.imageio.ImageIO;
 import javax.swing.*;
 import javax.swing.event.*;
 import javax.swing.filechooser.FileNameExtensionFilter;
 
+import com.mdaley.jocl.BufferPool;
+import com.mdaley.jocl.ClFutures;
+import com.mdaley.jocl.ClRuntime;
+import com.mdaley.jocl.DeviceSelector;
+import com.mdaley.jocl.KernelArgs;
+import com.mdaley.jocl.KernelSources;
+import com.mdaley.jocl.ProgramWarmup;
+import com.mdaley.jocl.QueueGroup;
+import com.mdaley.jocl.StagingBuffer;
+import com.mdaley.jocl.WorkStealingScheduler;
 import org.jocl.*;
 
 
@@ -52,6 +63,58 @@ public class Mandelbrot
         });
     }
 
+    /**
+     * Register the program of this sample at the given warm-up service,
+     * so that it is built in the background at startup
+     *
+     * @param warmup The warm-up service
+     */
+    public static void registerPrograms(ProgramWarmup warmup)
+    {
+        ClRuntime runtime = ClRuntime.getInstance();
+        List<cl_device_id> devices =
+                runtime.getDevices(selectPlatform(), DEVICE_TYPE);
+        warmup.register("Mandelbrot",
+                devices.toArray(new cl_device_id[devices.size()]),
+                PROGRAM_OPTIONS, PROGRAM_SOURCE);
+    }
+
+    /**
+     * The workload that is used for selecting the platform. The
+     * rendering is purely compute-bound.
+     */
+    private static final DeviceSelector.Workload WORKLOAD =
+            new DeviceSelector.Workload("Mandelbrot")
+            .globalMemoryWeight(0.0);
+
+    /**
+     * Returns the platform of the device that is best suited for this
+     * sample. All devices of this platform will be used.
+     *
+     * @return The platform
+     */
+    private static cl_platform_id selectPlatform()
+    {
+        return ClRuntime.getInstance().getPlatform(
+                DeviceSelector.select(WORKLOAD));
+    }
+
+    /**
+     * The type of the devices that will be used
+     */
+    private static final long DEVICE_TYPE = CL_DEVICE_TYPE_ALL;
+
+    /**
+     * The kernel source resource of the program, which includes
+     * the QuadFloat functions
+     */
+    private static final String PROGRAM_SOURCE = "/QuadFloatMandelbrot.cl";
+
+    /**
+     * The build options of the program
+     */
+    private static final String PROGRAM_OPTIONS = "-cl-mad-enable";
+
     /**
      * Constant for the default image size in x-direction
      */
@@ -164,37 +227,26 @@ public class Mandelbrot
         }
 
         /**
-         * Set up the OpenCL arguments for this task for the given kernel
+         * Set up the OpenCL arguments for this task with the given
+         * argument binder. The double values of the area are passed
+         * as float2 values containing their high- and low word.
          *
-         * @param kernel The OpenCL kernel for which the arguments will be set
+         * @param args The argument binder of the OpenCL kernel
          */
-        protected void setupArguments(cl_kernel kernel)
+        protected void setupArguments(KernelArgs args)
         {
-            clSetKernelArg(kernel,  0,
-                    Sizeof.cl_mem, Pointer.to(outputMem));
-            clSetKernelArg(kernel,  1,
-                    Sizeof.cl_uint, Pointer.to(new int[]{sizeX}));
-            clSetKernelArg(kernel,  2,
-                    Sizeof.cl_uint, Pointer.to(new int[]{sizeY}));
-            clSetKernelArg(kernel,  3,
-                    Sizeof.cl_uint, Pointer.to(new int[]{tileX}));
-            clSetKernelArg(kernel,  4,
-                    Sizeof.cl_uint, Pointer.to(new int[]{tileY}));
-            clSetKernelArg(kernel,  5,
-                    Sizeof.cl_uint, Pointer.to(new int[]{tileSizeX}));
-            clSetKernelArg(kernel,  6,
-                    Sizeof.cl_uint, Pointer.to(new int[]{tileSizeY}));
-            clSetKernelArg(kernel,  7,
-                    Sizeof.cl_float2, Pointer.to(toDoubleFloat(area.x)));
-            clSetKernelArg(kernel,  8,
-                    Sizeof.cl_float2, Pointer.to(toDoubleFloat(area.y)));
-            clSetKernelArg(kernel,  9,
-                    Sizeof.cl_float2, Pointer.to(toDoubleFloat(area.width)));
-            clSetKernelArg(kernel, 10,
-                    Sizeof.cl_float2, Pointer.to(toDoubleFloat(area.height)));
-            clSetKernelArg(kernel, 11,
-                    Sizeof.cl_int, Pointer.to(new int[]{ maxIterations }));
-
+            args.setMem(0, outputMem);
+            args.setInt(1, sizeX);
+            args.setInt(2, sizeY);
+            args.setInt(3, tileX);
+            args.setInt(4, tileY);
+            args.setInt(5, tileSizeX);
+            args.setInt(6, tileSizeY);
+            args.setFloat2(7, computeHi(area.x), computeLo(area.x));
+            args.setFloat2(8, computeHi(area.y), computeLo(area.y));
+            args.setFloat2(9, computeHi(area.width), computeLo(area.width));
+            args.setFloat2(10, computeHi(area.height), computeLo(area.height));
+            args.setInt(11, maxIterations);
         }
 
         /**
@@ -227,58 +279,112 @@ public class Mandelbrot
         }
 
         /**
-         * Convert the given double value to an array containing
-         * the "low- and high word" as float values
-         *
-         * @param d The value
-         * @return The low- and high word of the value
-         */
-        private float[] toDoubleFloat(double d)
-        {
-            return new float[]{computeHi(d),computeLo(d)};
-        }
-
-        /**
-         * Will execute this task with the given kernel on the given
-         * command queue
+         * Will execute this task with the kernel of the given argument
+         * binder on the given queue group. The kernel is enqueued on the
+         * compute queue, and the read of the result on the download queue,
+         * where it waits for the kernel. The returned future is completed
+         * when the colors of the result have been processed.
          *
-         * @param kernel The kernel
-         * @param commandQueue The command queue
+         * @param args The argument binder of the kernel
+         * @param queueGroup The queue group
+         * @return The future that is completed when the task is done
          */
-        public void execute(cl_kernel kernel, cl_command_queue commandQueue)
+        public CompletableFuture<Void> execute(
+                KernelArgs args, QueueGroup queueGroup)
         {
-            setupArguments(kernel);
+            setupArguments(args);
 
             long globalWorkSize[] = new long[2];
             globalWorkSize[0] = tileSizeX;
             globalWorkSize[1] = tileSizeY;
 
-            cl_event event = new cl_event();
+            final cl_event event = new cl_event();
 
+            cl_command_queue computeQueue = queueGroup.getComputeQueue();
             clEnqueueNDRangeKernel(
-                    commandQueue,
-                    kernel, 2, null,
+                    computeQueue,
+                    args.getKernel(), 2, null,
                     globalWorkSize, null, 0, null, event);
 
-            clWaitForEvents(1, new cl_event[]{event});
+            // Read the contents of the iterations memory object
+            // through a pinned staging buffer. The read is enqueued on
+            // the download queue, so that the kernel of the next task
+            // may run while the result of this task is transferred.
+            // Each tile has its own memory object, so the next task
+            // does not overwrite the data that is read.
+            cl_command_queue downloadQueue = queueGroup.getDownloadQueue();
+            final int size = tileSizeX * tileSizeY;
+            final StagingBuffer staging;
+            cl_event readEvent = new cl_event();
+            try
+            {
+                clFlush(computeQueue);
+                staging = ClRuntime.getInstance()
+                        .getStagingBufferPool().acquire(
+                                downloadQueue, size * Sizeof.cl_int);
+                try
+                {
+                    staging.read(downloadQueue, outputMem,
+                            0, size * Sizeof.cl_int, false,
+                            new cl_event[]{ event }, readEvent);
+                }
+                catch (CLException e)
+                {
+                    staging.release();
+                    throw e;
+                }
+            }
+            catch (CLException e)
+            {
+                clReleaseEvent(event);
+                throw e;
+            }
 
-            if (BENCHMARK && (this instanceof TileTask))
+            // The event is kept for the profiling information, which
+            // is only available after the kernel has completed
+            final boolean benchmark = BENCHMARK && (this instanceof TileTask);
+            if (!benchmark)
             {
-                printBenchmarkInfo(
-                        event, commandQueue, outputMem, tileX, tileY);
+                clReleaseEvent(event);
             }
 
-            // Read the contents of the iterations memory object
-            int size = tileSizeX * tileSizeY;
-            int result[] = new int[size];
-            Pointer target = Pointer.to(result);
-            clEnqueueReadBuffer(
-                    commandQueue, outputMem,
-                    CL_TRUE, 0, size * Sizeof.cl_int,
-                    target, 0, null, null);
-
-            convertIterationsToColors(result);
-            processColors(result);
+            // The future of the read event is completed by an event
+            // callback, which only requires OpenCL 1.1. The read event
+            // is released by the future.
+            CompletableFuture<Void> read =
+                    ClFutures.whenComplete(readEvent, null);
+            clFlush(downloadQueue);
+            return read.whenComplete(new BiConsumer<Void, Throwable>()
+            {
+                @Override
+                public void accept(Void result, Throwable failure)
+                {
+                    if (failure != null)
+                    {
+                        staging.release();
+                        if (benchmark)
+                        {
+                            clReleaseEvent(event);
+                        }
+                    }
+                }
+            }).thenRun(new Runnable()
+            {
+                @Override
+                public void run()
+                {
+                    int result[] = new int[size];
+                    staging.asIntBuffer().get(result);
+                    staging.release();
+                    if (benchmark)
+                    {
+                        printBenchmarkInfo(event, result, tileX, tileY);
+                        clReleaseEvent(event);
+                    }
+                    convertIterationsToColors(result);
+                    processColors(result);
+                }
+            });
         }
 
         /**
@@ -405,97 +511,97 @@ public class Mandelbrot
     }
 
     /**
-     * A class that takes {@link Task}s from the taskQueue, executes
-     * them and repaints the image component.
+     * A class that executes {@link Task}s on the queue group of one
+     * device. The tasks are assigned to the processors by the
+     * {@link WorkStealingScheduler}.
      */
-    private class TaskProcessor implements Runnable
+    private class TaskProcessor implements WorkStealingScheduler.Worker<Task>
     {
         /**
-         * The kernel which will be executed
+         * The future that will receive the program
+         */
+        private Future<cl_program> program;
+
+        /**
+         * The kernel which will be executed. This is created from
+         * the program when the first task is executed.
          */
         protected cl_kernel kernel;
 
         /**
-         * The OpenCL command queue
+         * The argument binder for the kernel, which is reused
+         * for all tasks
          */
-        protected cl_command_queue commandQueue;
+        protected KernelArgs kernelArgs;
 
         /**
-         * The list of tasks which are currently active
+         * The OpenCL queue group
          */
-        private List<Task> activeTasks =
-                Collections.synchronizedList(new ArrayList<Task>());
+        protected QueueGroup queueGroup;
 
         /**
          * Creates a new TaskProcessor which will execute the
-         * given kernel on the given command queue
+         * kernel of the given program on the given queue group
          *
-         * @param kernel The kernel
-         * @param commandQueue The command queue
+         * @param program The future that will receive the program
+         * @param queueGroup The queue group
          */
-        public TaskProcessor(cl_kernel kernel, cl_command_queue commandQueue)
+        public TaskProcessor(
+                Future<cl_program> program, QueueGroup queueGroup)
         {
-            this.kernel = kernel;
-            this.commandQueue = commandQueue;
+            this.program = program;
+            this.queueGroup = queueGroup;
         }
 
         @Override
-        public void run()
+        public CompletableFuture<Void> execute(Task task)
         {
-            while (true)
+            if (kernel == null)
             {
-                Task task = null;
+                // Wait for the build only when the kernel is needed
                 try
                 {
-                    task = taskQueue.take();
+                    kernel = clCreateKernel(
+                            program.get(), "computeMandelbrot", null);
+                    kernelArgs = new KernelArgs(kernel);
                 }
                 catch (InterruptedException e)
                 {
                     Thread.currentThread().interrupt();
-                    break;
+                    CompletableFuture<Void> failed = new CompletableFuture<Void>();
+                    failed.completeExceptionally(e);
+                    return failed;
                 }
-                activeTasks.add(task);
-                task.execute(kernel, commandQueue);
-                activeTasks.remove(task);
-                synchronized (activeTasks)
+                catch (ExecutionException e)
                 {
-                    activeTasks.notifyAll();
+                    CompletableFuture<Void> failed = new CompletableFuture<Void>();
+                    failed.completeExceptionally(e);
+                    return failed;
                 }
-                imageComponent.repaint();
-
-                // Tasks occupy the graphics card -
-                // give it some time to breathe
-                try
-                {
-                    Thread.sleep(5);
-                }
-                catch (InterruptedException e)
+            }
+            // The task is only enqueued, so that the scheduler can
+            // enqueue further tasks while the device is busy
+            return task.execute(kernelArgs, queueGroup).whenComplete(
+                    new BiConsumer<Void, Throwable>()
+            {
+                @Override
+                public void accept(Void result, Throwable failure)
                 {
-                    Thread.currentThread().interrupt();
-                    break;
+                    imageComponent.repaint();
                 }
-            }
+            });
         }
 
         /**
-         * Wait until all tasks are finished.
+         * Release the kernel of this processor, if it has been created
          */
-        public void finish()
+        public void release()
         {
-            synchronized (activeTasks)
+            if (kernel != null)
             {
-                while (!activeTasks.isEmpty())
-                {
-                    try
-                    {
-                        activeTasks.wait();
-                    }
-                    catch (InterruptedException e)
-                    {
-                        Thread.currentThread().interrupt();
-                        break;
-                    }
-                }
+                clReleaseKernel(kernel);
+                kernel = null;
+                kernelArgs = null;
             }
         }
     }
@@ -575,41 +681,6 @@ public class Mandelbrot
 
 
 
-    /**
-     * Helper function which reads the file with the given name and returns
-     * the contents of this file as a String. Will exit the application
-     * if the file can not be read.
-     *
-     * @param fileName The name of the file to read.
-     * @return The contents of the file
-     */
-    private static String readFile(String fileName)
-    {
-        try
-        {
-            BufferedReader br = new BufferedReader(new InputStreamReader(Mandelbrot.class.getResourceAsStream(fileName)));
-            StringBuffer sb = new StringBuffer();
-            String line = null;
-            while (true)
-            {
-                line = br.readLine();
-                if (line == null)
-                {
-                    break;
-                }
-                sb.append(line).append("\n");
-            }
-            return sb.toString();
-        }
-        catch (IOException e)
-        {
-            e.printStackTrace();
-            System.exit(1);
-            return null;
-        }
-    }
-
-
     /**
      * The OpenCL context
      */
@@ -621,16 +692,15 @@ public class Mandelbrot
     private int numDevices;
 
     /**
-     * The OpenCL command queues
+     * The OpenCL queue groups, one for each device
      */
-    private cl_command_queue commandQueues[];
+    private QueueGroup queueGroups[];
 
     /**
-     * The OpenCL kernels which will actually compute the Mandelbrot
-     * set and store the numbers of iterations in the
-     * memory object
+     * The future that will receive the OpenCL program which contains
+     * the kernel that computes the Mandelbrot set
      */
-    private cl_kernel kernels[];
+    private Future<cl_program> program;
 
     /**
      * The OpenCL memory objects which store the number of
@@ -687,17 +757,15 @@ public class Mandelbrot
     private int numTilesY;
 
     /**
-     * The {@link TaskProcessor}s which will execute the tasks
-     * for computing the preview- and tile kernels
+     * The scheduler which distributes the tasks for computing the
+     * preview- and tile kernels over the {@link TaskProcessor}s
      */
-    private TaskProcessor taskProcessors[];
+    private WorkStealingScheduler<Task> scheduler;
 
     /**
-     * The queue of Tasks that are about to be executed by
-     * the {@link TaskProcessor}.
+     * The task processors, one for each device
      */
-    private BlockingQueue<Task> taskQueue =
-            new ArrayBlockingQueue<Task>(32768, true);
+    private List<TaskProcessor> taskProcessors;
 
     /**
      * The image which will be used to display the pixels
@@ -761,6 +829,14 @@ public class Mandelbrot
         // and the control panel
         JFrame frame = new JFrame("JOCL Mandelbrot");
         frame.setDefaultCloseOperation(JFrame.EXIT_ON_CLOSE);
+        frame.addWindowListener(new WindowAdapter()
+        {
+            @Override
+            public void windowClosing(WindowEvent e)
+            {
+                shutdownCL();
+            }
+        });
         frame.setLayout(new BorderLayout());
         JPanel p = new JPanel(new FlowLayout());
         p.setPreferredSize(new Dimension(1024, 1024));
@@ -782,60 +858,42 @@ public class Mandelbrot
      */
     private void initCL()
     {
-        // The platform and device type that will be used
-        final int platformIndex = 0;
-        final long deviceType = CL_DEVICE_TYPE_ALL;
-
-        // Enable exceptions and subsequently omit error checks in this sample
-        CL.setExceptionsEnabled(true);
-
-        // Obtain the number of platforms
-        int numPlatformsArray[] = new int[1];
-        clGetPlatformIDs(0, null, numPlatformsArray);
-        int numPlatforms = numPlatformsArray[0];
-
-        // Obtain a platform ID
-        cl_platform_id platforms[] = new cl_platform_id[numPlatforms];
-        clGetPlatformIDs(platforms.length, platforms, null);
-        cl_platform_id platform = platforms[platformIndex];
+        // Obtain the platform of the best suited device from the runtime
+        ClRuntime runtime = ClRuntime.getInstance();
+        cl_platform_id platform = selectPlatform();
 
         System.out.println("Using plaform "+
                 getPlatformInfoString(platform, CL.CL_PLATFORM_NAME));
 
-        // Initialize the context properties
-        cl_context_properties contextProperties = new cl_context_properties();
-        contextProperties.addProperty(CL_CONTEXT_PLATFORM, platform);
-
-        // Obtain the number of devices for the platform
-        int numDevicesArray[] = new int[1];
-        clGetDeviceIDs(platform, deviceType, 0, null, numDevicesArray);
-        numDevices = numDevicesArray[0];
-
-        // Obtain the device IDs
-        cl_device_id devices[] = new cl_device_id[numDevices];
-        clGetDeviceIDs(platform, deviceType, numDevices, devices, null);
+        // Obtain the device IDs. If the runtime partitions the CPU
+        // devices, then each sub-device is used as a separate device,
+        // with its own queue group and task processor
+        List<cl_device_id> deviceList = runtime.getDevices(platform, DEVICE_TYPE);
+        numDevices = deviceList.size();
+        cl_device_id devices[] = deviceList.toArray(new cl_device_id[numDevices]);
 
         for (int i=0; i<numDevices; i++)
         {
+            String subDevice = runtime.getParentDevice(devices[i]) == null ?
+                    "" : " (sub-device, " + runtime.getPartitioning() + ")";
             System.out.println("Device "+i+": "+
-                    getDeviceInfoString(devices[i], CL.CL_DEVICE_NAME));
+                    getDeviceInfoString(devices[i], CL.CL_DEVICE_NAME)+
+                    subDevice);
         }
 
-        // Create a context for the selected devices
-        context = clCreateContext(
-                contextProperties, numDevices, devices,
-                null, null, null);
-
-        // Read the kernel files and set up the OpenCL program
-        String source0 = readFile("/QuadFloat.cl");
-        String source1 = readFile("/QuadFloatMandelbrot.cl");
-        cl_program program = clCreateProgramWithSource(context, 2,
-                new String[]{ source0, source1 }, null, null);
-        clBuildProgram(program, 0, null, "-cl-mad-enable", null, null);
-
-        // Create a the command-queues and kernels
-        commandQueues = new cl_command_queue[numDevices];
-        kernels = new cl_kernel[numDevices];
+        // Obtain the shared context that contains the devices
+        context = runtime.getContext(platform);
+
+        // Read the kernel files and start building the OpenCL program
+        // in the background. The task processors will wait for the
+        // build when they execute their first task.
+        String source = KernelSources.getResolved(PROGRAM_SOURCE);
+        program = runtime.getProgramCache().acquireProgramAsync(
+                context, devices, new String[]{ source }, PROGRAM_OPTIONS);
+
+        // Obtain the queue groups, with separate queues for the
+        // kernels and the readbacks
+        queueGroups = new QueueGroup[numDevices];
         long properties = 0;
         if (BENCHMARK)
         {
@@ -843,26 +901,23 @@ public class Mandelbrot
         }
         for (int i=0; i<numDevices; i++)
         {
-            commandQueues[i] =
-                    clCreateCommandQueue(context, devices[i], properties, null);
-            kernels[i] = clCreateKernel(program, "computeMandelbrot", null);
+            queueGroups[i] = runtime.getQueueGroup(devices[i], properties);
         }
         // Create the color map
         colorMap = createColorMap(2048,
                 Color.RED, Color.YELLOW, Color.GREEN,
                 Color.CYAN, Color.BLUE, Color.MAGENTA);
 
-        // Start the task processors
-        taskProcessors = new TaskProcessor[numDevices];
+        // Start the scheduler with one task processor for each device.
+        // Idle devices steal tiles from the others, and the number of
+        // tiles in flight follows the throughput of each device
+        taskProcessors = new ArrayList<TaskProcessor>();
         for (int i=0; i<numDevices; i++)
         {
-            taskProcessors[i] =
-                    new TaskProcessor(kernels[i], commandQueues[i]);
-            Thread thread =
-                    new Thread(taskProcessors[i], "taskProcessorThread"+i);
-            thread.setDaemon(true);
-            thread.start();
+            taskProcessors.add(new TaskProcessor(program, queueGroups[i]));
         }
+        scheduler = new WorkStealingScheduler<Task>(
+                "taskProcessorThread", taskProcessors);
 
         // Initialize the BufferedImage and the OpenCL memory
         initImage(
@@ -871,6 +926,47 @@ public class Mandelbrot
     }
 
 
+    /**
+     * Finish all tasks, stop the scheduler, and release the kernels,
+     * the program and the memory objects
+     */
+    private void shutdownCL()
+    {
+        flush();
+        scheduler.shutdown();
+        for (TaskProcessor taskProcessor : taskProcessors)
+        {
+            taskProcessor.release();
+        }
+        try
+        {
+            cl_program builtProgram = program.get();
+            ClRuntime.getInstance().getProgramCache().releaseProgram(
+                    builtProgram);
+        }
+        catch (InterruptedException e)
+        {
+            Thread.currentThread().interrupt();
+        }
+        catch (ExecutionException e)
+        {
+            // The program was not built, so there is nothing to release
+        }
+        BufferPool bufferPool = ClRuntime.getInstance().getBufferPool();
+        if (iterationsMem != null)
+        {
+            for (int x=0; x<numTilesX; x++)
+            {
+                for (int y=0; y<numTilesY; y++)
+                {
+                    bufferPool.releaseBuffer(iterationsMem[x][y]);
+                }
+            }
+            bufferPool.releaseBuffer(previewIterationsMem);
+            iterationsMem = null;
+        }
+    }
+
     /**
      * Initializes the OpenCL memory object and the BufferedImage which
      * will later receive the pixels
@@ -882,18 +978,21 @@ public class Mandelbrot
         // Flush all pending tasks
         flush();
 
-        // Release all existing memory objects
+        // Return all existing memory objects to the buffer pool. The
+        // tiles of the new image will usually have the same size, so
+        // that they can be recycled
+        BufferPool bufferPool = ClRuntime.getInstance().getBufferPool();
         if (iterationsMem != null)
         {
             for (int x=0; x<numTilesX; x++)
             {
                 for (int y=0; y<numTilesY; y++)
                 {
-                    clReleaseMemObject(iterationsMem[x][y]);
+                    bufferPool.releaseBuffer(iterationsMem[x][y]);
                     iterationsMem[x][y] = null;
                 }
             }
-            clReleaseMemObject(previewIterationsMem);
+            bufferPool.releaseBuffer(previewIterationsMem);
             iterationsMem = null;
         }
 
@@ -912,12 +1011,12 @@ public class Mandelbrot
             for (int y=0; y<numTilesY; y++)
             {
                 iterationsMem[x][y] =
-                        clCreateBuffer(context, CL_MEM_WRITE_ONLY,
-                                tileSizeX * tileSizeY * Sizeof.cl_uint, null, null);
+                        bufferPool.acquireBuffer(context, CL_MEM_WRITE_ONLY,
+                                tileSizeX * tileSizeY * Sizeof.cl_uint);
             }
         }
-        previewIterationsMem = clCreateBuffer(context, CL_MEM_WRITE_ONLY,
-                numTilesX * numTilesY * Sizeof.cl_uint, null, null);
+        previewIterationsMem = bufferPool.acquireBuffer(context, CL_MEM_WRITE_ONLY,
+                numTilesX * numTilesY * Sizeof.cl_uint);
 
         image = new BufferedImage(sizeX, sizeY, BufferedImage.TYPE_INT_RGB);
         if (imageComponent != null)
@@ -927,15 +1026,28 @@ public class Mandelbrot
     }
 
     /**
-     * Flush all pending tasks and finish all running tasks
+     * Flush all pending tasks and finish all running tasks, and report
+     * a task that failed since the previous flush
      */
     private void flush()
     {
-        taskQueue.drainTo(new ArrayList<Task>());
+        scheduler.clear();
+        try
+        {
+            scheduler.awaitIdle();
+        }
+        catch (InterruptedException e)
+        {
+            Thread.currentThread().interrupt();
+        }
+        catch (ExecutionException e)
+        {
+            System.err.println("Rendering failed");
+            e.getCause().printStackTrace();
+        }
         for (int i=0; i<numDevices; i++)
         {
-            clFinish(commandQueues[i]);
-            taskProcessors[i].finish();
+            queueGroups[i].finish();
         }
     }
 
@@ -1390,14 +1502,7 @@ public class Mandelbrot
         Task previewTask = new PreviewTask(
                 previewIterationsMem, numTilesX, numTilesY,
                 tileSizeX, tileSizeY, currentArea, maxIterations);
-        try
-        {
-            taskQueue.put(previewTask);
-        }
-        catch (InterruptedException e)
-        {
-            Thread.currentThread().interrupt();
-        }
+        scheduler.submit(previewTask);
 
         // Schedule the tasks for computing the tiles
         for (int x=0; x<numTilesX; x++)
@@ -1407,16 +1512,7 @@ public class Mandelbrot
                 Task task = new TileTask(
                         iterationsMem[x][y], sizeX, sizeY, x, y,
                         tileSizeX, tileSizeY, currentArea, maxIterations);
-                try
-                {
-                    taskQueue.put(task);
-                }
-                catch (InterruptedException e)
-                {
-                    x = numTilesX;
-                    y = numTilesY;
-                    Thread.currentThread().interrupt();
-                }
+                scheduler.submit(task);
             }
         }
     }
@@ -1426,24 +1522,12 @@ public class Mandelbrot
      * Print some "benchmarking" information
      */
     private void printBenchmarkInfo(
-            cl_event event, cl_command_queue commandQueue,
-            cl_mem iterationsMem, int tileX, int tileY)
+            cl_event event, int iterations[], int tileX, int tileY)
     {
-        IntBuffer buffer = IntBuffer.allocate(tileSizeX * tileSizeY);
-        clEnqueueReadBuffer(
-                commandQueue, iterationsMem,
-                CL_TRUE, 0, tileSizeX * tileSizeY * Sizeof.cl_int,
-                Pointer.to(buffer), 0, null, null);
-
         long sum = 0;
-        for (int x=0; x<tileSizeX; x++)
+        for (int value : iterations)
         {
-            for (int y=0; y<tileSizeY; y++)
-            {
-                int index = y * tileSizeX + x;
-                int value = buffer.get(index);
-                sum += value;
-            }
+            sum += value;
         }
 
         double executionTime = computeExecutionTimeMs(event);
@@ -7,45 +7,44 @@ package com.mdaley.jocl.samples;
  */
 
 import static org.jocl.CL.CL_CONTEXT_PLATFORM;
+import static org.jocl.CL.CL_DEVICE_MAX_COMPUTE_UNITS;
 import static org.jocl.CL.CL_DEVICE_NAME;
 import static org.jocl.CL.CL_DEVICE_TYPE_ALL;
+import static org.jocl.CL.CL_DEVICE_TYPE_CPU;
 import static org.jocl.CL.CL_MEM_COPY_HOST_PTR;
 import static org.jocl.CL.CL_MEM_READ_ONLY;
-import static org.jocl.CL.CL_MEM_READ_WRITE;
+import static org.jocl.CL.CL_MEM_WRITE_ONLY;
 import static org.jocl.CL.CL_PLATFORM_NAME;
-import static org.jocl.CL.CL_TRUE;
+import static org.jocl.CL.CL_QUEUE_PROFILING_ENABLE;
 import static org.jocl.CL.clBuildProgram;
 import static org.jocl.CL.clCreateBuffer;
 import static org.jocl.CL.clCreateCommandQueue;
 import static org.jocl.CL.clCreateContext;
-import static org.jocl.CL.clCreateKernel;
 import static org.jocl.CL.clCreateProgramWithSource;
-import static org.jocl.CL.clEnqueueNDRangeKernel;
-import static org.jocl.CL.clEnqueueReadBuffer;
-import static org.jocl.CL.clGetDeviceIDs;
-import static org.jocl.CL.clGetDeviceInfo;
-import static org.jocl.CL.clGetPlatformIDs;
-import static org.jocl.CL.clGetPlatformInfo;
 import static org.jocl.CL.clReleaseCommandQueue;
 import static org.jocl.CL.clReleaseContext;
-import static org.jocl.CL.clReleaseEvent;
-import static org.jocl.CL.clReleaseKernel;
+import static org.jocl.CL.clReleaseDevice;
 import static org.jocl.CL.clReleaseMemObject;
 import static org.jocl.CL.clReleaseProgram;
-import static org.jocl.CL.clSetKernelArg;
-import static org.jocl.CL.clWaitForEvents;
 
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
 import java.util.Arrays;
-
-import org.jocl.CL;
+import java.util.List;
+
+import com.mdaley.jocl.ClInfo;
+import com.mdaley.jocl.ClRuntime;
+import com.mdaley.jocl.DeviceCapabilities;
+import com.mdaley.jocl.DevicePartitioning;
+import com.mdaley.jocl.DeviceSelector;
+import com.mdaley.jocl.MultiDeviceExecutor;
 import org.jocl.Pointer;
 import org.jocl.Sizeof;
 import org.jocl.cl_command_queue;
 import org.jocl.cl_context;
 import org.jocl.cl_context_properties;
 import org.jocl.cl_device_id;
-import org.jocl.cl_event;
-import org.jocl.cl_kernel;
 import org.jocl.cl_mem;
 import org.jocl.cl_platform_id;
 import org.jocl.cl_program;
@@ -53,11 +52,13 @@ import org.jocl.cl_program;
 /**
  * A small JOCL sample that uses multiple devices. <br />
  * <br />
- * Note: This is just a basic demo, showing the possibility to use multiple
- * devices simultaneously. Each device receives its own copy of the memory
- * objects to work on. In real applications, there may be a more complex
- * management of the buffers and the synchronization between the different
- * devices, which is beyond the scope of this sample.
+ * The NDRange of the kernel is split across the devices with a
+ * {@link MultiDeviceExecutor}: Each device executes a share of the work
+ * items that is proportional to its throughput, and the partial outputs
+ * are gathered into one result. The execution on all devices of the
+ * platform is compared to the execution on the first device alone. If
+ * the platform has a CPU device that can be partitioned, the same is done
+ * for sub-devices of the CPU device.
  */
 public class MultiDeviceSample
 {
@@ -71,208 +72,293 @@ public class MultiDeviceSample
                     "                           int size)"+
                     "{"+
                     "    int gid = get_global_id(0);"+
-                    "    output[gid] = 0;" +
+                    "    float sum = 0;" +
                     "    for (int i=0; i<size; i++) " +
-                    "        output[gid] += input[i];" +
+                    "        sum += input[i];" +
+                    "    output[gid] = sum;" +
                     "}";
 
+    /**
+     * The number of input and output elements
+     */
+    private static final int SIZE = 1 << 14;
+
+    /**
+     * The number of timed executions
+     */
+    private static final int RUNS = 5;
+
+    /**
+     * The maximum number of CPU sub-devices
+     */
+    private static final int MAX_SUB_DEVICES = 4;
 
     /**
      * The entry point of this sample.
      */
     public static void run()
     {
-        // Create input- and output data
-        int n = 10000;
-        float input[] = new float[n];
-        float output[] = new float[n];
+        // Create input data
+        float input[] = new float[SIZE];
         Arrays.fill(input, 1.0f);
 
-        // The platform and device type that will be used
-        final int platformIndex = 0;
+        // The device type that will be used
         final long deviceType = CL_DEVICE_TYPE_ALL;
 
-        // Enable exceptions and subsequently omit error checks in this sample
-        CL.setExceptionsEnabled(true);
-
-        // Obtain the number of platforms
-        int numPlatformsArray[] = new int[1];
-        clGetPlatformIDs(0, null, numPlatformsArray);
-        int numPlatforms = numPlatformsArray[0];
-
-        // Obtain a platform ID
-        cl_platform_id platforms[] = new cl_platform_id[numPlatforms];
-        clGetPlatformIDs(platforms.length, platforms, null);
-        cl_platform_id platform = platforms[platformIndex];
-        String platformName = getString(platform, CL_PLATFORM_NAME);
+        // Obtain the platform of the best suited device from the
+        // shared runtime. All devices of this platform will be used.
+        ClRuntime runtime = ClRuntime.getInstance();
+        int numPlatforms = runtime.getPlatforms().size();
+        cl_platform_id platform = runtime.getPlatform(DeviceSelector.select(
+                new DeviceSelector.Workload("MultiDeviceSample")));
+        int platformIndex = runtime.getPlatforms().indexOf(platform);
+        String platformName = ClInfo.getString(platform, CL_PLATFORM_NAME);
         System.out.println("Using platform "+platformIndex+" of "+
                 numPlatforms+": "+platformName);
 
-        // Initialize the context properties
-        cl_context_properties contextProperties = new cl_context_properties();
-        contextProperties.addProperty(CL_CONTEXT_PLATFORM, platform);
-
-        // Obtain the number of devices for the platform
-        int numDevicesArray[] = new int[1];
-        clGetDeviceIDs(platform, deviceType, 0, null, numDevicesArray);
-        int numDevices = numDevicesArray[0];
-
         // Obtain a device IDs
-        cl_device_id devices[] = new cl_device_id[numDevices];
-        clGetDeviceIDs(platform, deviceType, numDevices, devices, null);
+        List<cl_device_id> deviceList = runtime.getDevices(platform, deviceType);
+        int numDevices = deviceList.size();
+        cl_device_id devices[] = deviceList.toArray(new cl_device_id[numDevices]);
         for (int i=0; i<numDevices; i++)
         {
-            String deviceName = getString(devices[i], CL_DEVICE_NAME);
+            String deviceName = ClInfo.getString(devices[i], CL_DEVICE_NAME);
             System.out.println("Device "+i+" of "+numDevices+": "+deviceName);
         }
 
-        // Create a context for the devices
-        cl_context context = clCreateContext(
-                contextProperties, devices.length, devices, null, null, null);
-
-        // Create and build the program and the kernel
-        cl_program program = clCreateProgramWithSource(context,
-                1, new String[]{ programSource }, null, null);
-        clBuildProgram(program, 0, null, null, null, null);
-        cl_kernel kernel = clCreateKernel(program, "sampleKernel", null);
-
-        // Allocate the memory objects for the input- and output data
-        cl_mem inputMems[] = new cl_mem[numDevices];
-        cl_mem outputMems[] = new cl_mem[numDevices];
+        // Obtain the shared context and one profiling command queue
+        // for each device, and build the program for all devices
+        cl_context context = runtime.getContext(platform);
+        cl_command_queue commandQueues[] = new cl_command_queue[numDevices];
         for (int i=0; i<numDevices; i++)
         {
-
-            inputMems[i] = clCreateBuffer(context,
-                    CL_MEM_READ_ONLY | CL_MEM_COPY_HOST_PTR,
-                    Sizeof.cl_float * n, Pointer.to(input), null);
-            outputMems[i] = clCreateBuffer(context,
-                    CL_MEM_READ_WRITE,
-                    Sizeof.cl_float * n, null, null);
+            commandQueues[i] = runtime.getCommandQueue(
+                    devices[i], CL_QUEUE_PROFILING_ENABLE);
         }
+        cl_program program = buildProgram(context, devices);
+        compare("devices", context, program, commandQueues, input);
+        clReleaseProgram(program);
 
-        // Create one command-queue for each device
-        cl_command_queue commandQueues[] = new cl_command_queue[numDevices];
-        long properties = 0;
-        properties |= CL.CL_QUEUE_PROFILING_ENABLE;
-        for (int i=0; i<numDevices; i++)
+        // Split the work across sub-devices of the CPU device, if
+        // there is one and it can be partitioned. If the runtime already
+        // partitioned it, its sub-devices were used above.
+        for (cl_device_id device : devices)
         {
-            commandQueues[i] = clCreateCommandQueue(
-                    context, devices[i], properties, null);
+            if (runtime.getParentDevice(device) != null)
+            {
+                System.out.println("The CPU device has been partitioned "+
+                        "by the runtime ("+runtime.getPartitioning()+")");
+                break;
+            }
+            if (DeviceCapabilities.of(device).isType(CL_DEVICE_TYPE_CPU))
+            {
+                runOnSubDevices(platform, device, input);
+                break;
+            }
         }
+        System.out.println("Done");
+    }
 
-        // Execute the kernel on each command queue, and
-        // create events for each kernel launch
-        long before = System.nanoTime();
-        System.out.println("Enqueueing kernels");
-        cl_event events[] = new cl_event[numDevices];
-        for (int i=0; i<numDevices; i++)
+    /**
+     * Partition the given CPU device into sub-devices, and compare the
+     * execution on all of them to the execution on the first one. The
+     * device is partitioned by its NUMA nodes or L3 caches, so that each
+     * sub-device only accesses the memory of its own socket, or equally
+     * if it has only one such domain. The context, queues and sub-devices
+     * are released afterwards.
+     *
+     * @param platform The platform
+     * @param device The CPU device
+     * @param input The input data
+     */
+    private static void runOnSubDevices(
+            cl_platform_id platform, cl_device_id device, float input[])
+    {
+        int computeUnits = ClInfo.getInt(device, CL_DEVICE_MAX_COMPUTE_UNITS);
+        int numSubDevices = Math.min(MAX_SUB_DEVICES, computeUnits);
+        if (numSubDevices < 2)
         {
-            clSetKernelArg(kernel, 0, Sizeof.cl_mem, Pointer.to(inputMems[i]));
-            clSetKernelArg(kernel, 1, Sizeof.cl_mem, Pointer.to(outputMems[i]));
-            clSetKernelArg(kernel, 2, Sizeof.cl_int, Pointer.to(new int[]{n}));
-
-            events[i] = new cl_event();
-            clEnqueueNDRangeKernel(commandQueues[i], kernel, 1, null,
-                    new long[]{n}, null, 0, null, events[i]);
+            return;
         }
-
-        // Wait until the work is finished on all command queues
-        System.out.println("Waiting for kernels");
-        clWaitForEvents(events.length, events);
-        long after = System.nanoTime();
-
-        // Print the duration for each device
-        System.out.println("Waiting for kernels DONE");
-        for (int i=0; i<numDevices; i++)
+        DevicePartitioning partitioning = DevicePartitioning.parse("auto");
+        List<cl_device_id> subDeviceList = partitioning.partition(device);
+        if (subDeviceList.isEmpty())
         {
-            float durationMs = computeDurationMs(events[i]);
-            System.out.println("Duration on device "+i+" of "+
-                    numDevices+": "+durationMs+"ms");
+            // The device is partitioned into as many sub-devices of
+            // this size as possible
+            partitioning = DevicePartitioning.equally(
+                    computeUnits / numSubDevices);
+            subDeviceList = partitioning.partition(device);
         }
-        float totalDurationMs = (after-before)/1e6f;
-        System.out.println("Total duration: "+totalDurationMs+"ms");
-
+        if (subDeviceList.isEmpty())
+        {
+            System.out.println("The CPU device can not be partitioned");
+            return;
+        }
+        cl_device_id subDevices[] =
+                subDeviceList.toArray(new cl_device_id[subDeviceList.size()]);
+        System.out.println("Created "+subDevices.length+" CPU sub-devices "+
+                "("+partitioning+")");
 
-        // Read the output data of the first device
-        clEnqueueReadBuffer(commandQueues[0], outputMems[0], CL_TRUE, 0,
-                n * Sizeof.cl_float, Pointer.to(output), 0, null, null);
+        // Sub-devices can only be used in a context that was
+        // created for them
+        cl_context_properties contextProperties = new cl_context_properties();
+        contextProperties.addProperty(CL_CONTEXT_PLATFORM, platform);
+        cl_context context = clCreateContext(contextProperties,
+                subDevices.length, subDevices, null, null, null);
+        cl_command_queue commandQueues[] =
+                new cl_command_queue[subDevices.length];
+        for (int i=0; i<subDevices.length; i++)
+        {
+            commandQueues[i] = ClRuntime.createCommandQueue(context,
+                    subDevices[i], CL_QUEUE_PROFILING_ENABLE);
+        }
+        cl_program program = buildProgram(context, subDevices);
+        compare("CPU sub-devices", context, program, commandQueues, input);
 
-        // Release kernel, program, and memory objects
-        clReleaseKernel(kernel);
         clReleaseProgram(program);
-        for (int i=0; i<numDevices; i++)
+        for (cl_command_queue commandQueue : commandQueues)
         {
-            clReleaseMemObject(inputMems[i]);
-            clReleaseMemObject(outputMems[i]);
-            clReleaseEvent(events[i]);
-            clReleaseCommandQueue(commandQueues[i]);
+            clReleaseCommandQueue(commandQueue);
         }
         clReleaseContext(context);
-
-        // Print the first few elements of the result
-        for (int i=0; i<10; i++)
+        for (cl_device_id subDevice : subDevices)
         {
-            float x = output[i];
-            System.out.print(x+", ");
+            clReleaseDevice(subDevice);
         }
-        System.out.println("...");
-        System.out.println("Done");
     }
 
     /**
-     * Compute the execution duration of the given event, in milliseconds
+     * Create and build the program for the given devices
      *
-     * @param event The event
-     * @return The execution duration, in milliseconds
+     * @param context The context
+     * @param devices The devices
+     * @return The program
      */
-    private static float computeDurationMs(cl_event event)
+    private static cl_program buildProgram(
+            cl_context context, cl_device_id devices[])
     {
-        long startTime[] = {0};
-        long endTime[] = {0};
-        CL.clGetEventProfilingInfo(
-                event, CL.CL_PROFILING_COMMAND_START,
-                Sizeof.cl_ulong, Pointer.to(startTime), null);
-        CL.clGetEventProfilingInfo(
-                event, CL.CL_PROFILING_COMMAND_END,
-                Sizeof.cl_ulong, Pointer.to(endTime), null);
-        long durationNs = endTime[0]-startTime[0];
-        return durationNs / 1e6f;
+        cl_program program = clCreateProgramWithSource(context,
+                1, new String[]{ programSource }, null, null);
+        clBuildProgram(program, devices.length, devices, null, null, null);
+        return program;
     }
 
-
     /**
-     * Returns the value of the platform info parameter with the given name
+     * Execute the kernel on the first of the given queues, and split
+     * across all of them, and print the speedup
      *
-     * @param platform The platform
-     * @param paramName The parameter name
-     * @return The value
+     * @param label The label for the devices
+     * @param context The context
+     * @param program The program
+     * @param commandQueues The command queues
+     * @param input The input data
      */
-    private static String getString(cl_platform_id platform, int paramName)
+    private static void compare(String label, cl_context context,
+            cl_program program, cl_command_queue commandQueues[],
+            float input[])
     {
-        long size[] = new long[1];
-        clGetPlatformInfo(platform, paramName, 0, null, size);
-        byte buffer[] = new byte[(int)size[0]];
-        clGetPlatformInfo(platform, paramName,
-                buffer.length, Pointer.to(buffer), null);
-        return new String(buffer, 0, buffer.length-1);
+        System.out.println("Executing on 1 of "+commandQueues.length+
+                " "+label);
+        float singleMs = execute(context, program,
+                Arrays.copyOf(commandQueues, 1), input);
+        if (commandQueues.length < 2)
+        {
+            return;
+        }
+        System.out.println("Executing on "+commandQueues.length+" "+label);
+        float splitMs = execute(context, program, commandQueues, input);
+        System.out.println("Speedup on "+commandQueues.length+" "+label+": "+
+                (singleMs / splitMs));
     }
 
     /**
-     * Returns the value of the device info parameter with the given name
+     * Execute the kernel for all elements, split across the devices of
+     * the given command queues, and return the average duration of one
+     * execution
      *
-     * @param device The device
-     * @param paramName The parameter name
-     * @return The value
+     * @param context The context
+     * @param program The program
+     * @param commandQueues The command queues
+     * @param input The input data
+     * @return The average duration, in milliseconds
      */
-    private static String getString(cl_device_id device, int paramName)
+    private static float execute(cl_context context, cl_program program,
+            cl_command_queue commandQueues[], float input[])
     {
-        long size[] = new long[1];
-        clGetDeviceInfo(device, paramName, 0, null, size);
-        byte buffer[] = new byte[(int)size[0]];
-        clGetDeviceInfo(device, paramName,
-                buffer.length, Pointer.to(buffer), null);
-        return new String(buffer, 0, buffer.length-1);
-    }
+        MultiDeviceExecutor executor = new MultiDeviceExecutor(
+                commandQueues, program, "sampleKernel");
+
+        // The input is shared by all devices, but each device writes
+        // its part of the output into its own memory object
+        final cl_mem inputMem = clCreateBuffer(context,
+                CL_MEM_READ_ONLY | CL_MEM_COPY_HOST_PTR,
+                Sizeof.cl_float * SIZE, Pointer.to(input), null);
+        final cl_mem outputMems[] = new cl_mem[commandQueues.length];
+        for (int i=0; i<commandQueues.length; i++)
+        {
+            outputMems[i] = clCreateBuffer(context, CL_MEM_WRITE_ONLY,
+                    Sizeof.cl_float * SIZE, null, null);
+        }
+        final ByteBuffer output = ByteBuffer.allocateDirect(
+                Sizeof.cl_float * SIZE).order(ByteOrder.nativeOrder());
+        MultiDeviceExecutor.Stage stage = new MultiDeviceExecutor.Stage()
+        {
+            @Override
+            public void bind(MultiDeviceExecutor.Share share)
+            {
+                share.getArgs()
+                    .setMem(0, inputMem)
+                    .setMem(1, outputMems[share.getDeviceIndex()])
+                    .setInt(2, SIZE);
+            }
+
+            @Override
+            public void gather(MultiDeviceExecutor.Share share)
+            {
+                share.read(outputMems[share.getDeviceIndex()],
+                        Sizeof.cl_float, output);
+            }
+        };
+
+        // The first execution refines the initial estimates of the
+        // throughput of the devices with measured kernel durations
+        long globalWorkSize[] = new long[]{ SIZE };
+        executor.execute(globalWorkSize, null, stage);
+        long before = System.nanoTime();
+        for (int r=0; r<RUNS; r++)
+        {
+            executor.execute(globalWorkSize, null, stage);
+        }
+        long after = System.nanoTime();
+        float durationMs = (after-before)/1e6f/RUNS;
 
+        for (MultiDeviceExecutor.Share share : executor.getShares())
+        {
+            System.out.println("    Device "+share.getDeviceIndex()+
+                    " executed "+share.getCount()+" work items");
+        }
+        System.out.println("    Duration: "+durationMs+"ms");
+
+        // Verify the gathered result
+        FloatBuffer result = output.asFloatBuffer();
+        boolean passed = true;
+        for (int i=0; i<SIZE; i++)
+        {
+            if (result.get(i) != SIZE)
+            {
+                passed = false;
+                break;
+            }
+        }
+        System.out.println("    Result: "+(passed ? "PASSED" : "FAILED"));
 
+        executor.release();
+        clReleaseMemObject(inputMem);
+        for (cl_mem outputMem : outputMems)
+        {
+            clReleaseMemObject(outputMem);
+        }
+        return durationMs;
+    }
 }
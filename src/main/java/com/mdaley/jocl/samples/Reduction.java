@@ -6,22 +6,36 @@ package com.mdaley.jocl.samples;
  * Copyright 2014 Marco Hutter - http://www.jocl.org/
  */
 
-import java.io.BufferedReader;
-import java.io.IOException;
-import java.io.InputStreamReader;
-
-import org.jocl.CL;
-import org.jocl.Pointer;
+import com.mdaley.jocl.BufferPool;
+import com.mdaley.jocl.ClInfo;
+import com.mdaley.jocl.ClFloatArray;
+import com.mdaley.jocl.ClRuntime;
+import com.mdaley.jocl.DeviceSelector;
+import com.mdaley.jocl.KernelSources;
+import com.mdaley.jocl.LocalBuffer;
+import com.mdaley.jocl.OffloadAdvisor;
+import com.mdaley.jocl.QueueGroup;
+import com.mdaley.jocl.StreamingPipeline;
+import com.mdaley.jocl.WorkGroupTuner;
+import com.mdaley.jocl.kernels.ReduceKernel;
 import org.jocl.Sizeof;
 import org.jocl.cl_command_queue;
 import org.jocl.cl_context;
-import org.jocl.cl_context_properties;
 import org.jocl.cl_device_id;
-import org.jocl.cl_kernel;
+import org.jocl.cl_event;
 import org.jocl.cl_mem;
-import org.jocl.cl_platform_id;
 import org.jocl.cl_program;
 
+import java.nio.ByteBuffer;
+import java.nio.FloatBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
 import static org.jocl.CL.*;
 
 /**
@@ -29,6 +43,11 @@ import static org.jocl.CL.*;
  */
 public class Reduction
 {
+    /**
+     * The OpenCL device
+     */
+    private static cl_device_id device;
+
     /**
      * The OpenCL context
      */
@@ -39,6 +58,55 @@ public class Reduction
      */
     private static cl_command_queue commandQueue;
 
+    /**
+     * The OpenCL queue group for the streaming reduction, whose compute
+     * queue is the command queue
+     */
+    private static QueueGroup queueGroup;
+
+    /**
+     * The size of the chunks for the streaming reduction, in bytes
+     */
+    private static final long STREAM_CHUNK_SIZE = 4 << 20;
+
+    /**
+     * The local work size of the reduction kernel
+     */
+    private static final int LOCAL_WORK_SIZE = 128;
+
+    /**
+     * The number of work groups of the reduction kernel
+     */
+    private static final int NUM_WORK_GROUPS = 64;
+
+    /**
+     * The largest number of work groups that is considered when tuning
+     * the launch geometry of the reduction kernel
+     */
+    private static final int MAX_WORK_GROUPS = 1024;
+
+    /**
+     * The number of threads for the reduction on the host
+     */
+    private static final int HOST_THREADS =
+            Runtime.getRuntime().availableProcessors();
+
+    /**
+     * The number of elements for measuring the host throughput
+     */
+    private static final int CALIBRATION_SIZE = 1 << 20;
+
+    /**
+     * The executor for the reduction on the host
+     */
+    private static ExecutorService hostExecutor;
+
+    /**
+     * The advisor that decides whether a reduction is performed on
+     * the device, on the host, or split across both
+     */
+    private static OffloadAdvisor advisor;
+
     /**
      * The OpenCL program containing the reduction kernel
      */
@@ -47,7 +115,7 @@ public class Reduction
     /**
      * The OpenCL kernel that performs the reduction
      */
-    private static cl_kernel kernel;
+    private static ReduceKernel kernel;
 
     /**
      * The entry point of this sample
@@ -58,10 +126,10 @@ public class Reduction
 
         // Create input array that will be reduced
         int n = 100000;
-        float inputArray[] = new float[n];
+        ClFloatArray inputArray = new ClFloatArray(n);
         for (int i=0; i<n; i++)
         {
-            inputArray[i] = i;
+            inputArray.set(i, i);
         }
 
         // Compute the reduction on the GPU and the CPU and print the results
@@ -70,6 +138,48 @@ public class Reduction
         System.out.println("GPU "+resultGPU);
         System.out.println("CPU "+resultCPU);
 
+        // Let the advisor decide where the reduction is performed,
+        // for the small input and for a larger one
+        float resultOffloaded = reduceOffloaded(inputArray);
+        System.out.println("Offloaded "+resultOffloaded);
+        int largeN = 16 << 20;
+        ClFloatArray largeArray = new ClFloatArray(largeN);
+        for (int i=0; i<largeN; i++)
+        {
+            largeArray.set(i, i % 1000);
+        }
+        float resultLargeOffloaded = reduceOffloaded(largeArray);
+        float resultLargeCPU = reduceHost(largeArray);
+        System.out.println("Offloaded large "+resultLargeOffloaded);
+        System.out.println("CPU large "+resultLargeCPU);
+
+        // Stream a larger input through the device in chunks. The
+        // input is generated while it is streamed, together with
+        // the reference result
+        final long streamLength = 16L << 20;
+        final KahanSum streamSumCPU = new KahanSum();
+        float resultStreamGPU = reduceStream(new StreamingPipeline.ChunkSource()
+        {
+            private long next = 0;
+
+            @Override
+            public void fill(ByteBuffer buffer)
+            {
+                FloatBuffer floats = buffer.asFloatBuffer();
+                while (floats.hasRemaining() && next < streamLength)
+                {
+                    float value = next % 1000;
+                    floats.put(value);
+                    streamSumCPU.add(value);
+                    next++;
+                }
+                buffer.position(floats.position() * Sizeof.cl_float);
+            }
+        });
+        System.out.println("GPU streamed "+resultStreamGPU);
+        System.out.println("CPU streamed "+streamSumCPU.get());
+        System.out.println(ClRuntime.getInstance().getBufferPool());
+
         shutdown();
     }
 
@@ -88,40 +198,44 @@ public class Reduction
      * @param inputArray The array on which the reduction will be performed
      * @return The result of the reduction
      */
-    private static float reduce(float inputArray[])
+    private static float reduce(ClFloatArray inputArray)
     {
-        int localWorkSize = 128;
-        int numWorkGroups = 64;
-        float outputArray[] = new float[numWorkGroups];
-
-        // Allocate the memory objects for the input- and output data
-        cl_mem inputMem = clCreateBuffer(context,
-                CL_MEM_READ_ONLY | CL_MEM_COPY_HOST_PTR,
-                Sizeof.cl_float * inputArray.length, Pointer.to(inputArray), null);
-        cl_mem outputMem = clCreateBuffer(context,
-                CL_MEM_READ_ONLY | CL_MEM_COPY_HOST_PTR,
-                Sizeof.cl_float * numWorkGroups, Pointer.to(outputArray), null);
+        // Obtain the memory object for the input data from the buffer
+        // pool, and write the input data
+        BufferPool bufferPool = ClRuntime.getInstance().getBufferPool();
+        cl_mem inputMem = bufferPool.acquireBuffer(context,
+                CL_MEM_READ_ONLY, inputArray.getByteSize());
+        inputArray.write(commandQueue, inputMem, true);
+
+        // Obtain the tuned launch geometry for the input size, and
+        // create the output data for the resulting number of work groups
+        WorkGroupTuner.Geometry geometry =
+                tuneReduction(inputMem, (int) inputArray.length());
+        int localWorkSize = (int) geometry.getLocalWorkSize()[0];
+        int numWorkGroups =
+                (int) (geometry.getGlobalWorkSize()[0] / localWorkSize);
+        ClFloatArray outputArray = new ClFloatArray(numWorkGroups);
+        cl_mem outputMem = bufferPool.acquireBuffer(context,
+                CL_MEM_READ_WRITE, Sizeof.cl_float * numWorkGroups);
 
         // Perform the reduction on the GPU: Each work group will
         // perform the reduction of 'localWorkSize' elements, and
         // the results will be written into the output memory
         reduce(
-                inputMem, inputArray.length,
+                inputMem, (int) inputArray.length(),
                 outputMem, numWorkGroups,
                 localWorkSize);
 
         // Read the output data
-        clEnqueueReadBuffer(commandQueue, outputMem, CL_TRUE, 0,
-                numWorkGroups * Sizeof.cl_float, Pointer.to(outputArray),
-                0, null, null);
+        outputArray.read(commandQueue, outputMem, true);
 
         // Perform the final reduction, by reducing the results
         // from the work groups on the CPU
         float result = reduceHost(outputArray);
 
-        // Release memory objects
-        clReleaseMemObject(inputMem);
-        clReleaseMemObject(outputMem);
+        // Return the memory objects to the pool
+        bufferPool.releaseBuffer(inputMem);
+        bufferPool.releaseBuffer(outputMem);
 
         return result;
     }
@@ -145,23 +259,329 @@ public class Reduction
             cl_mem outputMem, int numWorkGroups,
             int localWorkSize)
     {
-        // Set the arguments for the kernel
-        int a = 0;
-        clSetKernelArg(kernel, a++, Sizeof.cl_mem, Pointer.to(inputMem));
-        clSetKernelArg(kernel, a++, Sizeof.cl_float * localWorkSize, null);
-        clSetKernelArg(kernel, a++, Sizeof.cl_int, Pointer.to(new int[]{n}));
-        clSetKernelArg(kernel, a++, Sizeof.cl_mem, Pointer.to(outputMem));
-
         // Compute the number of work groups and the global work size
         long globalWorkSize = numWorkGroups * localWorkSize;
 
         System.out.println("globalWorkSize = " + globalWorkSize);
         System.out.println("localWorkSize = " + localWorkSize);
 
-        // Execute the kernel
-        clEnqueueNDRangeKernel(commandQueue, kernel, 1, null,
-                new long[]{ globalWorkSize }, new long[]{ localWorkSize},
-                0, null, null);
+        // Set the arguments and execute the kernel
+        kernel.launch(commandQueue,
+                new long[]{ globalWorkSize }, new long[]{ localWorkSize },
+                inputMem, LocalBuffer.floats(localWorkSize), n, outputMem);
+    }
+
+    /**
+     * Returns the launch geometry of the reduction kernel for the given
+     * input, as determined by the {@link WorkGroupTuner}. The candidates
+     * are the default geometry of {@link #LOCAL_WORK_SIZE} and
+     * {@link #NUM_WORK_GROUPS}, and the combinations of the local work
+     * sizes that are suitable for the kernel with small multiples of the
+     * number of compute units. The stored winner is used if the tuner
+     * already benchmarked an input of a similar size.
+     *
+     * @param inputMem The input memory containing the float values
+     * @param n The number of values in the input memory
+     * @return The geometry
+     */
+    private static WorkGroupTuner.Geometry tuneReduction(
+            final cl_mem inputMem, final int n)
+    {
+        List<WorkGroupTuner.Geometry> candidates =
+                new ArrayList<WorkGroupTuner.Geometry>();
+        candidates.add(new WorkGroupTuner.Geometry(
+                new long[]{ NUM_WORK_GROUPS * LOCAL_WORK_SIZE },
+                new long[]{ LOCAL_WORK_SIZE }));
+        int computeUnits = Math.max(1, ClInfo.getInt(
+                device, CL_DEVICE_MAX_COMPUTE_UNITS));
+        for (long localWorkSize :
+            WorkGroupTuner.localSizes(kernel.getKernel(), device))
+        {
+            // The kernel reduces the local memory in halves, so only
+            // powers of two are valid local work sizes
+            if (Long.bitCount(localWorkSize) != 1)
+            {
+                continue;
+            }
+            for (int factor = 1; factor <= 16; factor *= 2)
+            {
+                long numWorkGroups =
+                        Math.min(MAX_WORK_GROUPS, computeUnits * factor);
+                WorkGroupTuner.Geometry candidate =
+                        new WorkGroupTuner.Geometry(
+                                new long[]{ numWorkGroups * localWorkSize },
+                                new long[]{ localWorkSize });
+                if (!candidates.contains(candidate))
+                {
+                    candidates.add(candidate);
+                }
+            }
+        }
+
+        // The benchmark launches write into a scratch output memory
+        // that is large enough for all candidates
+        BufferPool bufferPool = ClRuntime.getInstance().getBufferPool();
+        final cl_mem scratchMem = bufferPool.acquireBuffer(context,
+                CL_MEM_READ_WRITE, Sizeof.cl_float * MAX_WORK_GROUPS);
+        try
+        {
+            return WorkGroupTuner.of(device).tune(commandQueue,
+                    "Reduction.reduce", null, n, candidates,
+                    new WorkGroupTuner.Launcher()
+            {
+                @Override
+                public void launch(long globalWorkSize[],
+                        long localWorkSize[])
+                {
+                    kernel.launch(commandQueue,
+                            globalWorkSize, localWorkSize, inputMem,
+                            LocalBuffer.floats(localWorkSize[0]),
+                            n, scratchMem);
+                }
+            });
+        }
+        finally
+        {
+            bufferPool.releaseBuffer(scratchMem);
+        }
+    }
+
+    /**
+     * Perform a reduction of the given input array where the offload
+     * advisor considers it to be fastest: On the device, like in
+     * {@link #reduce(ClFloatArray)}, on the host with multiple threads,
+     * or split across both. When it is split, the first part of the
+     * array is reduced on the device while the rest is reduced on the
+     * host.
+     *
+     * @param inputArray The array on which the reduction will be performed
+     * @return The result of the reduction
+     */
+    private static float reduceOffloaded(ClFloatArray inputArray)
+    {
+        long n = inputArray.length();
+        OffloadAdvisor.Decision decision =
+                advisor.decide("Reduction", n, Sizeof.cl_float);
+        System.out.println("Offload decision for " + n + " elements: " +
+                decision);
+        if (decision.getPlacement() == OffloadAdvisor.Placement.HOST)
+        {
+            return reduceHostParallel(inputArray, 0, n);
+        }
+        if (decision.getPlacement() == OffloadAdvisor.Placement.DEVICE)
+        {
+            return reduce(inputArray);
+        }
+
+        // Obtain the tuned launch geometry for the device part. If no
+        // winner is stored for its size yet, this benchmarks the kernel
+        // and blocks before the host part is started.
+        long deviceN = decision.getDeviceElements(n, LOCAL_WORK_SIZE);
+        BufferPool bufferPool = ClRuntime.getInstance().getBufferPool();
+        cl_mem inputMem = bufferPool.acquireBuffer(context,
+                CL_MEM_READ_ONLY, Math.max(1, deviceN) * Sizeof.cl_float);
+        inputArray.write(commandQueue, inputMem, 0, deviceN, 0, false);
+        WorkGroupTuner.Geometry geometry =
+                tuneReduction(inputMem, (int) deviceN);
+
+        // Enqueue the reduction of the device part without blocking,
+        // reduce the host part in the meantime, and combine the results
+        int localWorkSize = (int) geometry.getLocalWorkSize()[0];
+        int numWorkGroups =
+                (int) (geometry.getGlobalWorkSize()[0] / localWorkSize);
+        ClFloatArray outputArray = new ClFloatArray(numWorkGroups);
+        cl_mem outputMem = bufferPool.acquireBuffer(context,
+                CL_MEM_READ_WRITE, Sizeof.cl_float * numWorkGroups);
+        reduce(inputMem, (int) deviceN, outputMem,
+                numWorkGroups, localWorkSize);
+        outputArray.read(commandQueue, outputMem, false);
+        clFlush(commandQueue);
+
+        float hostResult = reduceHostParallel(inputArray, deviceN, n);
+        clFinish(commandQueue);
+        bufferPool.releaseBuffer(inputMem);
+        bufferPool.releaseBuffer(outputMem);
+
+        KahanSum sum = new KahanSum();
+        sum.add(reduceHost(outputArray));
+        sum.add(hostResult);
+        return sum.get();
+    }
+
+    /**
+     * Perform a reduction of the given range of the given array on the
+     * host, using {@link #HOST_THREADS} threads that each compute the
+     * Kahan summation of one part of the range
+     *
+     * @param array The input
+     * @param from The index of the first element, inclusive
+     * @param to The index of the last element, exclusive
+     * @return The reduction result
+     */
+    private static float reduceHostParallel(
+            final ClFloatArray array, long from, long to)
+    {
+        long partSize = (to - from + HOST_THREADS - 1) / HOST_THREADS;
+        List<Future<Float>> parts = new ArrayList<Future<Float>>();
+        for (long start = from; start < to; start += partSize)
+        {
+            final long partFrom = start;
+            final long partTo = Math.min(to, start + partSize);
+            parts.add(hostExecutor.submit(new Callable<Float>()
+            {
+                @Override
+                public Float call()
+                {
+                    return reduceHost(array, partFrom, partTo);
+                }
+            }));
+        }
+        KahanSum sum = new KahanSum();
+        try
+        {
+            for (Future<Float> part : parts)
+            {
+                sum.add(part.get());
+            }
+        }
+        catch (InterruptedException e)
+        {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Interrupted during reduction", e);
+        }
+        catch (ExecutionException e)
+        {
+            throw new IllegalStateException("Reduction failed", e.getCause());
+        }
+        return sum.get();
+    }
+
+    /**
+     * Measure the throughput of {@link #reduceHostParallel} on an
+     * array with {@link #CALIBRATION_SIZE} elements, as the best of
+     * a few runs
+     *
+     * @return The throughput, in elements per second
+     */
+    private static double measureHostThroughput()
+    {
+        ClFloatArray array = new ClFloatArray(CALIBRATION_SIZE);
+        array.fill(1.0f);
+        long bestNs = Long.MAX_VALUE;
+        for (int i = 0; i < 5; i++)
+        {
+            long before = System.nanoTime();
+            reduceHostParallel(array, 0, CALIBRATION_SIZE);
+            bestNs = Math.min(bestNs, Math.max(1, System.nanoTime() - before));
+        }
+        return CALIBRATION_SIZE / (bestNs / 1e9);
+    }
+
+    /**
+     * Perform a reduction of the float values of the given source on the
+     * GPU and return the result. <br />
+     * <br />
+     * The values are streamed through the device in chunks, so that the
+     * input may be larger than the device memory. Each chunk is reduced
+     * like in {@link #reduce(ClFloatArray)}, while the next chunk is
+     * uploaded, and the results of the work groups of all chunks are
+     * reduced on the CPU.
+     *
+     * @param source The source of the float values, in native byte order
+     * @return The result of the reduction
+     */
+    private static float reduceStream(StreamingPipeline.ChunkSource source)
+    {
+        // Tune the launch geometry for the chunk size before streaming,
+        // because the kernel stage must not block
+        BufferPool bufferPool = ClRuntime.getInstance().getBufferPool();
+        cl_mem chunkMem = bufferPool.acquireBuffer(context,
+                CL_MEM_READ_ONLY, STREAM_CHUNK_SIZE);
+        WorkGroupTuner.Geometry geometry;
+        try
+        {
+            geometry = tuneReduction(chunkMem,
+                    (int) (STREAM_CHUNK_SIZE / Sizeof.cl_float));
+        }
+        finally
+        {
+            bufferPool.releaseBuffer(chunkMem);
+        }
+        final long globalWorkSize[] = geometry.getGlobalWorkSize();
+        final long localWorkSize[] = geometry.getLocalWorkSize();
+        long numWorkGroups = globalWorkSize[0] / localWorkSize[0];
+
+        final KahanSum sum = new KahanSum();
+        StreamingPipeline pipeline = new StreamingPipeline(
+                context, queueGroup, STREAM_CHUNK_SIZE,
+                numWorkGroups * Sizeof.cl_float);
+        pipeline.run(source, new StreamingPipeline.KernelStage()
+        {
+            @Override
+            public void enqueue(cl_command_queue computeQueue,
+                    cl_mem input, long inputSize, cl_mem output,
+                    cl_event waitList[], cl_event event)
+            {
+                kernel.setArgs(input, LocalBuffer.floats(localWorkSize[0]),
+                        (int)(inputSize / Sizeof.cl_float), output);
+                clEnqueueNDRangeKernel(computeQueue, kernel.getKernel(), 1,
+                        null, globalWorkSize, localWorkSize,
+                        waitList.length, waitList, event);
+            }
+        }, new StreamingPipeline.ChunkSink()
+        {
+            @Override
+            public void accept(ByteBuffer result, long chunkIndex)
+            {
+                FloatBuffer floats = result.asFloatBuffer();
+                while (floats.hasRemaining())
+                {
+                    sum.add(floats.get());
+                }
+            }
+        });
+        System.out.println(pipeline);
+        return sum.get();
+    }
+
+    /**
+     * A Kahan summation, for accumulating the results of the chunks
+     * of the streaming reduction
+     */
+    private static class KahanSum
+    {
+        /**
+         * The sum
+         */
+        private float sum = 0.0f;
+
+        /**
+         * The compensation for the lost low-order bits
+         */
+        private float c = 0.0f;
+
+        /**
+         * Add the given value to this sum
+         *
+         * @param value The value
+         */
+        void add(float value)
+        {
+            float y = value - c;
+            float t = sum + y;
+            c = (t - sum) - y;
+            sum = t;
+        }
+
+        /**
+         * Returns the sum
+         *
+         * @return The sum
+         */
+        float get()
+        {
+            return sum;
+        }
     }
 
     /**
@@ -170,13 +590,27 @@ public class Reduction
      * @param array The input
      * @return The reduction result
      */
-    private static float reduceHost(float array[])
+    private static float reduceHost(ClFloatArray array)
     {
-        float sum = array[0];
+        return reduceHost(array, 0, array.length());
+    }
+
+    /**
+     * Implementation of a Kahan summation reduction of the given range
+     * of the given array in plain Java
+     *
+     * @param array The input
+     * @param from The index of the first element, inclusive
+     * @param to The index of the last element, exclusive
+     * @return The reduction result
+     */
+    private static float reduceHost(ClFloatArray array, long from, long to)
+    {
+        float sum = 0.0f;
         float c = 0.0f;
-        for (int i = 1; i < array.length; i++)
+        for (long i = from; i < to; i++)
         {
-            float y = array[i] - c;
+            float y = array.get(i) - c;
             float t = sum + y;
             c = (t - sum) - y;
             sum = t;
@@ -189,117 +623,49 @@ public class Reduction
      */
     private static void initialize()
     {
-        // The platform, device type and device number
-        // that will be used
-        final int platformIndex = 0;
-        final long deviceType = CL_DEVICE_TYPE_GPU;
-        final int deviceIndex = 0;
-
-        // Enable exceptions and subsequently omit error checks in this sample
-        CL.setExceptionsEnabled(true);
-
-        // Obtain the number of platforms
-        int numPlatformsArray[] = new int[1];
-        clGetPlatformIDs(0, null, numPlatformsArray);
-        int numPlatforms = numPlatformsArray[0];
-
-        // Obtain a platform ID
-        cl_platform_id platforms[] = new cl_platform_id[numPlatforms];
-        clGetPlatformIDs(platforms.length, platforms, null);
-        cl_platform_id platform = platforms[platformIndex];
-
-        // Initialize the context properties
-        cl_context_properties contextProperties = new cl_context_properties();
-        contextProperties.addProperty(CL_CONTEXT_PLATFORM, platform);
-
-        // Obtain the number of devices for the platform
-        int numDevicesArray[] = new int[1];
-        clGetDeviceIDs(platform, deviceType, 0, null, numDevicesArray);
-        int numDevices = numDevicesArray[0];
-
-        // Obtain a device ID
-        cl_device_id devices[] = new cl_device_id[numDevices];
-        clGetDeviceIDs(platform, deviceType, numDevices, devices, null);
-        cl_device_id device = devices[deviceIndex];
-
-        // Create a context for the selected device
-        context = clCreateContext(
-                contextProperties, 1, new cl_device_id[]{device},
-                null, null, null);
-
-        // Create a command-queue for the selected device
-        commandQueue =
-                clCreateCommandQueue(context, device, 0, null);
+        // Select the device that is best suited for this sample, unless
+        // it is overridden with the jocl.device system property
+        ClRuntime runtime = ClRuntime.getInstance();
+        DeviceSelector.Selection selection = DeviceSelector.choose(
+                new DeviceSelector.Workload("Reduction").globalMemoryWeight(0.5));
+        System.out.println(selection);
+        device = selection.getDevice();
+        context = runtime.getContext(device);
+
+        // Obtain the shared queue group for the selected device, whose
+        // compute queue is the shared command-queue of the device
+        queueGroup = runtime.getQueueGroup(device, 0);
+        commandQueue = queueGroup.getComputeQueue();
 
         // Create the program from the source code
-        String programSource = readFile("/reduction.cl");
+        String programSource = KernelSources.get("/reduction.cl");
         program = clCreateProgramWithSource(context,
                 1, new String[]{ programSource }, null, null);
 
         // Build the program
-        clBuildProgram(program, 0, null, null, null, null);
+        clBuildProgram(program, 1, new cl_device_id[]{ device },
+                null, null, null);
 
         // Create the kernel
-        kernel = clCreateKernel(program, "reduce", null);
+        kernel = new ReduceKernel(program);
+
+        // Create the advisor for offloading reductions, with the
+        // measured throughput of the reduction on the host
+        hostExecutor = Executors.newFixedThreadPool(HOST_THREADS);
+        advisor = new OffloadAdvisor(device, measureHostThroughput());
+        System.out.println(advisor);
     }
 
     /**
      * Shut down and release all resources that have been allocated
-     * in {@link #initialize()}
+     * in {@link #initialize()}. The context and command queue are
+     * owned by the runtime.
      */
     private static void shutdown()
     {
-        clReleaseKernel(kernel);
+        kernel.release();
         clReleaseProgram(program);
-        clReleaseCommandQueue(commandQueue);
-        clReleaseContext(context);
-    }
-
-    /**
-     * Read the contents of the file with the given name, and return
-     * it as a string
-     *
-     * @param fileName The name of the file to read
-     * @return The contents of the file
-     */
-    private static String readFile(String fileName)
-    {
-        BufferedReader br = null;
-        try
-        {
-            br = new BufferedReader(new InputStreamReader(Reduction.class.getResourceAsStream(fileName)));
-            StringBuilder sb = new StringBuilder();
-            String line = null;
-            while (true)
-            {
-                line = br.readLine();
-                if (line == null)
-                {
-                    break;
-                }
-                sb.append(line+"\n");
-            }
-            return sb.toString();
-        }
-        catch (IOException e)
-        {
-            e.printStackTrace();
-            return "";
-        }
-        finally
-        {
-            if (br != null)
-            {
-                try
-                {
-                    br.close();
-                }
-                catch (IOException ex)
-                {
-                    ex.printStackTrace();
-                }
-            }
-        }
+        hostExecutor.shutdown();
     }
 
 }
@@ -4,6 +4,9 @@ package com.mdaley.jocl.samples;/*
  * Copyright 2009 Marco Hutter - http://www.jocl.org/
  */
 
+import com.mdaley.jocl.ClFloatArray;
+import com.mdaley.jocl.ClRuntime;
+import com.mdaley.jocl.DeviceSelector;
 import org.jocl.*;
 
 import static org.jocl.CL.*;
@@ -34,70 +37,35 @@ public class Sample
      */
     public static void run()
     {
-        // Create input- and output data
+        // Create input- and output data in off-heap memory
         int n = 10;
-        float srcArrayA[] = new float[n];
-        float srcArrayB[] = new float[n];
-        float dstArray[] = new float[n];
+        ClFloatArray srcArrayA = new ClFloatArray(n);
+        ClFloatArray srcArrayB = new ClFloatArray(n);
+        ClFloatArray dstArray = new ClFloatArray(n);
         for (int i=0; i<n; i++)
         {
-            srcArrayA[i] = i;
-            srcArrayB[i] = i;
+            srcArrayA.set(i, i);
+            srcArrayB.set(i, i);
         }
-        Pointer srcA = Pointer.to(srcArrayA);
-        Pointer srcB = Pointer.to(srcArrayB);
-        Pointer dst = Pointer.to(dstArray);
-
-        // The platform, device type and device number
-        // that will be used
-        final int platformIndex = 0;
-        final long deviceType = CL_DEVICE_TYPE_ALL;
-        final int deviceIndex = 0;
-
-        // Enable exceptions and subsequently omit error checks in this sample
-        CL.setExceptionsEnabled(true);
-
-        // Obtain the number of platforms
-        int numPlatformsArray[] = new int[1];
-        clGetPlatformIDs(0, null, numPlatformsArray);
-        int numPlatforms = numPlatformsArray[0];
-
-        // Obtain a platform ID
-        cl_platform_id platforms[] = new cl_platform_id[numPlatforms];
-        clGetPlatformIDs(platforms.length, platforms, null);
-        cl_platform_id platform = platforms[platformIndex];
-
-        // Initialize the context properties
-        cl_context_properties contextProperties = new cl_context_properties();
-        contextProperties.addProperty(CL_CONTEXT_PLATFORM, platform);
-
-        // Obtain the number of devices for the platform
-        int numDevicesArray[] = new int[1];
-        clGetDeviceIDs(platform, deviceType, 0, null, numDevicesArray);
-        int numDevices = numDevicesArray[0];
-
-        // Obtain a device ID
-        cl_device_id devices[] = new cl_device_id[numDevices];
-        clGetDeviceIDs(platform, deviceType, numDevices, devices, null);
-        cl_device_id device = devices[deviceIndex];
-
-        // Create a context for the selected device
-        cl_context context = clCreateContext(
-                contextProperties, 1, new cl_device_id[]{device},
-                null, null, null);
 
-        // Create a command-queue for the selected device
-        cl_command_queue commandQueue =
-                clCreateCommandQueue(context, device, 0, null);
+        // Select the device that is best suited for this sample, unless
+        // it is overridden with the jocl.device system property
+        ClRuntime runtime = ClRuntime.getInstance();
+        DeviceSelector.Selection selection = DeviceSelector.choose(
+                new DeviceSelector.Workload("Sample"));
+        System.out.println(selection);
+        cl_device_id device = selection.getDevice();
+        cl_context context = runtime.getContext(device);
+
+        // Obtain the shared command-queue for the selected device
+        cl_command_queue commandQueue = runtime.getCommandQueue(device);
 
         // Allocate the memory objects for the input- and output data
         cl_mem memObjects[] = new cl_mem[3];
-        memObjects[0] = clCreateBuffer(context,
-                CL_MEM_READ_ONLY | CL_MEM_COPY_HOST_PTR,
-                Sizeof.cl_float * n, srcA, null);
-        memObjects[1] = clCreateBuffer(context,
-                CL_MEM_READ_ONLY | CL_MEM_COPY_HOST_PTR,
-                Sizeof.cl_float * n, srcB, null);
+        memObjects[0] = srcArrayA.createBuffer(context,
+                CL_MEM_READ_ONLY, commandQueue);
+        memObjects[1] = srcArrayB.createBuffer(context,
+                CL_MEM_READ_ONLY, commandQueue);
         memObjects[2] = clCreateBuffer(context,
                 CL_MEM_READ_WRITE,
                 Sizeof.cl_float * n, null, null);
@@ -107,7 +75,8 @@ public class Sample
                 1, new String[]{ programSource }, null, null);
 
         // Build the program
-        clBuildProgram(program, 0, null, null, null, null);
+        clBuildProgram(program, 1, new cl_device_id[]{ device },
+                null, null, null);
 
         // Create the kernel
         cl_kernel kernel = clCreateKernel(program, "sampleKernel", null);
@@ -129,25 +98,23 @@ public class Sample
                 global_work_size, local_work_size, 0, null, null);
 
         // Read the output data
-        clEnqueueReadBuffer(commandQueue, memObjects[2], CL_TRUE, 0,
-                n * Sizeof.cl_float, dst, 0, null, null);
+        dstArray.read(commandQueue, memObjects[2], true);
 
-        // Release kernel, program, and memory objects
+        // Release kernel, program, and memory objects. The context and
+        // command queue are owned by the runtime.
         clReleaseMemObject(memObjects[0]);
         clReleaseMemObject(memObjects[1]);
         clReleaseMemObject(memObjects[2]);
         clReleaseKernel(kernel);
         clReleaseProgram(program);
-        clReleaseCommandQueue(commandQueue);
-        clReleaseContext(context);
 
         // Verify the result
         boolean passed = true;
         final float epsilon = 1e-7f;
         for (int i=0; i<n; i++)
         {
-            float x = dstArray[i];
-            float y = srcArrayA[i] * srcArrayB[i];
+            float x = dstArray.get(i);
+            float y = srcArrayA.get(i) * srcArrayB.get(i);
             boolean epsilonEqual = Math.abs(x - y) <= epsilon * Math.abs(x);
             if (!epsilonEqual)
             {
@@ -158,7 +125,7 @@ public class Sample
         System.out.println("Test "+(passed?"PASSED":"FAILED"));
         if (n <= 10)
         {
-            System.out.println("Result: "+java.util.Arrays.toString(dstArray));
+            System.out.println("Result: "+java.util.Arrays.toString(dstArray.toArray()));
         }
     }
 }
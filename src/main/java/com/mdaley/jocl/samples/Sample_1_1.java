@@ -11,6 +11,8 @@ package com.mdaley.jocl.samples;
         import java.nio.*;
         import java.util.*;
 
+        import com.mdaley.jocl.ClRuntime;
+        import com.mdaley.jocl.DeviceSelector;
         import org.jocl.*;
 
 
@@ -190,11 +192,10 @@ public class Sample_1_1
         // Wait until all commands have completed
         clFinish(commandQueue);
 
-        // Release kernel, program, and memory objects.
+        // Release kernel, program, and memory objects. The context
+        // and command queue are owned by the runtime.
         clReleaseKernel(kernel);
         clReleaseProgram(program);
-        clReleaseCommandQueue(commandQueue);
-        clReleaseContext(context);
         clReleaseMemObject(srcMemA);
         clReleaseMemObject(srcMemB);
 
@@ -216,57 +217,28 @@ public class Sample_1_1
      */
     private static void defaultInitialization()
     {
-        // The platform, device type and device number
-        // that will be used
-        final int platformIndex = 0;
-        final long deviceType = CL_DEVICE_TYPE_ALL;
-        final int deviceIndex = 0;
-
-        // Enable exceptions and subsequently omit error checks in this sample
-        CL.setExceptionsEnabled(true);
-
-        // Obtain the number of platforms
-        int numPlatformsArray[] = new int[1];
-        clGetPlatformIDs(0, null, numPlatformsArray);
-        int numPlatforms = numPlatformsArray[0];
-
-        // Obtain a platform ID
-        cl_platform_id platforms[] = new cl_platform_id[numPlatforms];
-        clGetPlatformIDs(platforms.length, platforms, null);
-        cl_platform_id platform = platforms[platformIndex];
-
-        // Initialize the context properties
-        cl_context_properties contextProperties = new cl_context_properties();
-        contextProperties.addProperty(CL_CONTEXT_PLATFORM, platform);
-
-        // Obtain the number of devices for the platform
-        int numDevicesArray[] = new int[1];
-        clGetDeviceIDs(platform, deviceType, 0, null, numDevicesArray);
-        int numDevices = numDevicesArray[0];
-
-        // Obtain a device ID
-        cl_device_id devices[] = new cl_device_id[numDevices];
-        clGetDeviceIDs(platform, deviceType, numDevices, devices, null);
-        cl_device_id device = devices[deviceIndex];
-
-        // Create a context for the selected device
-        context = clCreateContext(
-                contextProperties, 1, new cl_device_id[]{device},
-                null, null, null);
-
-        String deviceName = getString(devices[0], CL_DEVICE_NAME);
+        // Select the device that is best suited for this sample, unless
+        // it is overridden with the jocl.device system property
+        ClRuntime runtime = ClRuntime.getInstance();
+        DeviceSelector.Selection selection = DeviceSelector.choose(
+                new DeviceSelector.Workload("Sample_1_1"));
+        System.out.println(selection);
+        cl_device_id device = selection.getDevice();
+        context = runtime.getContext(device);
+
+        String deviceName = getString(device, CL_DEVICE_NAME);
         System.out.printf("CL_DEVICE_NAME: %s\n", deviceName);
 
-        // Create a command-queue
-        commandQueue =
-                clCreateCommandQueue(context, devices[0], 0, null);
+        // Obtain the shared command-queue
+        commandQueue = runtime.getCommandQueue(device);
 
         // Create the program from the source code
         program = clCreateProgramWithSource(context,
                 1, new String[]{ programSource }, null, null);
 
         // Build the program
-        clBuildProgram(program, 0, null, null, null, null);
+        clBuildProgram(program, 1, new cl_device_id[]{ device },
+                null, null, null);
 
         // Create the kernel
         kernel = clCreateKernel(program, "sampleKernel", null);
@@ -8,6 +8,8 @@ package com.mdaley.jocl.samples;
 
         import static org.jocl.CL.*;
 
+        import com.mdaley.jocl.ClRuntime;
+        import com.mdaley.jocl.DeviceSelector;
         import org.jocl.*;
 
 /**
@@ -16,11 +18,6 @@ package com.mdaley.jocl.samples;
  */
 public class Sample_1_2_KernelArgs
 {
-    // The platform, device type and device number that will be used
-    private static final int platformIndex = 0;
-    private static final long deviceType = CL_DEVICE_TYPE_ALL;
-    private static final int deviceIndex = 0;
-
     /**
      * The source code of the OpenCL program to execute
      */
@@ -52,7 +49,8 @@ public class Sample_1_2_KernelArgs
         // Build the program. Note that the "-cl-kernel-arg-info" parameter
         // must be given, in order to keep the information about the kernel
         // arguments that will later be queried
-        clBuildProgram(program, 0, null, "-cl-kernel-arg-info", null, null);
+        clBuildProgram(program, 1, new cl_device_id[]{ device },
+                "-cl-kernel-arg-info", null, null);
 
         // Create the kernel
         cl_kernel kernel = clCreateKernel(program, "sampleKernel", null);
@@ -121,18 +119,15 @@ public class Sample_1_2_KernelArgs
      */
     private static void defaultInitialization()
     {
-        // Enable exceptions and subsequently omit error checks in this sample
-        CL.setExceptionsEnabled(true);
-
-        // Obtain the number of platforms
-        int numPlatformsArray[] = new int[1];
-        clGetPlatformIDs(0, null, numPlatformsArray);
-        int numPlatforms = numPlatformsArray[0];
-
-        // Obtain a platform ID
-        cl_platform_id platforms[] = new cl_platform_id[numPlatforms];
-        clGetPlatformIDs(platforms.length, platforms, null);
-        cl_platform_id platform = platforms[platformIndex];
+        // Select a device that supports OpenCL 1.2, unless it is
+        // overridden with the jocl.device system property
+        ClRuntime runtime = ClRuntime.getInstance();
+        DeviceSelector.Selection selection = DeviceSelector.choose(
+                new DeviceSelector.Workload("Sample_1_2_KernelArgs")
+                .requireVersion(1, 2));
+        System.out.println(selection);
+        device = selection.getDevice();
+        cl_platform_id platform = runtime.getPlatform(device);
 
         // Check if the platform supports OpenCL 1.2
         long sizeArray[] = { 0 };
@@ -163,23 +158,7 @@ public class Sample_1_2_KernelArgs
             System.exit(1);
         }
 
-        // Initialize the context properties
-        cl_context_properties contextProperties = new cl_context_properties();
-        contextProperties.addProperty(CL_CONTEXT_PLATFORM, platform);
-
-        // Obtain the number of devices for the platform
-        int numDevicesArray[] = new int[1];
-        clGetDeviceIDs(platform, deviceType, 0, null, numDevicesArray);
-        int numDevices = numDevicesArray[0];
-
-        // Obtain a device ID
-        cl_device_id devices[] = new cl_device_id[numDevices];
-        clGetDeviceIDs(platform, deviceType, numDevices, devices, null);
-        device = devices[deviceIndex];
-
-        // Create a context for the selected device
-        context = clCreateContext(
-                contextProperties, 1, new cl_device_id[]{device},
-                null, null, null);
+        // Obtain the shared context
+        context = runtime.getContext(device);
     }
 }
@@ -11,6 +11,8 @@ package com.mdaley.jocl.samples;
         import java.nio.*;
         import java.util.Arrays;
 
+        import com.mdaley.jocl.ClRuntime;
+        import com.mdaley.jocl.DeviceSelector;
         import org.jocl.*;
 
 /**
@@ -134,13 +136,12 @@ public class Sample_2_0_SVM
 
         clFinish(commandQueue);
 
-        // Release kernel, program, and memory objects
+        // Release kernel, program, and memory objects. The context
+        // and command queue are owned by the runtime.
         clReleaseMemObject(srcMemA);
         clReleaseMemObject(srcMemB);
         clReleaseMemObject(dstMem);
         clReleaseKernel(kernel);
-        clReleaseCommandQueue(commandQueue);
-        clReleaseContext(context);
 
         // Verify the result
         boolean passed = true;
@@ -173,70 +174,26 @@ public class Sample_2_0_SVM
      */
     private static void initCL()
     {
-        // The platform and device type that will be used
-        final int platformIndex = 0;
-        final long deviceType = CL_DEVICE_TYPE_ALL;
-
-        // Enable exceptions and subsequently omit error checks in this sample
-        CL.setExceptionsEnabled(true);
-
-        // Obtain the number of platforms
-        int numPlatformsArray[] = new int[1];
-        clGetPlatformIDs(0, null, numPlatformsArray);
-        int numPlatforms = numPlatformsArray[0];
-
-        // Obtain a platform ID
-        cl_platform_id platforms[] = new cl_platform_id[numPlatforms];
-        clGetPlatformIDs(platforms.length, platforms, null);
-        cl_platform_id platform = platforms[platformIndex];
-
-        // Initialize the context properties
-        cl_context_properties contextProperties = new cl_context_properties();
-        contextProperties.addProperty(CL_CONTEXT_PLATFORM, platform);
-
-        // Obtain the number of devices for the platform
-        int numDevicesArray[] = new int[1];
-        clGetDeviceIDs(platform, deviceType, 0, null, numDevicesArray);
-        int numDevices = numDevicesArray[0];
-
-        // Obtain the all device IDs
-        cl_device_id allDevices[] = new cl_device_id[numDevices];
-        clGetDeviceIDs(platform, deviceType, numDevices, allDevices, null);
-
-
-        // Find the first device that supports OpenCL 2.0
-        for (cl_device_id currentDevice : allDevices)
+        // Select a device that supports OpenCL 2.0, unless it is
+        // overridden with the jocl.device system property
+        ClRuntime runtime = ClRuntime.getInstance();
+        try
         {
-            String deviceName = getString(currentDevice, CL_DEVICE_NAME);
-            float version = getOpenCLVersion(currentDevice);
-            if (version >= 2.0)
-            {
-                System.out.println("Using device "+
-                        deviceName+", version "+version);
-                device = currentDevice;
-                break;
-            }
-            else
-            {
-                System.out.println("Skipping device "+
-                        deviceName+", version "+version);
-            }
+            DeviceSelector.Selection selection = DeviceSelector.choose(
+                    new DeviceSelector.Workload("Sample_2_0_SVM")
+                    .requireVersion(2, 0));
+            System.out.println(selection);
+            device = selection.getDevice();
         }
-        if (device == null)
+        catch (CLException e)
         {
             System.out.println("No OpenCL 2.0 capable device found");
             System.exit(1);
         }
 
-        // Create a context
-        context = clCreateContext(
-                contextProperties, 1, new cl_device_id[]{ device },
-                null, null, null);
-
-        // Create the command queue
-        cl_queue_properties properties = new cl_queue_properties();
-        commandQueue = clCreateCommandQueueWithProperties(
-                context, device, properties, null);
+        // Obtain the shared context and command queue
+        context = runtime.getContext(device);
+        commandQueue = runtime.getCommandQueue(device);
 
         // Create the program from the source code
         cl_program program = clCreateProgramWithSource(context,
@@ -245,49 +202,12 @@ public class Sample_2_0_SVM
         // Build the program. It's important to specify the
         // -cl-std=CL2.0
         // build parameter here!
-        clBuildProgram(program, 0, null, "-cl-std=CL2.0", null, null);
+        clBuildProgram(program, 1, new cl_device_id[]{ device },
+                "-cl-std=CL2.0", null, null);
 
         // Create the kernel
         kernel = clCreateKernel(program, "sampleKernel", null);
 
         clReleaseProgram(program);
     }
-
-    /**
-     * Returns the OpenCL version of the given device, as a float
-     * value
-     *
-     * @param device The device
-     * @return The OpenCL version
-     */
-    private static float getOpenCLVersion(cl_device_id device)
-    {
-        String deviceVersion = getString(device, CL_DEVICE_VERSION);
-        String versionString = deviceVersion.substring(7, 10);
-        float version = Float.parseFloat(versionString);
-        return version;
-    }
-
-    /**
-     * Returns the value of the device info parameter with the given name
-     *
-     * @param device The device
-     * @param paramName The parameter name
-     * @return The value
-     */
-    private static String getString(cl_device_id device, int paramName)
-    {
-        // Obtain the length of the string that will be queried
-        long size[] = new long[1];
-        clGetDeviceInfo(device, paramName, 0, null, size);
-
-        // Create a buffer of the appropriate size and fill it with the info
-        byte buffer[] = new byte[(int)size[0]];
-        clGetDeviceInfo(device, paramName, buffer.length, Pointer.to(buffer), null);
-
-        // Create a string from the buffer (excluding the trailing \0 byte)
-        return new String(buffer, 0, buffer.length-1);
-    }
-
-
 }
@@ -15,10 +15,22 @@ package com.mdaley.jocl.samples;
         import java.io.*;
         import java.util.*;
         import java.util.List;
+        import java.util.concurrent.*;
 
         import javax.imageio.ImageIO;
         import javax.swing.*;
 
+        import com.mdaley.jocl.BufferPool;
+        import com.mdaley.jocl.ClRuntime;
+        import com.mdaley.jocl.DeviceSelector;
+        import com.mdaley.jocl.KernelArgs;
+        import com.mdaley.jocl.KernelPool;
+        import com.mdaley.jocl.KernelSources;
+        import com.mdaley.jocl.ProgramCache;
+        import com.mdaley.jocl.ProgramWarmup;
+        import com.mdaley.jocl.QueueGroup;
+        import com.mdaley.jocl.StagingBuffer;
+        import com.mdaley.jocl.WorkGroupTuner;
         import org.jocl.*;
 
 /**
@@ -42,6 +54,17 @@ public class SimpleConvolution
         });
     }
 
+    /**
+     * Register the program of this sample at the given warm-up service,
+     * so that it is built in the background at startup
+     *
+     * @param warmup The warm-up service
+     */
+    public static void registerPrograms(ProgramWarmup warmup)
+    {
+        JOCLConvolveOp.registerPrograms(warmup);
+    }
+
     /**
      * Creates a BufferedImage of with type TYPE_INT_RGB from the
      * file with the given name.
@@ -290,7 +313,11 @@ public class SimpleConvolution
 /**
  * This class is a BufferedImageOp which performs a convolution
  * using JOCL. For BufferedImages of type TYPE_INT_RGB it may
- * be used the same way as a Java ConvolveOp.
+ * be used the same way as a Java ConvolveOp. <br />
+ * <br />
+ * The filter method may be called from multiple threads at the
+ * same time: Each call obtains its own OpenCL kernel instance from
+ * a {@link KernelPool}, and its own memory objects for the images.
  */
 class JOCLConvolveOp implements BufferedImageOp
 {
@@ -300,6 +327,31 @@ class JOCLConvolveOp implements BufferedImageOp
     private static final String KERNEL_SOURCE_FILE_NAME =
             "/SimpleConvolution.cl";
 
+    /**
+     * The build options for the OpenCL program
+     */
+    private static final String COMPILE_OPTIONS = "-cl-mad-enable";
+
+    /**
+     * The workload that is used for selecting the device in
+     * {@link #create(Kernel)} and {@link #registerPrograms(ProgramWarmup)}
+     */
+    private static final DeviceSelector.Workload WORKLOAD =
+            new DeviceSelector.Workload("SimpleConvolution");
+
+    /**
+     * Register the program that is used by the instances that are
+     * created with {@link #create(Kernel)} at the given warm-up service
+     *
+     * @param warmup The warm-up service
+     */
+    static void registerPrograms(ProgramWarmup warmup)
+    {
+        cl_device_id device = DeviceSelector.select(WORKLOAD);
+        warmup.register("SimpleConvolution", new cl_device_id[]{ device },
+                COMPILE_OPTIONS, KERNEL_SOURCE_FILE_NAME);
+    }
+
     /**
      * Compute the value which is the smallest multiple
      * of the given group size that is greater than or
@@ -323,80 +375,58 @@ class JOCLConvolveOp implements BufferedImageOp
 
 
     /**
-     * Helper function which reads the file with the given name and returns
-     * the contents of this file as a String. Will exit the application
-     * if the file can not be read.
-     *
-     * @param fileName The name of the file to read.
-     * @return The contents of the file
+     * The OpenCL context
      */
-    private static String readFile(String fileName)
-    {
-        try
-        {
-            BufferedReader br = new BufferedReader(new InputStreamReader(SimpleConvolution.class.getResourceAsStream(fileName)));
-            StringBuffer sb = new StringBuffer();
-            String line = null;
-            while (true)
-            {
-                line = br.readLine();
-                if (line == null)
-                {
-                    break;
-                }
-                sb.append(line).append("\n");
-            }
-            return sb.toString();
-        }
-        catch (IOException e)
-        {
-            e.printStackTrace();
-            System.exit(1);
-            return null;
-        }
-    }
+    private cl_context context;
 
     /**
-     * The OpenCL context
+     * The OpenCL queue group, with the queues for the uploads, the
+     * kernels and the downloads
      */
-    private cl_context context;
+    private QueueGroup queueGroup;
 
     /**
-     * The OpenCL command queue
+     * The private command queue for the benchmark launches of the
+     * {@link WorkGroupTuner}, which is released in {@link #shutdown()}
      */
-    private cl_command_queue commandQueue;
+    private cl_command_queue tuningQueue;
 
     /**
-     * The OpenCL kernel which will perform the convolution
+     * The program cache from which the program was acquired, and to
+     * which it is released in {@link #shutdown()}
      */
-    private cl_kernel clKernel;
+    private ProgramCache programCache;
 
     /**
-     * The kernel which is used for the convolution
+     * The future that will receive the OpenCL program containing
+     * the kernel which will perform the convolution
      */
-    private Kernel kernel;
+    private Future<cl_program> programFuture;
 
     /**
-     * The memory object that stores the kernel data
+     * The pool of OpenCL kernel instances, one for each thread that
+     * is currently applying the convolution
      */
-    private cl_mem kernelMem;
+    private KernelPool kernelPool;
 
     /**
-     * The memory object for the input image
+     * The kernel which is used for the convolution
      */
-    private cl_mem inputImageMem;
+    private Kernel kernel;
 
     /**
-     * The memory object for the output image
+     * The memory object that stores the kernel data
      */
-    private cl_mem outputImageMem;
+    private cl_mem kernelMem;
 
 
     /**
      * Creates a new JOCLConvolveOp which may be used to apply the
-     * given kernel to a BufferedImage. This method will create
-     * an OpenCL context for the first platform that is found,
-     * and a command queue for the first device that is found.
+     * given kernel to a BufferedImage. This method will use the
+     * shared context and queue group of the device that is chosen
+     * by the {@link DeviceSelector}, as provided by the {@link ClRuntime},
+     * so that the transfers of one call may overlap with the kernel of
+     * a concurrent call.
      * To create a JOCLConvolveOp for an existing context and
      * command queue, use the constructor of this class.
      *
@@ -405,55 +435,26 @@ class JOCLConvolveOp implements BufferedImageOp
      */
     public static JOCLConvolveOp create(Kernel kernel)
     {
-        // The platform, device type and device number
-        // that will be used
-        final int platformIndex = 0;
-        final long deviceType = CL_DEVICE_TYPE_ALL;
-        final int deviceIndex = 0;
-
-        // Enable exceptions and subsequently omit error checks in this sample
-        CL.setExceptionsEnabled(true);
-
-        // Obtain the number of platforms
-        int numPlatformsArray[] = new int[1];
-        clGetPlatformIDs(0, null, numPlatformsArray);
-        int numPlatforms = numPlatformsArray[0];
-
-        // Obtain a platform ID
-        cl_platform_id platforms[] = new cl_platform_id[numPlatforms];
-        clGetPlatformIDs(platforms.length, platforms, null);
-        cl_platform_id platform = platforms[platformIndex];
-
-        // Initialize the context properties
-        cl_context_properties contextProperties = new cl_context_properties();
-        contextProperties.addProperty(CL_CONTEXT_PLATFORM, platform);
-
-        // Obtain the number of devices for the platform
-        int numDevicesArray[] = new int[1];
-        clGetDeviceIDs(platform, deviceType, 0, null, numDevicesArray);
-        int numDevices = numDevicesArray[0];
-
-        // Obtain a device ID
-        cl_device_id devices[] = new cl_device_id[numDevices];
-        clGetDeviceIDs(platform, deviceType, numDevices, devices, null);
-        cl_device_id device = devices[deviceIndex];
-
-        // Create a context for the selected device
-        cl_context context = clCreateContext(
-                contextProperties, 1, new cl_device_id[]{device},
-                null, null, null);
-
-        // Create a command-queue for the selected device
-        cl_command_queue commandQueue =
-                clCreateCommandQueue(context, device, 0, null);
-
-        return new JOCLConvolveOp(context, commandQueue, kernel);
+        // Select the device that is best suited for the convolution,
+        // unless it is overridden with the jocl.device system property
+        ClRuntime runtime = ClRuntime.getInstance();
+        DeviceSelector.Selection selection = DeviceSelector.choose(WORKLOAD);
+        System.out.println(selection);
+        cl_device_id device = selection.getDevice();
+        cl_context context = runtime.getContext(device);
+
+        // Obtain the shared queue group for the selected device
+        QueueGroup queueGroup = runtime.getQueueGroup(device, 0);
+
+        return new JOCLConvolveOp(context, queueGroup, kernel);
     }
 
 
     /**
      * Creates a JOCLConvolveOp for the given context and command queue,
      * which may be used to apply the given kernel to a BufferedImage.
+     * The context and command queue remain owned by the caller, and
+     * will not be released in {@link #shutdown()}.
      *
      * @param context The context
      * @param commandQueue The command queue
@@ -461,19 +462,40 @@ class JOCLConvolveOp implements BufferedImageOp
      */
     public JOCLConvolveOp(
             cl_context context, cl_command_queue commandQueue, Kernel kernel)
+    {
+        this(context, new QueueGroup(commandQueue), kernel);
+    }
+
+    /**
+     * Creates a JOCLConvolveOp for the given context and queue group,
+     * which may be used to apply the given kernel to a BufferedImage.
+     * The context and queue group remain owned by the caller, and
+     * will not be released in {@link #shutdown()}.
+     *
+     * @param context The context
+     * @param queueGroup The queue group
+     * @param kernel The kernel to apply
+     */
+    public JOCLConvolveOp(
+            cl_context context, QueueGroup queueGroup, Kernel kernel)
     {
         this.context = context;
-        this.commandQueue = commandQueue;
+        this.queueGroup = queueGroup;
         this.kernel = kernel;
-
-        // Create the OpenCL kernel from the program
-        String source = readFile(KERNEL_SOURCE_FILE_NAME);
-        cl_program program = clCreateProgramWithSource(context, 1,
-                new String[]{ source }, null, null);
-        String compileOptions = "-cl-mad-enable";
-        clBuildProgram(program, 0, null, compileOptions, null, null);
-        clKernel = clCreateKernel(program, "convolution", null);
-        clReleaseProgram(program);
+        cl_command_queue commandQueue = queueGroup.getComputeQueue();
+
+        // Obtain the OpenCL program from the program cache. The program
+        // is only built for the device of the command queue, and shared
+        // between all instances that use the same context and device.
+        // The build runs in the background, and is only waited for
+        // when the first kernel instance is created by the pool.
+        cl_device_id device = ClRuntime.getDevice(commandQueue);
+        String source = KernelSources.get(KERNEL_SOURCE_FILE_NAME);
+        programCache = ClRuntime.getInstance().getProgramCache();
+        programFuture = programCache.acquireProgramAsync(context, new cl_device_id[]{ device },
+                        new String[]{ source }, COMPILE_OPTIONS);
+        kernelPool = new KernelPool(programFuture, "convolution");
+        tuningQueue = ClRuntime.createCommandQueue(context, device, 0);
 
         // Create the ... other kernel... for the convolution
         float kernelData[] = kernel.getKernelData(null);
@@ -487,14 +509,26 @@ class JOCLConvolveOp implements BufferedImageOp
 
     /**
      * Release all resources that have been created for this
-     * instance.
+     * instance. This must not be called while other threads are
+     * still applying the convolution.
      */
     public void shutdown()
     {
         clReleaseMemObject(kernelMem);
-        clReleaseKernel(clKernel);
-        clReleaseCommandQueue(commandQueue);
-        clReleaseContext(context);
+        clReleaseCommandQueue(tuningQueue);
+        kernelPool.release();
+        try
+        {
+            programCache.releaseProgram(programFuture.get());
+        }
+        catch (InterruptedException e)
+        {
+            Thread.currentThread().interrupt();
+        }
+        catch (ExecutionException e)
+        {
+            // The failed program has not been cached
+        }
     }
 
 
@@ -509,6 +543,175 @@ class JOCLConvolveOp implements BufferedImageOp
         return result;
     }
 
+    /**
+     * Returns the work sizes for the convolution of an image with the
+     * given size, as determined by the {@link WorkGroupTuner}. If no
+     * winner is stored yet, a kernel instance is taken from the pool
+     * for the benchmark, and returned before the regular launch. The
+     * candidates are the size of the mask, which is the default, and
+     * the 2D local work sizes that are suitable for the kernel, with
+     * the global work size rounded up to a multiple of the local work
+     * size. The benchmark launches compute the same output as the
+     * regular launch. They are enqueued on the private tuning queue,
+     * because the compute queue is shared with concurrent calls to
+     * {@link #filter}, whose kernels would otherwise be included in
+     * the measured times.
+     *
+     * @param inputImageMem The memory object for the input image
+     * @param outputImageMem The memory object for the output image
+     * @param imageSizeX The width of the image
+     * @param imageSizeY The height of the image
+     * @param uploadEvent The event of the upload of the input image
+     * @return The geometry
+     */
+    private WorkGroupTuner.Geometry tuneGeometry(cl_mem inputImageMem,
+            cl_mem outputImageMem, int imageSizeX, int imageSizeY,
+            final cl_event uploadEvent)
+    {
+        cl_device_id device = ClRuntime.getDevice(tuningQueue);
+        String kernelName = "SimpleConvolution.convolution." +
+                kernel.getWidth() + "x" + kernel.getHeight();
+        long problemSize = (long) imageSizeX * imageSizeY;
+        WorkGroupTuner tuner = WorkGroupTuner.of(device);
+        WorkGroupTuner.Geometry stored =
+                tuner.getStored(kernelName, COMPILE_OPTIONS, problemSize);
+        if (stored != null)
+        {
+            return stored;
+        }
+
+        final KernelArgs args = kernelPool.acquire();
+        try
+        {
+            setArguments(args, inputImageMem, outputImageMem,
+                    imageSizeX, imageSizeY);
+            List<WorkGroupTuner.Geometry> candidates =
+                    new ArrayList<WorkGroupTuner.Geometry>();
+            List<long[]> localWorkSizes = new ArrayList<long[]>();
+            localWorkSizes.add(
+                    new long[]{ kernel.getWidth(), kernel.getHeight() });
+            localWorkSizes.addAll(
+                    WorkGroupTuner.localSizes2D(args.getKernel(), device));
+            for (long localWorkSize[] : localWorkSizes)
+            {
+                WorkGroupTuner.Geometry candidate = new WorkGroupTuner.Geometry(
+                        new long[]{ round(localWorkSize[0], imageSizeX),
+                                round(localWorkSize[1], imageSizeY) },
+                        localWorkSize);
+                if (!candidates.contains(candidate))
+                {
+                    candidates.add(candidate);
+                }
+            }
+            return tuner.tune(tuningQueue, kernelName, COMPILE_OPTIONS,
+                    problemSize, candidates, new WorkGroupTuner.Launcher()
+            {
+                @Override
+                public void launch(long globalWorkSize[], long localWorkSize[])
+                {
+                    clEnqueueNDRangeKernel(tuningQueue, args.getKernel(), 2,
+                            null, globalWorkSize, localWorkSize,
+                            1, new cl_event[]{ uploadEvent }, null);
+                }
+            });
+        }
+        finally
+        {
+            kernelPool.release(args);
+        }
+    }
+
+    /**
+     * Set the arguments of the convolution kernel
+     *
+     * @param args The argument binder of the kernel
+     * @param inputImageMem The memory object for the input image
+     * @param outputImageMem The memory object for the output image
+     * @param imageSizeX The width of the image
+     * @param imageSizeY The height of the image
+     */
+    private void setArguments(KernelArgs args, cl_mem inputImageMem,
+            cl_mem outputImageMem, int imageSizeX, int imageSizeY)
+    {
+        args.setMem(0, inputImageMem);
+        args.setMem(1, kernelMem);
+        args.setMem(2, outputImageMem);
+        args.setInt2(3, imageSizeX, imageSizeY);
+        args.setInt2(4, kernel.getWidth(), kernel.getHeight());
+        args.setInt2(5, kernel.getXOrigin(), kernel.getYOrigin());
+    }
+
+    /**
+     * Enqueue the convolution kernel, which waits for the given upload
+     * event. The kernel instance is only needed until the kernel has
+     * been enqueued, since the arguments are captured at this point.
+     *
+     * @param inputImageMem The memory object for the input image
+     * @param outputImageMem The memory object for the output image
+     * @param imageSizeX The width of the image
+     * @param imageSizeY The height of the image
+     * @param uploadEvent The event of the upload of the input image
+     * @return The event of the kernel, which must be released by the caller
+     */
+    private cl_event enqueueConvolution(cl_mem inputImageMem,
+            cl_mem outputImageMem, int imageSizeX, int imageSizeY,
+            cl_event uploadEvent)
+    {
+        // Obtain the tuned work sizes for the image and mask size.
+        // The default local work size is the size of the mask
+        WorkGroupTuner.Geometry geometry = tuneGeometry(inputImageMem,
+                outputImageMem, imageSizeX, imageSizeY, uploadEvent);
+        long globalWorkSize[] = geometry.getGlobalWorkSize();
+        long localWorkSize[] = geometry.getLocalWorkSize();
+
+        //System.out.println("global "+Arrays.toString(globalWorkSize));
+        //System.out.println("local  "+Arrays.toString(localWorkSize));
+
+        // Set the arguments, and execute the kernel
+        cl_command_queue computeQueue = queueGroup.getComputeQueue();
+        cl_event kernelEvent = new cl_event();
+        KernelArgs args = kernelPool.acquire();
+        try
+        {
+            setArguments(args, inputImageMem, outputImageMem,
+                    imageSizeX, imageSizeY);
+            clEnqueueNDRangeKernel(computeQueue, args.getKernel(), 2, null,
+                    globalWorkSize, localWorkSize,
+                    1, new cl_event[]{ uploadEvent }, kernelEvent);
+        }
+        finally
+        {
+            kernelPool.release(args);
+        }
+        try
+        {
+            clFlush(computeQueue);
+        }
+        catch (CLException e)
+        {
+            clReleaseEvent(kernelEvent);
+            throw e;
+        }
+        return kernelEvent;
+    }
+
+    /**
+     * Wait until the commands on the queues of this operation have
+     * completed, after an enqueue failed. A further failure is ignored,
+     * so that the original exception is not replaced.
+     */
+    private void finishQuietly()
+    {
+        try
+        {
+            queueGroup.finish();
+        }
+        catch (CLException e)
+        {
+            // The original exception is propagated
+        }
+    }
+
     @Override
     public BufferedImage filter(BufferedImage src, BufferedImage dst)
     {
@@ -536,61 +739,83 @@ class JOCLConvolveOp implements BufferedImageOp
         int imageSizeX = src.getWidth();
         int imageSizeY = src.getHeight();
 
-        // Create the memory object for the input- and output image
+        // Obtain the memory objects for the input- and output image
+        // from the buffer pool, and write the input image through a
+        // pinned staging buffer. Everything that has been acquired is
+        // returned in the finally block, also when an enqueue fails.
+        ClRuntime runtime = ClRuntime.getInstance();
+        BufferPool bufferPool = runtime.getBufferPool();
         DataBufferInt dataBufferSrc =
                 (DataBufferInt)src.getRaster().getDataBuffer();
         int dataSrc[] = dataBufferSrc.getData();
-        inputImageMem = clCreateBuffer(context,
-                CL_MEM_READ_ONLY | CL_MEM_USE_HOST_PTR,
-                dataSrc.length * Sizeof.cl_uint,
-                Pointer.to(dataSrc), null);
-
-        outputImageMem = clCreateBuffer(context, CL_MEM_WRITE_ONLY,
-                imageSizeX * imageSizeY * Sizeof.cl_uint, null, null);
-
-        // Set work sizes and arguments, and execute the kernel
-        int kernelSizeX = kernel.getWidth();
-        int kernelSizeY = kernel.getHeight();
-        int kernelOriginX = kernel.getXOrigin();
-        int kernelOriginY = kernel.getYOrigin();
-
-        long localWorkSize[] = new long[2];
-        localWorkSize[0] = kernelSizeX;
-        localWorkSize[1] = kernelSizeY;
-
-        long globalWorkSize[] = new long[2];
-        globalWorkSize[0] = round(localWorkSize[0], imageSizeX);
-        globalWorkSize[1] = round(localWorkSize[1], imageSizeY);
-
-        int imageSize[] = new int[]{ imageSizeX, imageSizeY };
-        int kernelSize[] = new int[]{ kernelSizeX, kernelSizeY };
-        int kernelOrigin[] = new int[]{ kernelOriginX, kernelOriginY };
-
-        clSetKernelArg(clKernel, 0, Sizeof.cl_mem, Pointer.to(inputImageMem));
-        clSetKernelArg(clKernel, 1, Sizeof.cl_mem, Pointer.to(kernelMem));
-        clSetKernelArg(clKernel, 2, Sizeof.cl_mem, Pointer.to(outputImageMem));
-        clSetKernelArg(clKernel, 3, Sizeof.cl_int2, Pointer.to(imageSize));
-        clSetKernelArg(clKernel, 4, Sizeof.cl_int2, Pointer.to(kernelSize));
-        clSetKernelArg(clKernel, 5, Sizeof.cl_int2, Pointer.to(kernelOrigin));
-
-        //System.out.println("global "+Arrays.toString(globalWorkSize));
-        //System.out.println("local  "+Arrays.toString(localWorkSize));
-
-        clEnqueueNDRangeKernel(commandQueue, clKernel, 2, null,
-                globalWorkSize, localWorkSize, 0, null, null);
-
-        // Read the pixel data into the BufferedImage
-        DataBufferInt dataBufferDst =
-                (DataBufferInt)dst.getRaster().getDataBuffer();
-        int dataDst[] = dataBufferDst.getData();
-        clEnqueueReadBuffer(commandQueue, outputImageMem,
-                CL_TRUE, 0, dataDst.length * Sizeof.cl_uint,
-                Pointer.to(dataDst), 0, null, null);
+        long imageBytes = dataSrc.length * Sizeof.cl_uint;
+        cl_command_queue uploadQueue = queueGroup.getUploadQueue();
+        StagingBuffer staging = runtime.getStagingBufferPool().acquire(
+                uploadQueue, imageBytes);
+        cl_mem inputImageMem = null;
+        cl_mem outputImageMem = null;
+        boolean completed = false;
+        try
+        {
+            staging.asIntBuffer().put(dataSrc);
+            inputImageMem = bufferPool.acquireBuffer(context,
+                    CL_MEM_READ_ONLY, imageBytes);
+            outputImageMem = bufferPool.acquireBuffer(context,
+                    CL_MEM_WRITE_ONLY, imageSizeX * imageSizeY * Sizeof.cl_uint);
+            cl_event uploadEvent = new cl_event();
+            staging.write(uploadQueue, inputImageMem, 0, imageBytes, false,
+                    null, uploadEvent);
+            cl_event kernelEvent;
+            try
+            {
+                clFlush(uploadQueue);
+                kernelEvent = enqueueConvolution(inputImageMem, outputImageMem,
+                        imageSizeX, imageSizeY, uploadEvent);
+            }
+            finally
+            {
+                clReleaseEvent(uploadEvent);
+            }
 
-        // Clean up
-        clReleaseMemObject(inputImageMem);
-        clReleaseMemObject(outputImageMem);
+            // Read the pixel data into the staging buffer, and from
+            // there into the BufferedImage
+            DataBufferInt dataBufferDst =
+                    (DataBufferInt)dst.getRaster().getDataBuffer();
+            int dataDst[] = dataBufferDst.getData();
+            try
+            {
+                staging.read(queueGroup.getDownloadQueue(), outputImageMem,
+                        0, dataDst.length * Sizeof.cl_uint, true,
+                        new cl_event[]{ kernelEvent }, null);
+            }
+            finally
+            {
+                clReleaseEvent(kernelEvent);
+            }
+            staging.asIntBuffer().get(dataDst);
+            completed = true;
+        }
+        finally
+        {
+            // After a failure, commands that use the buffers may still
+            // be pending, and the buffers may only be reused after these
+            // have completed
+            if (!completed)
+            {
+                finishQuietly();
+            }
+            staging.release();
 
+            // Return the memory objects to the pool, for the next call
+            if (inputImageMem != null)
+            {
+                bufferPool.releaseBuffer(inputImageMem);
+            }
+            if (outputImageMem != null)
+            {
+                bufferPool.releaseBuffer(outputImageMem);
+            }
+        }
         return dst;
     }
 
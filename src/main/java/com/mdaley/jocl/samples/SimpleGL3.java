@@ -26,6 +26,9 @@ import jogamp.opengl.macosx.cgl.MacOSXCGLContext;
 import jogamp.opengl.windows.wgl.WindowsWGLContext;
 import jogamp.opengl.x11.glx.X11GLXContext;
 
+import com.mdaley.jocl.CommandRecording;
+import com.mdaley.jocl.KernelArgs;
+import com.mdaley.jocl.KernelSources;
 import org.jocl.*;
 
 import com.jogamp.opengl.util.Animator;
@@ -141,6 +144,17 @@ public class SimpleGL3 implements GLEventListener
      */
     private cl_kernel kernel;
 
+    /**
+     * The argument binder for the kernel
+     */
+    private KernelArgs kernelArgs;
+
+    /**
+     * The recorded commands that compute the vertex positions, which
+     * are replayed for each frame
+     */
+    private CommandRecording recording;
+
     /**
      * Whether the computation should be performed with JOCL or
      * with Java. May be toggled by pressing the 't' key
@@ -436,19 +450,18 @@ public class SimpleGL3 implements GLEventListener
                 clCreateCommandQueue(context, device, 0, null);
 
         // Read the program source code and create the program
-        String source = readFile("/simpleGL.cl");
+        String source = KernelSources.get("/simpleGL.cl");
         cl_program program = clCreateProgramWithSource(context, 1,
                 new String[]{ source }, null, null);
         clBuildProgram(program, 0, null, "-cl-mad-enable", null, null);
 
         // Create the kernel which computes the sine wave pattern
         kernel = clCreateKernel(program, "sine_wave", null);
+        kernelArgs = new KernelArgs(kernel);
 
         // Set the constant kernel arguments
-        clSetKernelArg(kernel, 1, Sizeof.cl_uint,
-                Pointer.to(new int[]{ meshWidth }));
-        clSetKernelArg(kernel, 2, Sizeof.cl_uint,
-                Pointer.to(new int[]{ meshHeight }));
+        kernelArgs.setInt(1, meshWidth);
+        kernelArgs.setInt(2, meshHeight);
     }
 
 
@@ -506,42 +519,6 @@ public class SimpleGL3 implements GLEventListener
 
 
 
-    /**
-     * Helper function which reads the file with the given name and returns
-     * the contents of this file as a String. Will exit the application
-     * if the file can not be read.
-     *
-     * @param fileName The name of the file to read.
-     * @return The contents of the file
-     */
-    private String readFile(String fileName)
-    {
-        try
-        {
-            BufferedReader br = new BufferedReader(new InputStreamReader(SimpleGL3.class.getResourceAsStream(fileName)));
-            StringBuffer sb = new StringBuffer();
-            String line = null;
-            while (true)
-            {
-                line = br.readLine();
-                if (line == null)
-                {
-                    break;
-                }
-                sb.append(line).append("\n");
-            }
-            br.close();
-            return sb.toString();
-        }
-        catch (IOException e)
-        {
-            e.printStackTrace();
-            runExit();
-            return null;
-        }
-    }
-
-
     /**
      * Initialize the shaders and the shader program
      *
@@ -648,7 +625,24 @@ public class SimpleGL3 implements GLEventListener
             vboMem = clCreateBuffer(context, CL_MEM_WRITE_ONLY, size,
                     null, null);
         }
-        clSetKernelArg(kernel, 0, Sizeof.cl_mem, Pointer.to(vboMem));
+        // The new memory object may have the handle of the one that
+        // was released, so it has to be bound in any case
+        kernelArgs.invalidate();
+        kernelArgs.setMem(0, vboMem);
+
+        // Record the commands that compute the vertex positions
+        long globalWorkSize[] = new long[]{ meshWidth, meshHeight };
+        recording = new CommandRecording(commandQueue);
+        if (GL_INTEROP)
+        {
+            recording.acquireGLObjects(vboMem);
+        }
+        recording.kernel(kernelArgs, null, globalWorkSize, null);
+        if (GL_INTEROP)
+        {
+            recording.releaseGLObjects(vboMem);
+        }
+        recording.finalizeRecording();
     }
 
     /**
@@ -733,26 +727,19 @@ public class SimpleGL3 implements GLEventListener
     {
         if (GL_INTEROP)
         {
-            // Map OpenGL buffer object for writing from OpenCL
+            // Make sure that OpenGL is done with the buffer object
+            // before it is acquired by OpenCL
             gl.glFinish();
-            clEnqueueAcquireGLObjects(commandQueue, 1,
-                    new cl_mem[]{ vboMem }, 0, null, null);
         }
 
-        // Set work size and arguments, and execute the kernel
-        long globalWorkSize[] = new long[2];
-        globalWorkSize[0] = meshWidth;
-        globalWorkSize[1] = meshHeight;
-        clSetKernelArg(kernel, 3, Sizeof.cl_float,
-                Pointer.to(new float[]{ animationState }));
-        clEnqueueNDRangeKernel(commandQueue, kernel, 2, null,
-                globalWorkSize, null, 0, null, null);
+        // Patch the animation state, and replay the commands that
+        // compute the vertex positions
+        kernelArgs.setFloat(3, animationState);
+        recording.replay();
 
         if (GL_INTEROP)
         {
-            // Unmap the buffer object
-            clEnqueueReleaseGLObjects(commandQueue, 1,
-                    new cl_mem[]{ vboMem }, 0, null, null);
+            // Wait until the buffer object has been released
             clFinish(commandQueue);
         }
         else
@@ -4,6 +4,10 @@ package com.mdaley.jocl.samples;/*
  * Copyright 2010 Marco Hutter - http://www.jocl.org/
  */
 
+import com.mdaley.jocl.ClRuntime;
+import com.mdaley.jocl.CommandRecording;
+import com.mdaley.jocl.DeviceSelector;
+import com.mdaley.jocl.KernelArgs;
 import org.jocl.*;
 
 import javax.imageio.ImageIO;
@@ -134,6 +138,17 @@ public class SimpleImage
      */
     private cl_kernel kernel;
 
+    /**
+     * The argument binder for the kernel
+     */
+    private KernelArgs kernelArgs;
+
+    /**
+     * The recorded kernel launch and image readback, which is replayed
+     * for each frame
+     */
+    private CommandRecording recording;
+
     /**
      * The memory object for the input image
      */
@@ -233,41 +248,15 @@ public class SimpleImage
      */
     void initCL()
     {
-        final int platformIndex = 0;
-        final long deviceType = CL_DEVICE_TYPE_ALL;
-        final int deviceIndex = 0;
-
-        // Enable exceptions and subsequently omit error checks in this sample
-        CL.setExceptionsEnabled(true);
-
-        // Obtain the number of platforms
-        int numPlatformsArray[] = new int[1];
-        clGetPlatformIDs(0, null, numPlatformsArray);
-        int numPlatforms = numPlatformsArray[0];
-
-        // Obtain a platform ID
-        cl_platform_id platforms[] = new cl_platform_id[numPlatforms];
-        clGetPlatformIDs(platforms.length, platforms, null);
-        cl_platform_id platform = platforms[platformIndex];
-
-        // Initialize the context properties
-        cl_context_properties contextProperties = new cl_context_properties();
-        contextProperties.addProperty(CL_CONTEXT_PLATFORM, platform);
-
-        // Obtain the number of devices for the platform
-        int numDevicesArray[] = new int[1];
-        clGetDeviceIDs(platform, deviceType, 0, null, numDevicesArray);
-        int numDevices = numDevicesArray[0];
-
-        // Obtain a device ID
-        cl_device_id devices[] = new cl_device_id[numDevices];
-        clGetDeviceIDs(platform, deviceType, numDevices, devices, null);
-        cl_device_id device = devices[deviceIndex];
-
-        // Create a context for the selected device
-        context = clCreateContext(
-                contextProperties, 1, new cl_device_id[]{device},
-                null, null, null);
+        // Select the device that is best suited for this sample, unless
+        // it is overridden with the jocl.device system property
+        ClRuntime runtime = ClRuntime.getInstance();
+        DeviceSelector.Selection selection = DeviceSelector.choose(
+                new DeviceSelector.Workload("SimpleImage")
+                .requireImageSupport());
+        System.out.println(selection);
+        cl_device_id device = selection.getDevice();
+        context = runtime.getContext(device);
 
         // Check if images are supported
         int imageSupport[] = new int[1];
@@ -287,7 +276,7 @@ public class SimpleImage
         properties |= CL_QUEUE_PROFILING_ENABLE;
         // CL_QUEUE_OUT_OF_ORDER_EXEC_MODE_ENABLE doesn't work on OSX! I think it is just an optimisation.
         //properties |= CL_QUEUE_OUT_OF_ORDER_EXEC_MODE_ENABLE;
-        commandQueue = clCreateCommandQueue(context, device, properties, null);
+        commandQueue = runtime.getCommandQueue(device, properties);
 
         // Create the program
         System.out.println("Creating program...");
@@ -296,11 +285,13 @@ public class SimpleImage
 
         // Build the program
         System.out.println("Building program...");
-        clBuildProgram(program, 0, null, null, null, null);
+        clBuildProgram(program, 1, new cl_device_id[]{ device },
+                null, null, null);
 
         // Create the kernel
         System.out.println("Creating kernel...");
         kernel = clCreateKernel(program, "rotateImage", null);
+        kernelArgs = new KernelArgs(kernel);
 
     }
 
@@ -327,6 +318,21 @@ public class SimpleImage
                 context, CL_MEM_WRITE_ONLY,
                 new cl_image_format[]{imageFormat}, imageSizeX, imageSizeY,
                 0, null, null);
+
+        // Bind the images, and record the kernel launch and the read
+        // of the pixel data into the output image
+        kernelArgs.setMem(0, inputImageMem);
+        kernelArgs.setMem(1, outputImageMem);
+        DataBufferInt dataBufferDst =
+                (DataBufferInt)outputImage.getRaster().getDataBuffer();
+        int dataDst[] = dataBufferDst.getData();
+        recording = new CommandRecording(commandQueue)
+                .kernel(kernelArgs, null,
+                        new long[]{ imageSizeX, imageSizeY }, null)
+                .readImage(outputImageMem, true, new long[3],
+                        new long[]{ imageSizeX, imageSizeY, 1 },
+                        imageSizeX * Sizeof.cl_uint, 0, Pointer.to(dataDst))
+                .finalizeRecording();
     }
 
 
@@ -338,26 +344,10 @@ public class SimpleImage
      */
     void rotateImage(float angle)
     {
-        // Set up the work size and arguments, and execute the kernel
-        long globalWorkSize[] = new long[2];
-        globalWorkSize[0] = imageSizeX;
-        globalWorkSize[1] = imageSizeY;
-        clSetKernelArg(kernel, 0, Sizeof.cl_mem, Pointer.to(inputImageMem));
-        clSetKernelArg(kernel, 1, Sizeof.cl_mem, Pointer.to(outputImageMem));
-        clSetKernelArg(kernel, 2, Sizeof.cl_float,
-                Pointer.to(new float[]{angle}));
-        clEnqueueNDRangeKernel(commandQueue, kernel, 2, null,
-                globalWorkSize, null, 0, null, null);
-
-        // Read the pixel data into the output image
-        DataBufferInt dataBufferDst =
-                (DataBufferInt)outputImage.getRaster().getDataBuffer();
-        int dataDst[] = dataBufferDst.getData();
-        clEnqueueReadImage(
-                commandQueue, outputImageMem, true, new long[3],
-                new long[]{imageSizeX, imageSizeY, 1},
-                imageSizeX * Sizeof.cl_uint, 0,
-                Pointer.to(dataDst), 0, null, null);
+        // Patch the angle, and replay the kernel launch and the
+        // read of the pixel data into the output image
+        kernelArgs.setFloat(2, angle);
+        recording.replay();
     }
 }
 
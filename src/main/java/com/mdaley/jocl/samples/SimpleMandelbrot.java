@@ -4,6 +4,11 @@ package com.mdaley.jocl.samples;/*
  * Copyright 2009 Marco Hutter - http://www.jocl.org/
  */
 
+import com.mdaley.jocl.ClRuntime;
+import com.mdaley.jocl.CommandRecording;
+import com.mdaley.jocl.DeviceSelector;
+import com.mdaley.jocl.KernelArgs;
+import com.mdaley.jocl.KernelSources;
 import org.jocl.*;
 
 import javax.swing.*;
@@ -14,9 +19,6 @@ import java.awt.event.MouseWheelEvent;
 import java.awt.event.MouseWheelListener;
 import java.awt.image.BufferedImage;
 import java.awt.image.DataBufferInt;
-import java.io.BufferedReader;
-import java.io.IOException;
-import java.io.InputStreamReader;
 
 import static org.jocl.CL.*;
 
@@ -76,6 +78,17 @@ public class SimpleMandelbrot
      */
     private cl_kernel kernel;
 
+    /**
+     * The argument binder for the kernel
+     */
+    private KernelArgs kernelArgs;
+
+    /**
+     * The recorded kernel launch and pixel readback, which is replayed
+     * for each frame
+     */
+    private CommandRecording recording;
+
     /**
      * The OpenCL memory object which stores the pixel data
      */
@@ -166,58 +179,32 @@ public class SimpleMandelbrot
      */
     private void initCL()
     {
-        final int platformIndex = 0;
-        final long deviceType = CL_DEVICE_TYPE_ALL;
-        final int deviceIndex = 0;
-
-        // Enable exceptions and subsequently omit error checks in this sample
-        CL.setExceptionsEnabled(true);
-
-        // Obtain the number of platforms
-        int numPlatformsArray[] = new int[1];
-        clGetPlatformIDs(0, null, numPlatformsArray);
-        int numPlatforms = numPlatformsArray[0];
-
-        // Obtain a platform ID
-        cl_platform_id platforms[] = new cl_platform_id[numPlatforms];
-        clGetPlatformIDs(platforms.length, platforms, null);
-        cl_platform_id platform = platforms[platformIndex];
-
-        // Initialize the context properties
-        cl_context_properties contextProperties = new cl_context_properties();
-        contextProperties.addProperty(CL_CONTEXT_PLATFORM, platform);
-
-        // Obtain the number of devices for the platform
-        int numDevicesArray[] = new int[1];
-        clGetDeviceIDs(platform, deviceType, 0, null, numDevicesArray);
-        int numDevices = numDevicesArray[0];
-
-        // Obtain a device ID
-        cl_device_id devices[] = new cl_device_id[numDevices];
-        clGetDeviceIDs(platform, deviceType, numDevices, devices, null);
-        cl_device_id device = devices[deviceIndex];
-
-        // Create a context for the selected device
-        context = clCreateContext(
-                contextProperties, 1, new cl_device_id[]{device},
-                null, null, null);
-
-        // Create a command-queue for the selected device
-        commandQueue =
-                clCreateCommandQueue(context, device, 0, null);
+        // Select the device that is best suited for this sample, unless
+        // it is overridden with the jocl.device system property
+        ClRuntime runtime = ClRuntime.getInstance();
+        DeviceSelector.Selection selection = DeviceSelector.choose(
+                new DeviceSelector.Workload("SimpleMandelbrot"));
+        System.out.println(selection);
+        cl_device_id device = selection.getDevice();
+        context = runtime.getContext(device);
+
+        // Obtain the shared command-queue for the selected device
+        commandQueue = runtime.getCommandQueue(device);
 
         // Program Setup
-        String source = readFile("/SimpleMandelbrot.cl");
+        String source = KernelSources.get("/SimpleMandelbrot.cl");
 
         // Create the program
         cl_program cpProgram = clCreateProgramWithSource(context, 1,
                 new String[]{ source }, null, null);
 
         // Build the program
-        clBuildProgram(cpProgram, 0, null, "-cl-mad-enable", null, null);
+        clBuildProgram(cpProgram, 1, new cl_device_id[]{ device },
+                "-cl-mad-enable", null, null);
 
         // Create the kernel
         kernel = clCreateKernel(cpProgram, "computeMandelbrot", null);
+        kernelArgs = new KernelArgs(kernel);
 
         // Create the memory object which will be filled with the
         // pixel data
@@ -230,41 +217,25 @@ public class SimpleMandelbrot
                 colorMap.length * Sizeof.cl_uint, null, null);
         clEnqueueWriteBuffer(commandQueue, colorMapMem, true, 0,
                 colorMap.length * Sizeof.cl_uint, Pointer.to(colorMap), 0, null, null);
-    }
 
-    /**
-     * Helper function which reads the file with the given name and returns
-     * the contents of this file as a String. Will exit the application
-     * if the file can not be read.
-     *
-     * @param fileName The name of the file to read.
-     * @return The contents of the file
-     */
-    private String readFile(String fileName)
-    {
-        try
-        {
-            BufferedReader br = new BufferedReader(
-                    new InputStreamReader(SimpleMandelbrot.class.getResourceAsStream(fileName)));
-            StringBuffer sb = new StringBuffer();
-            String line = null;
-            while (true)
-            {
-                line = br.readLine();
-                if (line == null)
-                {
-                    break;
-                }
-                sb.append(line).append("\n");
-            }
-            return sb.toString();
-        }
-        catch (IOException e)
-        {
-            e.printStackTrace();
-            System.exit(1);
-            return null;
-        }
+        // Bind the arguments that do not change between frames
+        int maxIterations = 250;
+        kernelArgs.setMem(0, pixelMem);
+        kernelArgs.setInt(1, sizeX);
+        kernelArgs.setInt(2, sizeY);
+        kernelArgs.setInt(7, maxIterations);
+        kernelArgs.setMem(8, colorMapMem);
+        kernelArgs.setInt(9, colorMap.length);
+
+        // Record the kernel launch and the read of the pixel data
+        // into the BufferedImage
+        DataBufferInt dataBuffer = (DataBufferInt)image.getRaster().getDataBuffer();
+        int data[] = dataBuffer.getData();
+        recording = new CommandRecording(commandQueue)
+                .kernel(kernelArgs, null, new long[]{ sizeX, sizeY }, null)
+                .readBuffer(pixelMem, CL_TRUE, 0,
+                        Sizeof.cl_int * sizeY * sizeX, Pointer.to(data))
+                .finalizeRecording();
     }
 
     /**
@@ -372,31 +343,13 @@ public class SimpleMandelbrot
      */
     private void updateImage()
     {
-        // Set work size and execute the kernel
-        long globalWorkSize[] = new long[2];
-        globalWorkSize[0] = sizeX;
-        globalWorkSize[1] = sizeY;
-
-        int maxIterations = 250;
-        clSetKernelArg(kernel, 0, Sizeof.cl_mem, Pointer.to(pixelMem));
-        clSetKernelArg(kernel, 1, Sizeof.cl_uint, Pointer.to(new int[]{sizeX}));
-        clSetKernelArg(kernel, 2, Sizeof.cl_uint, Pointer.to(new int[]{sizeY}));
-        clSetKernelArg(kernel, 3, Sizeof.cl_float, Pointer.to(new float[]{ x0 }));
-        clSetKernelArg(kernel, 4, Sizeof.cl_float, Pointer.to(new float[]{ y0 }));
-        clSetKernelArg(kernel, 5, Sizeof.cl_float, Pointer.to(new float[]{ x1 }));
-        clSetKernelArg(kernel, 6, Sizeof.cl_float, Pointer.to(new float[]{ y1 }));
-        clSetKernelArg(kernel, 7, Sizeof.cl_int, Pointer.to(new int[]{ maxIterations }));
-        clSetKernelArg(kernel, 8, Sizeof.cl_mem, Pointer.to(colorMapMem));
-        clSetKernelArg(kernel, 9, Sizeof.cl_int, Pointer.to(new int[]{ colorMap.length }));
-
-        clEnqueueNDRangeKernel(commandQueue, kernel, 2, null,
-                globalWorkSize, null, 0, null, null);
-
-        // Read the pixel data into the BufferedImage
-        DataBufferInt dataBuffer = (DataBufferInt)image.getRaster().getDataBuffer();
-        int data[] = dataBuffer.getData();
-        clEnqueueReadBuffer(commandQueue, pixelMem, CL_TRUE, 0,
-                Sizeof.cl_int * sizeY * sizeX, Pointer.to(data), 0, null, null);
+        // Patch the area, and replay the kernel launch and the
+        // read of the pixel data into the BufferedImage
+        kernelArgs.setFloat(3, x0);
+        kernelArgs.setFloat(4, y0);
+        kernelArgs.setFloat(5, x1);
+        kernelArgs.setFloat(6, y1);
+        recording.replay();
 
         imageComponent.repaint();
     }
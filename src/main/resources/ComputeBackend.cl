@@ -0,0 +1,48 @@
+// The kernels of the samples that are defined inline in their sources,
+// for the OpenClBackend. The image rotation operates on buffers instead
+// of images, so that it also runs on devices without image support.
+
+__kernel void multiply(
+    __global const float *a,
+    __global const float *b,
+    __global float *c)
+{
+    int gid = get_global_id(0);
+    c[gid] = a[gid] * b[gid];
+}
+
+__kernel void add(
+    __global const float *a,
+    __global const float *b,
+    __global float *c)
+{
+    int gid = get_global_id(0);
+    c[gid] = a[gid] + b[gid];
+}
+
+// Rotates the input image by the given angle around its center. Pixels
+// that are rotated in from outside of the image are 0, like with the
+// CLK_ADDRESS_CLAMP sampler of the SimpleImage sample.
+__kernel void rotateImage(
+    __global const uint *sourceImage,
+    __global uint *targetImage,
+    int w, int h,
+    float angle)
+{
+    int gidX = get_global_id(0);
+    int gidY = get_global_id(1);
+    int cx = w/2;
+    int cy = h/2;
+    int dx = gidX-cx;
+    int dy = gidY-cy;
+    float ca = cos(angle);
+    float sa = sin(angle);
+    int inX = (int)(cx+ca*dx-sa*dy);
+    int inY = (int)(cy+sa*dx+ca*dy);
+    uint pixel = 0;
+    if (inX >= 0 && inX < w && inY >= 0 && inY < h)
+    {
+        pixel = sourceImage[inY*w+inX];
+    }
+    targetImage[gidY*w+gidX] = pixel;
+}
@@ -0,0 +1,97 @@
+/*
+ * Micro-benchmark kernels that are used by the RooflineBenchmark for
+ * measuring the launch latency, the global and local memory bandwidth
+ * and the float and float4 throughput of a device.
+ */
+
+/* The defaults, which may be overridden with -D build options */
+#ifndef LOCAL_ITERATIONS
+#define LOCAL_ITERATIONS 256
+#endif
+#ifndef FLOP_ITERATIONS
+#define FLOP_ITERATIONS 256
+#endif
+
+/**
+ * An empty kernel, for measuring the launch latency
+ */
+__kernel void empty(__global float *dst)
+{
+}
+
+/**
+ * Copies the source to the destination, for measuring the global
+ * memory bandwidth. Each work item reads and writes 16 bytes.
+ */
+__kernel void copyFloat4(__global const float4 *src, __global float4 *dst)
+{
+    size_t i = get_global_id(0);
+    dst[i] = src[i];
+}
+
+/**
+ * Repeatedly reads the local memory, for measuring the local memory
+ * bandwidth. Each work item reads 4 * LOCAL_ITERATIONS * 4 bytes. The
+ * local size must be a power of two.
+ */
+__kernel void localRead(__global float *dst, __local float *tile)
+{
+    size_t lid = get_local_id(0);
+    size_t mask = get_local_size(0) - 1;
+    tile[lid] = (float)lid;
+    barrier(CLK_LOCAL_MEM_FENCE);
+
+    float sum0 = 0.0f;
+    float sum1 = 0.0f;
+    float sum2 = 0.0f;
+    float sum3 = 0.0f;
+    for (int i = 0; i < LOCAL_ITERATIONS; i++)
+    {
+        sum0 += tile[(lid + i) & mask];
+        sum1 += tile[(lid + i + 1) & mask];
+        sum2 += tile[(lid + i + 2) & mask];
+        sum3 += tile[(lid + i + 3) & mask];
+    }
+    dst[get_global_id(0)] = sum0 + sum1 + sum2 + sum3;
+}
+
+/**
+ * Performs 4 independent chains of multiply-adds on floats. Each work
+ * item performs 4 * 2 * FLOP_ITERATIONS floating point operations.
+ */
+__kernel void flopsFloat(__global float *dst, float a, float b)
+{
+    float x0 = (float)get_global_id(0);
+    float x1 = x0 + 1.0f;
+    float x2 = x0 + 2.0f;
+    float x3 = x0 + 3.0f;
+    for (int i = 0; i < FLOP_ITERATIONS; i++)
+    {
+        x0 = mad(a, x0, b);
+        x1 = mad(a, x1, b);
+        x2 = mad(a, x2, b);
+        x3 = mad(a, x3, b);
+    }
+    dst[get_global_id(0)] = x0 + x1 + x2 + x3;
+}
+
+/**
+ * Performs 4 independent chains of multiply-adds on float4 vectors.
+ * Each work item performs 4 * 4 * 2 * FLOP_ITERATIONS floating point
+ * operations.
+ */
+__kernel void flopsFloat4(__global float4 *dst, float a, float b)
+{
+    float4 x0 = (float4)((float)get_global_id(0));
+    float4 x1 = x0 + (float4)(1.0f);
+    float4 x2 = x0 + (float4)(2.0f);
+    float4 x3 = x0 + (float4)(3.0f);
+    for (int i = 0; i < FLOP_ITERATIONS; i++)
+    {
+        x0 = mad((float4)(a), x0, (float4)(b));
+        x1 = mad((float4)(a), x1, (float4)(b));
+        x2 = mad((float4)(a), x2, (float4)(b));
+        x3 = mad((float4)(a), x3, (float4)(b));
+    }
+    dst[get_global_id(0)] = x0 + x1 + x2 + x3;
+}
@@ -21,11 +21,15 @@
 #define HISTOGRAM256_BIN_COUNT 256
 
 #define      UINT_BITS 32U
+#ifndef LOG2_WARP_SIZE
 #define LOG2_WARP_SIZE 5U
+#endif
 #define      WARP_SIZE (1U << LOG2_WARP_SIZE)
 
 //Warps ==subhistograms per work-group
+#ifndef WARP_COUNT
 #define WARP_COUNT 6
+#endif
 
 //Workgroup size
 #define HISTOGRAM256_WORKGROUP_SIZE (WARP_COUNT * WARP_SIZE)
@@ -99,7 +103,9 @@ void histogram256(
 // from every partial histogram. Reads are uncoalesced, but mergeHistogram256
 // takes only a fraction of total processing time
 ////////////////////////////////////////////////////////////////////////////////
+#ifndef MERGE_WORKGROUP_SIZE
 #define MERGE_WORKGROUP_SIZE 256
+#endif
 
 __kernel void mergeHistogram256(
     __global uint *d_Histogram,
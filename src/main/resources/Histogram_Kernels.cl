@@ -10,8 +10,13 @@
 
 #pragma OPENCL EXTENSION cl_khr_byte_addressable_store : enable
 
+/* The defaults, which may be overridden with -D build options */
+#ifndef BIN_SIZE
 #define BIN_SIZE 256
+#endif
+#ifndef GROUP_SIZE
 #define GROUP_SIZE 16
+#endif
 
 /**
  * @brief   Calculates block-histogram bin whose bin size is 256
@@ -6,6 +6,8 @@
 
 // A mandelbrot kernel using QuadFloat functions
 
+#include "QuadFloat.cl"
+
 inline int iterate(
     float2 x0, float2 y0,
     float2 dx, float2 dy,
@@ -0,0 +1,171 @@
+package com.mdaley.jocl;
+
+import static org.jocl.CL.*;
+import static org.junit.Assert.*;
+
+import java.util.*;
+
+import org.jocl.*;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Tests for the {@link BufferPool}, with an allocator that does not
+ * require an OpenCL implementation
+ */
+public class BufferPoolTest
+{
+    /**
+     * An allocator that records the released memory objects, and that
+     * may be told to fail the next allocations
+     */
+    private static final class RecordingAllocator
+        implements BufferPool.Allocator
+    {
+        /**
+         * The memory objects that have been released, in order
+         */
+        private final List<cl_mem> released = new ArrayList<cl_mem>();
+
+        /**
+         * The number of subsequent allocations that will fail
+         */
+        private int failures;
+
+        @Override
+        public cl_mem create(cl_context context, long flags, long size)
+        {
+            if (failures > 0)
+            {
+                failures--;
+                throw new CLException("Out of memory",
+                        CL_MEM_OBJECT_ALLOCATION_FAILURE);
+            }
+            return ClTestObjects.mem();
+        }
+
+        @Override
+        public void release(cl_mem mem)
+        {
+            released.add(mem);
+        }
+    }
+
+    /**
+     * The allocator
+     */
+    private RecordingAllocator allocator;
+
+    /**
+     * The context for the buffers
+     */
+    private cl_context context;
+
+    /**
+     * Create the allocator and the context
+     */
+    @Before
+    public void setUp()
+    {
+        allocator = new RecordingAllocator();
+        context = ClTestObjects.context();
+    }
+
+    @Test
+    public void sizeClassesArePowersOfTwoUpToFourKilobytes()
+    {
+        assertEquals(1, BufferPool.sizeClass(1));
+        assertEquals(4, BufferPool.sizeClass(3));
+        assertEquals(1024, BufferPool.sizeClass(1000));
+        assertEquals(4096, BufferPool.sizeClass(4095));
+        assertEquals(4096, BufferPool.sizeClass(4096));
+    }
+
+    @Test
+    public void sizeClassesAboveFourKilobytesAreQuarterSteps()
+    {
+        assertEquals(5120, BufferPool.sizeClass(4097));
+        assertEquals(8192, BufferPool.sizeClass(8192));
+        assertEquals(10240, BufferPool.sizeClass(8193));
+        assertEquals(3L << 29, BufferPool.sizeClass((3L << 29) - 1));
+        for (long size = 4097; size < (1 << 20); size += 997)
+        {
+            long sizeClass = BufferPool.sizeClass(size);
+            assertTrue(sizeClass >= size);
+            assertTrue("Too much waste for " + size,
+                    sizeClass - size < sizeClass / 4);
+        }
+    }
+
+    @Test
+    public void releasedBufferIsReusedForTheSameSizeClass()
+    {
+        BufferPool pool = new BufferPool(allocator, 1 << 20);
+        cl_mem mem = pool.acquireBuffer(context, CL_MEM_READ_WRITE, 5000);
+        assertEquals(5120, pool.getSize(mem));
+        pool.releaseBuffer(mem);
+
+        assertSame(mem, pool.acquireBuffer(context, CL_MEM_READ_WRITE, 4500));
+        assertNotSame(mem, pool.acquireBuffer(context, CL_MEM_READ_ONLY, 4500));
+        assertEquals(1, pool.getHits());
+        assertEquals(2, pool.getMisses());
+        assertTrue(allocator.released.isEmpty());
+    }
+
+    @Test
+    public void longestIdleBuffersAreEvictedFirst()
+    {
+        BufferPool pool = new BufferPool(allocator, 3 * 4096);
+        List<cl_mem> mems = new ArrayList<cl_mem>();
+        for (int i = 0; i < 4; i++)
+        {
+            mems.add(pool.acquireBuffer(context, CL_MEM_READ_WRITE, 4096));
+        }
+        for (cl_mem mem : mems)
+        {
+            pool.releaseBuffer(mem);
+        }
+        assertEquals(Arrays.asList(mems.get(0)), allocator.released);
+        assertEquals(3 * 4096, pool.getIdleBytes());
+
+        pool.setMaxIdleBytes(4096);
+        assertEquals(mems.subList(0, 3), allocator.released);
+        assertEquals(3, pool.getEvictions());
+
+        pool.trim();
+        assertEquals(mems, allocator.released);
+        assertEquals(0, pool.getIdleBytes());
+    }
+
+    @Test
+    public void idleBuffersAreReleasedWhenTheAllocationFails()
+    {
+        BufferPool pool = new BufferPool(allocator, 1 << 20);
+        cl_mem idle = pool.acquireBuffer(context, CL_MEM_READ_WRITE, 4096);
+        pool.releaseBuffer(idle);
+
+        allocator.failures = 1;
+        cl_mem mem = pool.acquireBuffer(context, CL_MEM_READ_WRITE, 8192);
+        assertNotNull(mem);
+        assertEquals(Arrays.asList(idle), allocator.released);
+        assertEquals(0, pool.getIdleBytes());
+        assertEquals(8192, pool.getUsedBytes());
+    }
+
+    @Test
+    public void failedAllocationWithoutIdleBuffersIsRethrown()
+    {
+        BufferPool pool = new BufferPool(allocator, 1 << 20);
+        allocator.failures = 1;
+        try
+        {
+            pool.acquireBuffer(context, CL_MEM_READ_WRITE, 4096);
+            fail("Expected a CLException");
+        }
+        catch (CLException e)
+        {
+            assertEquals(CL_MEM_OBJECT_ALLOCATION_FAILURE, e.getStatus());
+        }
+        assertEquals(0, pool.getUsedBytes());
+    }
+}
@@ -0,0 +1,73 @@
+package com.mdaley.jocl;
+
+import java.lang.reflect.Field;
+
+import org.jocl.*;
+
+/**
+ * Utility methods for creating OpenCL handle objects in tests that run
+ * without an OpenCL implementation
+ */
+final class ClTestObjects
+{
+    /**
+     * The next native pointer value that is assigned to a handle
+     */
+    private static long nextPointer = 1;
+
+    /**
+     * Private constructor to prevent instantiation
+     */
+    private ClTestObjects()
+    {
+        // Private constructor to prevent instantiation
+    }
+
+    /**
+     * Returns a new context handle that is distinct from all other
+     * handles that have been created by this class
+     *
+     * @return The context
+     */
+    static cl_context context()
+    {
+        return withUniquePointer(new cl_context());
+    }
+
+    /**
+     * Returns a new memory object handle that is distinct from all other
+     * handles that have been created by this class
+     *
+     * @return The memory object
+     */
+    static cl_mem mem()
+    {
+        return withUniquePointer(new cl_mem());
+    }
+
+    /**
+     * Assign a unique native pointer value to the given handle. Handles
+     * are compared by their native pointer, so handles that have not
+     * been created by OpenCL would otherwise all be equal.
+     *
+     * @param <T> The handle type
+     * @param object The handle
+     * @return The handle
+     */
+    static synchronized <T extends NativePointerObject> T withUniquePointer(
+            T object)
+    {
+        try
+        {
+            Field field =
+                    NativePointerObject.class.getDeclaredField("nativePointer");
+            field.setAccessible(true);
+            field.setLong(object, nextPointer++);
+            return object;
+        }
+        catch (NoSuchFieldException | IllegalAccessException e)
+        {
+            throw new IllegalStateException(e);
+        }
+    }
+}
@@ -0,0 +1,101 @@
+package com.mdaley.jocl;
+
+import static org.junit.Assert.*;
+
+import java.util.Locale;
+
+import org.junit.After;
+import org.junit.Test;
+
+/**
+ * Tests for parsing the {@link DevicePartitioning} from strings and from
+ * the system property
+ */
+public class DevicePartitioningTest
+{
+    /**
+     * Clear the system property
+     */
+    @After
+    public void tearDown()
+    {
+        System.clearProperty(DevicePartitioning.PARTITION_PROPERTY);
+    }
+
+    @Test
+    public void noneIsTheSharedInstance()
+    {
+        assertSame(DevicePartitioning.NONE, DevicePartitioning.parse("none"));
+        assertTrue(DevicePartitioning.parse(" None ").isNone());
+    }
+
+    @Test
+    public void affinityDomainsAreParsedIgnoringCase()
+    {
+        String values[] = { "numa", "l4", "l3", "l2", "l1", "auto" };
+        for (String value : values)
+        {
+            DevicePartitioning partitioning = DevicePartitioning.parse(
+                    " " + value.toUpperCase(Locale.ENGLISH) + " ");
+            assertFalse(partitioning.isNone());
+            assertEquals(value, partitioning.toString());
+        }
+    }
+
+    @Test
+    public void equalPartitioningIsParsed()
+    {
+        DevicePartitioning partitioning = DevicePartitioning.parse("equally:4");
+        assertFalse(partitioning.isNone());
+        assertEquals("equally:4", partitioning.toString());
+        assertEquals("equally:4", DevicePartitioning.equally(4).toString());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void unknownPartitioningIsRejected()
+    {
+        DevicePartitioning.parse("socket");
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void equalPartitioningWithoutNumberIsRejected()
+    {
+        DevicePartitioning.parse("equally:");
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void equalPartitioningWithoutComputeUnitsIsRejected()
+    {
+        DevicePartitioning.parse("equally:0");
+    }
+
+    @Test
+    public void missingPropertyMeansNone()
+    {
+        assertSame(DevicePartitioning.NONE,
+                DevicePartitioning.fromSystemProperty());
+    }
+
+    @Test
+    public void propertyIsParsed()
+    {
+        System.setProperty(DevicePartitioning.PARTITION_PROPERTY, "l3");
+        assertEquals("l3", DevicePartitioning.fromSystemProperty().toString());
+    }
+
+    @Test
+    public void invalidPropertyIsRejected()
+    {
+        System.setProperty(DevicePartitioning.PARTITION_PROPERTY, "equally:x");
+        try
+        {
+            DevicePartitioning.fromSystemProperty();
+            fail("Expected an IllegalArgumentException");
+        }
+        catch (IllegalArgumentException e)
+        {
+            assertTrue(e.getMessage().contains(
+                    DevicePartitioning.PARTITION_PROPERTY));
+        }
+    }
+}
@@ -0,0 +1,275 @@
+package com.mdaley.jocl;
+
+import static org.junit.Assert.*;
+
+import java.util.*;
+import java.util.concurrent.ForkJoinPool;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Tests for the {@link JavaBackend}, comparing its results with serially
+ * computed or hand-computed reference values
+ */
+public class JavaBackendTest
+{
+    /**
+     * The number of elements of the vectors, large enough to be split
+     * into several tasks
+     */
+    private static final int N = 100003;
+
+    /**
+     * The pool that executes the tasks
+     */
+    private ForkJoinPool pool;
+
+    /**
+     * The backend
+     */
+    private JavaBackend backend;
+
+    /**
+     * Create the pool and the backend
+     */
+    @Before
+    public void setUp()
+    {
+        pool = new ForkJoinPool(4);
+        backend = new JavaBackend(pool);
+    }
+
+    /**
+     * Shut down the pool
+     */
+    @After
+    public void tearDown()
+    {
+        backend.release();
+        pool.shutdown();
+    }
+
+    /**
+     * Returns an array with the given number of pseudo-random values
+     *
+     * @param n The number of values
+     * @param seed The seed
+     * @return The array
+     */
+    private static float[] randomFloats(int n, long seed)
+    {
+        Random random = new Random(seed);
+        float result[] = new float[n];
+        for (int i = 0; i < n; i++)
+        {
+            result[i] = random.nextFloat() * 10 - 5;
+        }
+        return result;
+    }
+
+    /**
+     * Returns a pixel with the given channel values
+     *
+     * @param r The red channel
+     * @param g The green channel
+     * @param b The blue channel
+     * @param a The alpha channel
+     * @return The pixel
+     */
+    private static int pixel(int r, int g, int b, int a)
+    {
+        return r | (g << 8) | (b << 16) | (a << 24);
+    }
+
+    @Test
+    public void multiplyAndAddComputeEveryElement()
+    {
+        float a[] = randomFloats(N, 0);
+        float b[] = randomFloats(N, 1);
+        float product[] = new float[N];
+        float sum[] = new float[N];
+        backend.multiply(a, b, product, N);
+        backend.add(a, b, sum, N);
+        for (int i = 0; i < N; i++)
+        {
+            assertEquals(a[i] * b[i], product[i], 0.0f);
+            assertEquals(a[i] + b[i], sum[i], 0.0f);
+        }
+    }
+
+    @Test
+    public void operationsOnlyTouchTheFirstElements()
+    {
+        float a[] = { 1, 2, 3, 4 };
+        float b[] = { 5, 6, 7, 8 };
+        float c[] = new float[4];
+        backend.add(a, b, c, 2);
+        assertArrayEquals(new float[] { 6, 8, 0, 0 }, c, 0.0f);
+        assertEquals(3.0f, backend.reduce(a, 2), 0.0f);
+        assertEquals(0.0f, backend.reduce(a, 0), 0.0f);
+    }
+
+    @Test
+    public void reduceMatchesTheSerialSum()
+    {
+        float input[] = new float[N];
+        for (int i = 0; i < N; i++)
+        {
+            input[i] = i % 10;
+        }
+        assertEquals(450003.0f, backend.reduce(input, N), 0.0f);
+
+        float random[] = randomFloats(N, 2);
+        double expected = 0;
+        for (float value : random)
+        {
+            expected += value;
+        }
+        assertEquals((float) expected, backend.reduce(random, N), 1e-3f);
+    }
+
+    @Test
+    public void histogramCountsEveryByte()
+    {
+        int byteCount = 256 * 1000 + 3;
+        byte data[] = new byte[byteCount];
+        for (int i = 0; i < byteCount; i++)
+        {
+            data[i] = (byte) i;
+        }
+        int histogram[] = new int[256];
+        backend.histogram256(data, byteCount, histogram);
+        for (int i = 0; i < 256; i++)
+        {
+            assertEquals("Bin " + i, i < 3 ? 1001 : 1000, histogram[i]);
+        }
+
+        backend.histogram256(data, 0, histogram);
+        assertArrayEquals(new int[256], histogram);
+    }
+
+    @Test
+    public void convolveWithIdentityMaskCopiesTheInterior()
+    {
+        int sizeX = 5;
+        int sizeY = 4;
+        int input[] = new int[sizeX * sizeY];
+        for (int i = 0; i < input.length; i++)
+        {
+            input[i] = pixel(i, 2 * i, 255 - i, 255);
+        }
+        float mask[] = {
+            0, 0, 0,
+            0, 1, 0,
+            0, 0, 0
+        };
+        int output[] = new int[sizeX * sizeY];
+        Arrays.fill(output, -1);
+        backend.convolve(input, output, sizeX, sizeY, mask, 3, 3, 1, 1);
+        for (int y = 0; y < sizeY; y++)
+        {
+            for (int x = 0; x < sizeX; x++)
+            {
+                boolean border =
+                        x == 0 || y == 0 || x == sizeX - 1 || y == sizeY - 1;
+                int index = y * sizeX + x;
+                assertEquals("Pixel " + x + "," + y,
+                        border ? 0 : input[index], output[index]);
+            }
+        }
+    }
+
+    @Test
+    public void convolveAveragesAndSaturatesEachChannel()
+    {
+        int input[] = {
+            pixel(10, 200, 0, 255), pixel(20, 200, 0, 255),
+            pixel(30, 200, 0, 255), pixel(40, 200, 0, 255)
+        };
+        float mask[] = { 0.25f, 0.25f, 0.25f, 0.25f };
+        int output[] = new int[4];
+        backend.convolve(input, output, 2, 2, mask, 2, 2, 0, 0);
+        assertEquals(pixel(25, 200, 0, 255), output[0]);
+        assertEquals(0, output[1]);
+        assertEquals(0, output[2]);
+        assertEquals(0, output[3]);
+
+        float doubling[] = { 2 };
+        backend.convolve(input, output, 2, 2, doubling, 1, 1, 0, 0);
+        assertEquals(pixel(20, 255, 0, 255), output[0]);
+        assertEquals(pixel(80, 255, 0, 255), output[3]);
+
+        float negative[] = { -1 };
+        backend.convolve(input, output, 2, 2, negative, 1, 1, 0, 0);
+        assertArrayEquals(new int[4], output);
+    }
+
+    @Test
+    public void rotateByZeroIsTheIdentity()
+    {
+        int sizeX = 7;
+        int sizeY = 6;
+        int input[] = new int[sizeX * sizeY];
+        for (int i = 0; i < input.length; i++)
+        {
+            input[i] = i + 1;
+        }
+        int output[] = new int[sizeX * sizeY];
+        backend.rotate(input, output, sizeX, sizeY, 0);
+        assertArrayEquals(input, output);
+    }
+
+    @Test
+    public void sineWaveComputesTheMeshPositions()
+    {
+        int sizeX = 4;
+        int sizeY = 2;
+        float time = 0.5f;
+        float positions[] = new float[sizeX * sizeY * 4];
+        backend.sineWave(positions, sizeX, sizeY, time);
+        for (int y = 0; y < sizeY; y++)
+        {
+            for (int x = 0; x < sizeX; x++)
+            {
+                float u = x / (float) sizeX * 2 - 1;
+                float v = y / (float) sizeY * 2 - 1;
+                double w = Math.sin(u * 4 + time) * Math.cos(v * 4 + time) / 2;
+                int index = (y * sizeX + x) * 4;
+                assertEquals(u, positions[index + 0], 0.0f);
+                assertEquals(w, positions[index + 1], 1e-6);
+                assertEquals(v, positions[index + 2], 0.0f);
+                assertEquals(1.0f, positions[index + 3], 0.0f);
+            }
+        }
+    }
+
+    @Test
+    public void mandelbrotColorsPointsByTheirEscapeIteration()
+    {
+        int colorMap[] = { 10, 11, 12, 13, 14, 15, 16, 17 };
+        int output[] = new int[4 * 4];
+        backend.mandelbrot(output, 4, 4, -2, -2, 2, 2, 16, colorMap);
+
+        // The origin is in the set
+        assertEquals(0, output[2 * 4 + 2]);
+
+        // -2-2i escapes after two iterations, and 2/16 of the map is 1
+        assertEquals(11, output[0]);
+
+        // 1+i escapes after three iterations, and 3/16 of the map is 1
+        assertEquals(11, output[3 * 4 + 3]);
+    }
+
+    @Test
+    public void mandelbrotQuadFloatCountsIterationsOfTheTile()
+    {
+        int iterations[] = new int[2 * 2];
+        backend.mandelbrotQuadFloat(
+                iterations, 4, 4, 1, 1, 2, 2, -2, -2, 4, 4, 100);
+
+        // The tile covers 0, 1, i and 1+i, of which 0 and i are in the set
+        assertArrayEquals(new int[] { 100, 3, 100, 3 }, iterations);
+    }
+}
@@ -0,0 +1,124 @@
+package com.mdaley.jocl;
+
+import static org.jocl.CL.*;
+import static org.junit.Assert.*;
+
+import java.util.*;
+
+import org.jocl.*;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Tests for the {@link KernelArgs}, with a setter that records the
+ * arguments instead of calling clSetKernelArg
+ */
+public class KernelArgsTest
+{
+    /**
+     * The indices of the arguments that have been set, in order
+     */
+    private List<Integer> setIndices;
+
+    /**
+     * Whether the next call of the setter fails
+     */
+    private boolean failNext;
+
+    /**
+     * The binder
+     */
+    private KernelArgs args;
+
+    /**
+     * Create the binder with the recording setter
+     */
+    @Before
+    public void setUp()
+    {
+        setIndices = new ArrayList<Integer>();
+        args = new KernelArgs(new cl_kernel(), 4, new KernelArgs.Setter()
+        {
+            @Override
+            public void set(cl_kernel kernel, int index, long size,
+                    Pointer pointer)
+            {
+                if (failNext)
+                {
+                    failNext = false;
+                    throw new CLException("Invalid argument",
+                            CL_INVALID_ARG_VALUE);
+                }
+                setIndices.add(index);
+            }
+        });
+    }
+
+    @Test
+    public void unchangedValuesAreNotSetAgain()
+    {
+        args.setInt(0, 42).setFloat(1, 1.5f).setLocal(2, 256);
+        args.setInt(0, 42).setFloat(1, 1.5f).setLocal(2, 256);
+        assertEquals(Arrays.asList(0, 1, 2), setIndices);
+        assertEquals(3, args.getCalls());
+        assertEquals(3, args.getSkippedCalls());
+    }
+
+    @Test
+    public void changedValuesAreSetAgain()
+    {
+        args.setInt(0, 42).setInt2(1, 1, 2).setLocal(2, 256);
+        args.setInt(0, 43).setInt2(1, 1, 3).setLocal(2, 512);
+        assertEquals(Arrays.asList(0, 1, 2, 0, 1, 2), setIndices);
+        assertEquals(0, args.getSkippedCalls());
+    }
+
+    @Test
+    public void valuesAreComparedByTheirSizeAndBits()
+    {
+        args.setInt(0, 0);
+        args.setFloat(0, 0.0f);
+        args.setLong(0, 0L);
+        args.setFloat(0, 1.0f);
+        args.setInt(0, Float.floatToRawIntBits(1.0f));
+        assertEquals(Arrays.asList(0, 0, 0), setIndices);
+        assertEquals(2, args.getSkippedCalls());
+    }
+
+    @Test
+    public void floatsAreComparedByTheirBits()
+    {
+        args.setFloat(0, Float.NaN);
+        args.setFloat(0, Float.NaN);
+        args.setFloat(1, 0.0f);
+        args.setFloat(1, -0.0f);
+        assertEquals(Arrays.asList(0, 1, 1), setIndices);
+    }
+
+    @Test
+    public void invalidatedArgumentsAreSetAgain()
+    {
+        args.setInt(0, 42).setLocal(2, 256);
+        args.invalidate();
+        args.setInt(0, 42).setLocal(2, 256);
+        assertEquals(Arrays.asList(0, 2, 0, 2), setIndices);
+    }
+
+    @Test
+    public void failedArgumentIsNotConsideredToBeBound()
+    {
+        args.setInt(0, 42);
+        failNext = true;
+        try
+        {
+            args.setInt(0, 43);
+            fail("Expected a CLException");
+        }
+        catch (CLException e)
+        {
+            assertEquals(CL_INVALID_ARG_VALUE, e.getStatus());
+        }
+        args.setInt(0, 43);
+        assertEquals(Arrays.asList(0, 0), setIndices);
+    }
+}
@@ -0,0 +1,142 @@
+package com.mdaley.jocl;
+
+import static org.junit.Assert.*;
+
+import org.junit.After;
+import org.junit.Test;
+
+/**
+ * Tests for the decisions of the {@link OffloadAdvisor}, with the
+ * default device parameters: A transfer bandwidth of 4 GB/s, a memory
+ * bandwidth of 20 GB/s and a launch latency of 50 microseconds, i.e.
+ * 1.2 nanoseconds for each element of 4 bytes on the device.
+ */
+public class OffloadAdvisorTest
+{
+    /**
+     * The name of the operation
+     */
+    private static final String OPERATION = "OffloadAdvisorTest";
+
+    /**
+     * The tolerance for comparing times, in seconds
+     */
+    private static final double EPSILON = 1e-9;
+
+    /**
+     * Clear the system properties that override the placement
+     */
+    @After
+    public void tearDown()
+    {
+        System.clearProperty(OffloadAdvisor.OFFLOAD_PROPERTY);
+        System.clearProperty(OffloadAdvisor.OFFLOAD_PROPERTY + "." + OPERATION);
+    }
+
+    /**
+     * Creates an advisor with the default device parameters
+     *
+     * @param hostThroughput The host throughput, in elements per second
+     * @return The advisor
+     */
+    private static OffloadAdvisor advisor(double hostThroughput)
+    {
+        return new OffloadAdvisor("Test device", null, hostThroughput);
+    }
+
+    @Test
+    public void fastHostIsChosen()
+    {
+        OffloadAdvisor advisor = advisor(1e9);
+        assertFalse(advisor.isProfiled());
+
+        OffloadAdvisor.Decision decision = advisor.decide(OPERATION, 1000, 4);
+        assertEquals(OffloadAdvisor.Placement.HOST, decision.getPlacement());
+        assertEquals(50e-6 + 1000 * 1.2e-9, decision.getDeviceTime(), EPSILON);
+        assertEquals(1000 * 1e-9, decision.getHostTime(), EPSILON);
+        assertEquals(0.0, decision.getDeviceFraction(), 0.0);
+        assertEquals(0, decision.getDeviceElements(1000, 1));
+        assertFalse(decision.isOverridden());
+    }
+
+    @Test
+    public void launchLatencyKeepsSmallInputsOnTheHost()
+    {
+        OffloadAdvisor.Decision decision =
+                advisor(1e8).decide(OPERATION, 1000, 4);
+        assertEquals(OffloadAdvisor.Placement.HOST, decision.getPlacement());
+    }
+
+    @Test
+    public void slowHostLeavesLargeInputsToTheDevice()
+    {
+        OffloadAdvisor.Decision decision =
+                advisor(1e6).decide(OPERATION, 100000000, 4);
+        assertEquals(OffloadAdvisor.Placement.DEVICE, decision.getPlacement());
+        assertEquals(1.0, decision.getDeviceFraction(), 0.0);
+        assertEquals(100000000, decision.getDeviceElements(100000000, 256));
+    }
+
+    @Test
+    public void comparableThroughputsSplitTheWork()
+    {
+        long elements = 100000000;
+        OffloadAdvisor.Decision decision =
+                advisor(1e8).decide(OPERATION, elements, 4);
+        assertEquals(OffloadAdvisor.Placement.SPLIT, decision.getPlacement());
+
+        // Both sides finish at the same time
+        double fraction = decision.getDeviceFraction();
+        assertEquals((1.0 - 50e-6) / 1.12, fraction, 1e-9);
+        assertEquals(50e-6 + fraction * elements * 1.2e-9,
+                (1 - fraction) * elements * 1e-8, EPSILON);
+        assertTrue(decision.getSplitTime() < decision.getDeviceTime());
+        assertTrue(decision.getSplitTime() < decision.getHostTime());
+
+        long deviceElements = decision.getDeviceElements(elements, 256);
+        assertEquals(0, deviceElements % 256);
+        assertTrue(Math.abs(deviceElements - fraction * elements) < 256);
+    }
+
+    @Test
+    public void overrideReplacesTheCostModel()
+    {
+        OffloadAdvisor advisor = advisor(1e9);
+        advisor.setOverride(OffloadAdvisor.Placement.DEVICE);
+        OffloadAdvisor.Decision decision = advisor.decide(OPERATION, 1000, 4);
+        assertEquals(OffloadAdvisor.Placement.DEVICE, decision.getPlacement());
+        assertEquals(1.0, decision.getDeviceFraction(), 0.0);
+        assertTrue(decision.isOverridden());
+
+        advisor.setOverride(null);
+        assertEquals(OffloadAdvisor.Placement.HOST,
+                advisor.decide(OPERATION, 1000, 4).getPlacement());
+    }
+
+    @Test
+    public void operationPropertyTakesPrecedence()
+    {
+        System.setProperty(OffloadAdvisor.OFFLOAD_PROPERTY, "device");
+        System.setProperty(
+                OffloadAdvisor.OFFLOAD_PROPERTY + "." + OPERATION, " Host ");
+        OffloadAdvisor.Decision decision =
+                advisor(1e6).decide(OPERATION, 100000000, 4);
+        assertEquals(OffloadAdvisor.Placement.HOST, decision.getPlacement());
+        assertTrue(decision.isOverridden());
+        assertEquals(OffloadAdvisor.Placement.DEVICE,
+                advisor(1e9).decide("Other", 1000, 4).getPlacement());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void invalidPropertyIsRejected()
+    {
+        System.setProperty(OffloadAdvisor.OFFLOAD_PROPERTY, "gpu");
+        advisor(1e9).decide(OPERATION, 1000, 4);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void hostThroughputMustBePositive()
+    {
+        advisor(0.0);
+    }
+}
@@ -0,0 +1,172 @@
+package com.mdaley.jocl;
+
+import static org.junit.Assert.*;
+
+import java.util.*;
+
+import org.jocl.*;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Tests for the dependencies of the tasks in a {@link TaskGraph}, which
+ * are computed without enqueueing the tasks
+ */
+public class TaskGraphTest
+{
+    /**
+     * The graph
+     */
+    private TaskGraph graph;
+
+    /**
+     * The first memory object
+     */
+    private cl_mem a;
+
+    /**
+     * The second memory object
+     */
+    private cl_mem b;
+
+    /**
+     * The third memory object
+     */
+    private cl_mem c;
+
+    /**
+     * Create the graph and the memory objects
+     */
+    @Before
+    public void setUp()
+    {
+        graph = new TaskGraph(new cl_command_queue[] {
+                new cl_command_queue(), new cl_command_queue() }, true);
+        a = ClTestObjects.mem();
+        b = ClTestObjects.mem();
+        c = ClTestObjects.mem();
+    }
+
+    /**
+     * Declare a kernel task with the given name
+     *
+     * @param name The name
+     * @return The task
+     */
+    private TaskGraph.Task kernel(String name)
+    {
+        return graph.kernel(name, new cl_kernel(), new long[]{ 64 }, null);
+    }
+
+    /**
+     * Returns the set of the given tasks
+     *
+     * @param tasks The tasks
+     * @return The set
+     */
+    private static Set<TaskGraph.Task> set(TaskGraph.Task ... tasks)
+    {
+        return new LinkedHashSet<TaskGraph.Task>(Arrays.asList(tasks));
+    }
+
+    @Test
+    public void readAfterWriteDependsOnTheWriter()
+    {
+        TaskGraph.Task write = graph.write("write", a, 0, 64, null);
+        TaskGraph.Task compute = kernel("compute").reads(a).writes(b);
+        TaskGraph.Task read = graph.read("read", b, 0, 64, null);
+        graph.computeDependencies();
+
+        assertEquals(set(), write.getDependencies());
+        assertEquals(set(write), compute.getDependencies());
+        assertEquals(set(compute), read.getDependencies());
+    }
+
+    @Test
+    public void writeAfterReadDependsOnAllReaders()
+    {
+        TaskGraph.Task write = graph.write("write", a, 0, 64, null);
+        TaskGraph.Task first = kernel("first").reads(a).writes(b);
+        TaskGraph.Task second = kernel("second").reads(a).writes(c);
+        TaskGraph.Task overwrite = kernel("overwrite").writes(a);
+        graph.computeDependencies();
+
+        assertEquals(set(write), first.getDependencies());
+        assertEquals(set(write), second.getDependencies());
+        assertEquals(set(write, first, second), overwrite.getDependencies());
+    }
+
+    @Test
+    public void writeAfterWriteDependsOnTheLastWriter()
+    {
+        TaskGraph.Task first = graph.write("first", a, 0, 64, null);
+        TaskGraph.Task second = graph.write("second", a, 0, 64, null);
+        TaskGraph.Task third = kernel("third").writes(a);
+        graph.computeDependencies();
+
+        assertEquals(set(first), second.getDependencies());
+        assertEquals(set(second), third.getDependencies());
+    }
+
+    @Test
+    public void onlyReadersSinceTheLastWriteAreDependencies()
+    {
+        TaskGraph.Task write = graph.write("write", a, 0, 64, null);
+        TaskGraph.Task firstReader = kernel("firstReader").reads(a);
+        TaskGraph.Task overwrite = kernel("overwrite").writes(a);
+        TaskGraph.Task secondReader = kernel("secondReader").reads(a);
+        TaskGraph.Task last = kernel("last").writes(a);
+        graph.computeDependencies();
+
+        assertEquals(set(write, firstReader), overwrite.getDependencies());
+        assertEquals(set(overwrite), secondReader.getDependencies());
+        assertEquals(set(overwrite, secondReader), last.getDependencies());
+    }
+
+    @Test
+    public void tasksOnDifferentMemoryObjectsAreIndependent()
+    {
+        TaskGraph.Task writeA = graph.write("writeA", a, 0, 64, null);
+        TaskGraph.Task writeB = graph.write("writeB", b, 0, 64, null);
+        TaskGraph.Task readA = graph.read("readA", a, 0, 64, null);
+        TaskGraph.Task readB = graph.read("readB", b, 0, 64, null);
+        TaskGraph.Task combine = kernel("combine").reads(a, b).writes(c);
+        graph.computeDependencies();
+
+        assertEquals(set(), writeB.getDependencies());
+        assertEquals(set(writeA), readA.getDependencies());
+        assertEquals(set(writeB), readB.getDependencies());
+        assertEquals(set(writeA, writeB), combine.getDependencies());
+    }
+
+    @Test
+    public void taskThatReadsAndWritesDoesNotDependOnItself()
+    {
+        TaskGraph.Task write = graph.write("write", a, 0, 64, null);
+        TaskGraph.Task update = kernel("update").reads(a).writes(a);
+        TaskGraph.Task next = kernel("next").reads(a).writes(a);
+        graph.computeDependencies();
+
+        assertEquals(set(write), update.getDependencies());
+        assertEquals(set(update), next.getDependencies());
+    }
+
+    @Test
+    public void explicitDependenciesAreAdded()
+    {
+        TaskGraph.Task first = kernel("first").writes(a);
+        TaskGraph.Task second = kernel("second").writes(b).after(first);
+        graph.computeDependencies();
+        graph.computeDependencies();
+
+        assertEquals(set(first), second.getDependencies());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void explicitDependencyMustBeDeclaredBefore()
+    {
+        TaskGraph.Task first = kernel("first");
+        TaskGraph.Task second = kernel("second");
+        first.after(second);
+    }
+}
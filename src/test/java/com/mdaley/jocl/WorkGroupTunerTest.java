@@ -0,0 +1,74 @@
+package com.mdaley.jocl;
+
+import static org.junit.Assert.*;
+
+import org.junit.Test;
+
+/**
+ * Tests for the problem size buckets, the keys and the geometries of
+ * the {@link WorkGroupTuner}
+ */
+public class WorkGroupTunerTest
+{
+    @Test
+    public void bucketIsTheExponentOfTheNextPowerOfTwo()
+    {
+        assertEquals(0, WorkGroupTuner.bucket(0));
+        assertEquals(0, WorkGroupTuner.bucket(1));
+        assertEquals(1, WorkGroupTuner.bucket(2));
+        assertEquals(2, WorkGroupTuner.bucket(3));
+        assertEquals(2, WorkGroupTuner.bucket(4));
+        assertEquals(10, WorkGroupTuner.bucket(1000));
+        assertEquals(10, WorkGroupTuner.bucket(1024));
+        assertEquals(11, WorkGroupTuner.bucket(1025));
+        assertEquals(62, WorkGroupTuner.bucket(1L << 62));
+        assertEquals(63, WorkGroupTuner.bucket((1L << 62) + 1));
+    }
+
+    @Test
+    public void keyContainsTheNormalizedVariant()
+    {
+        assertEquals("reduce.2^10",
+                WorkGroupTuner.key("reduce", null, 1000));
+        assertEquals("reduce.2^10",
+                WorkGroupTuner.key("reduce", " ", 1000));
+        assertEquals("reduce[-D N=4 -cl-mad-enable].2^10",
+                WorkGroupTuner.key("reduce", " -D N=4\t -cl-mad-enable", 1000));
+        assertNotEquals(WorkGroupTuner.key("reduce", "-D N=4", 1000),
+                WorkGroupTuner.key("reduce", "-D N=8", 1000));
+    }
+
+    @Test
+    public void geometryIsParsedFromItsString()
+    {
+        WorkGroupTuner.Geometry geometry = new WorkGroupTuner.Geometry(
+                new long[]{ 1024, 768 }, new long[]{ 16, 8 });
+        assertEquals("1024,768/16,8", geometry.toString());
+        assertEquals(geometry, WorkGroupTuner.Geometry.parse(" 1024, 768/16 ,8 "));
+
+        WorkGroupTuner.Geometry withoutLocal =
+                WorkGroupTuner.Geometry.parse("4096/null");
+        assertArrayEquals(new long[]{ 4096 }, withoutLocal.getGlobalWorkSize());
+        assertNull(withoutLocal.getLocalWorkSize());
+        assertEquals(withoutLocal,
+                WorkGroupTuner.Geometry.parse(withoutLocal.toString()));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void geometryWithoutLocalPartIsRejected()
+    {
+        WorkGroupTuner.Geometry.parse("1024");
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void geometryWithInvalidSizeIsRejected()
+    {
+        WorkGroupTuner.Geometry.parse("1024/x");
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void geometryWithDifferentDimensionsIsRejected()
+    {
+        WorkGroupTuner.Geometry.parse("1024,768/16");
+    }
+}